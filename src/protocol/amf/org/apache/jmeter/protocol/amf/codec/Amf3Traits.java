@@ -0,0 +1,75 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.codec;
+
+/**
+ * Class name and sealed property names of an AMF3 object, shared by every
+ * object of the same type through the traits reference table.
+ */
+public class Amf3Traits {
+
+	private final String className;
+
+	private final String[] properties;
+
+	private final boolean dynamic;
+
+	private final boolean externalizable;
+
+	public Amf3Traits(String className, String[] properties, boolean dynamic, boolean externalizable) {
+		this.className = className;
+		this.properties = properties;
+		this.dynamic = dynamic;
+		this.externalizable = externalizable;
+	}
+
+	/**
+	 * @return class alias, empty for anonymous objects
+	 */
+	public String getClassName() {
+		return className;
+	}
+
+	/**
+	 * @return number of sealed properties
+	 */
+	public int getPropertyCount() {
+		return properties.length;
+	}
+
+	/**
+	 * @param index
+	 * @return name of the sealed property at the given index, in stream order
+	 */
+	public String getProperty(int index) {
+		return properties[index];
+	}
+
+	/**
+	 * @return true if dynamic properties follow the sealed ones
+	 */
+	public boolean isDynamic() {
+		return dynamic;
+	}
+
+	/**
+	 * @return true if the object body is written by the class itself (IExternalizable)
+	 */
+	public boolean isExternalizable() {
+		return externalizable;
+	}
+}
@@ -0,0 +1,78 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.codec;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Class aliases a message is decoded with, the equivalent of registerClassAlias in
+ * Flex: each maps the name a typed object is sent under to the Java class it is
+ * read into.
+ *
+ * BlazeDS keeps its aliases in the global ClassAliasRegistry, which every decoder
+ * reads and which registering an alias locks. A set of aliases here is fixed when it
+ * is made and belongs to whoever decodes with it, so decoders with different aliases
+ * can run side by side.
+ */
+public final class AmfClassAliases {
+
+	/**
+	 * No aliases, every class name is taken as it is sent
+	 */
+	public static final AmfClassAliases EMPTY = new AmfClassAliases(Collections.<String, String>emptyMap());
+
+	private final Map<String, String> classNames;
+
+	/**
+	 * @param classNames class name for each alias, copied
+	 */
+	public AmfClassAliases(Map<String, String> classNames) {
+		this.classNames = classNames.isEmpty()
+			? Collections.<String, String>emptyMap()
+			: Collections.unmodifiableMap(new HashMap<String, String>(classNames));
+	}
+
+	/**
+	 * @param alias
+	 * @return the class name for the alias, null if it isn't one
+	 */
+	public String getClassName(String alias) {
+		return classNames.get(alias);
+	}
+
+	/**
+	 * @return the class name for each alias, unmodifiable
+	 */
+	public Map<String, String> getClassNames() {
+		return classNames;
+	}
+
+	/**
+	 * @return true if there are no aliases
+	 */
+	public boolean isEmpty() {
+		return classNames.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return new TreeMap<String, String>(classNames).toString();
+	}
+}
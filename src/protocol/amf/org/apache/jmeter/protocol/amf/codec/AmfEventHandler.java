@@ -0,0 +1,123 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.codec;
+
+import java.io.IOException;
+
+/**
+ * Receives an AMF message from {@link AmfEventReader} one value at a time.
+ *
+ * Every header and body the handler accepts is followed by exactly one value:
+ * a scalar, an object or an array. Objects report each property with
+ * {@link #property(String)} and arrays each element with {@link #element(int)},
+ * followed by its value. The methods returning a boolean decide whether what
+ * they announce is read, returning false skips it without decoding anything
+ * and without any further event for it.
+ */
+public interface AmfEventHandler {
+
+	/**
+	 * @param version AMF version of the envelope, 0 or 3
+	 */
+	void startMessage(int version) throws IOException;
+
+	/**
+	 * @param index position of the header in the message
+	 * @param name
+	 * @param mustUnderstand
+	 * @return true to read the header's value
+	 */
+	boolean startHeader(int index, String name, boolean mustUnderstand) throws IOException;
+
+	/**
+	 * Called after the value of a header that was read
+	 */
+	void endHeader() throws IOException;
+
+	/**
+	 * @param index position of the body in the message
+	 * @param targetURI
+	 * @param responseURI
+	 * @return true to read the body's value
+	 */
+	boolean startBody(int index, String targetURI, String responseURI) throws IOException;
+
+	/**
+	 * Called after the value of a body that was read
+	 */
+	void endBody() throws IOException;
+
+	/**
+	 * Called after the last body unless the reader was stopped
+	 */
+	void endMessage() throws IOException;
+
+	/**
+	 * Starts an object, whose properties follow until {@link #endObject()}. This
+	 * includes typed and externalizable objects, where the properties are the
+	 * fields of a Flex message or the "source" of a collection or proxy, and
+	 * dictionaries, whose properties are their keys.
+	 *
+	 * @param className alias or class name, empty for an anonymous object
+	 * @return true to read the properties
+	 */
+	boolean startObject(String className) throws IOException;
+
+	/**
+	 * @param name property name, or null for an unknown Flex message field or a key
+	 * that isn't a string or a number
+	 * @return true to read the value
+	 */
+	boolean property(String name) throws IOException;
+
+	void endObject() throws IOException;
+
+	/**
+	 * Starts an array or vector, whose elements follow until {@link #endArray()}.
+	 * ECMA and mixed arrays report their named entries with {@link #property(String)}
+	 * before any elements.
+	 *
+	 * @param length number of elements
+	 * @return true to read the entries
+	 */
+	boolean startArray(int length) throws IOException;
+
+	/**
+	 * @param index
+	 * @return true to read the value
+	 */
+	boolean element(int index) throws IOException;
+
+	void endArray() throws IOException;
+
+	/**
+	 * A scalar: null for null and undefined, a String for strings and XML, a
+	 * Boolean, an Integer, a Long for unsigned vector elements, a Double, a Date
+	 * or a byte[] for byte arrays. AMF3 strings are {@link AmfString} views if
+	 * the reader is set to report them that way.
+	 */
+	void value(Object value) throws IOException;
+
+	/**
+	 * An object that's still being read, sent in place of the value because
+	 * reading it again would never end
+	 *
+	 * @param levels number of objects and arrays up from the current one, 1 for
+	 * the object or array the value is in
+	 */
+	void reference(int levels) throws IOException;
+}
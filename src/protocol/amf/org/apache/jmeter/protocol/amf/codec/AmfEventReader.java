@@ -0,0 +1,641 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.codec;
+
+import java.io.IOException;
+import java.util.Date;
+
+import flex.messaging.io.amf.Amf3Types;
+import flex.messaging.io.amf.AmfTypes;
+
+/**
+ * Reads an AMF message as a stream of events, without building its object graph.
+ *
+ * Memory stays the same whatever the size of the message: the reader only keeps
+ * the positions of referenced values, and a value sent by reference is read
+ * again from where it first appeared. Whatever the handler skips isn't decoded
+ * at all, and it can stop the reader once it has seen what it needs.
+ *
+ * A reader handles one message and isn't thread safe.
+ */
+public class AmfEventReader {
+
+	/**
+	 * Class name reported for AMF3 dictionaries
+	 */
+	public static final String DICTIONARY = "flash.utils.Dictionary"; // $NON-NLS-1$
+
+	private final AmfInput in;
+
+	private AmfEventHandler handler;
+
+	private boolean stopped;
+
+	private boolean stringViews;
+
+	// Type marker offsets of the objects and arrays being read, outermost first
+	private int[] open = new int[16];
+	private int openCount;
+
+	private final AmfInput.FieldHandler fields = new AmfInput.FieldHandler() {
+		public void field(String name) throws IOException {
+			if (stopped) {
+				// The stream is abandoned, possibly partway through an earlier field
+				return;
+			}
+			if (handler.property(name)) {
+				amf3Value();
+			}
+			else {
+				in.skipAmf3Value();
+			}
+		}
+	};
+
+	private final AmfInput.FieldHandler skipFields = new AmfInput.FieldHandler() {
+		public void field(String name) throws IOException {
+			in.skipAmf3Value();
+		}
+	};
+
+	public AmfEventReader(byte[] data) {
+		this(data, 0, data.length);
+	}
+
+	public AmfEventReader(byte[] data, int offset, int length) {
+		this.in = new AmfInput(data, offset, length);
+	}
+
+	/**
+	 * Reads the message, sending its values to the handler
+	 *
+	 * @param handler
+	 * @throws IOException if the message can't be read or the handler fails,
+	 * errors in the part of the stream left unread after {@link #stop()} are ignored
+	 */
+	public void read(AmfEventHandler handler) throws IOException {
+		this.handler = handler;
+		this.stopped = false;
+		this.openCount = 0;
+		try {
+			message();
+		} catch (AmfFormatException e) {
+			if (!stopped) {
+				throw e;
+			}
+		} finally {
+			this.handler = null;
+		}
+	}
+
+	/**
+	 * Stops reading, called by the handler once nothing else in the message is needed
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * @param stringViews true to report AMF3 strings as {@link AmfString} views,
+	 * which the handler only pays for decoding if it uses them
+	 */
+	public void setStringViews(boolean stringViews) {
+		this.stringViews = stringViews;
+	}
+
+	/*
+	 * ActionMessage envelope
+	 */
+
+	private void message() throws IOException {
+		handler.startMessage(in.readUnsignedShort());
+		if (stopped) {
+			return;
+		}
+
+		int headerCount = in.readUnsignedShort();
+		for (int i = 0; i < headerCount && !stopped; i++) {
+			String name = in.readUTF();
+			boolean mustUnderstand = in.readUnsignedByte() != 0;
+			in.readInt(); // Length, BlazeDS always writes -1
+			in.resetReferences();
+
+			if (handler.startHeader(i, name, mustUnderstand)) {
+				amf0Value();
+				if (!stopped) {
+					handler.endHeader();
+				}
+			}
+			else if (!stopped) {
+				in.skipAmf0Value();
+			}
+		}
+		if (stopped) {
+			return;
+		}
+
+		int bodyCount = in.readUnsignedShort();
+		for (int i = 0; i < bodyCount && !stopped; i++) {
+			String targetUri = in.readUTF();
+			String responseUri = in.readUTF();
+			in.readInt();
+			in.resetReferences();
+
+			if (handler.startBody(i, targetUri, responseUri)) {
+				amf0Value();
+				if (!stopped) {
+					handler.endBody();
+				}
+			}
+			else if (!stopped) {
+				in.skipAmf0Value();
+			}
+		}
+		if (!stopped) {
+			handler.endMessage();
+		}
+	}
+
+	/*
+	 * AMF0
+	 */
+
+	private void amf0Value() throws IOException {
+		int start = in.getPosition();
+		int type = in.readUnsignedByte();
+		switch (type) {
+			case AmfTypes.kNumberType:
+				handler.value(Double.valueOf(in.readDouble()));
+				break;
+			case AmfTypes.kBooleanType:
+				handler.value(Boolean.valueOf(in.readUnsignedByte() != 0));
+				break;
+			case AmfTypes.kStringType:
+				handler.value(in.readUTF());
+				break;
+			case AmfTypes.kLongStringType:
+			case AmfTypes.kXMLObjectType:
+				handler.value(in.readLongUTF());
+				break;
+			case AmfTypes.kDateType:
+				handler.value(new Date((long) in.readDouble()));
+				in.skipBytes(2); // Time zone, unused
+				break;
+			case AmfTypes.kNullType:
+			case AmfTypes.kUndefinedType:
+			case AmfTypes.kUnsupportedType:
+				handler.value(null);
+				break;
+			case AmfTypes.kReferenceType:
+				replay(in.getAmf0Object(in.readUnsignedShort()), false);
+				break;
+			case AmfTypes.kTypedObjectType:
+				in.rememberAmf0Object(start);
+				amf0Object(in.readUTF(), start);
+				break;
+			case AmfTypes.kObjectType:
+				in.rememberAmf0Object(start);
+				amf0Object("", start); // $NON-NLS-1$
+				break;
+			case AmfTypes.kECMAArrayType:
+				in.rememberAmf0Object(start);
+				in.readInt(); // Count, not reliable
+				if (handler.startArray(0)) {
+					enter(start);
+					amf0Properties();
+					exit();
+					if (!stopped) {
+						handler.endArray();
+					}
+				}
+				else if (!stopped) {
+					in.skipAmf0Properties();
+				}
+				break;
+			case AmfTypes.kStrictArrayType: {
+				in.rememberAmf0Object(start);
+				int length = in.readInt();
+				if (handler.startArray(length)) {
+					enter(start);
+					for (int i = 0; i < length && !stopped; i++) {
+						if (handler.element(i)) {
+							amf0Value();
+						}
+						else if (!stopped) {
+							in.skipAmf0Value();
+						}
+					}
+					exit();
+					if (!stopped) {
+						handler.endArray();
+					}
+				}
+				else if (!stopped) {
+					for (int i = 0; i < length; i++) {
+						in.skipAmf0Value();
+					}
+				}
+				break;
+			}
+			case AmfTypes.kAvmPlusObjectType:
+				amf3Value();
+				break;
+			default:
+				throw new AmfFormatException("Unsupported AMF0 type " + type + " at " + start);
+		}
+	}
+
+	private void amf0Object(String className, int start) throws IOException {
+		if (handler.startObject(className)) {
+			enter(start);
+			amf0Properties();
+			exit();
+			if (!stopped) {
+				handler.endObject();
+			}
+		}
+		else if (!stopped) {
+			in.skipAmf0Properties();
+		}
+	}
+
+	private void amf0Properties() throws IOException {
+		while (!stopped) {
+			String name = in.readUTF();
+			int start = in.getPosition();
+			int type = in.readUnsignedByte();
+			if (type == AmfTypes.kObjectEndType) {
+				return;
+			}
+			if (handler.property(name)) {
+				in.setPosition(start);
+				amf0Value();
+			}
+			else if (!stopped) {
+				in.skipAmf0Value(type, start);
+			}
+		}
+	}
+
+	/*
+	 * AMF3
+	 */
+
+	private void amf3Value() throws IOException {
+		int start = in.getPosition();
+		int type = in.readUnsignedByte();
+		switch (type) {
+			case Amf3Types.kUndefinedType:
+			case Amf3Types.kNullType:
+				handler.value(null);
+				break;
+			case Amf3Types.kFalseType:
+				handler.value(Boolean.FALSE);
+				break;
+			case Amf3Types.kTrueType:
+				handler.value(Boolean.TRUE);
+				break;
+			case Amf3Types.kIntegerType:
+				handler.value(Integer.valueOf(in.readAmf3Integer()));
+				break;
+			case Amf3Types.kDoubleType:
+				handler.value(Double.valueOf(in.readDouble()));
+				break;
+			case Amf3Types.kStringType:
+				handler.value(stringViews ? in.readAmf3StringView() : in.readAmf3String());
+				break;
+			case Amf3Types.kXMLType:
+			case Amf3Types.kAvmPlusXmlType: {
+				int ref = in.readUInt29();
+				if (inline(ref, start)) {
+					handler.value(in.readUTF(ref >> 1));
+				}
+				break;
+			}
+			case Amf3Types.kDateType: {
+				int ref = in.readUInt29();
+				if (inline(ref, start)) {
+					handler.value(new Date((long) in.readDouble()));
+				}
+				break;
+			}
+			case Amf3Types.kByteArrayType: {
+				int ref = in.readUInt29();
+				if (inline(ref, start)) {
+					int length = ref >> 1;
+					int offset = in.getPosition();
+					in.skipBytes(length);
+					byte[] bytes = new byte[length];
+					System.arraycopy(in.getData(), offset, bytes, 0, length);
+					handler.value(bytes);
+				}
+				break;
+			}
+			case Amf3Types.kArrayType: {
+				int ref = in.readUInt29();
+				if (inline(ref, start)) {
+					amf3Array(ref >> 1, start);
+				}
+				break;
+			}
+			case Amf3Types.kObjectType: {
+				int ref = in.readUInt29();
+				if ((ref & 1) == 0) {
+					replay(in.getAmf3Object(ref >> 1), true);
+					break;
+				}
+				Amf3Traits traits = in.readAmf3Traits(ref);
+				in.rememberAmf3Object(start);
+				amf3Object(traits, start);
+				break;
+			}
+			case AmfInput.AMF3_VECTOR_INT:
+			case AmfInput.AMF3_VECTOR_UINT:
+			case AmfInput.AMF3_VECTOR_DOUBLE: {
+				int ref = in.readUInt29();
+				if (inline(ref, start)) {
+					in.skipBytes(1); // Fixed length
+					numberVector(type, ref >> 1, start);
+				}
+				break;
+			}
+			case AmfInput.AMF3_VECTOR_OBJECT: {
+				int ref = in.readUInt29();
+				if (inline(ref, start)) {
+					in.skipBytes(1);
+					in.skipAmf3String(); // Element type
+					int length = ref >> 1;
+					if (handler.startArray(length)) {
+						enter(start);
+						amf3Elements(length);
+						exit();
+						if (!stopped) {
+							handler.endArray();
+						}
+					}
+					else if (!stopped) {
+						skipAmf3Values(length);
+					}
+				}
+				break;
+			}
+			case AmfInput.AMF3_DICTIONARY: {
+				int ref = in.readUInt29();
+				if (inline(ref, start)) {
+					in.skipBytes(1); // Weak keys
+					dictionary(ref >> 1, start);
+				}
+				break;
+			}
+			default:
+				throw new AmfFormatException("Unsupported AMF3 type " + type + " at " + start);
+		}
+	}
+
+	/*
+	 * Registers a value sent inline, or reads the referenced one again and returns false
+	 */
+	private boolean inline(int ref, int start) throws IOException {
+		if ((ref & 1) != 0) {
+			in.rememberAmf3Object(start);
+			return true;
+		}
+		replay(in.getAmf3Object(ref >> 1), true);
+		return false;
+	}
+
+	private void amf3Array(int length, int start) throws IOException {
+		if (handler.startArray(length)) {
+			enter(start);
+			dynamicProperties();
+			amf3Elements(length);
+			exit();
+			if (!stopped) {
+				handler.endArray();
+			}
+		}
+		else if (!stopped) {
+			skipDynamicProperties();
+			skipAmf3Values(length);
+		}
+	}
+
+	private void amf3Object(Amf3Traits traits, int start) throws IOException {
+		if (!handler.startObject(traits.getClassName())) {
+			if (stopped) {
+				return;
+			}
+			if (traits.isExternalizable()) {
+				in.readExternalizable(traits.getClassName(), skipFields);
+			}
+			else {
+				skipAmf3Values(traits.getPropertyCount());
+				if (traits.isDynamic()) {
+					skipDynamicProperties();
+				}
+			}
+			return;
+		}
+
+		enter(start);
+		if (traits.isExternalizable()) {
+			in.readExternalizable(traits.getClassName(), fields);
+		}
+		else {
+			for (int i = 0; i < traits.getPropertyCount() && !stopped; i++) {
+				if (handler.property(traits.getProperty(i))) {
+					amf3Value();
+				}
+				else if (!stopped) {
+					in.skipAmf3Value();
+				}
+			}
+			if (traits.isDynamic()) {
+				dynamicProperties();
+			}
+		}
+		exit();
+		if (!stopped) {
+			handler.endObject();
+		}
+	}
+
+	private void dynamicProperties() throws IOException {
+		while (!stopped) {
+			String name = in.readAmf3String();
+			if (name.length() == 0) {
+				return;
+			}
+			if (handler.property(name)) {
+				amf3Value();
+			}
+			else if (!stopped) {
+				in.skipAmf3Value();
+			}
+		}
+	}
+
+	private void skipDynamicProperties() throws IOException {
+		while (!in.isEmptyAmf3String()) {
+			in.skipAmf3Value();
+		}
+	}
+
+	private void amf3Elements(int length) throws IOException {
+		for (int i = 0; i < length && !stopped; i++) {
+			if (handler.element(i)) {
+				amf3Value();
+			}
+			else if (!stopped) {
+				in.skipAmf3Value();
+			}
+		}
+	}
+
+	private void skipAmf3Values(int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			in.skipAmf3Value();
+		}
+	}
+
+	private void numberVector(int type, int length, int start) throws IOException {
+		int size = type == AmfInput.AMF3_VECTOR_DOUBLE ? 8 : 4;
+		if (!handler.startArray(length)) {
+			if (!stopped) {
+				in.skipBytes(length * size);
+			}
+			return;
+		}
+
+		enter(start);
+		for (int i = 0; i < length && !stopped; i++) {
+			if (!handler.element(i)) {
+				if (!stopped) {
+					in.skipBytes(size);
+				}
+			}
+			else if (type == AmfInput.AMF3_VECTOR_DOUBLE) {
+				handler.value(Double.valueOf(in.readDouble()));
+			}
+			else if (type == AmfInput.AMF3_VECTOR_INT) {
+				handler.value(Integer.valueOf(in.readInt()));
+			}
+			else {
+				handler.value(Long.valueOf(in.readInt() & 0xFFFFFFFFL));
+			}
+		}
+		exit();
+		if (!stopped) {
+			handler.endArray();
+		}
+	}
+
+	private void dictionary(int length, int start) throws IOException {
+		if (!handler.startObject(DICTIONARY)) {
+			if (!stopped) {
+				skipAmf3Values(length * 2);
+			}
+			return;
+		}
+
+		enter(start);
+		for (int i = 0; i < length && !stopped; i++) {
+			if (handler.property(readKey())) {
+				amf3Value();
+			}
+			else if (!stopped) {
+				in.skipAmf3Value();
+			}
+		}
+		exit();
+		if (!stopped) {
+			handler.endObject();
+		}
+	}
+
+	/*
+	 * Dictionary keys can be any value, only strings and numbers are given a name
+	 */
+	private String readKey() throws IOException {
+		int start = in.getPosition();
+		int type = in.readUnsignedByte();
+		switch (type) {
+			case Amf3Types.kStringType:
+				return in.readAmf3String();
+			case Amf3Types.kIntegerType:
+				return Integer.toString(in.readAmf3Integer());
+			case Amf3Types.kDoubleType:
+				return formatNumber(in.readDouble());
+			default:
+				in.skipAmf3Value(type, start);
+				return null;
+		}
+	}
+
+	/*
+	 * References
+	 */
+
+	/*
+	 * Reads a value again from the position it was first read at, unless that's
+	 * one of the objects still being read
+	 */
+	private void replay(int position, boolean amf3) throws IOException {
+		for (int i = openCount - 1; i >= 0; i--) {
+			if (open[i] == position) {
+				handler.reference(openCount - i);
+				return;
+			}
+		}
+
+		int saved = in.beginReplay(position);
+		if (amf3) {
+			amf3Value();
+		}
+		else {
+			amf0Value();
+		}
+		in.endReplay(saved);
+	}
+
+	private void enter(int position) {
+		if (openCount == open.length) {
+			int[] grown = new int[openCount * 2];
+			System.arraycopy(open, 0, grown, 0, openCount);
+			open = grown;
+		}
+		open[openCount++] = position;
+	}
+
+	private void exit() {
+		openCount--;
+	}
+
+	/**
+	 * AMF sends most numbers as doubles, show whole numbers without a fraction so ids can be reused
+	 */
+	public static String formatNumber(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+}
@@ -0,0 +1,908 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.codec;
+
+import java.io.IOException;
+
+import flex.messaging.io.amf.Amf3Types;
+import flex.messaging.io.amf.AmfTypes;
+
+/**
+ * Cursor over an AMF message held in memory, for reading values without
+ * building an object graph.
+ *
+ * Besides the AMF0 and AMF3 primitives it keeps the reference tables a reader
+ * needs to stay in step with the stream. The tables hold positions instead of
+ * objects: a string is its offset and length, an object the offset of its type
+ * marker. Any value can be skipped, and a referenced object can be read again
+ * by replaying it from its recorded position. Nothing is added to the tables
+ * while replaying, as every value in a replayed object was registered the
+ * first time through.
+ *
+ * AMF3 strings can be read as {@link AmfString} views that are decoded when
+ * first used. Each entry of the string table has a single view, whether the
+ * string is read inline, by reference or again while replaying, so it's
+ * decoded once however many times it's sent.
+ *
+ * Like the BlazeDS deserializer the tables apply to a single header or body,
+ * call {@link #resetReferences()} before reading each one.
+ */
+public class AmfInput {
+
+	// AMF3 types added after BlazeDS 3 (Flash Player 10)
+	public static final int AMF3_VECTOR_INT = 13;
+	public static final int AMF3_VECTOR_UINT = 14;
+	public static final int AMF3_VECTOR_DOUBLE = 15;
+	public static final int AMF3_VECTOR_OBJECT = 16;
+	public static final int AMF3_DICTIONARY = 17;
+
+	public static final String ARRAY_COLLECTION = "flex.messaging.io.ArrayCollection"; // $NON-NLS-1$
+	public static final String ARRAY_LIST = "flex.messaging.io.ArrayList"; // $NON-NLS-1$
+	public static final String OBJECT_PROXY = "flex.messaging.io.ObjectProxy"; // $NON-NLS-1$
+
+	// Small message aliases of the Flex messages
+	public static final String ASYNC_MESSAGE_EXT = "DSA"; // $NON-NLS-1$
+	public static final String COMMAND_MESSAGE_EXT = "DSC"; // $NON-NLS-1$
+	public static final String ACKNOWLEDGE_MESSAGE_EXT = "DSK"; // $NON-NLS-1$
+
+	private static final String[] ABSTRACT_MESSAGE_FIELDS = {
+		"body", "clientId", "destination", "headers", "messageId", "timestamp", "timeToLive" }; // $NON-NLS-1$
+	private static final String[] ABSTRACT_MESSAGE_BYTES_FIELDS = { "clientIdBytes", "messageIdBytes" }; // $NON-NLS-1$
+	private static final String[] ASYNC_MESSAGE_FIELDS = { "correlationId", "correlationIdBytes" }; // $NON-NLS-1$
+	private static final String[] COMMAND_MESSAGE_FIELDS = { "operation" }; // $NON-NLS-1$
+	private static final String[] NO_FIELDS = {};
+
+	// String kinds reported to a StringListener, by length prefix
+	public static final int STRING_AMF0 = 0; // u16
+	public static final int STRING_AMF0_LONG = 1; // u32
+	public static final int STRING_AMF3 = 2; // U29
+
+	// Flex message flag bytes continue while the high bit is set
+	private static final int HAS_NEXT_FLAG = 0x80;
+
+	private final byte[] data;
+
+	private final int limit;
+
+	private int pos;
+
+	private int replaying;
+
+	private int[] amf0Objects = new int[16];
+	private int amf0ObjectCount;
+
+	// Offset and length pairs
+	private int[] amf3Strings = new int[64];
+	private int amf3StringCount;
+
+	// Views of the strings in the table, created when first read
+	private AmfString[] amf3StringViews = new AmfString[32];
+
+	private int[] amf3Objects = new int[32];
+	private int amf3ObjectCount;
+
+	private Amf3Traits[] amf3Traits = new Amf3Traits[8];
+	private int amf3TraitCount;
+
+	private StringListener stringListener;
+
+	public AmfInput(byte[] data) {
+		this(data, 0, data.length);
+	}
+
+	public AmfInput(byte[] data, int offset, int length) {
+		this.data = data;
+		this.pos = offset;
+		this.limit = offset + length;
+	}
+
+	/**
+	 * @return the underlying buffer
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getPosition() {
+		return pos;
+	}
+
+	public void setPosition(int position) {
+		pos = position;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public boolean hasRemaining() {
+		return pos < limit;
+	}
+
+	/**
+	 * @param listener notified of every inline string read or skipped, or null
+	 */
+	public void setStringListener(StringListener listener) {
+		this.stringListener = listener;
+	}
+
+	/**
+	 * Clears the reference tables, at the start of every header and body
+	 */
+	public void resetReferences() {
+		amf0ObjectCount = 0;
+		amf3StringCount = 0;
+		amf3ObjectCount = 0;
+		amf3TraitCount = 0;
+	}
+
+	/*
+	 * Primitives
+	 */
+
+	public int readUnsignedByte() throws IOException {
+		require(1);
+		return data[pos++] & 0xFF;
+	}
+
+	public int readUnsignedShort() throws IOException {
+		require(2);
+		int value = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+		pos += 2;
+		return value;
+	}
+
+	public int readInt() throws IOException {
+		require(4);
+		int value = ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+			| ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+		pos += 4;
+		return value;
+	}
+
+	public double readDouble() throws IOException {
+		require(8);
+		long bits = 0;
+		for (int i = 0; i < 8; i++) {
+			bits = (bits << 8) | (data[pos + i] & 0xFF);
+		}
+		pos += 8;
+		return Double.longBitsToDouble(bits);
+	}
+
+	public void skipBytes(int count) throws IOException {
+		if (count < 0) {
+			throw new AmfFormatException("Negative length " + count + " at " + pos);
+		}
+		require(count);
+		pos += count;
+	}
+
+	/**
+	 * @return AMF0 string with an unsigned 16 bit length
+	 */
+	public String readUTF() throws IOException {
+		int prefix = pos;
+		String value = readUTF(readUnsignedShort());
+		notifyString(prefix, STRING_AMF0);
+		return value;
+	}
+
+	/**
+	 * @return AMF0 long string or XML with a 32 bit length
+	 */
+	public String readLongUTF() throws IOException {
+		int prefix = pos;
+		String value = readUTF(readInt());
+		notifyString(prefix, STRING_AMF0_LONG);
+		return value;
+	}
+
+	/**
+	 * @param length number of bytes
+	 * @return String decoded from UTF-8
+	 */
+	public String readUTF(int length) throws IOException {
+		if (length < 0) {
+			throw new AmfFormatException("Negative length " + length + " at " + pos);
+		}
+		require(length);
+		String value = decodeUtf(data, pos, length);
+		pos += length;
+		return value;
+	}
+
+	/**
+	 * @return AMF3 variable length unsigned 29 bit integer
+	 */
+	public int readUInt29() throws IOException {
+		int value = 0;
+		for (int i = 0; i < 3; i++) {
+			int b = readUnsignedByte();
+			if ((b & 0x80) == 0) {
+				return (value << 7) | b;
+			}
+			value = (value << 7) | (b & 0x7F);
+		}
+		return (value << 8) | readUnsignedByte();
+	}
+
+	/**
+	 * @return AMF3 integer, a U29 sign extended from 29 bits
+	 */
+	public int readAmf3Integer() throws IOException {
+		return (readUInt29() << 3) >> 3;
+	}
+
+	/*
+	 * AMF3 strings and traits
+	 */
+
+	/**
+	 * @return AMF3 string, inline or from the string reference table
+	 */
+	public String readAmf3String() throws IOException {
+		return readAmf3StringView().toString();
+	}
+
+	/**
+	 * @return AMF3 string, inline or from the string reference table, left undecoded
+	 */
+	public AmfString readAmf3StringView() throws IOException {
+		int prefix = pos;
+		int ref = readUInt29();
+		if ((ref & 1) == 0) {
+			checkReference(ref >> 1, amf3StringCount, "string");
+			return getAmf3StringView(ref >> 1);
+		}
+
+		int length = ref >> 1;
+		if (length == 0) {
+			return AmfString.EMPTY;
+		}
+		int start = pos;
+		skipBytes(length);
+		rememberAmf3String(start, length);
+		notifyString(prefix, STRING_AMF3);
+		if (replaying == 0) {
+			return getAmf3StringView(amf3StringCount - 1);
+		}
+		// Already in the table, which is in stream order
+		int index = findAmf3String(start);
+		return index >= 0 ? getAmf3StringView(index) : new AmfString(data, start, length);
+	}
+
+	/**
+	 * Skips an AMF3 string, registering it without decoding
+	 */
+	public void skipAmf3String() throws IOException {
+		int prefix = pos;
+		int ref = readUInt29();
+		if ((ref & 1) == 0) {
+			checkReference(ref >> 1, amf3StringCount, "string");
+			return;
+		}
+
+		int length = ref >> 1;
+		if (length > 0) {
+			int start = pos;
+			skipBytes(length);
+			rememberAmf3String(start, length);
+			notifyString(prefix, STRING_AMF3);
+		}
+	}
+
+	/**
+	 * @param ref the U29 header of an AMF3 object, already read
+	 * @return traits of the object, inline or from the traits reference table
+	 */
+	public Amf3Traits readAmf3Traits(int ref) throws IOException {
+		if ((ref & 3) == 1) {
+			int index = ref >> 2;
+			checkReference(index, amf3TraitCount, "traits");
+			return amf3Traits[index];
+		}
+
+		boolean externalizable = (ref & 4) == 4;
+		boolean dynamic = (ref & 8) == 8;
+		int count = ref >> 4;
+		String className = readAmf3String();
+
+		String[] properties = new String[count];
+		for (int i = 0; i < count; i++) {
+			properties[i] = readAmf3String();
+		}
+
+		Amf3Traits traits = new Amf3Traits(className, properties, dynamic, externalizable);
+		if (replaying == 0) {
+			if (amf3TraitCount == amf3Traits.length) {
+				Amf3Traits[] grown = new Amf3Traits[amf3TraitCount * 2];
+				System.arraycopy(amf3Traits, 0, grown, 0, amf3TraitCount);
+				amf3Traits = grown;
+			}
+			amf3Traits[amf3TraitCount++] = traits;
+		}
+		return traits;
+	}
+
+	/*
+	 * Object reference tables and replay
+	 */
+
+	/**
+	 * Registers an AMF0 object, ECMA array or strict array
+	 *
+	 * @param position offset of its type marker
+	 */
+	public void rememberAmf0Object(int position) {
+		if (replaying == 0) {
+			if (amf0ObjectCount == amf0Objects.length) {
+				amf0Objects = grow(amf0Objects);
+			}
+			amf0Objects[amf0ObjectCount++] = position;
+		}
+	}
+
+	/**
+	 * @param index AMF0 reference
+	 * @return offset of the referenced value's type marker
+	 */
+	public int getAmf0Object(int index) throws IOException {
+		checkReference(index, amf0ObjectCount, "AMF0 object");
+		return amf0Objects[index];
+	}
+
+	/**
+	 * Registers a complex AMF3 value (anything but a string that can be sent by reference)
+	 *
+	 * @param position offset of its type marker
+	 */
+	public void rememberAmf3Object(int position) {
+		if (replaying == 0) {
+			if (amf3ObjectCount == amf3Objects.length) {
+				amf3Objects = grow(amf3Objects);
+			}
+			amf3Objects[amf3ObjectCount++] = position;
+		}
+	}
+
+	/**
+	 * @param index AMF3 object reference
+	 * @return offset of the referenced value's type marker
+	 */
+	public int getAmf3Object(int index) throws IOException {
+		checkReference(index, amf3ObjectCount, "object");
+		return amf3Objects[index];
+	}
+
+	/**
+	 * Moves to a value that was already read so it can be read again
+	 *
+	 * @param position offset of the value's type marker
+	 * @return the current position, to pass to {@link #endReplay(int)}
+	 */
+	public int beginReplay(int position) {
+		int saved = pos;
+		pos = position;
+		replaying++;
+		return saved;
+	}
+
+	/**
+	 * Returns to where the stream was before the matching {@link #beginReplay(int)}
+	 */
+	public void endReplay(int saved) {
+		pos = saved;
+		replaying--;
+	}
+
+	/*
+	 * Skipping
+	 */
+
+	/**
+	 * Skips an AMF0 value including its type marker
+	 */
+	public void skipAmf0Value() throws IOException {
+		int start = pos;
+		skipAmf0Value(readUnsignedByte(), start);
+	}
+
+	/**
+	 * Skips an AMF0 value whose type marker was already read
+	 *
+	 * @param type AMF0 type marker
+	 * @param start offset of the type marker
+	 */
+	public void skipAmf0Value(int type, int start) throws IOException {
+		switch (type) {
+			case AmfTypes.kNumberType:
+				skipBytes(8);
+				break;
+			case AmfTypes.kBooleanType:
+				skipBytes(1);
+				break;
+			case AmfTypes.kStringType:
+				skipAmf0String(false);
+				break;
+			case AmfTypes.kNullType:
+			case AmfTypes.kUndefinedType:
+			case AmfTypes.kUnsupportedType:
+				break;
+			case AmfTypes.kReferenceType:
+				checkReference(readUnsignedShort(), amf0ObjectCount, "AMF0 object");
+				break;
+			case AmfTypes.kTypedObjectType:
+				rememberAmf0Object(start);
+				skipAmf0String(false);
+				skipAmf0Properties();
+				break;
+			case AmfTypes.kObjectType:
+				rememberAmf0Object(start);
+				skipAmf0Properties();
+				break;
+			case AmfTypes.kECMAArrayType:
+				rememberAmf0Object(start);
+				skipBytes(4);
+				skipAmf0Properties();
+				break;
+			case AmfTypes.kStrictArrayType:
+				rememberAmf0Object(start);
+				int length = readInt();
+				for (int i = 0; i < length; i++) {
+					skipAmf0Value();
+				}
+				break;
+			case AmfTypes.kDateType:
+				skipBytes(10);
+				break;
+			case AmfTypes.kLongStringType:
+				skipAmf0String(true);
+				break;
+			case AmfTypes.kXMLObjectType:
+				skipBytes(readInt());
+				break;
+			case AmfTypes.kAvmPlusObjectType:
+				skipAmf3Value();
+				break;
+			default:
+				throw new AmfFormatException("Unsupported AMF0 type " + type + " at " + start);
+		}
+	}
+
+	/**
+	 * Skips the name and value pairs of an AMF0 object up to and including its end marker
+	 */
+	public void skipAmf0Properties() throws IOException {
+		while (true) {
+			skipAmf0String(false);
+			int start = pos;
+			int type = readUnsignedByte();
+			if (type == AmfTypes.kObjectEndType) {
+				return;
+			}
+			skipAmf0Value(type, start);
+		}
+	}
+
+	private void skipAmf0String(boolean longString) throws IOException {
+		int prefix = pos;
+		skipBytes(longString ? readInt() : readUnsignedShort());
+		notifyString(prefix, longString ? STRING_AMF0_LONG : STRING_AMF0);
+	}
+
+	/**
+	 * Skips an AMF3 value including its type marker
+	 */
+	public void skipAmf3Value() throws IOException {
+		int start = pos;
+		skipAmf3Value(readUnsignedByte(), start);
+	}
+
+	/**
+	 * Skips an AMF3 value whose type marker was already read
+	 *
+	 * @param type AMF3 type marker
+	 * @param start offset of the type marker
+	 */
+	public void skipAmf3Value(int type, int start) throws IOException {
+		switch (type) {
+			case Amf3Types.kUndefinedType:
+			case Amf3Types.kNullType:
+			case Amf3Types.kFalseType:
+			case Amf3Types.kTrueType:
+				break;
+			case Amf3Types.kIntegerType:
+				readUInt29();
+				break;
+			case Amf3Types.kDoubleType:
+				skipBytes(8);
+				break;
+			case Amf3Types.kStringType:
+				skipAmf3String();
+				break;
+			case Amf3Types.kXMLType:
+			case Amf3Types.kAvmPlusXmlType:
+			case Amf3Types.kByteArrayType: {
+				int ref = readUInt29();
+				if (isInline(ref, start)) {
+					skipBytes(ref >> 1);
+				}
+				break;
+			}
+			case Amf3Types.kDateType: {
+				int ref = readUInt29();
+				if (isInline(ref, start)) {
+					skipBytes(8);
+				}
+				break;
+			}
+			case Amf3Types.kArrayType: {
+				int ref = readUInt29();
+				if (isInline(ref, start)) {
+					while (!isEmptyAmf3String()) {
+						skipAmf3Value();
+					}
+					int length = ref >> 1;
+					for (int i = 0; i < length; i++) {
+						skipAmf3Value();
+					}
+				}
+				break;
+			}
+			case Amf3Types.kObjectType: {
+				int ref = readUInt29();
+				if ((ref & 1) == 0) {
+					checkReference(ref >> 1, amf3ObjectCount, "object");
+					break;
+				}
+				Amf3Traits traits = readAmf3Traits(ref);
+				rememberAmf3Object(start);
+				if (traits.isExternalizable()) {
+					readExternalizable(traits.getClassName(), skipFields);
+					break;
+				}
+				for (int i = 0; i < traits.getPropertyCount(); i++) {
+					skipAmf3Value();
+				}
+				if (traits.isDynamic()) {
+					while (!isEmptyAmf3String()) {
+						skipAmf3Value();
+					}
+				}
+				break;
+			}
+			case AMF3_VECTOR_INT:
+			case AMF3_VECTOR_UINT:
+			case AMF3_VECTOR_DOUBLE: {
+				int ref = readUInt29();
+				if (isInline(ref, start)) {
+					skipBytes(1 + (ref >> 1) * (type == AMF3_VECTOR_DOUBLE ? 8 : 4));
+				}
+				break;
+			}
+			case AMF3_VECTOR_OBJECT: {
+				int ref = readUInt29();
+				if (isInline(ref, start)) {
+					skipBytes(1);
+					skipAmf3String();
+					int length = ref >> 1;
+					for (int i = 0; i < length; i++) {
+						skipAmf3Value();
+					}
+				}
+				break;
+			}
+			case AMF3_DICTIONARY: {
+				int ref = readUInt29();
+				if (isInline(ref, start)) {
+					skipBytes(1);
+					int length = ref >> 1;
+					for (int i = 0; i < length; i++) {
+						skipAmf3Value();
+						skipAmf3Value();
+					}
+				}
+				break;
+			}
+			default:
+				throw new AmfFormatException("Unsupported AMF3 type " + type + " at " + start);
+		}
+	}
+
+	/**
+	 * For the complex AMF3 types that share the U29 reference header: registers the
+	 * value if it's sent inline or validates the reference if not.
+	 *
+	 * @param ref U29 header, already read
+	 * @param start offset of the type marker
+	 * @return true if the value follows inline
+	 */
+	public boolean isInline(int ref, int start) throws IOException {
+		if ((ref & 1) == 0) {
+			checkReference(ref >> 1, amf3ObjectCount, "object");
+			return false;
+		}
+		rememberAmf3Object(start);
+		return true;
+	}
+
+	/**
+	 * Reads the next AMF3 string as a dynamic property or associative array key,
+	 * returning true for the empty string that ends the list
+	 */
+	public boolean isEmptyAmf3String() throws IOException {
+		if (pos < limit && data[pos] == 1) {
+			pos++;
+			return true;
+		}
+		skipAmf3String();
+		return false;
+	}
+
+	/*
+	 * Externalizable classes
+	 */
+
+	/**
+	 * @param className
+	 * @return true for the Flex collections and proxies, which serialize a single wrapped value
+	 */
+	public static boolean isWrapper(String className) {
+		return ARRAY_COLLECTION.equals(className) || ARRAY_LIST.equals(className) || OBJECT_PROXY.equals(className);
+	}
+
+	/**
+	 * Reads the body of an externalizable object written by a class that's known
+	 * to the plugin. The handler is called once for each value in the stream with
+	 * its field name and must read or skip exactly that one AMF3 value.
+	 *
+	 * Wrapped values of collections and proxies are reported as field "source",
+	 * unknown reserved fields of the Flex messages with a null name.
+	 *
+	 * @param className alias from the object's traits
+	 * @param handler
+	 * @throws AmfFormatException if the class isn't known
+	 */
+	public void readExternalizable(String className, FieldHandler handler) throws IOException {
+		if (isWrapper(className)) {
+			handler.field("source"); // $NON-NLS-1$
+		}
+		else if (ASYNC_MESSAGE_EXT.equals(className)) {
+			readMessageFields(handler, true, false, false);
+		}
+		else if (ACKNOWLEDGE_MESSAGE_EXT.equals(className)) {
+			readMessageFields(handler, true, true, false);
+		}
+		else if (COMMAND_MESSAGE_EXT.equals(className)) {
+			readMessageFields(handler, true, false, true);
+		}
+		else {
+			throw new AmfFormatException("Unable to read externalizable class " + className);
+		}
+	}
+
+	/*
+	 * AbstractMessage, then AsyncMessage and finally AcknowledgeMessage or CommandMessage,
+	 * each written as flag bytes followed by the values that are set
+	 */
+	private void readMessageFields(FieldHandler handler, boolean async, boolean acknowledge, boolean command) throws IOException {
+		readFlaggedFields(handler, ABSTRACT_MESSAGE_FIELDS, ABSTRACT_MESSAGE_BYTES_FIELDS);
+		if (async) {
+			readFlaggedFields(handler, ASYNC_MESSAGE_FIELDS);
+		}
+		if (acknowledge) {
+			readFlaggedFields(handler, NO_FIELDS);
+		}
+		if (command) {
+			readFlaggedFields(handler, COMMAND_MESSAGE_FIELDS);
+		}
+	}
+
+	/*
+	 * All flag bytes of a level come first, then the values. Fields of the nth flag
+	 * byte are in fieldsByFlag[n], one per bit, any bits beyond those up to the
+	 * sixth are reserved and still carry a value.
+	 */
+	private void readFlaggedFields(FieldHandler handler, String[]... fieldsByFlag) throws IOException {
+		int start = pos;
+		while ((readUnsignedByte() & HAS_NEXT_FLAG) != 0) {
+			// Count the flag bytes
+		}
+		int count = pos - start;
+
+		for (int index = 0; index < count; index++) {
+			int flags = data[start + index] & 0xFF;
+			String[] fields = index < fieldsByFlag.length ? fieldsByFlag[index] : NO_FIELDS;
+			for (int bit = 0; bit < 7; bit++) {
+				if ((flags & (1 << bit)) == 0) {
+					continue;
+				}
+				if (bit < fields.length) {
+					handler.field(fields[bit]);
+				}
+				else if (bit < 6) {
+					handler.field(null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Receives the values of an externalizable object, see {@link AmfInput#readExternalizable(String, FieldHandler)}
+	 */
+	public interface FieldHandler {
+		/**
+		 * @param name field name or null if not known
+		 */
+		void field(String name) throws IOException;
+	}
+
+	private final FieldHandler skipFields = new FieldHandler() {
+		public void field(String name) throws IOException {
+			skipAmf3Value();
+		}
+	};
+
+	/**
+	 * Receives the location of strings in the stream, e.g. to rewrite them in place.
+	 * Strings sent by reference, empty strings and XML aren't reported.
+	 */
+	public interface StringListener {
+		/**
+		 * @param prefix offset of the length prefix
+		 * @param start offset of the UTF-8 bytes
+		 * @param length number of bytes
+		 * @param kind STRING_AMF0, STRING_AMF0_LONG or STRING_AMF3
+		 */
+		void string(int prefix, int start, int length, int kind);
+	}
+
+	/*
+	 * Helpers
+	 */
+
+	// The string just read or skipped ends at the current position
+	private void notifyString(int prefix, int kind) {
+		if (stringListener == null || replaying > 0) {
+			return;
+		}
+		int start = prefix + (kind == STRING_AMF0 ? 2 : kind == STRING_AMF0_LONG ? 4 : 0);
+		if (kind == STRING_AMF3) {
+			start = prefix;
+			while ((data[start++] & 0x80) != 0 && start - prefix < 4) {
+				// Skip the U29 length
+			}
+		}
+		if (pos > start) {
+			stringListener.string(prefix, start, pos - start, kind);
+		}
+	}
+
+	private void rememberAmf3String(int start, int length) {
+		if (replaying == 0) {
+			if (amf3StringCount * 2 == amf3Strings.length) {
+				amf3Strings = grow(amf3Strings);
+			}
+			amf3Strings[amf3StringCount * 2] = start;
+			amf3Strings[amf3StringCount * 2 + 1] = length;
+			if (amf3StringCount < amf3StringViews.length) {
+				amf3StringViews[amf3StringCount] = null;
+			}
+			amf3StringCount++;
+		}
+	}
+
+	private AmfString getAmf3StringView(int index) {
+		if (index >= amf3StringViews.length) {
+			AmfString[] grown = new AmfString[Math.max(amf3StringViews.length * 2, index + 1)];
+			System.arraycopy(amf3StringViews, 0, grown, 0, amf3StringViews.length);
+			amf3StringViews = grown;
+		}
+		AmfString view = amf3StringViews[index];
+		if (view == null) {
+			view = new AmfString(data, amf3Strings[index * 2], amf3Strings[index * 2 + 1]);
+			amf3StringViews[index] = view;
+		}
+		return view;
+	}
+
+	/*
+	 * Index of the string table entry starting at an offset, or -1
+	 */
+	private int findAmf3String(int start) {
+		int low = 0;
+		int high = amf3StringCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int offset = amf3Strings[mid * 2];
+			if (offset < start) {
+				low = mid + 1;
+			}
+			else if (offset > start) {
+				high = mid - 1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private void require(int count) throws AmfFormatException {
+		if (count > limit - pos) {
+			throw new AmfFormatException("Unexpected end of AMF data at " + pos);
+		}
+	}
+
+	private void checkReference(int index, int count, String table) throws AmfFormatException {
+		if (index >= count) {
+			throw new AmfFormatException("Invalid " + table + " reference " + index + " at " + pos);
+		}
+	}
+
+	private static int[] grow(int[] array) {
+		int[] grown = new int[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	/**
+	 * Decode UTF-8 the way BlazeDS reads it, including surrogates encoded as
+	 * separate 3 byte sequences. Four byte sequences from other encoders become
+	 * a surrogate pair and invalid bytes are taken as Latin-1.
+	 */
+	public static String decodeUtf(byte[] bytes, int offset, int length) {
+		char[] chars = new char[length];
+		int count = 0;
+		int end = offset + length;
+		int i = offset;
+
+		while (i < end) {
+			int b = bytes[i] & 0xFF;
+			if (b < 0x80) {
+				chars[count++] = (char) b;
+				i++;
+			}
+			else if ((b & 0xE0) == 0xC0 && i + 1 < end && isContinuation(bytes[i + 1])) {
+				chars[count++] = (char) (((b & 0x1F) << 6) | (bytes[i + 1] & 0x3F));
+				i += 2;
+			}
+			else if ((b & 0xF0) == 0xE0 && i + 2 < end && isContinuation(bytes[i + 1]) && isContinuation(bytes[i + 2])) {
+				chars[count++] = (char) (((b & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6) | (bytes[i + 2] & 0x3F));
+				i += 3;
+			}
+			else if ((b & 0xF8) == 0xF0 && i + 3 < end && isContinuation(bytes[i + 1])
+					&& isContinuation(bytes[i + 2]) && isContinuation(bytes[i + 3])) {
+				int cp = ((b & 0x07) << 18) | ((bytes[i + 1] & 0x3F) << 12) | ((bytes[i + 2] & 0x3F) << 6) | (bytes[i + 3] & 0x3F);
+				cp -= 0x10000;
+				chars[count++] = (char) (0xD800 | (cp >> 10));
+				chars[count++] = (char) (0xDC00 | (cp & 0x3FF));
+				i += 4;
+			}
+			else {
+				chars[count++] = (char) b;
+				i++;
+			}
+		}
+		return new String(chars, 0, count);
+	}
+
+	private static boolean isContinuation(byte b) {
+		return (b & 0xC0) == 0x80;
+	}
+}
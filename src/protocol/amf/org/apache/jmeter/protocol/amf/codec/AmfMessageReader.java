@@ -0,0 +1,1470 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.codec;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import flex.messaging.io.AbstractProxy;
+import flex.messaging.io.MapProxy;
+import flex.messaging.io.PropertyProxy;
+import flex.messaging.io.PropertyProxyRegistry;
+import flex.messaging.io.SerializationContext;
+import flex.messaging.io.amf.ASObject;
+import flex.messaging.io.amf.ActionMessage;
+import flex.messaging.io.amf.Amf3Types;
+import flex.messaging.io.amf.AmfTypes;
+import flex.messaging.io.amf.MessageBody;
+import flex.messaging.io.amf.MessageHeader;
+import flex.messaging.messages.AbstractMessage;
+import flex.messaging.util.ClassUtil;
+
+/**
+ * Reads an AMF message held in memory into the same objects as the BlazeDS
+ * AmfMessageDeserializer, without its stream and reflection overhead.
+ *
+ * Values are decoded straight from the array. Anonymous and untyped objects are
+ * filled in directly; objects of a class are created and filled through the
+ * BlazeDS property proxies, the same calls BlazeDS makes, so their result is
+ * identical too. Class aliases come from the reader's {@link AmfClassAliases}
+ * rather than the global alias registry.
+ *
+ * The reference tables and the character buffer belong to the reader and are only
+ * cleared between headers and bodies, so a reader used for many messages doesn't
+ * allocate them again. Not thread safe, each thread needs its own reader.
+ *
+ * Dense arrays holding only integers or only doubles are read into an int[] or a
+ * double[], and the numeric vectors into an int[], a long[] or a double[], without
+ * boxing each element. Typed objects and externalizable classes other than the Flex
+ * messages are given the Object[] BlazeDS would give them, since that is what
+ * their properties and readExternal expect.
+ *
+ * With {@link #setTables(boolean)}, arrays of objects that would all be ASObjects of
+ * one type, such as the rows of an ArrayCollection of value objects, are read into an
+ * {@link AmfTable} and hold its rows in place of the ASObjects.
+ *
+ * An {@link AmfSelection} limits the headers and bodies that are read and how deep.
+ * What it leaves out is skipped in the stream: objects and strings are only
+ * registered so later references still find the right entry, and anything that
+ * refers to a skipped object reads null, wherever the reference is.
+ *
+ * XML values, object vectors, dictionaries and malformed messages throw an
+ * AmfFormatException rather than being read partially, unless they are skipped. BlazeDS can then be used for
+ * the whole message, to report it the way it always has.
+ */
+public class AmfMessageReader {
+
+	private static final String LENGTH = "length"; // $NON-NLS-1$
+
+	// Reference table entry of an object that was skipped, references to it read null
+	private static final Object SKIPPED = new Object();
+
+	private final SerializationContext context;
+
+	private byte[] data;
+
+	private int pos;
+
+	private int limit;
+
+	private Object[] amf0Objects = new Object[16];
+	private int amf0ObjectCount;
+
+	private String[] amf3Strings = new String[64];
+	private int amf3StringCount;
+
+	// Offset and length of the strings that were skipped, which are null in amf3Strings until referenced
+	private int[] amf3StringRanges = new int[128];
+
+	private Object[] amf3Objects = new Object[32];
+	private int amf3ObjectCount;
+
+	private Amf3Traits[] amf3Traits = new Amf3Traits[8];
+	private int amf3TraitCount;
+
+	private char[] chars = new char[256];
+
+	// Proxy of the object last created, null when it is filled in directly
+	private PropertyProxy createdProxy;
+
+	// Descriptor of the class of the object last created, null unless it is a remoting class
+	private AmfTypeDescriptor createdDescriptor;
+
+	private ExternalInput externalInput;
+
+	// Whether the Externalizable being read gets numeric arrays boxed
+	private boolean boxExternalArrays;
+
+	private boolean tables;
+
+	private AmfClassAliases aliases = AmfClassAliases.EMPTY;
+
+	// Levels of objects and arrays to read, 0 for no limit
+	private int maxDepth;
+
+	// Levels of objects and arrays being read
+	private int depth;
+
+	/**
+	 * @param context only the flags read by BlazeDS's Amf0Input and Amf3Input are used
+	 */
+	public AmfMessageReader(SerializationContext context) {
+		this.context = context;
+	}
+
+	/**
+	 * @param tables true to read arrays of same-typed ASObjects into an {@link AmfTable},
+	 * off by default
+	 */
+	public void setTables(boolean tables) {
+		this.tables = tables;
+	}
+
+	/**
+	 * @param aliases class aliases the following messages are read with, none by
+	 * default; the global ClassAliasRegistry isn't consulted
+	 */
+	public void setAliases(AmfClassAliases aliases) {
+		this.aliases = aliases;
+	}
+
+	/**
+	 * Reads a message from the remaining bytes of a buffer, advancing its position past
+	 * the message
+	 *
+	 * @param buffer holding the message
+	 * @param message empty message to read the headers and bodies into
+	 */
+	public void readMessage(ByteBuffer buffer, ActionMessage message) throws IOException, ClassNotFoundException {
+		int read;
+		if (buffer.hasArray()) {
+			read = readMessage(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), message);
+		}
+		else {
+			byte[] copy = new byte[buffer.remaining()];
+			buffer.duplicate().get(copy);
+			read = readMessage(copy, 0, copy.length, message);
+		}
+		buffer.position(buffer.position() + read);
+	}
+
+	/**
+	 * Reads a message from an array
+	 *
+	 * @param message empty message to read the headers and bodies into
+	 * @return number of bytes read
+	 */
+	public int readMessage(byte[] data, int offset, int length, ActionMessage message) throws IOException, ClassNotFoundException {
+		return readMessage(data, offset, length, message, AmfSelection.ALL);
+	}
+
+	/**
+	 * Reads the selected parts of a message from an array, skipping the rest
+	 *
+	 * @param message empty message to read the headers and bodies into
+	 * @param selection headers, bodies and depth to read
+	 * @return number of bytes read
+	 */
+	public int readMessage(byte[] data, int offset, int length, ActionMessage message, AmfSelection selection)
+			throws IOException, ClassNotFoundException {
+		this.data = data;
+		this.pos = offset;
+		this.limit = offset + length;
+		this.maxDepth = selection.getMaxDepth();
+		this.depth = 0;
+
+		try {
+			int version = readUnsignedShort();
+			// Some players send 1 for AMF0, as accepted by BlazeDS
+			if (version == 1) {
+				version = 0;
+			}
+			if (version != 0 && version != 3) {
+				throw new AmfFormatException("Unsupported AMF version " + version);
+			}
+			message.setVersion(version);
+
+			int headerCount = readUnsignedShort();
+			for (int i = 0; i < headerCount; i++) {
+				MessageHeader header = new MessageHeader();
+				message.addHeader(header);
+				header.setName(readUTF());
+				header.setMustUnderstand(readUnsignedByte() != 0);
+				readInt(); // Length isn't reliable
+				resetReferences();
+				if (selection.isHeaderSelected(header.getName())) {
+					header.setData(readAmf0Value());
+				}
+				else {
+					skipAmf0Value();
+				}
+			}
+
+			int bodyCount = readUnsignedShort();
+			for (int i = 0; i < bodyCount; i++) {
+				MessageBody body = new MessageBody();
+				message.addBody(body);
+				body.setTargetURI(readUTF());
+				body.setResponseURI(readUTF());
+				readInt();
+				resetReferences();
+				if (selection.isBodySelected(i)) {
+					body.setData(readAmf0Value());
+				}
+				else {
+					skipAmf0Value();
+				}
+			}
+
+			return pos - offset;
+		} finally {
+			// Don't hold on to the last message until the next
+			resetReferences();
+			this.data = null;
+		}
+	}
+
+	/*
+	 * Clears the tables without giving them up, at the start of every header and body
+	 */
+	private void resetReferences() {
+		Arrays.fill(amf0Objects, 0, amf0ObjectCount, null);
+		amf0ObjectCount = 0;
+		Arrays.fill(amf3Strings, 0, amf3StringCount, null);
+		amf3StringCount = 0;
+		Arrays.fill(amf3Objects, 0, amf3ObjectCount, null);
+		amf3ObjectCount = 0;
+		Arrays.fill(amf3Traits, 0, amf3TraitCount, null);
+		amf3TraitCount = 0;
+	}
+
+	/*
+	 * AMF0
+	 */
+
+	private Object readAmf0Value() throws IOException, ClassNotFoundException {
+		return readAmf0Value(readUnsignedByte());
+	}
+
+	private Object readAmf0Value(int type) throws IOException, ClassNotFoundException {
+		if (maxDepth > 0 && isAmf0Container(type)) {
+			if (depth == maxDepth) {
+				skipAmf0Value(type);
+				return null;
+			}
+			depth++;
+			try {
+				return readAmf0Data(type);
+			} finally {
+				depth--;
+			}
+		}
+		return readAmf0Data(type);
+	}
+
+	private Object readAmf0Data(int type) throws IOException, ClassNotFoundException {
+		switch (type) {
+			case AmfTypes.kNumberType:
+				return new Double(readDouble());
+			case AmfTypes.kBooleanType:
+				return Boolean.valueOf(readUnsignedByte() != 0);
+			case AmfTypes.kStringType:
+				return readUTF();
+			case AmfTypes.kAvmPlusObjectType:
+				return readAmf3Value();
+			case AmfTypes.kStrictArrayType:
+				return readAmf0StrictArray();
+			case AmfTypes.kTypedObjectType:
+				return readAmf0Object(readUTF());
+			case AmfTypes.kLongStringType:
+				return readUTF(readInt());
+			case AmfTypes.kObjectType:
+				return readAmf0Object(null);
+			case AmfTypes.kNullType:
+			case AmfTypes.kUndefinedType:
+				return null;
+			case AmfTypes.kDateType:
+				return readAmf0Date();
+			case AmfTypes.kECMAArrayType:
+				return readAmf0EcmaArray();
+			case AmfTypes.kReferenceType:
+				return getReference(amf0Objects, amf0ObjectCount, readUnsignedShort());
+			default:
+				throw new AmfFormatException("AMF0 type " + type + " isn't supported at " + (pos - 1));
+		}
+	}
+
+	private Object readAmf0Object(String className) throws IOException, ClassNotFoundException {
+		Object object = createObject(className);
+		PropertyProxy proxy = createdProxy;
+		AmfTypeDescriptor descriptor = createdDescriptor;
+		int index = amf0ObjectCount;
+		amf0Objects = remember(amf0Objects, amf0ObjectCount++, object);
+
+		String name = readUTF();
+		int type = readUnsignedByte();
+		while (type != AmfTypes.kObjectEndType) {
+			setProperty(proxy, descriptor, object, name, readAmf0Value(type));
+			name = readUTF();
+			type = readUnsignedByte();
+		}
+
+		return complete(proxy, object, amf0Objects, index);
+	}
+
+	private Map<String, Object> readAmf0EcmaArray() throws IOException, ClassNotFoundException {
+		int count = readInt();
+		// Each entry takes at least 3 bytes, don't size a map from a corrupt count
+		if (count < 0 || count > (limit - pos) / 3) {
+			throw new AmfFormatException("Invalid ECMA array length " + count + " at " + pos);
+		}
+		// Sized like BlazeDS so the entries iterate in the same order
+		Map<String, Object> map = count == 0 ? new HashMap<String, Object>() : new HashMap<String, Object>(count);
+		amf0Objects = remember(amf0Objects, amf0ObjectCount++, map);
+
+		String key = readUTF();
+		int type = readUnsignedByte();
+		while (type != AmfTypes.kObjectEndType) {
+			Object value = readAmf0Value(type);
+			if (!LENGTH.equals(key)) {
+				map.put(key, value);
+			}
+			key = readUTF();
+			type = readUnsignedByte();
+		}
+		return map;
+	}
+
+	private Object readAmf0StrictArray() throws IOException, ClassNotFoundException {
+		int count = readInt();
+		checkCount(count);
+		List<Object> list = new ArrayList<Object>(count);
+		// A reference to the array gets the list, as from BlazeDS
+		amf0Objects = remember(amf0Objects, amf0ObjectCount++, list);
+
+		for (int i = 0; i < count; i++) {
+			list.add(readAmf0Value());
+		}
+		return context.legacyCollection ? list : list.toArray();
+	}
+
+	private Date readAmf0Date() throws IOException {
+		long time = (long) readDouble();
+		readUnsignedShort(); // Time zone, unused
+		return new Date(time);
+	}
+
+	/*
+	 * AMF3
+	 */
+
+	private Object readAmf3Value() throws IOException, ClassNotFoundException {
+		return readAmf3Value(readUnsignedByte());
+	}
+
+	private Object readAmf3Value(int type) throws IOException, ClassNotFoundException {
+		if (maxDepth > 0 && isAmf3Container(type)) {
+			if (depth == maxDepth) {
+				skipAmf3Value(type);
+				return null;
+			}
+			depth++;
+			try {
+				return readAmf3Data(type);
+			} finally {
+				depth--;
+			}
+		}
+		return readAmf3Data(type);
+	}
+
+	private Object readAmf3Data(int type) throws IOException, ClassNotFoundException {
+		switch (type) {
+			case Amf3Types.kStringType:
+				return readAmf3String();
+			case Amf3Types.kObjectType:
+				return readAmf3Object();
+			case Amf3Types.kArrayType:
+				return readAmf3Array();
+			case Amf3Types.kFalseType:
+				return Boolean.FALSE;
+			case Amf3Types.kTrueType:
+				return Boolean.TRUE;
+			case Amf3Types.kIntegerType:
+				return Integer.valueOf((readUInt29() << 3) >> 3);
+			case Amf3Types.kDoubleType:
+				return new Double(readDouble());
+			case Amf3Types.kUndefinedType:
+			case Amf3Types.kNullType:
+				return null;
+			case Amf3Types.kDateType:
+				return readAmf3Date();
+			case Amf3Types.kByteArrayType:
+				return readAmf3ByteArray();
+			case AmfInput.AMF3_VECTOR_INT:
+			case AmfInput.AMF3_VECTOR_UINT:
+			case AmfInput.AMF3_VECTOR_DOUBLE:
+				return readAmf3NumberVector(type);
+			default:
+				throw new AmfFormatException("AMF3 type " + type + " isn't supported at " + (pos - 1));
+		}
+	}
+
+	private String readAmf3String() throws IOException {
+		int ref = readUInt29();
+		if ((ref & 1) == 0) {
+			int index = ref >> 1;
+			if (index >= amf3StringCount) {
+				throw new AmfFormatException("Invalid string reference " + index + " at " + pos);
+			}
+			String value = amf3Strings[index];
+			if (value == null) {
+				// Skipped when it was sent
+				int saved = pos;
+				pos = amf3StringRanges[index * 2];
+				value = readUTF(amf3StringRanges[index * 2 + 1]);
+				pos = saved;
+				amf3Strings[index] = value;
+			}
+			return value;
+		}
+
+		int length = ref >> 1;
+		if (length == 0) {
+			return ""; // $NON-NLS-1$
+		}
+		String value = readUTF(length);
+		if (amf3StringCount == amf3Strings.length) {
+			String[] grown = new String[amf3StringCount * 2];
+			System.arraycopy(amf3Strings, 0, grown, 0, amf3StringCount);
+			amf3Strings = grown;
+		}
+		amf3Strings[amf3StringCount++] = value;
+		return value;
+	}
+
+	private Object readAmf3Object() throws IOException, ClassNotFoundException {
+		int ref = readUInt29();
+		if ((ref & 1) == 0) {
+			return getReference(amf3Objects, amf3ObjectCount, ref >> 1);
+		}
+		return readAmf3Object(readAmf3Traits(ref));
+	}
+
+	private Object readAmf3Object(Amf3Traits traits) throws IOException, ClassNotFoundException {
+		Object object = createObject(traits.getClassName());
+		PropertyProxy proxy = createdProxy;
+		AmfTypeDescriptor descriptor = createdDescriptor;
+		int index = amf3ObjectCount;
+		amf3Objects = remember(amf3Objects, amf3ObjectCount++, object);
+
+		if (traits.isExternalizable()) {
+			if (!(object instanceof Externalizable)) {
+				throw new AmfFormatException(object.getClass().getName() + " is sent as externalizable but isn't Externalizable");
+			}
+			if (externalInput == null) {
+				externalInput = new ExternalInput();
+			}
+			boolean outer = boxExternalArrays;
+			boxExternalArrays = !(object instanceof AbstractMessage);
+			try {
+				((Externalizable) object).readExternal(externalInput);
+			} finally {
+				boxExternalArrays = outer;
+			}
+		}
+		else {
+			int count = traits.getPropertyCount();
+			for (int i = 0; i < count; i++) {
+				setProperty(proxy, descriptor, object, traits.getProperty(i), readAmf3Value());
+			}
+			if (traits.isDynamic()) {
+				for (String name = readAmf3String(); name.length() > 0; name = readAmf3String()) {
+					setProperty(proxy, descriptor, object, name, readAmf3Value());
+				}
+			}
+		}
+
+		return complete(proxy, object, amf3Objects, index);
+	}
+
+	private Amf3Traits readAmf3Traits(int ref) throws IOException {
+		if ((ref & 3) == 1) {
+			int index = ref >> 2;
+			if (index >= amf3TraitCount) {
+				throw new AmfFormatException("Invalid traits reference " + index + " at " + pos);
+			}
+			return amf3Traits[index];
+		}
+
+		boolean externalizable = (ref & 4) == 4;
+		boolean dynamic = (ref & 8) == 8;
+		int count = ref >> 4;
+		String className = readAmf3String();
+		checkCount(count);
+
+		String[] properties = new String[count];
+		for (int i = 0; i < count; i++) {
+			properties[i] = readAmf3String();
+		}
+
+		Amf3Traits traits = new Amf3Traits(className, properties, dynamic, externalizable);
+		if (amf3TraitCount == amf3Traits.length) {
+			Amf3Traits[] grown = new Amf3Traits[amf3TraitCount * 2];
+			System.arraycopy(amf3Traits, 0, grown, 0, amf3TraitCount);
+			amf3Traits = grown;
+		}
+		amf3Traits[amf3TraitCount++] = traits;
+		return traits;
+	}
+
+	private Object readAmf3Array() throws IOException, ClassNotFoundException {
+		int ref = readUInt29();
+		if ((ref & 1) == 0) {
+			return getReference(amf3Objects, amf3ObjectCount, ref >> 1);
+		}
+
+		int length = ref >> 1;
+		Map<String, Object> map = null;
+		for (String key = readAmf3String(); key.length() > 0; key = readAmf3String()) {
+			if (map == null) {
+				map = new HashMap<String, Object>();
+				amf3Objects = remember(amf3Objects, amf3ObjectCount++, map);
+			}
+			map.put(key, readAmf3Value());
+		}
+
+		checkCount(length);
+		if (map != null) {
+			for (int i = 0; i < length; i++) {
+				map.put(Integer.toString(i), readAmf3Value());
+			}
+			return map;
+		}
+
+		if (context.legacyCollection) {
+			List<Object> list = new ArrayList<Object>(length);
+			amf3Objects = remember(amf3Objects, amf3ObjectCount++, list);
+			for (int i = 0; i < length; i++) {
+				list.add(readAmf3Value());
+			}
+			return list;
+		}
+
+		int index = amf3ObjectCount;
+		amf3Objects = remember(amf3Objects, amf3ObjectCount++, null);
+		int type = length > 0 ? peekUnsignedByte() : -1;
+		Object[] array;
+		int read = 0;
+		if (type == Amf3Types.kIntegerType) {
+			int[] ints = new int[length];
+			while (read < length && peekUnsignedByte() == type) {
+				pos++;
+				ints[read++] = (readUInt29() << 3) >> 3;
+			}
+			if (read == length) {
+				amf3Objects[index] = ints;
+				return ints;
+			}
+			array = new Object[length];
+			for (int i = 0; i < read; i++) {
+				array[i] = Integer.valueOf(ints[i]);
+			}
+		}
+		else if (type == Amf3Types.kDoubleType) {
+			double[] doubles = new double[length];
+			while (read < length && peekUnsignedByte() == type) {
+				pos++;
+				doubles[read++] = readDouble();
+			}
+			if (read == length) {
+				amf3Objects[index] = doubles;
+				return doubles;
+			}
+			array = new Object[length];
+			for (int i = 0; i < read; i++) {
+				array[i] = new Double(doubles[i]);
+			}
+		}
+		else if (type == Amf3Types.kObjectType && tables && length > 1 && (maxDepth == 0 || depth < maxDepth)) {
+			array = new Object[length];
+			amf3Objects[index] = array;
+			// The rows are objects within the array
+			depth++;
+			try {
+				read = readAmf3Rows(array, length);
+			} finally {
+				depth--;
+			}
+		}
+		else {
+			array = new Object[length];
+		}
+
+		// Anything else is read the way BlazeDS reads it, from the first element that doesn't fit
+		amf3Objects[index] = array;
+		for (int i = read; i < length; i++) {
+			array[i] = readAmf3Value();
+		}
+		return array;
+	}
+
+	/*
+	 * Reads the objects at the start of an array that would all be ASObjects of the same
+	 * type into a table, returning the number of elements read
+	 */
+	private int readAmf3Rows(Object[] array, int length) throws IOException, ClassNotFoundException {
+		AmfTable table = null;
+		int read = 0;
+		while (read < length && peekUnsignedByte() == Amf3Types.kObjectType) {
+			pos++;
+			int ref = readUInt29();
+			if ((ref & 1) == 0) {
+				array[read++] = getReference(amf3Objects, amf3ObjectCount, ref >> 1);
+				continue;
+			}
+
+			Amf3Traits traits = readAmf3Traits(ref);
+			if (table == null) {
+				table = createTable(traits, length - read);
+			}
+			if (table == null || table.getTraits() != traits) {
+				array[read++] = readAmf3Object(traits);
+				break;
+			}
+			array[read++] = readAmf3Row(table);
+		}
+		return read;
+	}
+
+	/*
+	 * A table for objects of the given traits if BlazeDS would read them into ASObjects
+	 * whose keys are their properties, null otherwise
+	 */
+	private AmfTable createTable(Amf3Traits traits, int capacity) {
+		if (traits.isExternalizable()) {
+			return null;
+		}
+
+		Object object = createObject(traits.getClassName());
+		PropertyProxy proxy = createdProxy;
+		if (object.getClass() != ASObject.class) {
+			return null;
+		}
+		if (proxy == null) {
+			// Filled directly, the keys are whatever properties the objects have
+			AmfTable table = new AmfTable(traits, ((ASObject) object).getType(), capacity, false);
+			for (int i = 0; i < traits.getPropertyCount(); i++) {
+				if (table.getColumn(traits.getProperty(i)) != i) {
+					// A repeated name
+					return null;
+				}
+			}
+			return table;
+		}
+
+		// The map proxy sets some names as bean properties, only take sealed properties it puts in the map
+		int count = traits.getPropertyCount();
+		if (proxy.getClass() != MapProxy.class || traits.isDynamic() || count == 0) {
+			return null;
+		}
+		ASObject probe = (ASObject) object;
+		for (int i = 0; i < count; i++) {
+			setProperty(proxy, null, probe, traits.getProperty(i), Boolean.TRUE);
+		}
+		if (probe.size() != count) {
+			return null;
+		}
+		return new AmfTable(traits, probe.getType(), capacity, true);
+	}
+
+	/*
+	 * Reads an object into the next row of the table. The first row sets the columns,
+	 * a later one whose properties differ is moved to a map of its own.
+	 */
+	private AmfTable.Row readAmf3Row(AmfTable table) throws IOException, ClassNotFoundException {
+		AmfTable.Row row = table.addRow();
+		amf3Objects = remember(amf3Objects, amf3ObjectCount++, row);
+
+		int index = row.getIndex();
+		int sealed = table.getTraits().getPropertyCount();
+		for (int i = 0; i < sealed; i++) {
+			readAmf3Cell(table, index, i);
+		}
+
+		int column = sealed;
+		Map<String, Object> own = null;
+		if (table.getTraits().isDynamic()) {
+			for (String name = readAmf3String(); name.length() > 0; name = readAmf3String()) {
+				if (own == null) {
+					if (!table.isComplete() && table.getColumn(name) < 0) {
+						table.addColumn(name);
+					}
+					else if (!table.isComplete() || column == table.getColumnCount() || !name.equals(table.getColumnName(column))) {
+						if (!table.isComplete()) {
+							table.complete();
+						}
+						own = row.detach(column);
+					}
+				}
+
+				if (own != null) {
+					own.put(name, readAmf3Value());
+				}
+				else {
+					readAmf3Cell(table, index, column++);
+				}
+			}
+		}
+
+		if (!table.isComplete()) {
+			table.complete();
+		}
+		else if (own == null && column < table.getColumnCount()) {
+			row.detach(column);
+		}
+		return row;
+	}
+
+	private void readAmf3Cell(AmfTable table, int row, int column) throws IOException, ClassNotFoundException {
+		int type = readUnsignedByte();
+		if (type == Amf3Types.kIntegerType) {
+			table.setInt(row, column, (readUInt29() << 3) >> 3);
+		}
+		else if (type == Amf3Types.kDoubleType) {
+			table.setDouble(row, column, readDouble());
+		}
+		else {
+			Object value = readAmf3Value(type);
+			table.setObject(row, column, table.isBoxArrays() ? boxed(value) : value);
+		}
+	}
+
+	/*
+	 * Vector.<int>, Vector.<uint> or Vector.<Number> as an int[], a long[] or a double[]
+	 */
+	private Object readAmf3NumberVector(int type) throws IOException {
+		Class<?> arrayClass = type == AmfInput.AMF3_VECTOR_INT ? int[].class
+			: type == AmfInput.AMF3_VECTOR_UINT ? long[].class : double[].class;
+		int ref = readUInt29();
+		if ((ref & 1) == 0) {
+			return getReference(ref >> 1, arrayClass);
+		}
+
+		int length = ref >> 1;
+		readUnsignedByte(); // fixed length flag, nothing to do with reading it
+		int size = type == AmfInput.AMF3_VECTOR_DOUBLE ? 8 : 4;
+		if (length > (limit - pos) / size) {
+			throw new AmfFormatException("Invalid vector length " + length + " at " + pos);
+		}
+
+		Object vector;
+		if (arrayClass == int[].class) {
+			int[] ints = new int[length];
+			for (int i = 0; i < length; i++) {
+				ints[i] = readInt();
+			}
+			vector = ints;
+		}
+		else if (arrayClass == long[].class) {
+			long[] longs = new long[length];
+			for (int i = 0; i < length; i++) {
+				longs[i] = readInt() & 0xFFFFFFFFL;
+			}
+			vector = longs;
+		}
+		else {
+			double[] doubles = new double[length];
+			for (int i = 0; i < length; i++) {
+				doubles[i] = readDouble();
+			}
+			vector = doubles;
+		}
+		amf3Objects = remember(amf3Objects, amf3ObjectCount++, vector);
+		return vector;
+	}
+
+	private Date readAmf3Date() throws IOException {
+		int ref = readUInt29();
+		if ((ref & 1) == 0) {
+			return getReference(ref >> 1, Date.class);
+		}
+
+		Date date = new Date((long) readDouble());
+		amf3Objects = remember(amf3Objects, amf3ObjectCount++, date);
+		return date;
+	}
+
+	private byte[] readAmf3ByteArray() throws IOException {
+		int ref = readUInt29();
+		if ((ref & 1) == 0) {
+			return getReference(ref >> 1, byte[].class);
+		}
+
+		int length = ref >> 1;
+		require(length);
+		byte[] bytes = new byte[length];
+		amf3Objects = remember(amf3Objects, amf3ObjectCount++, bytes);
+		System.arraycopy(data, pos, bytes, 0, length);
+		pos += length;
+		return bytes;
+	}
+
+	/*
+	 * Skipping values. Objects are registered as null and strings by their position,
+	 * in the same order as when they are read.
+	 */
+
+	private static boolean isAmf0Container(int type) {
+		return type == AmfTypes.kObjectType || type == AmfTypes.kTypedObjectType
+			|| type == AmfTypes.kECMAArrayType || type == AmfTypes.kStrictArrayType;
+	}
+
+	private static boolean isAmf3Container(int type) {
+		return type == Amf3Types.kObjectType || type == Amf3Types.kArrayType
+			|| (type >= AmfInput.AMF3_VECTOR_INT && type <= AmfInput.AMF3_DICTIONARY);
+	}
+
+	private void skipAmf0Value() throws IOException {
+		skipAmf0Value(readUnsignedByte());
+	}
+
+	private void skipAmf0Value(int type) throws IOException {
+		switch (type) {
+			case AmfTypes.kNumberType:
+				skip(8);
+				break;
+			case AmfTypes.kBooleanType:
+				skip(1);
+				break;
+			case AmfTypes.kStringType:
+				skip(readUnsignedShort());
+				break;
+			case AmfTypes.kLongStringType:
+			case AmfTypes.kXMLObjectType:
+				skip(readInt());
+				break;
+			case AmfTypes.kDateType:
+				skip(10);
+				break;
+			case AmfTypes.kNullType:
+			case AmfTypes.kUndefinedType:
+			case AmfTypes.kUnsupportedType:
+				break;
+			case AmfTypes.kReferenceType:
+				getReference(amf0Objects, amf0ObjectCount, readUnsignedShort());
+				break;
+			case AmfTypes.kAvmPlusObjectType:
+				skipAmf3Value();
+				break;
+			case AmfTypes.kTypedObjectType:
+				skip(readUnsignedShort());
+				skipAmf0Properties();
+				break;
+			case AmfTypes.kObjectType:
+				skipAmf0Properties();
+				break;
+			case AmfTypes.kECMAArrayType:
+				skip(4); // Count, not reliable
+				skipAmf0Properties();
+				break;
+			case AmfTypes.kStrictArrayType: {
+				int count = readInt();
+				checkCount(count);
+				amf0Objects = remember(amf0Objects, amf0ObjectCount++, SKIPPED);
+				for (int i = 0; i < count; i++) {
+					skipAmf0Value();
+				}
+				break;
+			}
+			default:
+				throw new AmfFormatException("AMF0 type " + type + " isn't supported at " + (pos - 1));
+		}
+	}
+
+	private void skipAmf0Properties() throws IOException {
+		amf0Objects = remember(amf0Objects, amf0ObjectCount++, SKIPPED);
+		skip(readUnsignedShort());
+		int type = readUnsignedByte();
+		while (type != AmfTypes.kObjectEndType) {
+			skipAmf0Value(type);
+			skip(readUnsignedShort());
+			type = readUnsignedByte();
+		}
+	}
+
+	private void skipAmf3Value() throws IOException {
+		skipAmf3Value(readUnsignedByte());
+	}
+
+	private void skipAmf3Value(int type) throws IOException {
+		switch (type) {
+			case Amf3Types.kUndefinedType:
+			case Amf3Types.kNullType:
+			case Amf3Types.kFalseType:
+			case Amf3Types.kTrueType:
+				break;
+			case Amf3Types.kIntegerType:
+				readUInt29();
+				break;
+			case Amf3Types.kDoubleType:
+				skip(8);
+				break;
+			case Amf3Types.kStringType:
+				skipAmf3String();
+				break;
+			case Amf3Types.kDateType:
+				if (isInline()) {
+					skip(8);
+				}
+				break;
+			case Amf3Types.kXMLType:
+			case Amf3Types.kAvmPlusXmlType:
+			case Amf3Types.kByteArrayType: {
+				int ref = readUInt29();
+				if (isInline(ref)) {
+					skip(ref >> 1);
+				}
+				break;
+			}
+			case Amf3Types.kArrayType: {
+				int ref = readUInt29();
+				if (isInline(ref)) {
+					while (!isEmptyAmf3String()) {
+						skipAmf3Value();
+					}
+					skipAmf3Values(ref >> 1);
+				}
+				break;
+			}
+			case Amf3Types.kObjectType: {
+				int ref = readUInt29();
+				if ((ref & 1) == 0) {
+					getReference(amf3Objects, amf3ObjectCount, ref >> 1);
+					break;
+				}
+				Amf3Traits traits = readAmf3Traits(ref);
+				amf3Objects = remember(amf3Objects, amf3ObjectCount++, SKIPPED);
+				if (traits.isExternalizable()) {
+					skipExternalizable(traits.getClassName());
+				}
+				else {
+					skipAmf3Values(traits.getPropertyCount());
+					if (traits.isDynamic()) {
+						while (!isEmptyAmf3String()) {
+							skipAmf3Value();
+						}
+					}
+				}
+				break;
+			}
+			case AmfInput.AMF3_VECTOR_INT:
+			case AmfInput.AMF3_VECTOR_UINT:
+			case AmfInput.AMF3_VECTOR_DOUBLE: {
+				int ref = readUInt29();
+				if (isInline(ref)) {
+					int length = ref >> 1;
+					int size = type == AmfInput.AMF3_VECTOR_DOUBLE ? 8 : 4;
+					skip(1); // Fixed length
+					if (length > (limit - pos) / size) {
+						throw new AmfFormatException("Invalid vector length " + length + " at " + pos);
+					}
+					skip(length * size);
+				}
+				break;
+			}
+			case AmfInput.AMF3_VECTOR_OBJECT: {
+				int ref = readUInt29();
+				if (isInline(ref)) {
+					skip(1);
+					skipAmf3String(); // Element type
+					skipAmf3Values(ref >> 1);
+				}
+				break;
+			}
+			case AmfInput.AMF3_DICTIONARY: {
+				int ref = readUInt29();
+				if (isInline(ref)) {
+					skip(1); // Weak keys
+					int length = ref >> 1;
+					checkCount(length);
+					skipAmf3Values(length * 2);
+				}
+				break;
+			}
+			default:
+				throw new AmfFormatException("AMF3 type " + type + " isn't supported at " + (pos - 1));
+		}
+	}
+
+	private void skipAmf3Values(int count) throws IOException {
+		checkCount(count);
+		for (int i = 0; i < count; i++) {
+			skipAmf3Value();
+		}
+	}
+
+	private void skipAmf3String() throws IOException {
+		int ref = readUInt29();
+		if ((ref & 1) == 0) {
+			if (ref >> 1 >= amf3StringCount) {
+				throw new AmfFormatException("Invalid string reference " + (ref >> 1) + " at " + pos);
+			}
+			return;
+		}
+
+		int length = ref >> 1;
+		if (length == 0) {
+			return;
+		}
+		require(length);
+		if (amf3StringCount == amf3Strings.length) {
+			String[] grown = new String[amf3StringCount * 2];
+			System.arraycopy(amf3Strings, 0, grown, 0, amf3StringCount);
+			amf3Strings = grown;
+		}
+		if (amf3StringCount * 2 >= amf3StringRanges.length) {
+			int[] grown = new int[amf3Strings.length * 2];
+			System.arraycopy(amf3StringRanges, 0, grown, 0, amf3StringRanges.length);
+			amf3StringRanges = grown;
+		}
+		amf3StringRanges[amf3StringCount * 2] = pos;
+		amf3StringRanges[amf3StringCount * 2 + 1] = length;
+		amf3Strings[amf3StringCount++] = null;
+		pos += length;
+	}
+
+	/*
+	 * Reads the next string of a list of names, which ends with the empty string
+	 */
+	private boolean isEmptyAmf3String() throws IOException {
+		if (peekUnsignedByte() == 1) {
+			pos++;
+			return true;
+		}
+		skipAmf3String();
+		return false;
+	}
+
+	/*
+	 * Reads a U29 reference header, registering the value if it follows inline
+	 */
+	private boolean isInline() throws IOException {
+		return isInline(readUInt29());
+	}
+
+	private boolean isInline(int ref) throws IOException {
+		if ((ref & 1) == 0) {
+			getReference(amf3Objects, amf3ObjectCount, ref >> 1);
+			return false;
+		}
+		amf3Objects = remember(amf3Objects, amf3ObjectCount++, SKIPPED);
+		return true;
+	}
+
+	/*
+	 * The Flex collections and messages, laid out by AmfInput
+	 */
+	private void skipExternalizable(String className) throws IOException {
+		final AmfInput in = new AmfInput(data, pos, limit - pos);
+		in.readExternalizable(className, new AmfInput.FieldHandler() {
+			public void field(String name) throws IOException {
+				pos = in.getPosition();
+				skipAmf3Value();
+				in.setPosition(pos);
+			}
+		});
+		pos = in.getPosition();
+	}
+
+	private void skip(int count) throws AmfFormatException {
+		require(count);
+		pos += count;
+	}
+
+	/*
+	 * Objects, the same rules as BlazeDS's Amf0Input and Amf3Input
+	 */
+
+	/*
+	 * Creates the object for a class name sent by the client, setting createdProxy to
+	 * the proxy to fill it through and createdDescriptor to the descriptor of its class
+	 */
+	private Object createObject(String className) {
+		createdProxy = null;
+		createdDescriptor = null;
+		if (className != null) {
+			String alias = aliases.getClassName(className);
+			if (alias != null) {
+				className = alias;
+			}
+		}
+
+		if (className == null || className.length() == 0) {
+			return new ASObject();
+		}
+		if (className.startsWith(">") // $NON-NLS-1$
+				|| !(context.instantiateTypes || className.startsWith("flex."))) { // $NON-NLS-1$
+			ASObject object = new ASObject();
+			object.setType(className);
+			return object;
+		}
+
+		AmfTypeDescriptor descriptor = AmfTypeDescriptor.forClassName(className);
+		if (descriptor != null) {
+			Object object = descriptor.newInstance(className);
+			PropertyProxy proxy = descriptor.getProxy();
+			createdProxy = proxy != null ? proxy : PropertyProxyRegistry.getProxyAndRegister(object);
+			createdDescriptor = descriptor;
+			return object;
+		}
+
+		Class<?> type = AbstractProxy.getClassFromClassName(className, context.createASObjectForMissingType);
+		PropertyProxy proxy = PropertyProxyRegistry.getRegistry().getProxyAndRegister(type);
+		Object object = proxy == null ? ClassUtil.createDefaultInstance(type, null) : proxy.createInstance(className);
+		createdProxy = proxy != null ? proxy : PropertyProxyRegistry.getProxyAndRegister(object);
+		return object;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void setProperty(PropertyProxy proxy, AmfTypeDescriptor descriptor, Object object, String name, Object value) {
+		if (proxy == null) {
+			// What the map proxy does for an ASObject
+			((ASObject) object).put(name, value);
+		}
+		else {
+			value = boxed(value);
+			if (descriptor == null || !descriptor.setValue(object, name, value)) {
+				proxy.setValue(object, name, value);
+			}
+		}
+	}
+
+	/*
+	 * The Object[] BlazeDS would have read in place of a numeric array. It replaces the
+	 * array in the reference table so later references get the same Object[].
+	 */
+	private Object boxed(Object value) {
+		Object[] array;
+		if (value instanceof int[]) {
+			int[] ints = (int[]) value;
+			array = new Object[ints.length];
+			for (int i = 0; i < ints.length; i++) {
+				array[i] = Integer.valueOf(ints[i]);
+			}
+		}
+		else if (value instanceof double[]) {
+			double[] doubles = (double[]) value;
+			array = new Object[doubles.length];
+			for (int i = 0; i < doubles.length; i++) {
+				array[i] = new Double(doubles[i]);
+			}
+		}
+		else if (value instanceof long[]) {
+			long[] longs = (long[]) value;
+			array = new Object[longs.length];
+			for (int i = 0; i < longs.length; i++) {
+				array[i] = Long.valueOf(longs[i]);
+			}
+		}
+		else {
+			return value;
+		}
+
+		for (int i = amf3ObjectCount - 1; i >= 0; i--) {
+			if (amf3Objects[i] == value) {
+				amf3Objects[i] = array;
+				break;
+			}
+		}
+		return array;
+	}
+
+	/*
+	 * Lets the proxy replace the object once its properties are set
+	 */
+	private static Object complete(PropertyProxy proxy, Object object, Object[] table, int index) {
+		if (proxy == null) {
+			return object;
+		}
+		Object completed = proxy.instanceComplete(object);
+		if (completed != object) {
+			table[index] = completed;
+		}
+		return completed;
+	}
+
+	private static Object[] remember(Object[] table, int index, Object value) {
+		if (index == table.length) {
+			Object[] grown = new Object[index * 2];
+			System.arraycopy(table, 0, grown, 0, index);
+			table = grown;
+		}
+		table[index] = value;
+		return table;
+	}
+
+	private Object getReference(Object[] table, int count, int index) throws AmfFormatException {
+		if (index >= count) {
+			throw new AmfFormatException("Invalid object reference " + index + " at " + pos);
+		}
+		Object value = table[index];
+		return value != SKIPPED ? value : null;
+	}
+
+	/*
+	 * An AMF3 reference that must be to a value of the given type, or to one that was skipped
+	 */
+	private <T> T getReference(int index, Class<T> type) throws AmfFormatException {
+		Object value = getReference(amf3Objects, amf3ObjectCount, index);
+		if (!type.isInstance(value) && amf3Objects[index] != SKIPPED) {
+			throw new AmfFormatException(type.getSimpleName() + " reference to a "
+				+ (value != null ? value.getClass().getName() : null) + " at " + pos);
+		}
+		return type.cast(value);
+	}
+
+	/*
+	 * Each element takes at least a byte, don't allocate for a corrupt count
+	 */
+	private void checkCount(int count) throws AmfFormatException {
+		if (count < 0 || count > limit - pos) {
+			throw new AmfFormatException("Invalid length " + count + " at " + pos);
+		}
+	}
+
+	/*
+	 * Primitives
+	 */
+
+	private void require(int count) throws AmfFormatException {
+		if (count < 0 || count > limit - pos) {
+			throw new AmfFormatException("Truncated AMF message, " + count + " bytes needed at " + pos);
+		}
+	}
+
+	private int readUnsignedByte() throws IOException {
+		require(1);
+		return data[pos++] & 0xFF;
+	}
+
+	/*
+	 * The next byte without reading it, -1 at the end
+	 */
+	private int peekUnsignedByte() {
+		return pos < limit ? data[pos] & 0xFF : -1;
+	}
+
+	private int readUnsignedShort() throws IOException {
+		require(2);
+		int value = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+		pos += 2;
+		return value;
+	}
+
+	private int readInt() throws IOException {
+		require(4);
+		int value = ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+			| ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+		pos += 4;
+		return value;
+	}
+
+	private long readLong() throws IOException {
+		return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+	}
+
+	private double readDouble() throws IOException {
+		return Double.longBitsToDouble(readLong());
+	}
+
+	private int readUInt29() throws IOException {
+		int value = 0;
+		for (int i = 0; i < 3; i++) {
+			int b = readUnsignedByte();
+			if ((b & 0x80) == 0) {
+				return (value << 7) | b;
+			}
+			value = (value << 7) | (b & 0x7F);
+		}
+		return (value << 8) | readUnsignedByte();
+	}
+
+	private String readUTF() throws IOException {
+		return readUTF(readUnsignedShort());
+	}
+
+	/*
+	 * As strict as BlazeDS: anything it would reject, including 4 byte sequences,
+	 * throws instead of being replaced
+	 */
+	private String readUTF(int length) throws IOException {
+		require(length);
+		if (chars.length < length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+		}
+
+		int end = pos + length;
+		int count = 0;
+		while (pos < end) {
+			int b = data[pos] & 0xFF;
+			if (b < 0x80) {
+				chars[count++] = (char) b;
+				pos++;
+				continue;
+			}
+
+			switch (b >> 4) {
+				case 12:
+				case 13:
+					if (end - pos < 2 || (data[pos + 1] & 0xC0) != 0x80) {
+						throw new AmfFormatException("Malformed UTF-8 at " + pos);
+					}
+					chars[count++] = (char) (((b & 0x1F) << 6) | (data[pos + 1] & 0x3F));
+					pos += 2;
+					break;
+				case 14:
+					if (end - pos < 3 || (data[pos + 1] & 0xC0) != 0x80 || (data[pos + 2] & 0xC0) != 0x80) {
+						throw new AmfFormatException("Malformed UTF-8 at " + pos);
+					}
+					chars[count++] = (char) (((b & 0x0F) << 12) | ((data[pos + 1] & 0x3F) << 6) | (data[pos + 2] & 0x3F));
+					pos += 3;
+					break;
+				default:
+					throw new AmfFormatException("Malformed UTF-8 at " + pos);
+			}
+		}
+		return new String(chars, 0, count);
+	}
+
+	/*
+	 * What an Externalizable object reads from: the primitives of a DataInput and AMF3
+	 * values, like the BlazeDS Amf3Input it would otherwise be given
+	 */
+	private class ExternalInput implements ObjectInput {
+
+		public Object readObject() throws ClassNotFoundException, IOException {
+			Object value = readAmf3Value();
+			return boxExternalArrays ? boxed(value) : value;
+		}
+
+		public int read() {
+			return pos < limit ? data[pos++] & 0xFF : -1;
+		}
+
+		public int read(byte[] b) {
+			return read(b, 0, b.length);
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (pos >= limit) {
+				return -1;
+			}
+			int count = Math.min(len, limit - pos);
+			System.arraycopy(data, pos, b, off, count);
+			pos += count;
+			return count;
+		}
+
+		public long skip(long n) {
+			int count = (int) Math.max(0, Math.min(n, limit - pos));
+			pos += count;
+			return count;
+		}
+
+		public int skipBytes(int n) {
+			return (int) skip(n);
+		}
+
+		public int available() {
+			return limit - pos;
+		}
+
+		public void close() {
+			// Nothing to release
+		}
+
+		public void readFully(byte[] b) throws IOException {
+			readFully(b, 0, b.length);
+		}
+
+		public void readFully(byte[] b, int off, int len) throws IOException {
+			require(len);
+			System.arraycopy(data, pos, b, off, len);
+			pos += len;
+		}
+
+		public boolean readBoolean() throws IOException {
+			return readUnsignedByte() != 0;
+		}
+
+		public byte readByte() throws IOException {
+			return (byte) readUnsignedByte();
+		}
+
+		public int readUnsignedByte() throws IOException {
+			return AmfMessageReader.this.readUnsignedByte();
+		}
+
+		public short readShort() throws IOException {
+			return (short) readUnsignedShort();
+		}
+
+		public int readUnsignedShort() throws IOException {
+			return AmfMessageReader.this.readUnsignedShort();
+		}
+
+		public char readChar() throws IOException {
+			return (char) readUnsignedShort();
+		}
+
+		public int readInt() throws IOException {
+			return AmfMessageReader.this.readInt();
+		}
+
+		public long readLong() throws IOException {
+			return AmfMessageReader.this.readLong();
+		}
+
+		public float readFloat() throws IOException {
+			return Float.intBitsToFloat(readInt());
+		}
+
+		public double readDouble() throws IOException {
+			return AmfMessageReader.this.readDouble();
+		}
+
+		public String readLine() throws IOException {
+			throw new AmfFormatException("readLine isn't supported in AMF");
+		}
+
+		public String readUTF() throws IOException {
+			return AmfMessageReader.this.readUTF();
+		}
+	}
+}
@@ -0,0 +1,837 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.codec;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.sql.RowSet;
+
+import org.w3c.dom.Document;
+
+import flex.messaging.io.ArrayCollection;
+import flex.messaging.io.PropertyProxy;
+import flex.messaging.io.PropertyProxyRegistry;
+import flex.messaging.io.SerializationContext;
+import flex.messaging.io.amf.ASObject;
+import flex.messaging.io.amf.ActionMessage;
+import flex.messaging.io.amf.Amf3Types;
+import flex.messaging.io.amf.AmfTypes;
+import flex.messaging.io.amf.MessageBody;
+import flex.messaging.io.amf.MessageHeader;
+
+/**
+ * Writes an AMF3 message to a growable array with the same bytes as the BlazeDS
+ * AmfMessageSerializer.
+ *
+ * Strings, numbers, dates, arrays, byte arrays and untyped or typed ASObjects are
+ * encoded directly. Other objects go through the BlazeDS property proxies, the same
+ * calls BlazeDS makes, and Externalizable objects write to this writer.
+ *
+ * The buffer and reference tables belong to the writer and are only cleared between
+ * headers and bodies, so a writer used for many messages doesn't allocate them
+ * again. Not thread safe, each thread needs its own writer.
+ *
+ * AMF0 messages, XML documents and the values BlazeDS only writes with its legacy
+ * settings throw an AmfFormatException. BlazeDS can then be used for the whole
+ * message.
+ */
+public class AmfMessageWriter {
+
+	private static final String NULL_URI = "null"; // $NON-NLS-1$
+
+	private static final String EMPTY_STRING = ""; // $NON-NLS-1$
+
+	private final SerializationContext context;
+
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+	private int count;
+
+	private final Map<Object, Integer> objects = new IdentityHashMap<Object, Integer>();
+
+	private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+	private final Map<TraitsKey, Integer> traits = new HashMap<TraitsKey, Integer>();
+
+	// Property names of the objects being written, nested objects stack theirs on top
+	private String[] names = new String[64];
+	private int nameCount;
+
+	private final TraitsKey traitsProbe = new TraitsKey();
+
+	private ExternalOutput externalOutput;
+
+	/**
+	 * @param context only the flags read by BlazeDS's Amf0Output and Amf3Output are used
+	 */
+	public AmfMessageWriter(SerializationContext context) {
+		this.context = context;
+	}
+
+	/**
+	 * Writes a message, replacing the one written before
+	 *
+	 * @param message AMF3 message
+	 * @return number of bytes written
+	 */
+	public int writeMessage(ActionMessage message) throws IOException {
+		int version = message.getVersion();
+		if (version < 3) {
+			throw new AmfFormatException("AMF0 messages aren't supported, version " + version);
+		}
+
+		count = 0;
+		try {
+			writeShort(version);
+
+			int headerCount = message.getHeaderCount();
+			writeShort(headerCount);
+			for (int i = 0; i < headerCount; i++) {
+				MessageHeader header = message.getHeader(i);
+				writeUTF(header.getName());
+				write(header.getMustUnderstand() ? 1 : 0);
+				writeInt(-1); // Unknown length
+				resetReferences();
+				writeAmf0Value(header.getData());
+			}
+
+			int bodyCount = message.getBodyCount();
+			writeShort(bodyCount);
+			for (int i = 0; i < bodyCount; i++) {
+				MessageBody body = message.getBody(i);
+				writeUTF(body.getTargetURI() != null ? body.getTargetURI() : NULL_URI);
+				writeUTF(body.getResponseURI() != null ? body.getResponseURI() : NULL_URI);
+				writeInt(-1);
+				resetReferences();
+				writeAmf0Value(body.getData());
+			}
+		} finally {
+			// Don't hold on to the last message until the next
+			resetReferences();
+			nameCount = 0;
+		}
+		return count;
+	}
+
+	/**
+	 * @return copy of the last message written
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[count];
+		System.arraycopy(buffer, 0, bytes, 0, count);
+		return bytes;
+	}
+
+	/**
+	 * Gives up the buffer if a message grew it past the given size, so one large
+	 * message isn't held for as long as the writer. The last message is discarded.
+	 *
+	 * @param maxRetained size of buffer to keep at most
+	 */
+	public void trimBuffer(int maxRetained) {
+		count = 0;
+		if (buffer.length > maxRetained && buffer.length > INITIAL_BUFFER_SIZE) {
+			buffer = new byte[Math.max(maxRetained, INITIAL_BUFFER_SIZE)];
+		}
+	}
+
+	/**
+	 * @return read only view of the last message written, only valid until the next
+	 */
+	public ByteBuffer getBuffer() {
+		return ByteBuffer.wrap(buffer, 0, count).asReadOnlyBuffer();
+	}
+
+	private void resetReferences() {
+		objects.clear();
+		strings.clear();
+		traits.clear();
+	}
+
+	/*
+	 * AMF0, as written by BlazeDS's Amf0Output for an AMF3 message
+	 */
+
+	private void writeAmf0Value(Object value) throws IOException {
+		if (value == null) {
+			write(AmfTypes.kNullType);
+		}
+		else if (value instanceof String) {
+			writeAmf0String((String) value);
+		}
+		else if (value instanceof Number) {
+			if (!context.legacyBigNumbers && (value instanceof BigInteger || value instanceof BigDecimal)) {
+				writeAmf0String(value.toString());
+			}
+			else {
+				write(AmfTypes.kNumberType);
+				writeDouble(((Number) value).doubleValue());
+			}
+		}
+		else if (value instanceof Boolean) {
+			write(AmfTypes.kBooleanType);
+			write(((Boolean) value).booleanValue() ? 1 : 0);
+		}
+		else if (value instanceof Character) {
+			writeAmf0String(value.toString());
+		}
+		else if (value instanceof Date) {
+			writeAmf0Date((Date) value);
+		}
+		else if (value instanceof Calendar) {
+			writeAmf0Date(((Calendar) value).getTime());
+		}
+		else {
+			write(AmfTypes.kAvmPlusObjectType);
+			writeAmf3Value(value);
+		}
+	}
+
+	private void writeAmf0String(String value) throws IOException {
+		int length = utfLength(value, false);
+		if (length <= 0xFFFF) {
+			write(AmfTypes.kStringType);
+			writeShort(length);
+		}
+		else {
+			write(AmfTypes.kLongStringType);
+			writeInt(length);
+		}
+		writeUtfBytes(value, false);
+	}
+
+	private void writeAmf0Date(Date date) throws IOException {
+		write(AmfTypes.kDateType);
+		writeDouble(date.getTime());
+		writeShort(TimeZone.getDefault().getRawOffset() / 60000);
+	}
+
+	/*
+	 * AMF3, as written by BlazeDS's Amf3Output
+	 */
+
+	private void writeAmf3Value(Object value) throws IOException {
+		if (value == null) {
+			write(Amf3Types.kNullType);
+		}
+		else if (!context.legacyExternalizable && value instanceof Externalizable) {
+			writeCustomObject(value);
+		}
+		else if (value instanceof String || value instanceof Character) {
+			write(Amf3Types.kStringType);
+			writeAmf3String(value.toString());
+		}
+		else if (value instanceof Number) {
+			if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				writeAmf3Int(((Number) value).intValue());
+			}
+			else if (!context.legacyBigNumbers && (value instanceof BigInteger || value instanceof BigDecimal)) {
+				write(Amf3Types.kStringType);
+				writeAmf3String(value.toString());
+			}
+			else {
+				write(Amf3Types.kDoubleType);
+				writeDouble(((Number) value).doubleValue());
+			}
+		}
+		else if (value instanceof Boolean) {
+			write(((Boolean) value).booleanValue() ? Amf3Types.kTrueType : Amf3Types.kFalseType);
+		}
+		else if (value instanceof Date) {
+			writeAmf3Date((Date) value);
+		}
+		else if (value instanceof Calendar) {
+			writeAmf3Date(((Calendar) value).getTime());
+		}
+		else if (value instanceof Document) {
+			throw new AmfFormatException("XML isn't supported");
+		}
+		else if (context.legacyMap && value instanceof Map && !(value instanceof ASObject) && !(value instanceof AmfTable.Row)) {
+			throw new AmfFormatException("Maps as ECMA arrays aren't supported");
+		}
+		else if (value instanceof Collection) {
+			if (context.legacyCollection) {
+				throw new AmfFormatException("Collections as arrays aren't supported");
+			}
+			writeArrayCollection((Collection<?>) value);
+		}
+		else if (value.getClass().isArray()) {
+			writeArray(value);
+		}
+		else if (value instanceof RowSet || (context.legacyThrowable && value instanceof Throwable)) {
+			throw new AmfFormatException(value.getClass().getName() + " isn't supported");
+		}
+		else {
+			writeCustomObject(value);
+		}
+	}
+
+	private void writeAmf3Int(int value) throws IOException {
+		if (value >= Amf3Types.INT28_MIN_VALUE && value <= Amf3Types.INT28_MAX_VALUE) {
+			write(Amf3Types.kIntegerType);
+			writeUInt29(value & Amf3Types.UINT29_MASK);
+		}
+		else {
+			write(Amf3Types.kDoubleType);
+			writeDouble(value);
+		}
+	}
+
+	private void writeAmf3String(String value) throws IOException {
+		if (value.length() == 0) {
+			writeUInt29(1);
+			return;
+		}
+
+		Integer index = strings.get(value);
+		if (index != null) {
+			writeUInt29(index.intValue() << 1);
+			return;
+		}
+		strings.put(value, Integer.valueOf(strings.size()));
+
+		writeUInt29((utfLength(value, false) << 1) | 1);
+		writeUtfBytes(value, false);
+	}
+
+	private void writeAmf3Date(Date date) throws IOException {
+		write(Amf3Types.kDateType);
+		if (!writeReference(date)) {
+			writeUInt29(1);
+			writeDouble(date.getTime());
+		}
+	}
+
+	private void writeArray(Object array) throws IOException {
+		Class<?> componentType = array.getClass().getComponentType();
+		if (componentType == Byte.TYPE) {
+			byte[] bytes = (byte[]) array;
+			write(Amf3Types.kByteArrayType);
+			if (!writeReference(bytes)) {
+				writeUInt29((bytes.length << 1) | 1);
+				ensure(bytes.length);
+				System.arraycopy(bytes, 0, buffer, count, bytes.length);
+				count += bytes.length;
+			}
+		}
+		else if (componentType == Character.TYPE) {
+			write(Amf3Types.kStringType);
+			writeAmf3String(new String((char[]) array));
+		}
+		else if (componentType.isPrimitive()) {
+			writePrimitiveArray(array, componentType);
+		}
+		else if (componentType == Byte.class || componentType == Character.class) {
+			throw new AmfFormatException("Arrays of " + componentType.getName() + " aren't supported");
+		}
+		else {
+			Object[] values = (Object[]) array;
+			write(Amf3Types.kArrayType);
+			if (!writeReference(values)) {
+				writeUInt29((values.length << 1) | 1);
+				writeAmf3String(EMPTY_STRING);
+				for (int i = 0; i < values.length; i++) {
+					writeAmf3Value(values[i]);
+				}
+			}
+		}
+	}
+
+	/*
+	 * A dense array of the boxed values, as BlazeDS writes it. Numeric vectors are
+	 * read into these arrays too, so they are sent back as arrays.
+	 */
+	private void writePrimitiveArray(Object array, Class<?> componentType) throws IOException {
+		write(Amf3Types.kArrayType);
+		if (writeReference(array)) {
+			return;
+		}
+		int length = Array.getLength(array);
+		writeUInt29((length << 1) | 1);
+		writeAmf3String(EMPTY_STRING);
+		if (componentType == Integer.TYPE) {
+			int[] values = (int[]) array;
+			for (int i = 0; i < length; i++) {
+				writeAmf3Int(values[i]);
+			}
+		}
+		else if (componentType == Double.TYPE) {
+			double[] values = (double[]) array;
+			for (int i = 0; i < length; i++) {
+				write(Amf3Types.kDoubleType);
+				writeDouble(values[i]);
+			}
+		}
+		else if (componentType == Long.TYPE) {
+			long[] values = (long[]) array;
+			for (int i = 0; i < length; i++) {
+				write(Amf3Types.kDoubleType);
+				writeDouble(values[i]);
+			}
+		}
+		else if (componentType == Short.TYPE) {
+			short[] values = (short[]) array;
+			for (int i = 0; i < length; i++) {
+				writeAmf3Int(values[i]);
+			}
+		}
+		else if (componentType == Float.TYPE) {
+			float[] values = (float[]) array;
+			for (int i = 0; i < length; i++) {
+				write(Amf3Types.kDoubleType);
+				writeDouble(values[i]);
+			}
+		}
+		else {
+			boolean[] values = (boolean[]) array;
+			for (int i = 0; i < length; i++) {
+				write(values[i] ? Amf3Types.kTrueType : Amf3Types.kFalseType);
+			}
+		}
+	}
+
+	private void writeArrayCollection(Collection<?> collection) throws IOException {
+		write(Amf3Types.kObjectType);
+		if (!writeReference(collection)) {
+			ArrayCollection arrayCollection = collection instanceof ArrayCollection
+				? (ArrayCollection) collection : new ArrayCollection(collection);
+			writePropertyProxy(PropertyProxyRegistry.getProxy(arrayCollection), null, arrayCollection);
+		}
+	}
+
+	private void writeCustomObject(Object object) throws IOException {
+		if (object instanceof PropertyProxy) {
+			throw new AmfFormatException("Property proxies aren't supported");
+		}
+
+		write(Amf3Types.kObjectType);
+		if (!writeReference(object)) {
+			if (object.getClass() == ASObject.class) {
+				writeASObject((ASObject) object, ((ASObject) object).getType());
+			}
+			else if (object instanceof AmfTable.Row) {
+				writeASObject((AmfTable.Row) object, ((AmfTable.Row) object).getType());
+			}
+			else {
+				AmfTypeDescriptor descriptor = AmfTypeDescriptor.forClass(object.getClass());
+				PropertyProxy proxy = descriptor != null ? descriptor.getProxy() : null;
+				if (proxy == null) {
+					proxy = PropertyProxyRegistry.getProxyAndRegister(object);
+				}
+				writePropertyProxy(proxy, descriptor, object);
+			}
+		}
+	}
+
+	/*
+	 * What the map proxy does for an ASObject: every key is a sealed property. Table
+	 * rows are written as the ASObjects they stand for.
+	 */
+	private void writeASObject(Map<?, ?> object, String alias) throws IOException {
+		int base = nameCount;
+		try {
+			for (Iterator<?> i = object.keySet().iterator(); i.hasNext();) {
+				Object key = i.next();
+				if (key == null) {
+					throw new AmfFormatException("Null key in an ASObject");
+				}
+				addName(key.toString());
+			}
+
+			writeTraits(alias != null ? alias : EMPTY_STRING, false, false, base);
+			for (int i = base; i < nameCount; i++) {
+				writeAmf3Value(object.get(names[i]));
+			}
+		} finally {
+			nameCount = base;
+		}
+	}
+
+	/*
+	 * Writes an object through its proxy, or through the accessors of the descriptor
+	 * of its class if it has one
+	 */
+	private void writePropertyProxy(PropertyProxy proxy, AmfTypeDescriptor descriptor, Object instance) throws IOException {
+		Object serialized = proxy.getInstanceToSerialize(instance);
+		if (serialized != instance) {
+			if (serialized == null) {
+				throw new AmfFormatException(proxy.getClass().getName() + " has nothing to serialize for " + instance.getClass().getName());
+			}
+			proxy = PropertyProxyRegistry.getProxyAndRegister(serialized);
+			descriptor = null;
+			instance = serialized;
+		}
+
+		boolean externalizable = proxy.isExternalizable(instance);
+		String[] accessors = externalizable || descriptor == null ? null : descriptor.getPropertyNames(instance);
+		List<?> properties = externalizable || accessors != null ? null : proxy.getPropertyNames(instance);
+		String alias = proxy.getAlias(instance);
+
+		int base = nameCount;
+		try {
+			if (accessors != null) {
+				for (int i = 0; i < accessors.length; i++) {
+					addName(accessors[i]);
+				}
+			}
+			else if (properties != null) {
+				for (Iterator<?> i = properties.iterator(); i.hasNext();) {
+					addName((String) i.next());
+				}
+			}
+			writeTraits(alias != null ? alias : EMPTY_STRING, proxy.isDynamic(), externalizable, base);
+
+			if (externalizable) {
+				if (externalOutput == null) {
+					externalOutput = new ExternalOutput();
+				}
+				((Externalizable) instance).writeExternal(externalOutput);
+			}
+			else if (accessors != null) {
+				for (int i = base; i < nameCount; i++) {
+					writeAmf3Value(descriptor.getValue(instance, i - base));
+				}
+			}
+			else {
+				for (int i = base; i < nameCount; i++) {
+					writeAmf3Value(proxy.getValue(instance, names[i]));
+				}
+			}
+		} finally {
+			nameCount = base;
+		}
+	}
+
+	/*
+	 * Writes traits with the property names from base up
+	 */
+	private void writeTraits(String className, boolean dynamic, boolean externalizable, int base) throws IOException {
+		int propertyCount = nameCount - base;
+		traitsProbe.set(className, dynamic, names, base, propertyCount);
+		Integer index = traits.get(traitsProbe);
+		if (index != null) {
+			writeUInt29((index.intValue() << 2) | 1);
+			return;
+		}
+		traits.put(traitsProbe.copy(), Integer.valueOf(traits.size()));
+
+		writeUInt29(3 | (externalizable ? 4 : 0) | (dynamic ? 8 : 0) | (propertyCount << 4));
+		writeAmf3String(className);
+		if (!externalizable) {
+			for (int i = base; i < nameCount; i++) {
+				writeAmf3String(names[i]);
+			}
+		}
+	}
+
+	private void addName(String name) {
+		if (nameCount == names.length) {
+			String[] grown = new String[nameCount * 2];
+			System.arraycopy(names, 0, grown, 0, nameCount);
+			names = grown;
+		}
+		names[nameCount++] = name;
+	}
+
+	/*
+	 * @return true if the object was written before and its reference has been written
+	 */
+	private boolean writeReference(Object object) throws IOException {
+		Integer index = objects.get(object);
+		if (index != null) {
+			writeUInt29(index.intValue() << 1);
+			return true;
+		}
+		objects.put(object, Integer.valueOf(objects.size()));
+		return false;
+	}
+
+	/*
+	 * Primitives
+	 */
+
+	private void ensure(int length) {
+		if (count + length > buffer.length) {
+			byte[] grown = new byte[Math.max(buffer.length * 2, count + length)];
+			System.arraycopy(buffer, 0, grown, 0, count);
+			buffer = grown;
+		}
+	}
+
+	private void write(int value) {
+		ensure(1);
+		buffer[count++] = (byte) value;
+	}
+
+	private void writeShort(int value) {
+		ensure(2);
+		buffer[count++] = (byte) (value >>> 8);
+		buffer[count++] = (byte) value;
+	}
+
+	private void writeInt(int value) {
+		ensure(4);
+		buffer[count++] = (byte) (value >>> 24);
+		buffer[count++] = (byte) (value >>> 16);
+		buffer[count++] = (byte) (value >>> 8);
+		buffer[count++] = (byte) value;
+	}
+
+	private void writeLong(long value) {
+		writeInt((int) (value >>> 32));
+		writeInt((int) value);
+	}
+
+	private void writeDouble(double value) {
+		writeLong(Double.doubleToLongBits(value));
+	}
+
+	private void writeUInt29(int value) throws IOException {
+		if (value < 0x80) {
+			write(value);
+		}
+		else if (value < 0x4000) {
+			write(((value >> 7) & 0x7F) | 0x80);
+			write(value & 0x7F);
+		}
+		else if (value < 0x200000) {
+			write(((value >> 14) & 0x7F) | 0x80);
+			write(((value >> 7) & 0x7F) | 0x80);
+			write(value & 0x7F);
+		}
+		else if (value < 0x40000000) {
+			write(((value >> 22) & 0x7F) | 0x80);
+			write(((value >> 15) & 0x7F) | 0x80);
+			write(((value >> 8) & 0x7F) | 0x80);
+			write(value & 0xFF);
+		}
+		else {
+			throw new AmfFormatException("Integer out of range: " + value);
+		}
+	}
+
+	/*
+	 * Java's modified UTF-8 with a 16 bit length, as DataOutput.writeUTF
+	 */
+	private void writeUTF(String value) throws IOException {
+		int length = utfLength(value, true);
+		if (length > 0xFFFF) {
+			throw new AmfFormatException("String too long for a 16 bit length: " + length + " bytes");
+		}
+		writeShort(length);
+		writeUtfBytes(value, true);
+	}
+
+	/*
+	 * AMF strings encode \u0000 as a single byte, DataOutput as two
+	 */
+	private static int utfLength(String value, boolean modified) {
+		int length = value.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c > 0x7FF) {
+				bytes += 2;
+			}
+			else if (c > 0x7F || (modified && c == 0)) {
+				bytes++;
+			}
+		}
+		return bytes;
+	}
+
+	private void writeUtfBytes(String value, boolean modified) {
+		int length = value.length();
+		ensure(length * 3);
+		byte[] bytes = buffer;
+		int pos = count;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c <= 0x7F && (c != 0 || !modified)) {
+				bytes[pos++] = (byte) c;
+			}
+			else if (c > 0x7FF) {
+				bytes[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+				bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+			else {
+				bytes[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+				bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		count = pos;
+	}
+
+	/*
+	 * Traits compared the way BlazeDS's TraitsInfo compares them, so the same traits
+	 * are sent by reference. Lookups use a probe over the name stack, only the traits
+	 * that are added copy their names.
+	 */
+	private static class TraitsKey {
+		private String className;
+		private boolean dynamic;
+		private String[] properties;
+		private int offset;
+		private int length;
+
+		void set(String className, boolean dynamic, String[] properties, int offset, int length) {
+			this.className = className;
+			this.dynamic = dynamic;
+			this.properties = properties;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		TraitsKey copy() {
+			TraitsKey key = new TraitsKey();
+			String[] copied = new String[length];
+			System.arraycopy(properties, offset, copied, 0, length);
+			key.set(className, dynamic, copied, 0, length);
+			return key;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = className.hashCode();
+			hash = dynamic ? hash << 2 : hash << 1;
+			return hash | (length << 24);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this) {
+				return true;
+			}
+			if (!(obj instanceof TraitsKey)) {
+				return false;
+			}
+			TraitsKey other = (TraitsKey) obj;
+			if (!className.equals(other.className) || dynamic != other.dynamic || length != other.length) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				String name = properties[offset + i];
+				String otherName = other.properties[other.offset + i];
+				if (name != null && otherName != null && !name.equals(otherName)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/*
+	 * What an Externalizable object writes to: the primitives of a DataOutput and AMF3
+	 * values, like the BlazeDS Amf3Output it would otherwise be given
+	 */
+	private class ExternalOutput implements ObjectOutput {
+
+		public void writeObject(Object obj) throws IOException {
+			writeAmf3Value(obj);
+		}
+
+		public void write(int b) {
+			AmfMessageWriter.this.write(b);
+		}
+
+		public void write(byte[] b) {
+			write(b, 0, b.length);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			ensure(len);
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+
+		public void writeBoolean(boolean v) {
+			write(v ? 1 : 0);
+		}
+
+		public void writeByte(int v) {
+			write(v);
+		}
+
+		public void writeShort(int v) {
+			AmfMessageWriter.this.writeShort(v);
+		}
+
+		public void writeChar(int v) {
+			AmfMessageWriter.this.writeShort(v);
+		}
+
+		public void writeInt(int v) {
+			AmfMessageWriter.this.writeInt(v);
+		}
+
+		public void writeLong(long v) {
+			AmfMessageWriter.this.writeLong(v);
+		}
+
+		public void writeFloat(float v) {
+			AmfMessageWriter.this.writeInt(Float.floatToIntBits(v));
+		}
+
+		public void writeDouble(double v) {
+			AmfMessageWriter.this.writeDouble(v);
+		}
+
+		public void writeBytes(String s) {
+			int length = s.length();
+			for (int i = 0; i < length; i++) {
+				write(s.charAt(i));
+			}
+		}
+
+		public void writeChars(String s) {
+			int length = s.length();
+			for (int i = 0; i < length; i++) {
+				writeChar(s.charAt(i));
+			}
+		}
+
+		public void writeUTF(String s) throws IOException {
+			AmfMessageWriter.this.writeUTF(s);
+		}
+
+		public void flush() {
+			// Written straight to the buffer
+		}
+
+		public void close() {
+			// Nothing to release
+		}
+	}
+}
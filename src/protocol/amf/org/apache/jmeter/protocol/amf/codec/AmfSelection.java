@@ -0,0 +1,225 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package org.apache.jmeter.protocol.amf.codec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The parts of an AMF message to decode: which bodies, which headers and how
+ * deep into their values. Everything else is skipped in the stream without
+ * building any objects.
+ *
+ * Headers and bodies that aren't selected are still in the decoded message,
+ * with their name or URIs and a null value, so they keep their index. Objects
+ * and arrays deeper than the maximum depth are read as null, the value of a
+ * header or body being at depth 1.
+ *
+ * A skipped object isn't read again when the message refers back to it, so a
+ * reference reads null even within the depth or in a selected body if the object
+ * first appeared too deep or in a part that was left out. With depth=2, the body
+ * [ {inner: o}, o ] reads as [ {inner: null}, null ].
+ *
+ * A selection can be written as text, e.g. "bodies=0,2; headers=none; depth=3".
+ * Headers are listed by name, bodies by index, "all" or "none" select every one
+ * or none of them. Anything left out selects everything.
+ */
+public final class AmfSelection {
+
+	/**
+	 * The whole message
+	 */
+	public static final AmfSelection ALL = new AmfSelection(null, null, 0);
+
+	private static final String BODIES = "bodies"; // $NON-NLS-1$
+	private static final String HEADERS = "headers"; // $NON-NLS-1$
+	private static final String DEPTH = "depth"; // $NON-NLS-1$
+	private static final String SELECT_ALL = "all"; // $NON-NLS-1$
+	private static final String SELECT_NONE = "none"; // $NON-NLS-1$
+
+	// Sorted, null for all
+	private final int[] bodies;
+
+	// Null for all
+	private final String[] headers;
+
+	private final int maxDepth;
+
+	/**
+	 * @param bodies indices of the bodies to decode, null for all
+	 * @param headers names of the headers to decode, null for all
+	 * @param maxDepth levels of objects and arrays to decode, 0 for no limit
+	 */
+	public AmfSelection(int[] bodies, String[] headers, int maxDepth) {
+		if (maxDepth < 0) {
+			throw new IllegalArgumentException("Negative AMF depth " + maxDepth);
+		}
+		if (bodies != null) {
+			bodies = bodies.clone();
+			Arrays.sort(bodies);
+		}
+		this.bodies = bodies;
+		this.headers = headers != null ? headers.clone() : null;
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * @param indices
+	 * @return the given bodies and no headers
+	 */
+	public static AmfSelection bodies(int... indices) {
+		return new AmfSelection(indices, new String[0], 0);
+	}
+
+	/**
+	 * @param selection as text, see the class description
+	 * @return the selection, {@link #ALL} if empty
+	 * @throws IllegalArgumentException if the text can't be parsed
+	 */
+	public static AmfSelection parse(String selection) {
+		int[] bodies = null;
+		String[] headers = null;
+		int maxDepth = 0;
+
+		for (String part : selection.split(";")) { // $NON-NLS-1$
+			part = part.trim();
+			if (part.length() == 0) {
+				continue;
+			}
+			int equals = part.indexOf('=');
+			if (equals < 0) {
+				throw new IllegalArgumentException("Missing = in AMF selection: " + selection);
+			}
+			String key = part.substring(0, equals).trim();
+			String value = part.substring(equals + 1).trim();
+
+			if (BODIES.equals(key)) {
+				String[] items = split(value);
+				if (items != null) {
+					bodies = new int[items.length];
+					for (int i = 0; i < items.length; i++) {
+						bodies[i] = parseNumber(items[i], selection);
+					}
+				}
+			}
+			else if (HEADERS.equals(key)) {
+				headers = split(value);
+			}
+			else if (DEPTH.equals(key)) {
+				maxDepth = parseNumber(value, selection);
+			}
+			else {
+				throw new IllegalArgumentException("Unknown " + key + " in AMF selection: " + selection);
+			}
+		}
+
+		if (bodies == null && headers == null && maxDepth == 0) {
+			return ALL;
+		}
+		return new AmfSelection(bodies, headers, maxDepth);
+	}
+
+	/**
+	 * @return true if every header and body is decoded in full
+	 */
+	public boolean isAll() {
+		return bodies == null && headers == null && maxDepth == 0;
+	}
+
+	public boolean isBodySelected(int index) {
+		return bodies == null || Arrays.binarySearch(bodies, index) >= 0;
+	}
+
+	public boolean isHeaderSelected(String name) {
+		if (headers == null) {
+			return true;
+		}
+		for (String header : headers) {
+			if (header.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return levels of objects and arrays to decode, 0 for no limit
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(BODIES).append('=');
+		if (bodies == null) {
+			sb.append(SELECT_ALL);
+		}
+		else if (bodies.length == 0) {
+			sb.append(SELECT_NONE);
+		}
+		for (int i = 0; bodies != null && i < bodies.length; i++) {
+			sb.append(i > 0 ? "," : "").append(bodies[i]); // $NON-NLS-1$ // $NON-NLS-2$
+		}
+		sb.append("; ").append(HEADERS).append('='); // $NON-NLS-1$
+		if (headers == null) {
+			sb.append(SELECT_ALL);
+		}
+		else if (headers.length == 0) {
+			sb.append(SELECT_NONE);
+		}
+		for (int i = 0; headers != null && i < headers.length; i++) {
+			sb.append(i > 0 ? "," : "").append(headers[i]); // $NON-NLS-1$ // $NON-NLS-2$
+		}
+		sb.append("; ").append(DEPTH).append('=').append(maxDepth); // $NON-NLS-1$
+		return sb.toString();
+	}
+
+	/*
+	 * Comma separated items, null for all
+	 */
+	private static String[] split(String value) {
+		if (SELECT_ALL.equals(value)) {
+			return null;
+		}
+		List<String> items = new ArrayList<String>();
+		if (!SELECT_NONE.equals(value)) {
+			for (String item : value.split(",")) { // $NON-NLS-1$
+				item = item.trim();
+				if (item.length() > 0) {
+					items.add(item);
+				}
+			}
+		}
+		return items.toArray(new String[items.size()]);
+	}
+
+	private static int parseNumber(String value, String selection) {
+		try {
+			int number = Integer.parseInt(value);
+			if (number >= 0) {
+				return number;
+			}
+		} catch (NumberFormatException e) {
+			// Fall through
+		}
+		throw new IllegalArgumentException("Invalid number " + value + " in AMF selection: " + selection);
+	}
+}
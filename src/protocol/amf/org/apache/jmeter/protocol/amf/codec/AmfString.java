@@ -0,0 +1,141 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package org.apache.jmeter.protocol.amf.codec;
+
+/**
+ * An AMF string left in the message it was read from, decoded on first use.
+ *
+ * The view holds on to the message bytes, so it shouldn't outlive the sample
+ * it came from. {@link AmfInput} keeps one view per entry of the AMF3 string
+ * reference table, a string that's sent once and referenced many times is
+ * decoded at most once.
+ */
+public final class AmfString implements CharSequence {
+
+	static final AmfString EMPTY = new AmfString(new byte[0], 0, 0);
+
+	private final byte[] data;
+
+	private final int offset;
+
+	private final int length;
+
+	private String value;
+
+	AmfString(byte[] data, int offset, int length) {
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+		if (length == 0) {
+			value = ""; // $NON-NLS-1$
+		}
+	}
+
+	/**
+	 * @return number of UTF-8 bytes
+	 */
+	public int getByteLength() {
+		return length;
+	}
+
+	/**
+	 * @return true once the string has been decoded
+	 */
+	public boolean isDecoded() {
+		return value != null;
+	}
+
+	/**
+	 * Compares with a String, without decoding as long as both are ASCII
+	 *
+	 * @param text
+	 * @return true if the string decodes to text
+	 */
+	public boolean contentEquals(String text) {
+		if (value != null) {
+			return value.equals(text);
+		}
+		if (text.length() != length) {
+			// Every UTF-8 byte that isn't ASCII makes the string shorter than its bytes
+			if (text.length() > length) {
+				return false;
+			}
+			return toString().equals(text);
+		}
+		for (int i = 0; i < length; i++) {
+			int b = data[offset + i];
+			if (b < 0) {
+				return toString().equals(text);
+			}
+			if (b != text.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int length() {
+		return toString().length();
+	}
+
+	public char charAt(int index) {
+		return toString().charAt(index);
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		return toString().subSequence(start, end);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this) {
+			return true;
+		}
+		if (!(obj instanceof AmfString)) {
+			return false;
+		}
+		AmfString other = (AmfString) obj;
+		if (other.length == length) {
+			int i = 0;
+			while (i < length && data[offset + i] == other.data[other.offset + i]) {
+				i++;
+			}
+			if (i == length) {
+				return true;
+			}
+		}
+		// Invalid and four byte sequences can decode the same from different bytes
+		return toString().equals(other.toString());
+	}
+
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+
+	/**
+	 * @return the decoded string, see {@link AmfInput#decodeUtf(byte[], int, int)}
+	 */
+	@Override
+	public String toString() {
+		if (value == null) {
+			value = AmfInput.decodeUtf(data, offset, length);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,521 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.codec;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import flex.messaging.io.MapProxy;
+import flex.messaging.io.PropertyProxyRegistry;
+
+/**
+ * Objects of one type read from an array, typically the source of an
+ * ArrayCollection of value objects, stored as one column per property.
+ *
+ * Each object is a {@link Row}, a map over its cells in place of the ASObject
+ * BlazeDS would have created. The property names are held once for the whole table
+ * and integer and double cells are kept unboxed, so a large result takes a fraction
+ * of the memory of its maps. A row lists its properties in the order the ASObject
+ * would have, so it converts to the same XML and AMF.
+ *
+ * The columns are the properties of the first row. A later row of the same type
+ * with other dynamic properties keeps its own map, as the ASObject would have.
+ */
+public final class AmfTable {
+
+	static {
+		// BlazeDS writes rows as the ASObjects they stand for too
+		PropertyProxyRegistry.getRegistry().register(Row.class, new RowProxy());
+	}
+
+	private final Amf3Traits traits;
+
+	private final String type;
+
+	private final boolean boxArrays;
+
+	private final int capacity;
+
+	private String[] names;
+
+	private Column[] columns;
+
+	private int columnCount;
+
+	private final Map<String, Integer> columnsByName = new HashMap<String, Integer>();
+
+	// Column of each key in the order the ASObject's map would iterate them, set once the columns are known
+	private int[] keyColumns;
+
+	private final Row[] rows;
+
+	private int rowCount;
+
+	/**
+	 * @param traits of the objects, their sealed properties are the first columns
+	 * @param type alias the objects have, null if anonymous
+	 * @param capacity number of rows the table can hold
+	 * @param boxArrays whether numeric arrays are boxed before they are stored, as the
+	 * property proxy BlazeDS would use is given them
+	 */
+	AmfTable(Amf3Traits traits, String type, int capacity, boolean boxArrays) {
+		this.traits = traits;
+		this.type = type;
+		this.capacity = capacity;
+		this.boxArrays = boxArrays;
+		this.rows = new Row[capacity];
+
+		int count = traits.getPropertyCount();
+		names = new String[Math.max(count, 4)];
+		columns = new Column[names.length];
+		for (int i = 0; i < count; i++) {
+			addColumn(traits.getProperty(i));
+		}
+	}
+
+	/**
+	 * @return alias of the objects, null if they are anonymous
+	 */
+	public String getType() {
+		return type;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public Row getRow(int row) {
+		checkRow(row);
+		return rows[row];
+	}
+
+	public int getColumnCount() {
+		return columnCount;
+	}
+
+	/**
+	 * @param column
+	 * @return name of the property, columns are in the order they were read
+	 */
+	public String getColumnName(int column) {
+		return names[column];
+	}
+
+	/**
+	 * @param name
+	 * @return index of the property's column, -1 if there is none
+	 */
+	public int getColumn(String name) {
+		Integer column = columnsByName.get(name);
+		return column != null ? column.intValue() : -1;
+	}
+
+	/**
+	 * @param row
+	 * @param column
+	 * @return the value as it is in the row, integers and doubles boxed again
+	 */
+	public Object getValue(int row, int column) {
+		checkRow(row);
+		Row object = rows[row];
+		return object.own != null ? object.own.get(names[column]) : columns[column].get(row);
+	}
+
+	/*
+	 * Reading the table
+	 */
+
+	Amf3Traits getTraits() {
+		return traits;
+	}
+
+	boolean isBoxArrays() {
+		return boxArrays;
+	}
+
+	/**
+	 * @return false while the first row is read, when properties can still be added
+	 */
+	boolean isComplete() {
+		return keyColumns != null;
+	}
+
+	int addColumn(String name) {
+		if (columnCount == names.length) {
+			String[] grownNames = new String[columnCount * 2];
+			System.arraycopy(names, 0, grownNames, 0, columnCount);
+			names = grownNames;
+			Column[] grownColumns = new Column[columnCount * 2];
+			System.arraycopy(columns, 0, grownColumns, 0, columnCount);
+			columns = grownColumns;
+		}
+		names[columnCount] = name;
+		columns[columnCount] = new Column(capacity);
+		columnsByName.put(name, Integer.valueOf(columnCount));
+		return columnCount++;
+	}
+
+	/**
+	 * Ends the columns, listing the keys in the order of the map the ASObject extends
+	 */
+	void complete() {
+		Map<String, Integer> map = new HashMap<String, Integer>();
+		for (int i = 0; i < columnCount; i++) {
+			map.put(names[i], Integer.valueOf(i));
+		}
+		keyColumns = new int[columnCount];
+		int index = 0;
+		for (Iterator<Integer> i = map.values().iterator(); i.hasNext();) {
+			keyColumns[index++] = i.next().intValue();
+		}
+	}
+
+	Row addRow() {
+		Row row = new Row(rowCount);
+		rows[rowCount++] = row;
+		return row;
+	}
+
+	void setInt(int row, int column, int value) {
+		columns[column].setInt(row, value);
+	}
+
+	void setDouble(int row, int column, double value) {
+		columns[column].setDouble(row, value);
+	}
+
+	void setObject(int row, int column, Object value) {
+		columns[column].setObject(row, value, rowCount);
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= rowCount) {
+			throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount); // $NON-NLS-1$
+		}
+	}
+
+	/**
+	 * The cells of a property. A column holds ints until another kind of value is
+	 * set, then doubles, marking the cells that were integers, until something other
+	 * than a number is set, when it boxes its cells.
+	 */
+	private static final class Column {
+
+		static final int EMPTY = 0;
+		static final int INT = 1;
+		static final int NUMBER = 2;
+		static final int OBJECT = 3;
+
+		private final int capacity;
+
+		int kind = EMPTY;
+
+		int[] ints;
+
+		double[] doubles;
+
+		// Cells of a NUMBER column that were integers
+		BitSet intCells;
+
+		Object[] objects;
+
+		Column(int capacity) {
+			this.capacity = capacity;
+		}
+
+		void setInt(int row, int value) {
+			switch (kind) {
+				case EMPTY:
+					ints = new int[capacity];
+					kind = INT;
+					// fall through
+				case INT:
+					ints[row] = value;
+					break;
+				case NUMBER:
+					doubles[row] = value;
+					intCells.set(row);
+					break;
+				default:
+					objects[row] = Integer.valueOf(value);
+			}
+		}
+
+		void setDouble(int row, double value) {
+			switch (kind) {
+				case EMPTY:
+					doubles = new double[capacity];
+					intCells = new BitSet();
+					kind = NUMBER;
+					break;
+				case INT:
+					doubles = new double[capacity];
+					intCells = new BitSet();
+					for (int i = 0; i < row; i++) {
+						doubles[i] = ints[i];
+					}
+					intCells.set(0, row);
+					ints = null;
+					kind = NUMBER;
+					break;
+				case NUMBER:
+					break;
+				default:
+					objects[row] = new Double(value);
+					return;
+			}
+			doubles[row] = value;
+		}
+
+		/*
+		 * The cells of the rows before rowCount are kept when the column is boxed, as a
+		 * row that was already read can be changed through its map
+		 */
+		void setObject(int row, Object value, int rowCount) {
+			if (kind != OBJECT) {
+				Object[] boxed = new Object[capacity];
+				for (int i = 0; i < rowCount; i++) {
+					boxed[i] = get(i);
+				}
+				objects = boxed;
+				ints = null;
+				doubles = null;
+				intCells = null;
+				kind = OBJECT;
+			}
+			objects[row] = value;
+		}
+
+		Object get(int row) {
+			switch (kind) {
+				case INT:
+					return Integer.valueOf(ints[row]);
+				case NUMBER:
+					return intCells.get(row) ? (Object) Integer.valueOf((int) doubles[row]) : new Double(doubles[row]);
+				case OBJECT:
+					return objects[row];
+				default:
+					return null;
+			}
+		}
+	}
+
+	/**
+	 * What the map proxy does for an ASObject, without the row's own bean properties
+	 */
+	private static final class RowProxy extends MapProxy {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		public List getPropertyNames(Object instance) {
+			return instance != null ? new ArrayList(((Row) instance).keySet()) : null;
+		}
+
+		@Override
+		public Object getValue(Object instance, String propertyName) {
+			return instance != null ? ((Row) instance).get(propertyName) : null;
+		}
+
+		@Override
+		protected String getClassName(Object instance) {
+			return instance != null ? ((Row) instance).getType() : null;
+		}
+	}
+
+	/**
+	 * One object of the table, as a map of its properties. Values of the table's
+	 * columns can be replaced but properties can't be added or removed.
+	 */
+	public final class Row extends AbstractMap<String, Object> {
+
+		private final int row;
+
+		// The properties of a row that doesn't have the table's, null otherwise
+		private Map<String, Object> own;
+
+		private Set<Map.Entry<String, Object>> entries;
+
+		Row(int row) {
+			this.row = row;
+		}
+
+		public AmfTable getTable() {
+			return AmfTable.this;
+		}
+
+		/**
+		 * @return position of the row in its table
+		 */
+		public int getIndex() {
+			return row;
+		}
+
+		/**
+		 * @return alias of the object, null if it is anonymous
+		 */
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * Moves the row out of the columns into a map of its own, for properties that
+		 * differ from the table's
+		 *
+		 * @param count number of columns read for the row, the first properties of the map
+		 * @return the map to put the rest of the properties in
+		 */
+		Map<String, Object> detach(int count) {
+			own = new HashMap<String, Object>();
+			for (int i = 0; i < count; i++) {
+				own.put(names[i], columns[i].get(row));
+			}
+			return own;
+		}
+
+		@Override
+		public int size() {
+			return own != null ? own.size() : columnCount;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return own != null ? own.containsKey(key) : columnsByName.containsKey(key);
+		}
+
+		@Override
+		public Object get(Object key) {
+			if (own != null) {
+				return own.get(key);
+			}
+			Integer column = columnsByName.get(key);
+			return column != null ? columns[column.intValue()].get(row) : null;
+		}
+
+		@Override
+		public Object put(String key, Object value) {
+			if (own != null) {
+				if (!own.containsKey(key)) {
+					throw new UnsupportedOperationException("No property " + key + " in the row"); // $NON-NLS-1$
+				}
+				return own.put(key, value);
+			}
+			Integer column = columnsByName.get(key);
+			if (column == null) {
+				throw new UnsupportedOperationException("No property " + key + " in the table"); // $NON-NLS-1$
+			}
+			Column cells = columns[column.intValue()];
+			Object previous = cells.get(row);
+			cells.setObject(row, value, rowCount);
+			return previous;
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			if (own != null) {
+				return own.entrySet();
+			}
+			if (entries == null) {
+				entries = new AbstractSet<Map.Entry<String, Object>>() {
+					@Override
+					public int size() {
+						return columnCount;
+					}
+
+					@Override
+					public Iterator<Map.Entry<String, Object>> iterator() {
+						return new EntryIterator();
+					}
+				};
+			}
+			return entries;
+		}
+
+		private final class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+
+			private int next;
+
+			public boolean hasNext() {
+				return next < keyColumns.length;
+			}
+
+			public Map.Entry<String, Object> next() {
+				if (next == keyColumns.length) {
+					throw new NoSuchElementException();
+				}
+				return new Entry(keyColumns[next++]);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}
+
+		private final class Entry implements Map.Entry<String, Object> {
+
+			private final int column;
+
+			Entry(int column) {
+				this.column = column;
+			}
+
+			public String getKey() {
+				return names[column];
+			}
+
+			public Object getValue() {
+				return columns[column].get(row);
+			}
+
+			public Object setValue(Object value) {
+				Object previous = getValue();
+				columns[column].setObject(row, value, rowCount);
+				return previous;
+			}
+
+			@Override
+			public boolean equals(Object o) {
+				if (!(o instanceof Map.Entry)) {
+					return false;
+				}
+				Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+				Object value = getValue();
+				return names[column].equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+			}
+
+			@Override
+			public int hashCode() {
+				Object value = getValue();
+				return names[column].hashCode() ^ (value == null ? 0 : value.hashCode());
+			}
+
+			@Override
+			public String toString() {
+				return names[column] + "=" + getValue(); // $NON-NLS-1$
+			}
+		}
+	}
+}
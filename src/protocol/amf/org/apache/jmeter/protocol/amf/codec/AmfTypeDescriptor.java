@@ -0,0 +1,289 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.codec;
+
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import flex.messaging.MessageException;
+import flex.messaging.io.AbstractProxy;
+import flex.messaging.io.BeanProxy;
+import flex.messaging.io.PropertyProxy;
+import flex.messaging.io.PropertyProxyRegistry;
+import flex.messaging.io.TypeMarshallingContext;
+import flex.messaging.util.ClassUtil;
+
+/**
+ * What the codec needs to know about a value object class of the application under
+ * test, worked out once per class and shared by every thread.
+ *
+ * With a JAR of the remoting classes on the classpath, typed objects are read into
+ * instances of those classes. For every object BlazeDS resolves the class from its
+ * name, looks up its proxy in the registry and finds each property again in its
+ * caches. A descriptor keeps the class, its proxy and, for a plain bean, the accessor
+ * of each property in the order the proxy lists them, so objects are created, filled
+ * in and written through the accessors directly.
+ *
+ * Only classes of the application have a descriptor, not those of the JDK, BlazeDS,
+ * XStream or JMeter. Accessors are only kept for classes whose proxy is a BeanProxy
+ * without a serialization descriptor, anything the accessors can't do, including
+ * reporting errors, is left to the proxy.
+ */
+public final class AmfTypeDescriptor {
+
+	private static final String[] SYSTEM_PACKAGES = {
+		"java.", // $NON-NLS-1$
+		"javax.", // $NON-NLS-1$
+		"sun.", // $NON-NLS-1$
+		"com.sun.", // $NON-NLS-1$
+		"flex.", // $NON-NLS-1$
+		"com.thoughtworks.", // $NON-NLS-1$
+		"org.apache.jmeter.", // $NON-NLS-1$
+		"org.apache.jorphan." // $NON-NLS-1$
+	};
+
+	private static final ConcurrentHashMap<Class<?>, AmfTypeDescriptor> BY_CLASS =
+		new ConcurrentHashMap<Class<?>, AmfTypeDescriptor>();
+
+	private static final ConcurrentHashMap<String, AmfTypeDescriptor> BY_NAME =
+		new ConcurrentHashMap<String, AmfTypeDescriptor>();
+
+	private final Class<?> type;
+
+	private final PropertyProxy proxy;
+
+	private final boolean bean;
+
+	// Set from the first instance, the bean proxy needs one to list the properties
+	private volatile Accessors accessors;
+
+	private AmfTypeDescriptor(Class<?> type) {
+		this.type = type;
+		this.proxy = PropertyProxyRegistry.getRegistry().getProxyAndRegister(type);
+		this.bean = proxy != null && proxy.getClass() == BeanProxy.class
+			&& ((BeanProxy) proxy).getDescriptor() == null;
+	}
+
+	/**
+	 * @param type
+	 * @return true if the class is an application class that can have a descriptor
+	 */
+	public static boolean isRemotingClass(Class<?> type) {
+		if (type.isArray() || type.isPrimitive() || type.isInterface() || type.isEnum()
+				|| Modifier.isAbstract(type.getModifiers()) || Proxy.isProxyClass(type)) {
+			return false;
+		}
+		if (type.getEnclosingClass() != null && !Modifier.isStatic(type.getModifiers())) {
+			// Inner, local and anonymous classes need their outer instance
+			return false;
+		}
+		String name = type.getName();
+		for (int i = 0; i < SYSTEM_PACKAGES.length; i++) {
+			if (name.startsWith(SYSTEM_PACKAGES[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param type
+	 * @return the descriptor of the class, null if it isn't a remoting class
+	 */
+	public static AmfTypeDescriptor forClass(Class<?> type) {
+		AmfTypeDescriptor descriptor = BY_CLASS.get(type);
+		if (descriptor == null) {
+			if (!isRemotingClass(type)) {
+				return null;
+			}
+			descriptor = new AmfTypeDescriptor(type);
+			AmfTypeDescriptor existing = BY_CLASS.putIfAbsent(type, descriptor);
+			if (existing != null) {
+				descriptor = existing;
+			}
+		}
+		return descriptor;
+	}
+
+	/**
+	 * Resolves a class name sent by the client once, as long as the class loader BlazeDS
+	 * loads it with is the default one
+	 *
+	 * @param className
+	 * @return the descriptor of the class, null if the name isn't one of a remoting
+	 * class that could be loaded, in which case BlazeDS resolves it as usual
+	 */
+	static AmfTypeDescriptor forClassName(String className) {
+		if (TypeMarshallingContext.getTypeMarshallingContext().getClassLoader() != null) {
+			return null;
+		}
+		AmfTypeDescriptor descriptor = BY_NAME.get(className);
+		if (descriptor == null) {
+			for (int i = 0; i < SYSTEM_PACKAGES.length; i++) {
+				if (className.startsWith(SYSTEM_PACKAGES[i])) {
+					return null;
+				}
+			}
+			Class<?> type;
+			try {
+				type = AbstractProxy.getClassFromClassName(className, false);
+			} catch (MessageException e) {
+				// Missing classes are left to BlazeDS's rules
+				return null;
+			}
+			descriptor = forClass(type);
+			if (descriptor == null) {
+				return null;
+			}
+			BY_NAME.putIfAbsent(className, descriptor);
+		}
+		return descriptor;
+	}
+
+	/**
+	 * @return the class described
+	 */
+	public Class<?> getType() {
+		return type;
+	}
+
+	/**
+	 * @return the proxy BlazeDS has registered for the class, null if it has none
+	 */
+	public PropertyProxy getProxy() {
+		return proxy;
+	}
+
+	/**
+	 * Creates an instance the way the proxy would
+	 *
+	 * @param className the name the instance was asked for by
+	 * @return the new instance
+	 */
+	Object newInstance(String className) {
+		if (proxy == null || bean) {
+			// What AbstractProxy does, without resolving the name again
+			return ClassUtil.createDefaultInstance(type, null);
+		}
+		return proxy.createInstance(className);
+	}
+
+	/**
+	 * Sets a property through its write accessor, converting the value to the
+	 * property's type as BeanProxy does
+	 *
+	 * @param instance
+	 * @param name
+	 * @param value
+	 * @return false if the proxy has to set the property, which is then left as it was
+	 */
+	boolean setValue(Object instance, String name, Object value) {
+		return bean && getAccessors(instance).write(instance, name, value);
+	}
+
+	/**
+	 * @param instance
+	 * @return the names of the properties the proxy lists for the instance, in order,
+	 * null if they have to be asked of the proxy
+	 */
+	String[] getPropertyNames(Object instance) {
+		return bean ? getAccessors(instance).names : null;
+	}
+
+	/**
+	 * Reads a property through its read accessor, falling back on the proxy when
+	 * the accessor can't read it so errors are reported as they would be
+	 *
+	 * @param instance
+	 * @param index of the property in {@link #getPropertyNames(Object)}
+	 * @return the value
+	 */
+	Object getValue(Object instance, int index) {
+		Accessors all = getAccessors(instance);
+		if (all.isRead(index)) {
+			try {
+				return all.read(instance, index);
+			} catch (Exception e) {
+				// Read again by the proxy below
+			}
+		}
+		return proxy.getValue(instance, all.names[index]);
+	}
+
+	private Accessors getAccessors(Object instance) {
+		Accessors current = accessors;
+		if (current == null) {
+			// Threads racing here build the same thing
+			current = new Accessors(proxy, instance);
+			accessors = current;
+		}
+		return current;
+	}
+
+	/*
+	 * The properties of a bean as BeanProxy has them for the class. It is a bean proxy
+	 * itself only to reach them.
+	 */
+	private static final class Accessors extends BeanProxy {
+		private static final long serialVersionUID = 1L;
+
+		final String[] names;
+		private final BeanProperty[] properties;
+		private final Map<?, ?> byName;
+
+		Accessors(PropertyProxy proxy, Object instance) {
+			byName = getBeanProperties(instance);
+			List<?> list = proxy.getPropertyNames(instance);
+			int count = list != null ? list.size() : 0;
+			names = new String[count];
+			properties = new BeanProperty[count];
+			for (int i = 0; i < count; i++) {
+				names[i] = (String) list.get(i);
+				properties[i] = get(names[i]);
+			}
+		}
+
+		boolean isRead(int index) {
+			return properties[index] != null && properties[index].isRead();
+		}
+
+		Object read(Object instance, int index) throws Exception {
+			return properties[index].get(instance);
+		}
+
+		boolean write(Object instance, String name, Object value) {
+			BeanProperty property = get(name);
+			if (property == null || !property.isWrite()) {
+				return false;
+			}
+			try {
+				property.set(instance, TypeMarshallingContext.getTypeMarshaller().convert(value, property.getType()));
+				return true;
+			} catch (Exception e) {
+				// The proxy reports it as it should
+				return false;
+			}
+		}
+
+		private BeanProperty get(String name) {
+			return byName != null ? (BeanProperty) byName.get(name) : null;
+		}
+	}
+}
@@ -0,0 +1,506 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.extractor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.jmeter.protocol.amf.codec.AmfEventHandler;
+import org.apache.jmeter.protocol.amf.codec.AmfEventReader;
+import org.apache.jmeter.protocol.amf.codec.AmfInput;
+
+/**
+ * A compiled path into an AMF message, e.g. bodies[0].data.body.items[*].id
+ *
+ * The message is read straight from its bytes by an {@link AmfEventReader}.
+ * Only the values along the path are looked at, everything else is skipped
+ * without being decoded, and the walk stops as soon as no more matches are
+ * possible. AMF3 strings are only decoded once they match, and property names
+ * sent by reference are decoded once per message body.
+ *
+ * Paths start at the ActionMessage, whose children are version, headers and
+ * bodies. Headers have name, mustUnderstand and data, bodies targetURI,
+ * responseURI and data. Each step after that selects a property by name
+ * (.name or ['name']), an element by index ([0]) or all children (* or [*]).
+ * Flex collections and proxies are transparent, so items[0] selects the first
+ * element of an ArrayCollection. The small Flex messages expose their fields
+ * under the usual names (body, clientId, messageId, correlationId...).
+ *
+ * Only scalar values match: strings, numbers, booleans, dates (as milliseconds)
+ * and XML. Null and undefined match as an empty String. References are followed,
+ * except from an object back into itself.
+ */
+public class AmfPath {
+
+	private static final int NAME = 0;
+	private static final int INDEX = 1;
+	private static final int ANY = 2;
+
+	private static final String BYTES_SUFFIX = "Bytes"; // $NON-NLS-1$
+
+	private final String path;
+
+	private final Step[] steps;
+
+	// Steps before this one select at most a single value
+	private final int firstWildcard;
+
+	/**
+	 * @param path
+	 * @throws IllegalArgumentException if the path can't be parsed
+	 */
+	public AmfPath(String path) {
+		this.path = path;
+		this.steps = parse(path);
+
+		int wildcard = steps.length;
+		for (int i = 0; i < steps.length; i++) {
+			if (steps[i].type == ANY) {
+				wildcard = i;
+				break;
+			}
+		}
+		this.firstWildcard = wildcard;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return true if the path has no wildcards and can match at most once
+	 */
+	public boolean isSingleValued() {
+		return firstWildcard == steps.length;
+	}
+
+	/**
+	 * @param amf complete AMF message
+	 * @return every matching value, in stream order
+	 * @throws IOException if the message can't be read
+	 */
+	public List<String> select(byte[] amf) throws IOException {
+		return select(amf, 0);
+	}
+
+	/**
+	 * @param amf complete AMF message
+	 * @param limit maximum number of values to return, 0 for all
+	 * @return matching values, in stream order
+	 * @throws IOException if the message can't be read
+	 */
+	public List<String> select(byte[] amf, int limit) throws IOException {
+		AmfEventReader reader = new AmfEventReader(amf);
+		reader.setStringViews(true);
+		Walk walk = new Walk(reader, limit);
+		reader.read(walk);
+		return walk.results;
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+	/*
+	 * Parsing
+	 */
+
+	private static Step[] parse(String path) {
+		List<Step> steps = new ArrayList<Step>();
+		int len = path.length();
+		int i = 0;
+
+		while (i < len) {
+			char c = path.charAt(i);
+			if (c == '[') {
+				int close = path.indexOf(']', i);
+				if (close < 0) {
+					throw new IllegalArgumentException("Missing ] in AMF path: " + path);
+				}
+				steps.add(parseBracket(path, path.substring(i + 1, close).trim()));
+				i = close + 1;
+			}
+			else {
+				if (c == '.') {
+					if (steps.isEmpty()) {
+						throw new IllegalArgumentException("AMF path can't start with '.': " + path);
+					}
+					i++;
+				}
+				int end = i;
+				while (end < len && path.charAt(end) != '.' && path.charAt(end) != '[') {
+					end++;
+				}
+				String name = path.substring(i, end).trim();
+				if (name.length() == 0) {
+					throw new IllegalArgumentException("Empty name in AMF path: " + path);
+				}
+				steps.add("*".equals(name) ? new Step(ANY, null, -1) : new Step(NAME, name, -1));
+				i = end;
+			}
+		}
+
+		if (steps.isEmpty()) {
+			throw new IllegalArgumentException("Empty AMF path");
+		}
+		return steps.toArray(new Step[steps.size()]);
+	}
+
+	private static Step parseBracket(String path, String content) {
+		if ("*".equals(content)) {
+			return new Step(ANY, null, -1);
+		}
+		if (content.length() >= 2 && (content.charAt(0) == '\'' || content.charAt(0) == '"')
+				&& content.charAt(content.length() - 1) == content.charAt(0)) {
+			return new Step(NAME, content.substring(1, content.length() - 1), -1);
+		}
+		try {
+			int index = Integer.parseInt(content);
+			if (index >= 0) {
+				return new Step(INDEX, String.valueOf(index), index);
+			}
+		} catch (NumberFormatException e) {
+			// Fall through
+		}
+		throw new IllegalArgumentException("Invalid index [" + content + "] in AMF path: " + path);
+	}
+
+	/**
+	 * Selects a property by name, an element by index or anything
+	 */
+	private static class Step {
+		private final int type;
+		private final String name; // Decimal form of the index for INDEX, matches numeric keys
+		private final int index;
+
+		Step(int type, String name, int index) {
+			this.type = type;
+			this.name = name;
+			this.index = index;
+		}
+
+		boolean matches(String childName, int childIndex) {
+			switch (type) {
+				case ANY:
+					return true;
+				case INDEX:
+					return childIndex == index || name.equals(childName);
+				default:
+					return name.equals(childName);
+			}
+		}
+	}
+
+	/**
+	 * A single pass over a message. Depth is the number of steps already matched
+	 * by the value being read, which is a match when depth reaches the path length.
+	 * Each object or array being read has a frame with the depth of its children.
+	 */
+	private class Walk implements AmfEventHandler {
+		private final AmfEventReader reader;
+		private final int limit;
+		private final List<String> results = new ArrayList<String>();
+
+		// Depth of the next value
+		private int depth;
+
+		// The next value is the id of a Flex message sent as bytes
+		private boolean uuid;
+
+		private int[] frameDepths = new int[16];
+		private int[] frameFlags = new int[16];
+		private int frameCount;
+
+		Walk(AmfEventReader reader, int limit) {
+			this.reader = reader;
+			this.limit = limit;
+		}
+
+		/*
+		 * ActionMessage envelope, the message itself is the outermost frame
+		 */
+
+		public void startMessage(int version) {
+			scalarChild(0, "version", Integer.toString(version)); // $NON-NLS-1$
+			push(0, 0);
+		}
+
+		public boolean startHeader(int index, String name, boolean mustUnderstand) {
+			frameFlags[0] = 0;
+			if (!matches(0, "headers", -1) || !matches(1, null, index)) { // $NON-NLS-1$
+				return false;
+			}
+			scalarChild(2, "name", name); // $NON-NLS-1$
+			scalarChild(2, "mustUnderstand", String.valueOf(mustUnderstand)); // $NON-NLS-1$
+			return data();
+		}
+
+		public void endHeader() {
+			// Handled when the value ends
+		}
+
+		public boolean startBody(int index, String targetURI, String responseURI) {
+			if (matches(0, "headers", -1) && 0 < firstWildcard) { // $NON-NLS-1$
+				reader.stop();
+				return false;
+			}
+			frameFlags[0] = 0;
+			if (!matches(0, "bodies", -1) || !matches(1, null, index)) { // $NON-NLS-1$
+				return false;
+			}
+			scalarChild(2, "targetURI", targetURI); // $NON-NLS-1$
+			scalarChild(2, "responseURI", responseURI); // $NON-NLS-1$
+			return data();
+		}
+
+		public void endBody() {
+			// Handled when the value ends
+		}
+
+		public void endMessage() {
+			// Nothing left to match
+		}
+
+		/*
+		 * Value of the header or body that matched
+		 */
+		private boolean data() {
+			if (reader.isStopped()) {
+				return false;
+			}
+			if (!matches(2, "data", -1)) { // $NON-NLS-1$
+				if (1 < firstWildcard) {
+					reader.stop();
+				}
+				return false;
+			}
+			if (1 < firstWildcard) {
+				frameFlags[0] = STOP_AFTER_CHILD;
+			}
+			depth = 3;
+			uuid = false;
+			return true;
+		}
+
+		/*
+		 * Envelope fields, which aren't AMF values
+		 */
+		private void scalarChild(int depth, String name, String value) {
+			if (!reader.isStopped() && depth == steps.length - 1 && steps[depth].matches(name, -1)) {
+				add(value);
+				if (depth < firstWildcard) {
+					reader.stop();
+				}
+			}
+		}
+
+		/*
+		 * Values
+		 */
+
+		public boolean startObject(String className) {
+			if (depth == steps.length) {
+				// Not a scalar
+				completed();
+				return false;
+			}
+			int flags = 0;
+			if (AmfInput.isWrapper(className)) {
+				flags = WRAPPER;
+			}
+			else if (isMessage(className)) {
+				flags = MESSAGE;
+			}
+			push(depth, flags);
+			return true;
+		}
+
+		public boolean property(String name) {
+			int frame = frameCount - 1;
+			int parentDepth = frameDepths[frame];
+			uuid = false;
+
+			if ((frameFlags[frame] & WRAPPER) != 0 && SOURCE.equals(name)) {
+				// Collections and proxies are transparent
+				depth = parentDepth;
+				return true;
+			}
+			if ((frameFlags[frame] & MESSAGE) != 0 && name != null && name.endsWith(BYTES_SUFFIX)) {
+				// clientIdBytes, messageIdBytes and correlationIdBytes hold the id as a 16 byte UUID
+				String idName = name.substring(0, name.length() - BYTES_SUFFIX.length());
+				if (parentDepth == steps.length - 1 && matches(parentDepth, idName, -1)) {
+					child(parentDepth);
+					uuid = true;
+					return true;
+				}
+			}
+			if (!matches(parentDepth, name, -1)) {
+				return false;
+			}
+			child(parentDepth);
+			return true;
+		}
+
+		public void endObject() {
+			frameCount--;
+			completed();
+		}
+
+		public boolean startArray(int length) {
+			if (depth == steps.length) {
+				completed();
+				return false;
+			}
+			push(depth, 0);
+			return true;
+		}
+
+		public boolean element(int index) {
+			int parentDepth = frameDepths[frameCount - 1];
+			uuid = false;
+			if (!matches(parentDepth, null, index)) {
+				return false;
+			}
+			child(parentDepth);
+			return true;
+		}
+
+		public void endArray() {
+			frameCount--;
+			completed();
+		}
+
+		public void value(Object value) {
+			if (depth == steps.length) {
+				String text = uuid && value instanceof byte[] ? formatUuid((byte[]) value) : format(value);
+				if (text != null) {
+					add(text);
+				}
+			}
+			completed();
+		}
+
+		public void reference(int levels) {
+			// Objects aren't followed back into themselves
+			completed();
+		}
+
+		/*
+		 * Helpers
+		 */
+
+		private boolean matches(int depth, String name, int index) {
+			return depth < steps.length && steps[depth].matches(name, index);
+		}
+
+		private void add(String value) {
+			results.add(value);
+			if (limit > 0 && results.size() >= limit) {
+				reader.stop();
+			}
+		}
+
+		/*
+		 * A child of the current frame matched, nothing after it can match if
+		 * its step selects a single value
+		 */
+		private void child(int parentDepth) {
+			if (parentDepth < firstWildcard) {
+				frameFlags[frameCount - 1] |= STOP_AFTER_CHILD;
+			}
+			depth = parentDepth + 1;
+		}
+
+		/*
+		 * The value just read, whether it was a scalar, an object or an array, has ended
+		 */
+		private void completed() {
+			if ((frameFlags[frameCount - 1] & STOP_AFTER_CHILD) != 0) {
+				reader.stop();
+			}
+		}
+
+		private void push(int childDepth, int flags) {
+			if (frameCount == frameDepths.length) {
+				int[] depths = new int[frameCount * 2];
+				System.arraycopy(frameDepths, 0, depths, 0, frameCount);
+				frameDepths = depths;
+				int[] grown = new int[frameCount * 2];
+				System.arraycopy(frameFlags, 0, grown, 0, frameCount);
+				frameFlags = grown;
+			}
+			frameDepths[frameCount] = childDepth;
+			frameFlags[frameCount] = flags;
+			frameCount++;
+		}
+	}
+
+	// Frame flags
+	private static final int STOP_AFTER_CHILD = 1;
+	private static final int WRAPPER = 2;
+	private static final int MESSAGE = 4;
+
+	private static final String SOURCE = "source"; // $NON-NLS-1$
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray(); // $NON-NLS-1$
+
+	private static boolean isMessage(String className) {
+		return AmfInput.ASYNC_MESSAGE_EXT.equals(className) || AmfInput.ACKNOWLEDGE_MESSAGE_EXT.equals(className)
+			|| AmfInput.COMMAND_MESSAGE_EXT.equals(className);
+	}
+
+	/*
+	 * Scalars as text, null for byte arrays
+	 */
+	private static String format(Object value) {
+		if (value == null) {
+			return ""; // $NON-NLS-1$
+		}
+		if (value instanceof CharSequence) {
+			// A String or an AmfString view, decoded now
+			return value.toString();
+		}
+		if (value instanceof Double) {
+			return AmfEventReader.formatNumber(((Double) value).doubleValue());
+		}
+		if (value instanceof Date) {
+			return Long.toString(((Date) value).getTime());
+		}
+		if (value instanceof byte[]) {
+			return null;
+		}
+		return value.toString();
+	}
+
+	/*
+	 * Format a 16 byte array the way BlazeDS formats UUIDs
+	 */
+	private static String formatUuid(byte[] bytes) {
+		int length = bytes.length;
+		StringBuilder sb = new StringBuilder(36);
+		for (int i = 0; i < length; i++) {
+			if (length == 16 && (i == 4 || i == 6 || i == 8 || i == 10)) {
+				sb.append('-');
+			}
+			sb.append(HEX[(bytes[i] >> 4) & 0x0F]).append(HEX[bytes[i] & 0x0F]);
+		}
+		return sb.toString();
+	}
+}
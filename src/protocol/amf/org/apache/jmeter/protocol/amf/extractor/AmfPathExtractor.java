@@ -0,0 +1,226 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.extractor;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.jmeter.processor.PostProcessor;
+import org.apache.jmeter.protocol.amf.util.LazyAmfResponse;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.testelement.AbstractScopedTestElement;
+import org.apache.jmeter.threads.JMeterContext;
+import org.apache.jmeter.threads.JMeterVariables;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Post-processor that extracts values from an AMF response by path, reading
+ * the AMF directly instead of converting the response to XML first.
+ *
+ * Variables are set the same way as the Regular Expression Extractor: match
+ * number 0 picks a random match, a positive number that match, and a negative
+ * number stores every match as refName_1...refName_n with the count in
+ * refName_matchNr. With the variable scope, the variable must hold an AMF
+ * response stored with the AMF Request "Decode on demand" option.
+ */
+public class AmfPathExtractor extends AbstractScopedTestElement implements PostProcessor, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LoggingManager.getLoggerForClass();
+
+	public static final String REFNAME = "AmfPathExtractor.refname"; // $NON-NLS-1$
+
+	public static final String PATH = "AmfPathExtractor.path"; // $NON-NLS-1$
+
+	public static final String DEFAULT = "AmfPathExtractor.default"; // $NON-NLS-1$
+
+	public static final String MATCH_NUMBER = "AmfPathExtractor.match_number"; // $NON-NLS-1$
+
+	private static final String AMF_CONTENT_TYPE = "application/x-amf"; // $NON-NLS-1$
+
+	private static final String REF_MATCH_NR = "_matchNr"; // $NON-NLS-1$
+
+	private static final String UNDERSCORE = "_"; // $NON-NLS-1$
+
+	private static final Random random = new Random();
+
+	// Compiled on first use, AmfPath is immutable so clones share it
+	private transient AmfPath compiledPath;
+
+	// Last path that failed to compile, so the error is only logged once
+	private transient String invalidPath;
+
+	/**
+	 * Extract values from the previous result(s) into variables
+	 */
+	public void process() {
+		JMeterContext context = getThreadContext();
+		SampleResult previousResult = context.getPreviousResult();
+		if (previousResult == null) {
+			return;
+		}
+
+		JMeterVariables vars = context.getVariables();
+		String refName = getRefName();
+		int matchNumber = getMatchNumber();
+
+		String defaultValue = getDefaultValue();
+		if (defaultValue.length() > 0) {
+			vars.put(refName, defaultValue);
+		}
+
+		AmfPath path = getCompiledPath();
+		if (path == null) {
+			return;
+		}
+
+		// Only the nth match is needed unless picking at random or storing them all
+		int limit = matchNumber > 0 ? matchNumber : 0;
+		List<String> matches = new ArrayList<String>();
+
+		try {
+			if (isScopeVariable()) {
+				Object value = vars.getObject(getVariableName());
+				if (value instanceof LazyAmfResponse) {
+					matches.addAll(path.select(((LazyAmfResponse) value).getAmf(), limit));
+				}
+				else if (value != null) {
+					log.warn("Variable " + getVariableName() + " doesn't hold a raw AMF response, enable Decode on demand on the AMF Request");
+				}
+			}
+			else {
+				List<SampleResult> samples = getSampleList(previousResult);
+				for (int i = 0; i < samples.size(); i++) {
+					SampleResult sample = samples.get(i);
+					if (!isAmf(sample)) {
+						continue;
+					}
+					int remaining = limit > 0 ? limit - matches.size() : 0;
+					matches.addAll(path.select(sample.getResponseData(), remaining));
+					if (limit > 0 && matches.size() >= limit) {
+						break;
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Unable to read AMF response for " + getName() + ": " + e.getMessage());
+		}
+
+		if (matchNumber >= 0) {
+			String value = null;
+			if (matchNumber == 0 && matches.size() > 0) {
+				value = matches.get(random.nextInt(matches.size()));
+			}
+			else if (matchNumber > 0 && matches.size() >= matchNumber) {
+				value = matches.get(matchNumber - 1);
+			}
+			if (value != null) {
+				vars.put(refName, value);
+			}
+		}
+		else {
+			int prevCount = 0;
+			String prevString = vars.get(refName + REF_MATCH_NR);
+			if (prevString != null) {
+				vars.remove(refName + REF_MATCH_NR);
+				try {
+					prevCount = Integer.parseInt(prevString);
+				} catch (NumberFormatException e) {
+					log.warn("Could not parse number: '" + prevString + "'");
+				}
+			}
+
+			vars.put(refName + REF_MATCH_NR, Integer.toString(matches.size()));
+			for (int i = 0; i < matches.size(); i++) {
+				vars.put(refName + UNDERSCORE + (i + 1), matches.get(i));
+			}
+			for (int i = matches.size() + 1; i <= prevCount; i++) {
+				vars.remove(refName + UNDERSCORE + i);
+			}
+		}
+	}
+
+	private AmfPath getCompiledPath() {
+		String path = getPath();
+		if (compiledPath == null || !compiledPath.getPath().equals(path)) {
+			compiledPath = null;
+			if (path.equals(invalidPath)) {
+				return null;
+			}
+			try {
+				compiledPath = new AmfPath(path);
+			} catch (IllegalArgumentException e) {
+				log.error("Invalid AMF path in " + getName() + ": " + e.getMessage());
+				invalidPath = path;
+			}
+		}
+		return compiledPath;
+	}
+
+	private static boolean isAmf(SampleResult sample) {
+		String contentType = sample.getContentType();
+		return contentType != null && contentType.startsWith(AMF_CONTENT_TYPE) && sample.getResponseData().length > 0;
+	}
+
+	@Override
+	public Object clone() {
+		AmfPathExtractor cloned = (AmfPathExtractor) super.clone();
+		cloned.compiledPath = compiledPath;
+		return cloned;
+	}
+
+	public void setRefName(String refName) {
+		setProperty(REFNAME, refName);
+	}
+
+	public String getRefName() {
+		return getPropertyAsString(REFNAME);
+	}
+
+	public void setPath(String path) {
+		setProperty(PATH, path);
+	}
+
+	public String getPath() {
+		return getPropertyAsString(PATH);
+	}
+
+	public void setDefaultValue(String defaultValue) {
+		setProperty(DEFAULT, defaultValue);
+	}
+
+	public String getDefaultValue() {
+		return getPropertyAsString(DEFAULT);
+	}
+
+	public void setMatchNumber(String matchNumber) {
+		setProperty(MATCH_NUMBER, matchNumber);
+	}
+
+	public int getMatchNumber() {
+		return getPropertyAsInt(MATCH_NUMBER);
+	}
+
+	public String getMatchNumberAsString() {
+		return getPropertyAsString(MATCH_NUMBER);
+	}
+}
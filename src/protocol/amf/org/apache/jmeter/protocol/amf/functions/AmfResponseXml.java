@@ -0,0 +1,101 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.functions;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.jmeter.engine.util.CompoundVariable;
+import org.apache.jmeter.functions.AbstractFunction;
+import org.apache.jmeter.functions.InvalidVariableException;
+import org.apache.jmeter.protocol.amf.codec.AmfSelection;
+import org.apache.jmeter.protocol.amf.util.AmfResources;
+import org.apache.jmeter.protocol.amf.util.LazyAmfResponse;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.samplers.Sampler;
+import org.apache.jmeter.threads.JMeterVariables;
+
+/**
+ * Reads an AMF response variable as XML: ${__AmfResponseXml(varName)}
+ * 
+ * Response variables set to decode on demand hold the raw response rather than
+ * a String, so they must be read through this function (or getObject in scripts).
+ * The response is decoded the first time it's read after each sample.
+ * 
+ * An optional selection decodes only part of the response, the rest is skipped:
+ * ${__AmfResponseXml(varName, bodies=1; headers=none)}. See {@link AmfSelection}.
+ */
+public class AmfResponseXml extends AbstractFunction {
+	
+	private static final String KEY = "__AmfResponseXml"; // $NON-NLS-1$
+	
+	private static final List<String> desc = new LinkedList<String>();
+	
+	static {
+		desc.add(AmfResources.getResString("res_var")); // $NON-NLS-1$
+		desc.add(AmfResources.getResString("res_var_selection")); // $NON-NLS-1$
+	}
+	
+	private Object[] values;
+	
+	/** {@inheritDoc} */
+	@Override
+	public String execute(SampleResult previousResult, Sampler currentSampler) throws InvalidVariableException {
+		String varName = ((CompoundVariable) values[0]).execute().trim();
+		
+		JMeterVariables vars = getVariables();
+		if (vars == null) {
+			return "";
+		}
+		
+		AmfSelection selection = AmfSelection.ALL;
+		if (values.length > 1) {
+			String text = ((CompoundVariable) values[1]).execute().trim();
+			try {
+				selection = AmfSelection.parse(text);
+			} catch (IllegalArgumentException e) {
+				throw new InvalidVariableException(e.getMessage());
+			}
+		}
+		
+		Object value = vars.getObject(varName);
+		if (value instanceof LazyAmfResponse) {
+			return ((LazyAmfResponse) value).getXml(selection);
+		}
+		
+		return value != null ? value.toString() : "";
+	}
+	
+	/** {@inheritDoc} */
+	@Override
+	public void setParameters(Collection<CompoundVariable> parameters) throws InvalidVariableException {
+		checkParameterCount(parameters, 1, 2);
+		values = parameters.toArray();
+	}
+	
+	/** {@inheritDoc} */
+	@Override
+	public String getReferenceKey() {
+		return KEY;
+	}
+	
+	/** {@inheritDoc} */
+	public List<String> getArgumentDesc() {
+		return desc;
+	}
+}
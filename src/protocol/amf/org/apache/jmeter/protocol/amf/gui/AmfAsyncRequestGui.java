@@ -0,0 +1,116 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.gui;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+
+import javax.swing.JLabel;
+import javax.swing.JTextField;
+
+import org.apache.jmeter.gui.util.HorizontalPanel;
+import org.apache.jmeter.protocol.amf.sampler.AmfAsyncRequest;
+import org.apache.jmeter.protocol.amf.util.AmfResources;
+import org.apache.jmeter.testelement.TestElement;
+
+/**
+ * GUI for the AMF Async Request, an AMF Request with the arrival rate and the
+ * number of requests each thread keeps in flight
+ */
+public class AmfAsyncRequestGui extends AmfRequestGui {
+
+	private static final long serialVersionUID = 1L;
+
+	private JTextField arrivalRate;
+
+	private JTextField maxInFlight;
+
+	public AmfAsyncRequestGui() {
+		super();
+		init();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getStaticLabel() {
+		return AmfResources.getResString("amf_async_request_title"); // $NON-NLS-1$
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void configure(TestElement element) {
+		super.configure(element);
+		arrivalRate.setText(element.getPropertyAsString(AmfAsyncRequest.ARRIVAL_RATE, "0")); // $NON-NLS-1$
+		maxInFlight.setText(element.getPropertyAsString(AmfAsyncRequest.MAX_IN_FLIGHT,
+				String.valueOf(AmfAsyncRequest.DEFAULT_MAX_IN_FLIGHT)));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public TestElement createTestElement() {
+		AmfAsyncRequest sampler = new AmfAsyncRequest();
+		modifyTestElement(sampler);
+		return sampler;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void modifyTestElement(TestElement element) {
+		super.modifyTestElement(element);
+		element.setProperty(AmfAsyncRequest.ARRIVAL_RATE, arrivalRate.getText(), "0"); // $NON-NLS-1$
+		element.setProperty(AmfAsyncRequest.MAX_IN_FLIGHT, maxInFlight.getText(),
+				String.valueOf(AmfAsyncRequest.DEFAULT_MAX_IN_FLIGHT));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clearGui() {
+		super.clearGui();
+		arrivalRate.setText("0"); // $NON-NLS-1$
+		maxInFlight.setText(String.valueOf(AmfAsyncRequest.DEFAULT_MAX_IN_FLIGHT));
+	}
+
+	private void init() {
+		HorizontalPanel asyncPanel = new HorizontalPanel();
+
+		asyncPanel.add(new JLabel(AmfResources.getResString("amf_async_arrival_rate"))); // $NON-NLS-1$
+		arrivalRate = new JTextField("0", 6); // $NON-NLS-1$
+		arrivalRate.setToolTipText(AmfResources.getResString("amf_async_arrival_rate_tip")); // $NON-NLS-1$
+		arrivalRate.setMaximumSize(new Dimension(80, 20));
+		asyncPanel.add(arrivalRate);
+
+		asyncPanel.add(new JLabel(AmfResources.getResString("amf_async_max_in_flight"))); // $NON-NLS-1$
+		maxInFlight = new JTextField(String.valueOf(AmfAsyncRequest.DEFAULT_MAX_IN_FLIGHT), 6);
+		maxInFlight.setToolTipText(AmfResources.getResString("amf_async_max_in_flight_tip")); // $NON-NLS-1$
+		maxInFlight.setMaximumSize(new Dimension(80, 20));
+		asyncPanel.add(maxInFlight);
+
+		asyncPanel.add(new JLabel(AmfResources.getResString("amf_async_dropped"))); // $NON-NLS-1$
+
+		add(asyncPanel, BorderLayout.SOUTH);
+	}
+}
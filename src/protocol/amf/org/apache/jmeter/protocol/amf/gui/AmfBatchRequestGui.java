@@ -0,0 +1,128 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.gui;
+
+import java.awt.BorderLayout;
+
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+
+import org.apache.jmeter.control.gui.AbstractControllerGui;
+import org.apache.jmeter.gui.util.HorizontalPanel;
+import org.apache.jmeter.gui.util.VerticalPanel;
+import org.apache.jmeter.protocol.amf.sampler.AmfBatchRequest;
+import org.apache.jmeter.protocol.amf.sampler.AmfRequest;
+import org.apache.jmeter.protocol.amf.util.AmfResources;
+import org.apache.jmeter.protocol.http.config.gui.UrlConfigGui;
+import org.apache.jmeter.protocol.http.sampler.HTTPSamplerFactory;
+import org.apache.jmeter.testelement.TestElement;
+
+/**
+ * GUI for the AMF Batch Request, a controller that sends the AMF Requests it
+ * contains in one HTTP request
+ */
+public class AmfBatchRequestGui extends AbstractControllerGui {
+
+	private static final long serialVersionUID = 1L;
+
+	private UrlConfigGui urlConfigGui;
+
+	private JComboBox implementationCombo;
+
+	public AmfBatchRequestGui() {
+		init();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getStaticLabel() {
+		return AmfResources.getResString("amf_batch_request_title"); // $NON-NLS-1$
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getLabelResource() {
+		return "";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void configure(TestElement element) {
+		super.configure(element);
+		urlConfigGui.configure(element);
+		implementationCombo.setSelectedItem(element.getPropertyAsString(AmfRequest.IMPLEMENTATION, HTTPSamplerFactory.IMPL_HTTP_CLIENT3_1));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public TestElement createTestElement() {
+		AmfBatchRequest batch = new AmfBatchRequest();
+		modifyTestElement(batch);
+		return batch;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void modifyTestElement(TestElement element) {
+		element.clear();
+		urlConfigGui.modifyTestElement(element);
+		super.configureTestElement(element);
+		element.setProperty(AmfRequest.IMPLEMENTATION, String.valueOf(implementationCombo.getSelectedItem()), HTTPSamplerFactory.IMPL_HTTP_CLIENT3_1);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clearGui() {
+		super.clearGui();
+		urlConfigGui.clear();
+		implementationCombo.setSelectedIndex(0);
+	}
+
+	private void init() {
+		setLayout(new BorderLayout(0, 5));
+		setBorder(makeBorder());
+
+		add(makeTitlePanel(), BorderLayout.NORTH);
+
+		VerticalPanel centerPanel = new VerticalPanel();
+		centerPanel.add(new JLabel(AmfResources.getResString("amf_batch_request_help"))); // $NON-NLS-1$
+
+		implementationCombo = new JComboBox(new String[] {
+			HTTPSamplerFactory.IMPL_HTTP_CLIENT3_1,
+			HTTPSamplerFactory.IMPL_HTTP_CLIENT4
+		});
+		implementationCombo.setEditable(false);
+		HorizontalPanel implementationPanel = new HorizontalPanel();
+		implementationPanel.add(new JLabel(AmfResources.getResString("amf_implementation"))); // $NON-NLS-1$
+		implementationPanel.add(implementationCombo);
+		centerPanel.add(implementationPanel);
+
+		urlConfigGui = new UrlConfigGui(false, false, false);
+		centerPanel.add(urlConfigGui);
+
+		add(centerPanel, BorderLayout.CENTER);
+	}
+}
@@ -0,0 +1,112 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.gui;
+
+import java.awt.BorderLayout;
+
+import org.apache.jmeter.gui.util.VerticalPanel;
+import org.apache.jmeter.protocol.amf.reporters.AmfLatencyListener;
+import org.apache.jmeter.protocol.amf.util.AmfResources;
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jmeter.visualizers.gui.AbstractListenerGui;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+/**
+ * GUI for the AMF Latency Histogram listener
+ */
+public class AmfLatencyListenerGui extends AbstractListenerGui {
+
+	private static final long serialVersionUID = 1L;
+
+	private JLabeledTextField filenameField;
+
+	private JLabeledTextField intervalField;
+
+	public AmfLatencyListenerGui() {
+		init();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getStaticLabel() {
+		return AmfResources.getResString("amf_latency_listener_title"); // $NON-NLS-1$
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getLabelResource() {
+		return "";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void configure(TestElement element) {
+		super.configure(element);
+		AmfLatencyListener listener = (AmfLatencyListener) element;
+		filenameField.setText(listener.getFilename());
+		intervalField.setText(listener.getIntervalAsString());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public TestElement createTestElement() {
+		AmfLatencyListener listener = new AmfLatencyListener();
+		modifyTestElement(listener);
+		return listener;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void modifyTestElement(TestElement element) {
+		super.configureTestElement(element);
+		AmfLatencyListener listener = (AmfLatencyListener) element;
+		listener.setFilename(filenameField.getText());
+		listener.setInterval(intervalField.getText());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clearGui() {
+		super.clearGui();
+		filenameField.setText(""); // $NON-NLS-1$
+		intervalField.setText(String.valueOf(AmfLatencyListener.DEFAULT_INTERVAL));
+	}
+
+	private void init() {
+		setLayout(new BorderLayout());
+		setBorder(makeBorder());
+		add(makeTitlePanel(), BorderLayout.NORTH);
+
+		filenameField = new JLabeledTextField(AmfResources.getResString("amf_latency_filename")); // $NON-NLS-1$
+		intervalField = new JLabeledTextField(AmfResources.getResString("amf_latency_interval")); // $NON-NLS-1$
+		intervalField.setToolTipText(AmfResources.getResString("amf_latency_interval_tip")); // $NON-NLS-1$
+
+		VerticalPanel panel = new VerticalPanel();
+		panel.add(filenameField);
+		panel.add(intervalField);
+		add(panel, BorderLayout.CENTER);
+	}
+}
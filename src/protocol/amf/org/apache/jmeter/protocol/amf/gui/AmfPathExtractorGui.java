@@ -0,0 +1,134 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.gui;
+
+import java.awt.BorderLayout;
+
+import javax.swing.Box;
+
+import org.apache.jmeter.gui.util.VerticalPanel;
+import org.apache.jmeter.processor.gui.AbstractPostProcessorGui;
+import org.apache.jmeter.protocol.amf.extractor.AmfPathExtractor;
+import org.apache.jmeter.protocol.amf.util.AmfResources;
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+/**
+ * GUI for the AMF Path Extractor post-processor
+ */
+public class AmfPathExtractorGui extends AbstractPostProcessorGui {
+
+	private static final long serialVersionUID = 1L;
+
+	private JLabeledTextField refNameField;
+
+	private JLabeledTextField pathField;
+
+	private JLabeledTextField matchNumberField;
+
+	private JLabeledTextField defaultField;
+
+	public AmfPathExtractorGui() {
+		init();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getStaticLabel() {
+		return AmfResources.getResString("amf_path_extractor_title"); // $NON-NLS-1$
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getLabelResource() {
+		return "";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void configure(TestElement element) {
+		super.configure(element);
+		AmfPathExtractor extractor = (AmfPathExtractor) element;
+		showScopeSettings(extractor, true);
+		refNameField.setText(extractor.getRefName());
+		pathField.setText(extractor.getPath());
+		matchNumberField.setText(extractor.getMatchNumberAsString());
+		defaultField.setText(extractor.getDefaultValue());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public TestElement createTestElement() {
+		AmfPathExtractor extractor = new AmfPathExtractor();
+		modifyTestElement(extractor);
+		return extractor;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void modifyTestElement(TestElement element) {
+		super.configureTestElement(element);
+		AmfPathExtractor extractor = (AmfPathExtractor) element;
+		saveScopeSettings(extractor);
+		extractor.setRefName(refNameField.getText());
+		extractor.setPath(pathField.getText());
+		extractor.setMatchNumber(matchNumberField.getText());
+		extractor.setDefaultValue(defaultField.getText());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clearGui() {
+		super.clearGui();
+		refNameField.setText(""); // $NON-NLS-1$
+		pathField.setText(""); // $NON-NLS-1$
+		matchNumberField.setText(""); // $NON-NLS-1$
+		defaultField.setText(""); // $NON-NLS-1$
+	}
+
+	private void init() {
+		setLayout(new BorderLayout());
+		setBorder(makeBorder());
+
+		Box box = Box.createVerticalBox();
+		box.add(makeTitlePanel());
+		box.add(createScopePanel(true));
+		add(box, BorderLayout.NORTH);
+
+		refNameField = new JLabeledTextField(AmfResources.getResString("amf_path_refname")); // $NON-NLS-1$
+		pathField = new JLabeledTextField(AmfResources.getResString("amf_path")); // $NON-NLS-1$
+		pathField.setToolTipText(AmfResources.getResString("amf_path_tip")); // $NON-NLS-1$
+		matchNumberField = new JLabeledTextField(AmfResources.getResString("amf_path_match_number")); // $NON-NLS-1$
+		defaultField = new JLabeledTextField(AmfResources.getResString("amf_path_default")); // $NON-NLS-1$
+
+		VerticalPanel panel = new VerticalPanel();
+		panel.add(refNameField);
+		panel.add(pathField);
+		panel.add(matchNumberField);
+		panel.add(defaultField);
+		add(panel, BorderLayout.CENTER);
+	}
+}
@@ -39,6 +39,7 @@ import org.apache.jmeter.protocol.amf.sampler.AmfRequest;
 import org.apache.jmeter.protocol.amf.sampler.AmfRequestFactory;
 import org.apache.jmeter.protocol.amf.util.AmfResources;
 import org.apache.jmeter.protocol.http.config.gui.UrlConfigGui;
+import org.apache.jmeter.protocol.http.sampler.HTTPSamplerFactory;
 import org.apache.jmeter.samplers.gui.AbstractSamplerGui;
 import org.apache.jmeter.testelement.TestElement;
 import org.apache.jorphan.gui.JLabeledTextArea;
@@ -57,13 +58,35 @@ public class AmfRequestGui extends AbstractSamplerGui {
 	
 	private JComboBox objectEncodingCombo;
 	
+	// Must agree with the order of entries in requestModeCombo
+	private static final String[] REQUEST_MODES = {
+		AmfRequest.REQUEST_MODE_XML,
+		AmfRequest.REQUEST_MODE_TEMPLATE,
+		AmfRequest.REQUEST_MODE_PREENCODED,
+		AmfRequest.REQUEST_MODE_RAW
+	};
+	
+	private JComboBox requestModeCombo;
+	
+	private static final String[] IMPLEMENTATIONS = {
+		HTTPSamplerFactory.IMPL_HTTP_CLIENT3_1,
+		HTTPSamplerFactory.IMPL_HTTP_CLIENT4
+	};
+	
+	private JComboBox implementationCombo;
+	
     private JFrame xmlEditor;
     
     private StringBuffer amfXml;
     
+    // Recorded request, not editable but has to survive modifyTestElement
+    private String rawAmf = "";
+    
     private JLabel xmlSize;
     
     private JTextField resVar;
+    
+    private JCheckBox lazyResVar;
 
     public AmfRequestGui() {
         init();
@@ -110,8 +133,12 @@ public class AmfRequestGui extends AbstractSamplerGui {
 
         amfXml.setLength(0);
         amfXml.append(element.getPropertyAsString(AmfRequest.AMFXML));
+        rawAmf = element.getPropertyAsString(AmfRequest.RAWAMF);
         objectEncodingCombo.setSelectedItem(element.getPropertyAsString(AmfRequest.OBJECT_ENCODING_VERSION));
+        requestModeCombo.setSelectedIndex(getRequestModeIndex(element.getPropertyAsString(AmfRequest.REQUEST_MODE)));
+        implementationCombo.setSelectedItem(element.getPropertyAsString(AmfRequest.IMPLEMENTATION, HTTPSamplerFactory.IMPL_HTTP_CLIENT3_1));
         resVar.setText(element.getPropertyAsString(AmfRequest.RESPONSE_VAR));
+        lazyResVar.setSelected(element.getPropertyAsBoolean(AmfRequest.LAZY_RESPONSE_VAR));
         
         updateXmlBytes();
     }
@@ -137,7 +164,11 @@ public class AmfRequestGui extends AbstractSamplerGui {
         
         element.setProperty(AmfRequest.OBJECT_ENCODING_VERSION, String.valueOf(objectEncodingCombo.getSelectedItem()));
         element.setProperty(AmfRequest.AMFXML, amfXml.toString(), "");
+        element.setProperty(AmfRequest.RAWAMF, rawAmf, "");
+        element.setProperty(AmfRequest.REQUEST_MODE, REQUEST_MODES[requestModeCombo.getSelectedIndex()], AmfRequest.REQUEST_MODE_XML);
+        element.setProperty(AmfRequest.IMPLEMENTATION, String.valueOf(implementationCombo.getSelectedItem()), HTTPSamplerFactory.IMPL_HTTP_CLIENT3_1);
         element.setProperty(AmfRequest.RESPONSE_VAR, resVar.getText());
+        element.setProperty(AmfRequest.LAZY_RESPONSE_VAR, lazyResVar.isSelected(), false);
     }
 
     /**
@@ -156,6 +187,10 @@ public class AmfRequestGui extends AbstractSamplerGui {
         super.clearGui();
         urlConfigGui.clear();
         amfXml.setLength(0);
+        rawAmf = "";
+        requestModeCombo.setSelectedIndex(0);
+        implementationCombo.setSelectedIndex(0);
+        lazyResVar.setSelected(false);
     }
 
     
@@ -181,6 +216,23 @@ public class AmfRequestGui extends AbstractSamplerGui {
         
         leftPanel.add(objectEncodingCombo);
         
+        List<String> modes = new ArrayList<String>();
+        for (String mode : REQUEST_MODES) {
+        	modes.add(AmfResources.getResString("request_mode_"+mode)); // $NON-NLS-1$
+        }
+        
+        requestModeCombo = new JComboBox(modes.toArray());
+        requestModeCombo.setEditable(false);
+        requestModeCombo.setToolTipText(AmfResources.getResString("request_mode")); // $NON-NLS-1$
+        
+        leftPanel.add(requestModeCombo);
+        
+        implementationCombo = new JComboBox(IMPLEMENTATIONS);
+        implementationCombo.setEditable(false);
+        implementationCombo.setToolTipText(AmfResources.getResString("amf_implementation")); // $NON-NLS-1$
+        
+        leftPanel.add(implementationCombo);
+        
         JButton editXml = new JButton(AmfResources.getResString("edit_xml_btn")); // $NON-NLS-1$
         editXml.addActionListener(new ActionListener() {
 			@SuppressWarnings("serial")
@@ -201,6 +253,10 @@ public class AmfRequestGui extends AbstractSamplerGui {
         resVar.setPreferredSize(new Dimension(100, 20));
         rightPanel.add(resVar);
         
+        lazyResVar = new JCheckBox(AmfResources.getResString("res_var_lazy")); // $NON-NLS-1$
+        lazyResVar.setToolTipText(AmfResources.getResString("res_var_lazy_tip")); // $NON-NLS-1$
+        rightPanel.add(lazyResVar);
+        
         return panel;
     }
     
@@ -215,6 +271,14 @@ public class AmfRequestGui extends AbstractSamplerGui {
 		xmlEditor.setVisible(true);
     }
     
+    private int getRequestModeIndex(String mode) {
+    	for (int i = 0; i < REQUEST_MODES.length; i++) {
+    		if (REQUEST_MODES[i].equals(mode))
+    			return i;
+    	}
+    	return 0;
+    }
+    
     private void updateXmlBytes() {
     	xmlSize.setText("("+amfXml.length()+" chars)");
     }
@@ -43,6 +43,7 @@ import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.jmeter.protocol.amf.sampler.AmfRequest;
 import org.apache.jmeter.protocol.amf.sampler.AmfRequestFactory;
 import org.apache.jmeter.protocol.http.control.HeaderManager;
 import org.apache.jmeter.protocol.http.parser.HTMLParseException;
@@ -180,7 +181,12 @@ public class AmfProxy extends Thread {
     	
         // Instantiate the sampler
     	boolean amfMode = true;
-        HTTPSamplerBase sampler = AmfRequestFactory.newInstance();
+        AmfRequest amfSampler = AmfRequestFactory.newInstance();
+        // AMF Requests use the HttpClient 4 transport when it's chosen for HTTP samplers
+        if (HTTPSamplerFactory.IMPL_HTTP_CLIENT4.equals(httpSamplerName)) {
+        	amfSampler.setImplementation(HTTPSamplerFactory.IMPL_HTTP_CLIENT4);
+        }
+        HTTPSamplerBase sampler = amfSampler;
         AmfRequestHdr request = new AmfRequestHdr(sampler);
         
         SampleResult result = null;
@@ -34,6 +34,8 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.CharUtils;
 import org.apache.jmeter.protocol.amf.gui.AmfRequestGui;
 import org.apache.jmeter.protocol.amf.sampler.AmfRequest;
+import org.apache.jmeter.protocol.amf.util.AmfAliasProfiles;
+import org.apache.jmeter.protocol.amf.util.AmfRawMessage;
 import org.apache.jmeter.protocol.amf.util.AmfXmlConverter;
 import org.apache.jmeter.protocol.http.config.MultipartUrlConfig;
 import org.apache.jmeter.protocol.http.control.Header;
@@ -456,11 +458,12 @@ public class AmfRequestHdr {
                 sampler.parseArguments(postData.trim(), contentEncoding); //standard name=value postData
             } else if (postData.length() > 0) {
             	if (amf) {
-            		//sampler.setProperty(AmfRequest.RAWAMF, postData);
+            		// Keep the exact bytes for raw replay, postData has been through the charset
+            		sampler.setProperty(AmfRequest.RAWAMF, AmfRawMessage.encodeBase64(rawPostData));
                     
                     // If AMF, try to process the request and store it
-                    if (postData != null && postData.length() > 0) {
-    	            	String xml = AmfXmlConverter.convertAmfMessageToXml(postData.getBytes());
+                    if (rawPostData != null && rawPostData.length > 0) {
+    	            	String xml = AmfXmlConverter.convertAmfMessageToXml(rawPostData, AmfAliasProfiles.PROXY);
     	            	sampler.setProperty(AmfRequest.AMFXML, xml);
                     }
             	}
@@ -0,0 +1,213 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.reporters;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies of one operation, recorded by any number of threads without locking.
+ *
+ * Values are counted in logarithmic buckets the way HdrHistogram does: exact up to
+ * 63, then 32 buckets for each power of two, so a percentile is within about 3% of
+ * the value recorded. Values from 0 to Integer.MAX_VALUE fit in 864 buckets and
+ * larger ones are counted in the last, so the memory used doesn't grow with the
+ * number of samples.
+ *
+ * Threads record into one of several stripes picked by thread id, which keeps them
+ * from contending on the same counters. {@link #drain()} moves what was recorded
+ * since the last drain into the interval counts, and adds it to the totals, from a
+ * single reporting thread.
+ */
+final class AmfLatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	static final int BUCKETS = indexOf(Integer.MAX_VALUE) + 1;
+
+	private static final int STRIPES = stripes();
+
+	// Recorded since the last drain: the bucket counts of each stripe, followed by its errors
+	private final AtomicIntegerArray[] counts = new AtomicIntegerArray[STRIPES];
+
+	// Sum of the values recorded in each stripe, spaced out so stripes don't share a cache line
+	private final AtomicLongArray sums = new AtomicLongArray(STRIPES * 8);
+
+	private final long[] interval = new long[BUCKETS];
+	private long intervalErrors;
+	private long intervalSum;
+
+	private final long[] total = new long[BUCKETS];
+	private long totalErrors;
+	private long totalSum;
+
+	AmfLatencyHistogram() {
+		for (int i = 0; i < STRIPES; i++) {
+			counts[i] = new AtomicIntegerArray(BUCKETS + 1);
+		}
+	}
+
+	/**
+	 * @param value latency, negative values are counted as 0
+	 * @param error true if the sample failed
+	 */
+	void record(long value, boolean error) {
+		if (value < 0) {
+			value = 0;
+		}
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		AtomicIntegerArray stripeCounts = counts[stripe];
+		stripeCounts.incrementAndGet(indexOf(Math.min(value, Integer.MAX_VALUE)));
+		if (error) {
+			stripeCounts.incrementAndGet(BUCKETS);
+		}
+		sums.addAndGet(stripe * 8, value);
+	}
+
+	/**
+	 * Starts a new interval with what was recorded since the last one
+	 */
+	void drain() {
+		Arrays.fill(interval, 0);
+		intervalErrors = 0;
+		intervalSum = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			AtomicIntegerArray stripeCounts = counts[stripe];
+			for (int i = 0; i < BUCKETS; i++) {
+				if (stripeCounts.get(i) != 0) {
+					interval[i] += stripeCounts.getAndSet(i, 0);
+				}
+			}
+			intervalErrors += stripeCounts.getAndSet(BUCKETS, 0);
+			intervalSum += sums.getAndSet(stripe * 8, 0);
+		}
+		for (int i = 0; i < BUCKETS; i++) {
+			total[i] += interval[i];
+		}
+		totalErrors += intervalErrors;
+		totalSum += intervalSum;
+	}
+
+	/**
+	 * @param cumulative true for the totals, false for the last interval
+	 * @return counts by bucket, not to be modified
+	 */
+	long[] getCounts(boolean cumulative) {
+		return cumulative ? total : interval;
+	}
+
+	long getErrors(boolean cumulative) {
+		return cumulative ? totalErrors : intervalErrors;
+	}
+
+	long getSum(boolean cumulative) {
+		return cumulative ? totalSum : intervalSum;
+	}
+
+	/**
+	 * @param value
+	 * @return the bucket the value is counted in
+	 */
+	static int indexOf(long value) {
+		int shift = Math.max(0, 63 - SUB_BUCKET_BITS - Long.numberOfLeadingZeros(value));
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	/**
+	 * @param index
+	 * @return the highest value counted in the bucket
+	 */
+	static long highestValueOf(int index) {
+		int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+		long sub = index - ((long) shift << SUB_BUCKET_BITS);
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * @return the number of values in the counts
+	 */
+	static long countOf(long[] counts) {
+		long count = 0;
+		for (int i = 0; i < counts.length; i++) {
+			count += counts[i];
+		}
+		return count;
+	}
+
+	/**
+	 * @param counts
+	 * @param percentiles in ascending order, e.g. 50, 99.9
+	 * @return the value at each percentile, 0 if there are no values
+	 */
+	static long[] valuesAt(long[] counts, double[] percentiles) {
+		long[] values = new long[percentiles.length];
+		long count = countOf(counts);
+		if (count == 0) {
+			return values;
+		}
+		long seen = 0;
+		int bucket = -1;
+		for (int p = 0; p < percentiles.length; p++) {
+			// Rank of the value at the percentile, at least the first
+			long rank = Math.max(1, (long) Math.ceil(percentiles[p] / 100 * count));
+			while (seen < rank && bucket < counts.length - 1) {
+				seen += counts[++bucket];
+			}
+			values[p] = highestValueOf(bucket);
+		}
+		return values;
+	}
+
+	/**
+	 * @return the lowest bucket with a value, -1 if there are none
+	 */
+	static int lowestIndex(long[] counts) {
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] != 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the highest bucket with a value, -1 if there are none
+	 */
+	static int highestIndex(long[] counts) {
+		for (int i = counts.length - 1; i >= 0; i--) {
+			if (counts[i] != 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * A power of two at least the number of processors, at most 16
+	 */
+	private static int stripes() {
+		int processors = Math.min(16, Runtime.getRuntime().availableProcessors());
+		int stripes = 1;
+		while (stripes < processors) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+}
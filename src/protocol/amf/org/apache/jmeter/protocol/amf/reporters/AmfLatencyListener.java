@@ -0,0 +1,321 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.reporters;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jmeter.engine.event.LoopIterationEvent;
+import org.apache.jmeter.engine.util.NoThreadClone;
+import org.apache.jmeter.samplers.SampleEvent;
+import org.apache.jmeter.samplers.SampleListener;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.testelement.AbstractTestElement;
+import org.apache.jmeter.testelement.TestListener;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.jorphan.util.JOrphanUtils;
+import org.apache.log.Logger;
+
+/**
+ * Listener that keeps a latency histogram for each sample label and writes their
+ * percentiles to a CSV file at a fixed interval, instead of keeping every sample
+ * like the aggregate listeners. Memory stays the same however long the test runs,
+ * so it can be left on for a soak test at thousands of samples a second.
+ *
+ * With amf.sample_label=operation each AMF remoting operation has its own label,
+ * and so its own histogram. Labels beyond amf.latency.max_operations (1000 by
+ * default) are counted together under "(other)".
+ *
+ * Each interval adds a line per label that had samples:
+ *
+ * <pre>
+ * timeStamp,scope,label,count,errors,mean,min,p50,p90,p95,p99,p99.9,max
+ * </pre>
+ *
+ * with the elapsed times of the samples in milliseconds, and the totals for the
+ * whole test are added at the end with the scope "total". Percentiles are within
+ * about 3% of the recorded times, see {@link AmfLatencyHistogram}.
+ */
+public class AmfLatencyListener extends AbstractTestElement implements SampleListener, TestListener, NoThreadClone, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LoggingManager.getLoggerForClass();
+
+	public static final String FILENAME = "AmfLatencyListener.filename"; // $NON-NLS-1$
+
+	public static final String INTERVAL = "AmfLatencyListener.interval"; // $NON-NLS-1$
+
+	public static final int DEFAULT_INTERVAL = 10;
+
+	private static final int MAX_OPERATIONS =
+		JMeterUtils.getPropDefault("amf.latency.max_operations", 1000); // $NON-NLS-1$
+
+	private static final String OTHER = "(other)"; // $NON-NLS-1$
+
+	private static final String SCOPE_INTERVAL = "interval"; // $NON-NLS-1$
+
+	private static final String SCOPE_TOTAL = "total"; // $NON-NLS-1$
+
+	private static final double[] PERCENTILES = { 50, 90, 95, 99, 99.9 };
+
+	private static final String HEADER = "timeStamp,scope,label,count,errors,mean,min,p50,p90,p95,p99,p99.9,max"; // $NON-NLS-1$
+
+	// Set for the duration of a test, the reporter thread waits on this listener
+	private transient volatile ConcurrentHashMap<String, AmfLatencyHistogram> histograms;
+	private transient Writer out;
+	private transient Thread reporter;
+
+	/**
+	 * Records the elapsed time of the sample in the histogram of its label
+	 */
+	public void sampleOccurred(SampleEvent event) {
+		ConcurrentHashMap<String, AmfLatencyHistogram> current = histograms;
+		if (current == null) {
+			return;
+		}
+		SampleResult res = event.getResult();
+		getHistogram(current, res.getSampleLabel()).record(res.getTime(), !res.isSuccessful());
+	}
+
+	public void sampleStarted(SampleEvent event) {
+	}
+
+	public void sampleStopped(SampleEvent event) {
+	}
+
+	/**
+	 * Opens the file and starts writing to it every interval
+	 */
+	public void testStarted() {
+		synchronized (this) {
+			String filename = getFilename();
+			if (filename.length() == 0) {
+				log.warn("No file name for " + getName() + ", latencies won't be recorded");
+				return;
+			}
+			try {
+				File file = new File(filename);
+				boolean empty = !file.exists() || file.length() == 0;
+				out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8")); // $NON-NLS-1$
+				if (empty) {
+					out.write(HEADER);
+					out.write('\n');
+				}
+			} catch (IOException e) {
+				log.error("Unable to open " + filename + " for " + getName(), e);
+				JOrphanUtils.closeQuietly(out);
+				out = null;
+				return;
+			}
+
+			histograms = new ConcurrentHashMap<String, AmfLatencyHistogram>();
+
+			final long interval = getInterval() * 1000L;
+			reporter = new Thread(new Runnable() {
+				public void run() {
+					report(interval);
+				}
+			}, "AMF latency " + getName()); // $NON-NLS-1$
+			reporter.setDaemon(true);
+			reporter.start();
+		}
+	}
+
+	public void testStarted(String host) {
+		testStarted();
+	}
+
+	/**
+	 * Writes the last interval and the totals, then closes the file
+	 */
+	public void testEnded() {
+		Thread stopped;
+		synchronized (this) {
+			stopped = reporter;
+			reporter = null;
+			notifyAll();
+		}
+		if (stopped != null) {
+			try {
+				stopped.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized (this) {
+			if (histograms != null) {
+				writeSnapshot(true);
+			}
+			histograms = null;
+			JOrphanUtils.closeQuietly(out);
+			out = null;
+		}
+	}
+
+	public void testEnded(String host) {
+		testEnded();
+	}
+
+	public void testIterationStart(LoopIterationEvent event) {
+	}
+
+	/*
+	 * Writes each interval until the test ends, on the reporter thread
+	 */
+	private void report(long interval) {
+		Thread self = Thread.currentThread();
+		long next = System.currentTimeMillis() + interval;
+		synchronized (this) {
+			while (reporter == self) {
+				long wait = next - System.currentTimeMillis();
+				if (wait > 0) {
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						return;
+					}
+					continue;
+				}
+				writeSnapshot(false);
+				next += interval;
+			}
+		}
+	}
+
+	/*
+	 * Drains the histograms and writes the interval, and the totals at the end of the test
+	 */
+	private void writeSnapshot(boolean end) {
+		long now = System.currentTimeMillis();
+		// Sorted so an operation keeps its place from one interval to the next
+		Map<String, AmfLatencyHistogram> sorted = new TreeMap<String, AmfLatencyHistogram>(histograms);
+		try {
+			for (Map.Entry<String, AmfLatencyHistogram> entry : sorted.entrySet()) {
+				AmfLatencyHistogram histogram = entry.getValue();
+				histogram.drain();
+				writeLine(now, SCOPE_INTERVAL, entry.getKey(), histogram, false);
+			}
+			if (end) {
+				for (Map.Entry<String, AmfLatencyHistogram> entry : sorted.entrySet()) {
+					writeLine(now, SCOPE_TOTAL, entry.getKey(), entry.getValue(), true);
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			log.warn("Unable to write latencies of " + getName() + ": " + e.getMessage());
+		}
+	}
+
+	private void writeLine(long now, String scope, String label, AmfLatencyHistogram histogram, boolean cumulative) throws IOException {
+		long[] counts = histogram.getCounts(cumulative);
+		long count = AmfLatencyHistogram.countOf(counts);
+		if (count == 0) {
+			return;
+		}
+
+		long[] values = AmfLatencyHistogram.valuesAt(counts, PERCENTILES);
+
+		StringBuilder line = new StringBuilder(128);
+		line.append(now).append(',').append(scope).append(',');
+		appendQuoted(line, label);
+		line.append(',').append(count);
+		line.append(',').append(histogram.getErrors(cumulative));
+		line.append(',').append(histogram.getSum(cumulative) / count);
+		line.append(',').append(AmfLatencyHistogram.highestValueOf(AmfLatencyHistogram.lowestIndex(counts)));
+		for (int i = 0; i < values.length; i++) {
+			line.append(',').append(values[i]);
+		}
+		line.append(',').append(AmfLatencyHistogram.highestValueOf(AmfLatencyHistogram.highestIndex(counts)));
+		line.append('\n');
+		out.write(line.toString());
+	}
+
+	/*
+	 * Labels of batched operations have commas, so they are quoted as needed
+	 */
+	private static void appendQuoted(StringBuilder line, String label) {
+		if (label.indexOf(',') < 0 && label.indexOf('"') < 0 && label.indexOf('\n') < 0) {
+			line.append(label);
+			return;
+		}
+		line.append('"');
+		for (int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if (c == '"') {
+				line.append('"');
+			}
+			line.append(c);
+		}
+		line.append('"');
+	}
+
+	private static AmfLatencyHistogram getHistogram(ConcurrentHashMap<String, AmfLatencyHistogram> current, String label) {
+		if (label == null) {
+			label = ""; // $NON-NLS-1$
+		}
+		AmfLatencyHistogram histogram = current.get(label);
+		if (histogram == null) {
+			if (current.size() >= MAX_OPERATIONS) {
+				label = OTHER;
+				histogram = current.get(label);
+				if (histogram != null) {
+					return histogram;
+				}
+			}
+			histogram = new AmfLatencyHistogram();
+			AmfLatencyHistogram existing = current.putIfAbsent(label, histogram);
+			if (existing != null) {
+				histogram = existing;
+			}
+		}
+		return histogram;
+	}
+
+	public void setFilename(String filename) {
+		setProperty(FILENAME, filename);
+	}
+
+	public String getFilename() {
+		return getPropertyAsString(FILENAME);
+	}
+
+	public void setInterval(String interval) {
+		setProperty(INTERVAL, interval, String.valueOf(DEFAULT_INTERVAL));
+	}
+
+	/**
+	 * @return seconds between two writes, at least 1
+	 */
+	public int getInterval() {
+		return Math.max(1, getPropertyAsInt(INTERVAL, DEFAULT_INTERVAL));
+	}
+
+	public String getIntervalAsString() {
+		return getPropertyAsString(INTERVAL, String.valueOf(DEFAULT_INTERVAL));
+	}
+}
@@ -0,0 +1,453 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.sampler;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.nio.DefaultClientIOEventDispatch;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.ssl.SSLClientIOEventDispatch;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.entity.BufferingNHttpEntity;
+import org.apache.http.nio.entity.ConsumingNHttpEntity;
+import org.apache.http.nio.protocol.AsyncNHttpClientHandler;
+import org.apache.http.nio.protocol.NHttpRequestExecutionHandler;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.SessionRequest;
+import org.apache.http.nio.reactor.SessionRequestCallback;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.SyncBasicHttpParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.ImmutableHttpProcessor;
+import org.apache.http.protocol.RequestConnControl;
+import org.apache.http.protocol.RequestContent;
+import org.apache.http.protocol.RequestTargetHost;
+import org.apache.http.util.EntityUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Non-blocking HTTP transport for the AMF Async Request, built on the HttpCore NIO
+ * reactor.
+ *
+ * One I/O thread serves every connection of the engine, so a JMeter thread can
+ * keep many requests in flight. Each connection carries one request at a time and
+ * is kept open for the next while the server allows it. Exchanges are completed
+ * on the I/O thread and handed back to the JMeter thread through a queue, where
+ * the sample results are built.
+ */
+class AmfAsyncEngine {
+
+	private static final Logger log = LoggingManager.getLoggerForClass();
+
+	// Context attributes of a connection
+	private static final String CONNECTION = "amf.connection"; // $NON-NLS-1$
+	private static final String PENDING = "amf.pending"; // $NON-NLS-1$
+	private static final String CURRENT = "amf.current"; // $NON-NLS-1$
+	private static final String ERROR = "amf.error"; // $NON-NLS-1$
+
+	private static final int SHUTDOWN_TIMEOUT = 1000;
+
+	private final HttpHost target;
+
+	private final InetSocketAddress address;
+
+	private final int connectTimeout;
+
+	private final ConnectingIOReactor reactor;
+
+	private final ConnectionReuseStrategy reuseStrategy = new DefaultConnectionReuseStrategy();
+
+	private final BlockingQueue<Exchange> completed = new LinkedBlockingQueue<Exchange>();
+
+	// Open connections waiting for a request, guarded by this
+	private final LinkedList<NHttpClientConnection> idle = new LinkedList<NHttpClientConnection>();
+
+	// Exchanges sent and not completed yet, guarded by this
+	private final List<Exchange> inFlight = new ArrayList<Exchange>();
+
+	private volatile boolean shutdown;
+
+	/**
+	 * Starts the I/O thread for requests to the host of a URL
+	 *
+	 * @param url target of every request
+	 * @param connectTimeout milliseconds, 0 for none
+	 * @param responseTimeout milliseconds of inactivity on a connection, 0 for none
+	 * @throws IOException if the reactor can't be started
+	 */
+	AmfAsyncEngine(URL url, int connectTimeout, int responseTimeout) throws IOException {
+		boolean secure = "https".equalsIgnoreCase(url.getProtocol()); // $NON-NLS-1$
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		this.target = new HttpHost(url.getHost(), port, url.getProtocol());
+		this.address = new InetSocketAddress(url.getHost(), port);
+		this.connectTimeout = connectTimeout;
+
+		HttpParams params = new SyncBasicHttpParams();
+		params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, responseTimeout);
+		params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, connectTimeout);
+		params.setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8 * 1024);
+		params.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false);
+		params.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true);
+
+		ImmutableHttpProcessor httpProcessor = new ImmutableHttpProcessor(new HttpRequestInterceptor[] {
+				new RequestContent(),
+				new RequestTargetHost(),
+				new RequestConnControl()
+		});
+
+		Handler handler = new Handler(httpProcessor, new ExecutionHandler(), reuseStrategy, params);
+
+		final IOEventDispatch dispatch;
+		if (secure) {
+			dispatch = new SSLClientIOEventDispatch(handler, createTrustAllContext(), params);
+		}
+		else {
+			dispatch = new DefaultClientIOEventDispatch(handler, params);
+		}
+
+		reactor = new DefaultConnectingIOReactor(1, params);
+
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					reactor.execute(dispatch);
+				} catch (InterruptedIOException e) {
+					log.debug("AMF async I/O interrupted");
+				} catch (IOException e) {
+					log.error("AMF async I/O stopped", e);
+				}
+				failAll(new IOException("I/O reactor stopped"));
+			}
+		}, "AMF async I/O " + Thread.currentThread().getName()); // $NON-NLS-1$
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Sends a request on an idle connection, or a new one if there isn't one
+	 *
+	 * @param exchange
+	 */
+	void send(Exchange exchange) {
+		NHttpClientConnection conn = null;
+		synchronized (this) {
+			if (shutdown) {
+				exchange.fail(new IOException("Engine is shut down"));
+				completed.add(exchange);
+				return;
+			}
+			inFlight.add(exchange);
+			exchange.start = System.currentTimeMillis();
+
+			conn = idle.poll();
+			if (conn != null) {
+				conn.getContext().setAttribute(PENDING, exchange);
+			}
+		}
+
+		if (conn != null) {
+			conn.requestOutput();
+		}
+		else {
+			SessionRequest request = reactor.connect(address, null, exchange, new ConnectCallback());
+			if (connectTimeout > 0) {
+				request.setConnectTimeout(connectTimeout);
+			}
+		}
+	}
+
+	/**
+	 * @param timeout milliseconds to wait
+	 * @return the next completed exchange or null if none completed in time
+	 * @throws InterruptedException
+	 */
+	Exchange poll(long timeout) throws InterruptedException {
+		return completed.poll(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return requests sent and not yet completed
+	 */
+	synchronized int getInFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Stops the I/O thread, failing any requests in flight
+	 */
+	void shutdown() {
+		synchronized (this) {
+			if (shutdown) {
+				return;
+			}
+			shutdown = true;
+			idle.clear();
+		}
+		try {
+			reactor.shutdown(SHUTDOWN_TIMEOUT);
+		} catch (IOException e) {
+			log.warn("Error stopping the AMF async I/O reactor", e);
+		}
+		failAll(new IOException("Engine is shut down"));
+	}
+
+	HttpHost getTarget() {
+		return target;
+	}
+
+	private void complete(Exchange exchange) {
+		synchronized (this) {
+			if (!inFlight.remove(exchange)) {
+				return;
+			}
+		}
+		exchange.end = System.currentTimeMillis();
+		completed.add(exchange);
+	}
+
+	private void fail(Exchange exchange, IOException cause) {
+		exchange.fail(cause);
+		complete(exchange);
+	}
+
+	private void failAll(IOException cause) {
+		List<Exchange> failed;
+		synchronized (this) {
+			failed = new ArrayList<Exchange>(inFlight);
+		}
+		for (int i = 0; i < failed.size(); i++) {
+			fail(failed.get(i), cause);
+		}
+	}
+
+	private static SSLContext createTrustAllContext() throws IOException {
+		try {
+			SSLContext context = SSLContext.getInstance("TLS"); // $NON-NLS-1$
+			context.init(null, new TrustManager[] { new X509TrustManager() {
+				public void checkClientTrusted(X509Certificate[] chain, String authType) {
+				}
+				public void checkServerTrusted(X509Certificate[] chain, String authType) {
+				}
+				public X509Certificate[] getAcceptedIssuers() {
+					return new X509Certificate[0];
+				}
+			} }, null);
+			return context;
+		} catch (GeneralSecurityException e) {
+			IOException ex = new IOException("Unable to create SSL context: " + e.getMessage());
+			ex.initCause(e);
+			throw ex;
+		}
+	}
+
+	/**
+	 * A request and, once completed, its response or the error that ended it
+	 */
+	static class Exchange {
+		final HttpRequest request;
+
+		long start;
+		long connected;
+		long firstByte;
+		long end;
+
+		// Set by the sampling thread as it encodes the request
+		long encodeTime;
+		int requestBytes;
+
+		HttpResponse response;
+		byte[] body;
+		IOException error;
+
+		Exchange(BasicHttpEntityEnclosingRequest request) {
+			this.request = request;
+		}
+
+		void fail(IOException cause) {
+			if (error == null && response == null) {
+				error = cause;
+			}
+		}
+	}
+
+	/*
+	 * Keeps a reference to the connection in its context and the cause of a failure
+	 */
+	private static class Handler extends AsyncNHttpClientHandler {
+		Handler(ImmutableHttpProcessor httpProcessor, NHttpRequestExecutionHandler execHandler,
+				ConnectionReuseStrategy connStrategy, HttpParams params) {
+			super(httpProcessor, execHandler, connStrategy, params);
+		}
+
+		@Override
+		public void connected(NHttpClientConnection conn, Object attachment) {
+			conn.getContext().setAttribute(CONNECTION, conn);
+			super.connected(conn, attachment);
+		}
+
+		@Override
+		public void exception(NHttpClientConnection conn, IOException ex) {
+			conn.getContext().setAttribute(ERROR, ex);
+			super.exception(conn, ex);
+		}
+
+		@Override
+		public void timeout(NHttpClientConnection conn) {
+			conn.getContext().setAttribute(ERROR, new SocketTimeoutException("Read timed out"));
+			super.timeout(conn);
+		}
+	}
+
+	/*
+	 * Called on the I/O thread as each connection becomes ready for a request and
+	 * receives a response
+	 */
+	private class ExecutionHandler implements NHttpRequestExecutionHandler {
+
+		public void initalizeContext(HttpContext context, Object attachment) {
+			context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, target);
+			synchronized (AmfAsyncEngine.this) {
+				context.setAttribute(PENDING, attachment);
+			}
+		}
+
+		public HttpRequest submitRequest(HttpContext context) {
+			synchronized (AmfAsyncEngine.this) {
+				Exchange exchange = (Exchange) context.removeAttribute(PENDING);
+				if (exchange == null) {
+					return null;
+				}
+				context.setAttribute(CURRENT, exchange);
+				exchange.connected = System.currentTimeMillis();
+				return exchange.request;
+			}
+		}
+
+		public ConsumingNHttpEntity responseEntity(HttpResponse response, HttpContext context) {
+			Exchange exchange = (Exchange) context.getAttribute(CURRENT);
+			if (exchange != null) {
+				exchange.firstByte = System.currentTimeMillis();
+			}
+			return new BufferingNHttpEntity(response.getEntity(), new HeapByteBufferAllocator());
+		}
+
+		public void handleResponse(HttpResponse response, HttpContext context) throws IOException {
+			Exchange exchange = (Exchange) context.removeAttribute(CURRENT);
+			if (exchange == null) {
+				return;
+			}
+			if (exchange.firstByte == 0) {
+				exchange.firstByte = System.currentTimeMillis();
+			}
+			exchange.body = response.getEntity() != null ? EntityUtils.toByteArray(response.getEntity()) : new byte[0];
+			exchange.response = response;
+			complete(exchange);
+
+			// Only offer the connection for another request if the server leaves it open
+			NHttpClientConnection conn = (NHttpClientConnection) context.getAttribute(CONNECTION);
+			if (conn != null && reuseStrategy.keepAlive(response, context)) {
+				synchronized (AmfAsyncEngine.this) {
+					if (!shutdown) {
+						idle.add(conn);
+					}
+				}
+			}
+		}
+
+		public void finalizeContext(HttpContext context) {
+			NHttpClientConnection conn = (NHttpClientConnection) context.getAttribute(CONNECTION);
+			Exchange pending;
+			Exchange current;
+			synchronized (AmfAsyncEngine.this) {
+				idle.remove(conn);
+				pending = (Exchange) context.removeAttribute(PENDING);
+				current = (Exchange) context.removeAttribute(CURRENT);
+			}
+
+			IOException cause = (IOException) context.getAttribute(ERROR);
+			if (cause == null) {
+				cause = new IOException("Connection closed");
+			}
+			if (current != null) {
+				fail(current, cause);
+			}
+			if (pending != null) {
+				// Never sent, the server closed an idle connection it was given to
+				synchronized (AmfAsyncEngine.this) {
+					inFlight.remove(pending);
+				}
+				if (!shutdown) {
+					send(pending);
+				}
+				else {
+					fail(pending, cause);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Fails the exchange a new connection was opened for if it can't be established
+	 */
+	private class ConnectCallback implements SessionRequestCallback {
+
+		public void completed(SessionRequest request) {
+			// The handler takes over from connected()
+		}
+
+		public void failed(SessionRequest request) {
+			fail((Exchange) request.getAttachment(), request.getException() != null
+					? request.getException() : new IOException("Connect failed"));
+		}
+
+		public void timeout(SessionRequest request) {
+			fail((Exchange) request.getAttachment(), new SocketTimeoutException("Connect timed out"));
+		}
+
+		public void cancelled(SessionRequest request) {
+			fail((Exchange) request.getAttachment(), new IOException("Connect cancelled"));
+		}
+	}
+}
@@ -0,0 +1,382 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.sampler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.jmeter.protocol.amf.util.AmfResources;
+import org.apache.jmeter.protocol.http.control.CookieManager;
+import org.apache.jmeter.protocol.http.sampler.HTTPSampleResult;
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.jorphan.util.JOrphanUtils;
+import org.apache.log.Logger;
+
+/**
+ * An AMF Request that keeps many requests in flight from one JMeter thread, for
+ * open model load where requests arrive at a fixed rate whether or not earlier ones
+ * have been answered.
+ *
+ * Each call to sample sends the requests that are due and returns the next one to
+ * complete, so every request still gets its own sample result and the thread's
+ * listeners, assertions and post-processors run as usual. Requests are encoded when
+ * they are sent, with the variables of the thread at that time.
+ *
+ * With an arrival rate of 0 the sampler keeps the maximum number of requests in
+ * flight. Arrivals that come due while the maximum is in flight are dropped rather
+ * than queued, so a slow server can't build an unbounded backlog. Each drop is
+ * returned as a failed sample with the response code "Dropped", so the results
+ * still count every arrival the schedule called for.
+ *
+ * Requests go through a non-blocking HttpCore NIO client, so httpcore-nio must be on
+ * the classpath. The proxy settings are not used.
+ */
+public class AmfAsyncRequest extends AmfRequest {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LoggingManager.getLoggerForClass();
+
+	public static final String ARRIVAL_RATE = "AmfAsyncSampler.arrivalRate"; // $NON-NLS-1$
+	public static final String MAX_IN_FLIGHT = "AmfAsyncSampler.maxInFlight"; // $NON-NLS-1$
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 10;
+
+	/**
+	 * Response code of the sample for an arrival that wasn't sent
+	 */
+	public static final String RESPONSE_CODE_DROPPED = "Dropped"; // $NON-NLS-1$
+
+	// Longest wait for a completion before checking for interruption
+	private static final long MAX_WAIT = 100;
+
+	private transient AmfAsyncEngine engine;
+
+	// Time the next request is due, in milliseconds
+	private transient double nextArrival;
+
+	// Arrivals dropped and not yet returned as a sample
+	private transient int dropped;
+
+	private transient volatile boolean interrupted;
+
+	/**
+	 * @return requests per second sent by each thread, 0 to keep the maximum in flight
+	 */
+	public double getArrivalRate() {
+		try {
+			return Double.parseDouble(getPropertyAsString(ARRIVAL_RATE, "0").trim()); // $NON-NLS-1$
+		} catch (NumberFormatException e) {
+			log.warn("Invalid arrival rate " + getPropertyAsString(ARRIVAL_RATE) + " in " + getName());
+			return 0;
+		}
+	}
+
+	public void setArrivalRate(String rate) {
+		setProperty(ARRIVAL_RATE, rate, "0"); // $NON-NLS-1$
+	}
+
+	/**
+	 * @return most requests each thread has sent and not received the response to
+	 */
+	public int getMaxInFlight() {
+		return Math.max(1, getPropertyAsInt(MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT));
+	}
+
+	public void setMaxInFlight(String max) {
+		setProperty(MAX_IN_FLIGHT, max, String.valueOf(DEFAULT_MAX_IN_FLIGHT));
+	}
+
+	/**
+	 * Sends the requests that are due and waits for the next to complete
+	 *
+	 * @param entry
+	 * @return the result of a request sent by this or an earlier sample
+	 */
+	@Override
+	public SampleResult sample(Entry entry) {
+		// The timings of the request the result is for, only its decoding is done now
+		AmfSampleTimings timings = AmfSampleTimings.get();
+		timings.reset();
+
+		HTTPSampleResult res = null;
+		try {
+			res = nextResult();
+			// Labelled with the sampler name like the results of the other samplers, which
+			// get it from HTTPSamplerBase.sample(), errors included
+			res.setSampleLabel(getName());
+			applyLabel(res);
+		} finally {
+			timings.save(res, JMeterContextService.getContext().getVariables());
+		}
+		return res;
+	}
+
+	private HTTPSampleResult nextResult() {
+		interrupted = false;
+
+		URL url;
+		AmfAsyncEngine current;
+		try {
+			url = getUrl();
+			current = getEngine(url);
+		} catch (MalformedURLException e) {
+			return errorResult(e, newResult(null));
+		} catch (IOException e) {
+			return errorResult(e, newResult(null));
+		}
+
+		double rate = getArrivalRate();
+		int maxInFlight = getMaxInFlight();
+
+		try {
+			while (!interrupted) {
+				long now = System.currentTimeMillis();
+				long wait = MAX_WAIT;
+
+				if (rate > 0) {
+					double interval = 1000 / rate;
+					if (nextArrival == 0) {
+						nextArrival = now;
+					}
+					while (nextArrival <= now) {
+						if (current.getInFlight() < maxInFlight) {
+							send(current, url);
+						}
+						else {
+							dropped++;
+							if (log.isDebugEnabled()) {
+								log.debug("Dropped an arrival in " + getName() + ", " + maxInFlight + " requests in flight");
+							}
+						}
+						nextArrival += interval;
+					}
+					wait = Math.min(wait, Math.max(1, (long) Math.ceil(nextArrival - now)));
+				}
+				else {
+					while (current.getInFlight() < maxInFlight) {
+						send(current, url);
+					}
+				}
+
+				if (dropped > 0) {
+					dropped--;
+					return droppedResult(url, maxInFlight);
+				}
+
+				AmfAsyncEngine.Exchange exchange = current.poll(wait);
+				if (exchange != null) {
+					return createResult(url, exchange);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		HTTPSampleResult res = newResult(url);
+		res.sampleStart();
+		res.sampleEnd();
+		return errorResult(new InterruptedIOException("Interrupted"), res);
+	}
+
+	/*
+	 * Encodes a request on this thread and hands it to the I/O thread
+	 */
+	private void send(AmfAsyncEngine current, URL url) {
+		long begin = System.nanoTime();
+		byte[] amfMessage = createAmfMessage();
+		long encodeTime = System.nanoTime() - begin;
+
+		// The headers come from the same setup as the HttpClient 4 implementation
+		HttpPost httpPost = new HttpPost(url.toString());
+		setupRequest(url, httpPost, new HTTPSampleResult());
+
+		BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest(POST, url.getFile().length() > 0 ? url.getFile() : "/"); // $NON-NLS-1$
+		request.setHeaders(httpPost.getAllHeaders());
+		if (amfMessage != null) {
+			NByteArrayEntity entity = new NByteArrayEntity(amfMessage);
+			entity.setContentType(AmfResources.getResString("amf_content_type")); // $NON-NLS-1$
+			request.setEntity(entity);
+		}
+
+		AmfAsyncEngine.Exchange exchange = new AmfAsyncEngine.Exchange(request);
+		exchange.encodeTime = encodeTime;
+		exchange.requestBytes = amfMessage != null ? amfMessage.length : 0;
+		current.send(exchange);
+	}
+
+	/*
+	 * Builds the result of a completed request, on the JMeter thread so the cookie
+	 * manager and variables are only used by their own thread
+	 */
+	private HTTPSampleResult createResult(URL url, AmfAsyncEngine.Exchange exchange) {
+		HTTPSampleResult res = newResult(url);
+		res.setStampAndTime(exchange.start, exchange.end - exchange.start);
+		AmfSampleTimings.get().exchanged(exchange.encodeTime, exchange.requestBytes,
+				exchange.start, exchange.connected, exchange.firstByte, exchange.end);
+		res.setRequestHeaders(getRequestHeaders(exchange.request));
+
+		Header cookie = exchange.request.getFirstHeader(HEADER_COOKIE);
+		if (cookie != null) {
+			res.setCookies(cookie.getValue());
+		}
+
+		HttpResponse response = exchange.response;
+		if (response == null) {
+			return errorResult(exchange.error != null ? exchange.error : new IOException("No response"), res);
+		}
+		res.setLatency(exchange.firstByte - exchange.start);
+
+		InputStream instream = new ByteArrayInputStream(exchange.body);
+		try {
+			Header encoding = response.getFirstHeader(HEADER_CONTENT_ENCODING);
+			if (encoding != null && ENCODING_GZIP.equals(encoding.getValue())) {
+				instream = new GZIPInputStream(instream);
+				res.setResponseData(readResponse(res, instream, 0));
+			}
+			else {
+				res.setResponseData(exchange.body);
+			}
+		} catch (IOException e) {
+			return errorResult(e, res);
+		} finally {
+			JOrphanUtils.closeQuietly(instream);
+		}
+
+		StatusLine statusLine = response.getStatusLine();
+		int statusCode = statusLine.getStatusCode();
+		res.setResponseCode(Integer.toString(statusCode));
+		res.setSuccessful(isSuccessCode(statusCode));
+		res.setResponseMessage(statusLine.getReasonPhrase());
+
+		Header contentType = response.getFirstHeader(HEADER_CONTENT_TYPE);
+		if (contentType != null) {
+			res.setContentType(contentType.getValue());
+			res.setEncodingAndType(contentType.getValue());
+		}
+
+		res.setResponseHeaders(getResponseHeaders(response));
+
+		CookieManager cookieManager = getCookieManager();
+		if (cookieManager != null) {
+			Header[] cookies = response.getHeaders(HEADER_SET_COOKIE);
+			for (int i = 0; i < cookies.length; i++) {
+				cookieManager.addCookieFromHeader(cookies[i].getValue(), url);
+			}
+		}
+
+		if (res.getBytes() > 0) {
+			saveResponseVar(res.getResponseData());
+		}
+		return res;
+	}
+
+	/*
+	 * A failed sample for an arrival that wasn't sent, so overload shows in the
+	 * results rather than as lower throughput
+	 */
+	private HTTPSampleResult droppedResult(URL url, int maxInFlight) {
+		HTTPSampleResult res = newResult(url);
+		res.sampleStart();
+		res.sampleEnd();
+		res.setSuccessful(false);
+		res.setResponseCode(RESPONSE_CODE_DROPPED);
+		res.setResponseMessage("Not sent, " + maxInFlight + " requests in flight");
+		return res;
+	}
+
+	private HTTPSampleResult newResult(URL url) {
+		HTTPSampleResult res = new HTTPSampleResult();
+		res.setMonitor(isMonitor());
+		res.setHTTPMethod(POST);
+		res.setSampleLabel(getName());
+		if (url != null) {
+			res.setURL(url);
+		}
+		return res;
+	}
+
+	/*
+	 * The engine of this thread, a new one if the host of the request changed
+	 */
+	private AmfAsyncEngine getEngine(URL url) throws IOException {
+		if (engine != null) {
+			int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+			if (engine.getTarget().getHostName().equalsIgnoreCase(url.getHost())
+					&& engine.getTarget().getPort() == port
+					&& engine.getTarget().getSchemeName().equalsIgnoreCase(url.getProtocol())) {
+				return engine;
+			}
+			closeEngine();
+		}
+		engine = new AmfAsyncEngine(url, getConnectTimeout(), getResponseTimeout());
+		nextArrival = 0;
+		return engine;
+	}
+
+	private void closeEngine() {
+		AmfAsyncEngine current = engine;
+		engine = null;
+		if (current != null) {
+			if (current.getInFlight() > 0) {
+				log.debug("Abandoning " + current.getInFlight() + " request(s) in flight in " + getName());
+			}
+			current.shutdown();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean interrupt() {
+		interrupted = true;
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void threadFinished() {
+		super.threadFinished();
+		closeEngine();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void testEnded() {
+		super.testEnded();
+		closeEngine();
+	}
+}
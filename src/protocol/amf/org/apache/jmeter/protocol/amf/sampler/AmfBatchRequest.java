@@ -0,0 +1,225 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.sampler;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.jmeter.config.Arguments;
+import org.apache.jmeter.control.Controller;
+import org.apache.jmeter.engine.event.LoopIterationEvent;
+import org.apache.jmeter.engine.event.LoopIterationListener;
+import org.apache.jmeter.protocol.amf.util.AmfBatchMessage;
+import org.apache.jmeter.protocol.amf.util.AmfResources;
+import org.apache.jmeter.protocol.http.sampler.HTTPSampleResult;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.samplers.Sampler;
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Sends the AMF Requests it contains as one HTTP request, with a body for each,
+ * the way a Flex client batches remoting calls.
+ *
+ * It is a Controller so requests can be added to it, but runs as a single Sampler:
+ * the requests are never sampled on their own. The response is split into a
+ * sub-result for each request, labelled with its name and failed if the server
+ * answered with a fault. Config elements, pre-processors, timers and so on apply to
+ * the batch, only the AMF message and response variable of each request are used.
+ * Property overrides of the batch (e.g. from AMF Request Defaults) apply to every
+ * request after its own.
+ */
+public class AmfBatchRequest extends AmfRequest implements Controller {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LoggingManager.getLoggerForClass();
+
+	private transient List<AmfRequest> requests = new ArrayList<AmfRequest>();
+
+	private transient LinkedList<LoopIterationListener> iterationListeners = new LinkedList<LoopIterationListener>();
+
+	private transient int iterCount;
+
+	// Requests combined for the current sample
+	private transient AmfBatchMessage batch;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void addTestElement(TestElement el) {
+		if (el instanceof AmfRequest) {
+			requests.add((AmfRequest) el);
+		}
+		else if (!(el instanceof Sampler) && !(el instanceof Controller)) {
+			super.addTestElement(el);
+		}
+		else {
+			log.warn("Only AMF Requests can be batched, ignoring " + el.getName() + " in " + getName());
+		}
+	}
+
+	@Override
+	protected HTTPSampleResult sample(URL url, String method, boolean areFollowingRedirect, int frameDepth) {
+		fireIterationStart();
+
+		long begin = System.nanoTime();
+		try {
+			batch = createBatch();
+			AmfSampleTimings.get().encoded(begin, null);
+		} catch (IOException e) {
+			HTTPSampleResult res = new HTTPSampleResult();
+			res.setURL(url);
+			res.setHTTPMethod(method);
+			res.sampleStart();
+			res.sampleEnd();
+			return errorResult(e, res);
+		}
+
+		try {
+			HTTPSampleResult res = super.sample(url, method, areFollowingRedirect, frameDepth);
+			if (res.isSuccessful() && isAmf(res)) {
+				splitResponse(res);
+			}
+			return res;
+		} finally {
+			batch = null;
+		}
+	}
+
+	/**
+	 * @return the message for the current sample, combined from the requests before sampling
+	 */
+	@Override
+	protected byte[] createAmfMessage() {
+		return batch.getBytes();
+	}
+
+	private AmfBatchMessage createBatch() throws IOException {
+		Arguments overrides = getPropertyOverrides();
+
+		byte[][] messages = new byte[requests.size()][];
+		for (int i = 0; i < messages.length; i++) {
+			AmfRequest request = requests.get(i);
+			request.setParentOverrides(overrides);
+			messages[i] = request.createAmfMessage();
+		}
+
+		if (log.isDebugEnabled())
+			log.debug("Batching " + messages.length + " request(s) in " + getName());
+
+		return new AmfBatchMessage(messages);
+	}
+
+	/*
+	 * Add a sub-result for each request, the batch fails if any of them do
+	 */
+	private void splitResponse(HTTPSampleResult res) {
+		AmfBatchMessage.Response[] responses;
+		try {
+			responses = batch.split(res.getResponseData());
+		} catch (IOException e) {
+			log.warn("Unable to split the response of " + getName() + ": " + e.getMessage());
+			res.setSuccessful(false);
+			res.setResponseMessage("Unable to read AMF response: " + e.getMessage());
+			return;
+		}
+
+		String threadName = Thread.currentThread().getName();
+		boolean successful = true;
+
+		for (int i = 0; i < responses.length; i++) {
+			AmfRequest request = requests.get(i);
+			AmfBatchMessage.Response response = responses[i];
+
+			SampleResult sub = new SampleResult();
+			sub.setStampAndTime(res.getTimeStamp(), res.getTime());
+			sub.setSampleLabel(request.getName());
+			request.applyLabel(sub);
+			sub.setThreadName(threadName);
+			sub.setResponseCode(res.getResponseCode());
+
+			if (response == null) {
+				sub.setSuccessful(false);
+				sub.setResponseMessage("No response body for this request");
+			}
+			else {
+				sub.setResponseData(response.getAmf());
+				sub.setContentType(res.getContentType());
+				sub.setDataType(SampleResult.BINARY);
+				sub.setSuccessful(!response.isFault());
+				sub.setResponseMessage(response.isFault() ? "Fault" : res.getResponseMessage());
+
+				request.saveResponseVar(response.getAmf());
+			}
+
+			successful &= sub.isSuccessful();
+			res.storeSubResult(sub);
+		}
+
+		res.setSuccessful(successful);
+	}
+
+	private static boolean isAmf(SampleResult res) {
+		String contentType = res.getContentType();
+		return contentType != null && contentType.startsWith(AmfResources.getResString("amf_content_type")) // $NON-NLS-1$
+				&& res.getResponseData().length > 0;
+	}
+
+	/*
+	 * Each sample is an iteration of the batch, so counters and the like under it advance
+	 */
+	private void fireIterationStart() {
+		LoopIterationEvent event = new LoopIterationEvent(this, iterCount++);
+		for (LoopIterationListener listener : iterationListeners) {
+			listener.iterationStart(event);
+		}
+	}
+
+	/**
+	 * The batch is returned as a Sampler by its parent, so it is never asked for
+	 * the next sampler.
+	 */
+	public Sampler next() {
+		return null;
+	}
+
+	public boolean isDone() {
+		return false;
+	}
+
+	public void initialize() {
+		iterCount = 0;
+	}
+
+	public void triggerEndOfLoop() {
+		// Nothing to skip, the requests are sent together
+	}
+
+	public void addIterationListener(LoopIterationListener listener) {
+		iterationListeners.add(listener);
+	}
+
+	public void removeIterationListener(LoopIterationListener listener) {
+		iterationListeners.remove(listener);
+	}
+}
@@ -0,0 +1,217 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.sampler;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.NTCredentials;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.params.ConnRouteParams;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.jmeter.protocol.http.util.HC4TrustAllSSLSocketFactory;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * The HttpClient 4 client shared by every AMF Request using that implementation.
+ *
+ * Keep-alive connections are pooled across threads instead of each thread holding
+ * its own, which keeps the number of open connections and the allocation per sample
+ * down at high thread counts. Cookies, headers and authentication still come from
+ * the sampler's managers, the client itself keeps no state between requests.
+ *
+ * The pool is sized with the JMeter properties amf.httpclient4.max_total and
+ * amf.httpclient4.max_per_route, and is closed at the end of the test.
+ *
+ * Proxies and their credentials are given with each request, the JMeter proxy
+ * is read from the same properties as JMeter's HttpClient samplers.
+ */
+final class AmfHttpClient4 {
+
+	private static final Logger log = LoggingManager.getLoggerForClass();
+
+	private static final int MAX_TOTAL =
+		JMeterUtils.getPropDefault("amf.httpclient4.max_total", 500); // $NON-NLS-1$
+
+	private static final int MAX_PER_ROUTE =
+		JMeterUtils.getPropDefault("amf.httpclient4.max_per_route", MAX_TOTAL); // $NON-NLS-1$
+
+	private static final boolean STALE_CHECK =
+		JMeterUtils.getPropDefault("amf.httpclient4.stale_check", true); // $NON-NLS-1$
+
+	// Same property as the JMeter HttpClient 4 sampler
+	private static final int RETRY_COUNT =
+		JMeterUtils.getPropDefault("httpclient4.retrycount", 1); // $NON-NLS-1$
+
+	// JMeter's proxy, set with -H, -P, -u, -a and -N
+	private static final String PROXY_HOST = System.getProperty("http.proxyHost", ""); // $NON-NLS-1$ // $NON-NLS-2$
+	private static final int PROXY_PORT = Integer.parseInt(System.getProperty("http.proxyPort", "0")); // $NON-NLS-1$ // $NON-NLS-2$
+	private static final String PROXY_USER = JMeterUtils.getPropDefault("http.proxyUser", ""); // $NON-NLS-1$ // $NON-NLS-2$
+	private static final String PROXY_PASS = JMeterUtils.getPropDefault("http.proxyPass", ""); // $NON-NLS-1$ // $NON-NLS-2$
+	private static final String PROXY_DOMAIN = JMeterUtils.getPropDefault("http.proxyDomain", ""); // $NON-NLS-1$ // $NON-NLS-2$
+
+	private static final Set<String> NON_PROXY_HOSTS = new HashSet<String>();
+	private static final List<String> NON_PROXY_SUFFIXES = new ArrayList<String>();
+
+	static {
+		StringTokenizer hosts = new StringTokenizer(System.getProperty("http.nonProxyHosts", ""), "|"); // $NON-NLS-1$ // $NON-NLS-2$ // $NON-NLS-3$
+		while (hosts.hasMoreTokens()) {
+			String host = hosts.nextToken();
+			if (host.startsWith("*")) { // $NON-NLS-1$
+				NON_PROXY_SUFFIXES.add(host.substring(1));
+			}
+			else {
+				NON_PROXY_HOSTS.add(host);
+			}
+		}
+	}
+
+	private static volatile DefaultHttpClient client;
+
+	private AmfHttpClient4() {
+		// Not intended to be instantiated
+	}
+
+	/**
+	 * @return the shared client, created on first use
+	 */
+	static HttpClient getClient() {
+		DefaultHttpClient current = client;
+		if (current == null) {
+			synchronized (AmfHttpClient4.class) {
+				current = client;
+				if (current == null) {
+					current = createClient();
+					client = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Close the pooled connections, a new client is created if one is needed again
+	 */
+	static void shutdown() {
+		DefaultHttpClient current;
+		synchronized (AmfHttpClient4.class) {
+			current = client;
+			client = null;
+		}
+		if (current != null) {
+			log.debug("Closing AMF HttpClient 4 connection pool");
+			current.getConnectionManager().shutdown();
+		}
+	}
+
+	/**
+	 * @param host
+	 * @return true if requests to the host go through JMeter's proxy
+	 */
+	static boolean isStaticProxy(String host) {
+		if (PROXY_HOST.length() == 0 || PROXY_PORT <= 0 || NON_PROXY_HOSTS.contains(host)) {
+			return false;
+		}
+		for (int i = 0; i < NON_PROXY_SUFFIXES.size(); i++) {
+			if (host.endsWith(NON_PROXY_SUFFIXES.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Routes a request through JMeter's proxy
+	 *
+	 * @param params parameters of the request
+	 * @param context context the request is executed with
+	 */
+	static void setStaticProxy(HttpParams params, HttpContext context) {
+		setProxy(params, context, PROXY_HOST, PROXY_PORT, PROXY_USER, PROXY_PASS, PROXY_DOMAIN);
+	}
+
+	/**
+	 * Routes a request through a proxy, with the credentials in the request's context
+	 * as the client is shared by samplers with different proxies
+	 *
+	 * @param params parameters of the request
+	 * @param context context the request is executed with
+	 * @param host
+	 * @param port
+	 * @param user empty if the proxy doesn't need authentication
+	 * @param password
+	 * @param domain NTLM domain, empty for none
+	 */
+	static void setProxy(HttpParams params, HttpContext context, String host, int port, String user, String password, String domain) {
+		ConnRouteParams.setDefaultProxy(params, new HttpHost(host, port));
+		if (user.length() > 0) {
+			BasicCredentialsProvider credentials = new BasicCredentialsProvider();
+			credentials.setCredentials(new AuthScope(host, port), domain.length() > 0
+				? new NTCredentials(user, password, null, domain)
+				: new UsernamePasswordCredentials(user, password));
+			context.setAttribute(ClientContext.CREDS_PROVIDER, credentials);
+		}
+	}
+
+	private static DefaultHttpClient createClient() {
+		SchemeRegistry schemes = SchemeRegistryFactory.createDefault();
+		try {
+			schemes.register(new Scheme("https", 443, new HC4TrustAllSSLSocketFactory())); // $NON-NLS-1$
+		} catch (GeneralSecurityException e) {
+			log.warn("Unable to create the trust all SSL socket factory, using the default", e);
+		}
+
+		ThreadSafeClientConnManager pool = new ThreadSafeClientConnManager(schemes);
+		pool.setMaxTotal(MAX_TOTAL);
+		pool.setDefaultMaxPerRoute(MAX_PER_ROUTE);
+
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setStaleCheckingEnabled(params, STALE_CHECK);
+		HttpClientParams.setRedirecting(params, false);
+		// The Cookie Manager handles cookies, the client's store would be shared by every thread
+		HttpClientParams.setCookiePolicy(params, CookiePolicy.IGNORE_COOKIES);
+
+		DefaultHttpClient created = new DefaultHttpClient(pool, params);
+		created.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(RETRY_COUNT, false));
+		created.addRequestInterceptor(AmfSampleTimings.CONNECTED);
+
+		log.info("Created AMF HttpClient 4 connection pool, max " + MAX_TOTAL + " connections, " + MAX_PER_ROUTE + " per route");
+		return created;
+	}
+}
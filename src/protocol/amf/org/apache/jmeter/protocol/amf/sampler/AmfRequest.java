@@ -19,7 +19,11 @@ package org.apache.jmeter.protocol.amf.sampler;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
@@ -29,26 +33,54 @@ import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpMessage;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.jmeter.config.Argument;
 import org.apache.jmeter.config.Arguments;
+import org.apache.jmeter.engine.util.CompoundVariable;
+import org.apache.jmeter.protocol.amf.util.AmfCodecSession;
+import org.apache.jmeter.protocol.amf.util.AmfConverterRegistry;
+import org.apache.jmeter.protocol.amf.util.AmfMessageTemplate;
+import org.apache.jmeter.protocol.amf.util.AmfOperationLabel;
+import org.apache.jmeter.protocol.amf.util.AmfRawMessage;
 import org.apache.jmeter.protocol.amf.util.AmfResources;
 import org.apache.jmeter.protocol.amf.util.AmfXmlConverter;
+import org.apache.jmeter.protocol.amf.util.LazyAmfResponse;
+import org.apache.jmeter.protocol.amf.util.OverrideReplacer;
+import org.apache.jmeter.protocol.http.control.AuthManager;
 import org.apache.jmeter.protocol.http.control.CacheManager;
+import org.apache.jmeter.protocol.http.control.CookieManager;
+import org.apache.jmeter.protocol.http.control.HeaderManager;
 import org.apache.jmeter.protocol.http.sampler.HTTPSampleResult;
 import org.apache.jmeter.protocol.http.sampler.HTTPSampler2;
+import org.apache.jmeter.protocol.http.sampler.HTTPSamplerFactory;
 import org.apache.jmeter.protocol.java.sampler.JavaSamplerClient;
 import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
 import org.apache.jmeter.samplers.Entry;
 import org.apache.jmeter.samplers.Interruptible;
 import org.apache.jmeter.samplers.SampleResult;
 import org.apache.jmeter.testbeans.TestBean;
+import org.apache.jmeter.testelement.property.FunctionProperty;
 import org.apache.jmeter.testelement.property.JMeterProperty;
+import org.apache.jmeter.testelement.property.PropertyIterator;
 import org.apache.jmeter.testelement.property.TestElementProperty;
 import org.apache.jmeter.threads.JMeterContextService;
 import org.apache.jmeter.threads.JMeterVariables;
+import org.apache.jmeter.util.JMeterUtils;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.jorphan.util.JOrphanUtils;
 import org.apache.log.Logger;
 
+import flex.messaging.io.amf.ActionMessage;
+
 /**
  * A sampler for the AMF protocol.
  *
@@ -67,6 +99,46 @@ public class AmfRequest extends HTTPSampler2 implements Interruptible {
     public static final String OBJECT_ENCODING_VERSION = "AmfSampler.objectEncoding"; // $NON-NLS-1$
     public static final String PROPERTY_OVERRIDES = "AmfSampler.property_overrides"; // $NON-NLS-1$
     public static final String RESPONSE_VAR = "AmfSampler.resVar"; // $NON-NLS-1$
+    public static final String REQUEST_MODE = "AmfSampler.requestMode"; // $NON-NLS-1$
+    public static final String LAZY_RESPONSE_VAR = "AmfSampler.lazyResVar"; // $NON-NLS-1$
+    public static final String IMPLEMENTATION = "AmfSampler.implementation"; // $NON-NLS-1$
+    
+    // Request modes
+    public static final String REQUEST_MODE_XML = "xml"; // $NON-NLS-1$
+    public static final String REQUEST_MODE_TEMPLATE = "template"; // $NON-NLS-1$
+    public static final String REQUEST_MODE_PREENCODED = "preencoded"; // $NON-NLS-1$
+    public static final String REQUEST_MODE_RAW = "raw"; // $NON-NLS-1$
+    
+    /*
+     * With amf.sample_label=operation samples are labelled with the operation they
+     * call, e.g. destination.operation, instead of the sampler name
+     */
+    private static final boolean OPERATION_LABELS =
+    	"operation".equals(JMeterUtils.getPropDefault("amf.sample_label", "name")); // $NON-NLS-1$ // $NON-NLS-2$ // $NON-NLS-3$
+    
+    // Compiled request, only used in template and pre-encoded modes
+    private transient AmfMessageTemplate template;
+    
+    // Source of the current template, so it is only recompiled when they change
+    private transient String templateRawXml;
+    private transient String[][] templateOverrides;
+    
+    // Single pass replacement of the property overrides
+    private transient OverrideReplacer overrideReplacer;
+    
+    // Recorded request for raw mode and the RAWAMF value it was decoded from
+    private transient AmfRawMessage rawMessage;
+    private transient String rawMessageSource;
+    
+    // Operation label and the XML or recording it was derived from
+    private transient String operationLabel;
+    private transient String operationLabelSource;
+    
+    // Overrides of the batch this request is part of, used after its own
+    private transient Arguments parentOverrides;
+    
+    // Request in progress on the HttpClient 4 transport, for interrupt()
+    private transient volatile HttpPost currentPost;
 
     public void setAmfXml(String amfXml) {
         setProperty(AMFXML, amfXml);
@@ -76,6 +148,21 @@ public class AmfRequest extends HTTPSampler2 implements Interruptible {
         return getPropertyAsString(AMFXML);
     }
     
+    /**
+     * @param amf the request as recorded, replayed as-is in raw mode
+     */
+    public void setRawAmf(byte[] amf) {
+    	setProperty(RAWAMF, AmfRawMessage.encodeBase64(amf), "");
+    }
+    
+    /**
+     * @return the recorded request or null if there isn't one
+     */
+    public byte[] getRawAmf() {
+    	String raw = getPropertyAsString(RAWAMF);
+    	return raw.length() > 0 ? AmfRawMessage.decodeBase64(raw) : null;
+    }
+    
     public void setPropertyOverrides(Arguments vars) {
         setProperty(new TestElementProperty(PROPERTY_OVERRIDES, vars));
     }
@@ -84,7 +171,7 @@ public class AmfRequest extends HTTPSampler2 implements Interruptible {
         return getProperty(PROPERTY_OVERRIDES);
     }
     
-    private Arguments getPropertyOverrides() {
+    Arguments getPropertyOverrides() {
     	Arguments args = (Arguments) getProperty(PROPERTY_OVERRIDES).getObjectValue();
         if (args == null) {
             args = new Arguments();
@@ -100,6 +187,37 @@ public class AmfRequest extends HTTPSampler2 implements Interruptible {
     public void setResponseVar(String resVar) {
     	setProperty(RESPONSE_VAR, resVar);
     }
+    
+    /**
+     * If true the response variable holds a LazyAmfResponse, decoded only when read
+     * through ${__AmfResponseXml(var)}, instead of the decoded XML String
+     */
+    public boolean getLazyResponseVar() {
+    	return getPropertyAsBoolean(LAZY_RESPONSE_VAR, false);
+    }
+    
+    public void setLazyResponseVar(boolean lazy) {
+    	setProperty(LAZY_RESPONSE_VAR, lazy, false);
+    }
+    
+    public String getRequestMode() {
+    	return getPropertyAsString(REQUEST_MODE, REQUEST_MODE_XML);
+    }
+    
+    public void setRequestMode(String mode) {
+    	setProperty(REQUEST_MODE, mode, REQUEST_MODE_XML);
+    }
+    
+    /**
+     * @return HTTPSamplerFactory.IMPL_HTTP_CLIENT3_1 or IMPL_HTTP_CLIENT4
+     */
+    public String getImplementation() {
+    	return getPropertyAsString(IMPLEMENTATION, HTTPSamplerFactory.IMPL_HTTP_CLIENT3_1);
+    }
+    
+    public void setImplementation(String implementation) {
+    	setProperty(IMPLEMENTATION, implementation, HTTPSamplerFactory.IMPL_HTTP_CLIENT3_1);
+    }
 
     /**
      * Performs a test sample.
@@ -117,10 +235,14 @@ public class AmfRequest extends HTTPSampler2 implements Interruptible {
 
         //amfRequest.open();
 
+        AmfSampleTimings timings = AmfSampleTimings.get();
+        timings.reset();
+
         SampleResult result = null;
         try {
 	        // Issue Http request
 	        result = super.sample();
+	        applyLabel(result);
 	        
 	        if (result.getResponseCode().equals(RESPONSE_CODE_200)) {
 	        	
@@ -130,6 +252,7 @@ public class AmfRequest extends HTTPSampler2 implements Interruptible {
 	        }
         } finally {
         	//amfRequest.close();
+        	timings.save(result, JMeterContextService.getContext().getVariables());
         }
 
         return result;
@@ -138,24 +261,38 @@ public class AmfRequest extends HTTPSampler2 implements Interruptible {
     @Override
     protected HTTPSampleResult sample(URL url, String method, boolean areFollowingRedirect, int frameDepth) {
 
-        String urlStr = url.toString();
-
-        log.debug("Sampling " + urlStr);
-
-        PostMethod httpMethod = new PostMethod(urlStr);
+        log.debug("Sampling " + url);
 
-        String contentType = AmfResources.getResString("amf_content_type");
+        AmfSampleTimings timings = AmfSampleTimings.get();
         
-        String amfXml = getAmfXml();
+        // Create an AMF request to send as the POST request body
+        long begin = System.nanoTime();
+        byte[] amfMessage = createAmfMessage();
+        timings.encoded(begin, amfMessage);
         
-        // Replace properties with override values, if they exist
-        amfXml = overrideProperties(amfXml);
+        HTTPSampleResult res;
+        if (HTTPSamplerFactory.IMPL_HTTP_CLIENT4.equals(getImplementation())) {
+        	res = sampleHttpClient4(url, method, amfMessage, timings);
+        }
+        else {
+        	res = sampleHttpClient3(url, method, amfMessage, timings);
+        }
         
-        if (log.isDebugEnabled())
-        	log.debug("AMF Sample XML: \n"+amfXml);
+        // Post Process the XML into 
+        //   TODO: Make sure this doesn't change response times
+        if (res.getBytes() > 0) {
+        	saveResponseVar(res.getResponseData());
+        }
         
-        // Create an AMF request from the XML and add it as the POST request body
-        byte[] amfMessage = AmfXmlConverter.convertXmlToAmfMessage(amfXml);
+        return res;
+    }
+    
+    private HTTPSampleResult sampleHttpClient3(URL url, String method, byte[] amfMessage, AmfSampleTimings timings) {
+        String urlStr = url.toString();
+
+        PostMethod httpMethod = new PostMethod(urlStr);
+
+        String contentType = AmfResources.getResString("amf_content_type");
         
         if (amfMessage != null) {
 	        ByteArrayRequestEntity requestEntity = new ByteArrayRequestEntity(amfMessage, contentType); 
@@ -170,6 +307,7 @@ public class AmfRequest extends HTTPSampler2 implements Interruptible {
         res.setURL(url);
 
         res.sampleStart(); // Count the retries as well in the time
+        timings.requestStarted();
         HttpClient client = null;
         InputStream instream = null;
         
@@ -182,6 +320,7 @@ public class AmfRequest extends HTTPSampler2 implements Interruptible {
 
             // Execute POST
             int statusCode = client.executeMethod(httpMethod);
+            timings.responseStarted();
 
             // Needs to be done after execute to pick up all the headers
             res.setRequestHeaders(getConnectionHeaders(httpMethod));
@@ -197,6 +336,7 @@ public class AmfRequest extends HTTPSampler2 implements Interruptible {
                 }
                 res.setResponseData(readResponse(res, instream, (int) httpMethod.getResponseContentLength()));
             }
+            timings.responseRead();
 
             res.sampleEnd();
             // Done with the sampling proper.
@@ -252,19 +392,251 @@ public class AmfRequest extends HTTPSampler2 implements Interruptible {
             if (httpMethod != null) {
                 httpMethod.releaseConnection();
             }
+        }
+    }
+    
+    /**
+     * Send the request on the pooled HttpClient 4 client
+     */
+    private HTTPSampleResult sampleHttpClient4(URL url, String method, byte[] amfMessage, AmfSampleTimings timings) {
+        String urlStr = url.toString();
+
+        HTTPSampleResult res = new HTTPSampleResult();
+        res.setMonitor(isMonitor());
+
+        res.setSampleLabel(urlStr); // May be replaced later
+        res.setHTTPMethod(method);
+        res.setURL(url);
+
+        res.sampleStart(); // Count the retries as well in the time
+        timings.requestStarted();
+        HttpPost httpPost = null;
+        InputStream instream = null;
+        boolean complete = false;
+        
+        try {
+            httpPost = new HttpPost(urlStr);
+            
+            if (amfMessage != null) {
+            	// Sent straight from the array, no copy
+            	ByteArrayEntity requestEntity = new ByteArrayEntity(amfMessage);
+            	requestEntity.setContentType(AmfResources.getResString("amf_content_type")); // $NON-NLS-1$
+            	httpPost.setEntity(requestEntity);
+            }
+            
+            setupRequest(url, httpPost, res);
+            HttpContext context = new BasicHttpContext();
+            setupProxy(url, httpPost, context);
+            
+            currentPost = httpPost;
+            HttpResponse response = AmfHttpClient4.getClient().execute(httpPost, context);
+            timings.responseStarted();
             
-            // Post Process the XML into 
-            //   TODO: Make sure this doesn't change response times
-            String resVar = getResponseVar();
-            if (resVar != null && !resVar.isEmpty() && res.getBytes() > 0) {
+            res.setRequestHeaders(getRequestHeaders(httpPost));
+            
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+            	instream = entity.getContent();
+            	
+            	org.apache.http.Header responseHeader = response.getFirstHeader(HEADER_CONTENT_ENCODING);
+                if (responseHeader != null && ENCODING_GZIP.equals(responseHeader.getValue())) {
+                    instream = new GZIPInputStream(instream);
+                }
+            	res.setResponseData(readResponse(res, instream, (int) entity.getContentLength()));
+            }
+            timings.responseRead();
+            complete = true;
+
+            res.sampleEnd();
+            // Done with the sampling proper.
+
+            StatusLine statusLine = response.getStatusLine();
+            int statusCode = statusLine.getStatusCode();
+            res.setResponseCode(Integer.toString(statusCode));
+            res.setSuccessful(isSuccessCode(statusCode));
+            res.setResponseMessage(statusLine.getReasonPhrase());
+
+            org.apache.http.Header h = response.getFirstHeader(HEADER_CONTENT_TYPE);
+            if (h != null) {
+                res.setContentType(h.getValue());
+                res.setEncodingAndType(h.getValue());
+            }
+
+            res.setResponseHeaders(getResponseHeaders(response));
+
+            // Store any cookies received in the cookie manager:
+            CookieManager cookieManager = getCookieManager();
+            if (cookieManager != null) {
+            	org.apache.http.Header[] cookies = response.getHeaders(HEADER_SET_COOKIE);
+            	for (int i = 0; i < cookies.length; i++) {
+            		cookieManager.addCookieFromHeader(cookies[i].getValue(), url);
+            	}
+            }
+
+            // Save cache information
+            CacheManager cacheManager = getCacheManager();
+            if (cacheManager != null) {
+                cacheManager.saveDetails(response, res);
+            }
+
+            log.debug("Sample Complete");
+            return res;
+        } catch (IllegalArgumentException e)// e.g. some kinds of invalid URL
+        {
+            res.sampleEnd();
+            HTTPSampleResult err = errorResult(e, res);
+            err.setSampleLabel("Error: " + urlStr);
+            return err;
+        } catch (IOException e) {
+            res.sampleEnd();
+            HTTPSampleResult err = errorResult(e, res);
+            err.setSampleLabel("Error: " + urlStr);
+            return err;
+        } finally {
+        	currentPost = null;
+        	if (complete) {
+        		// Response is fully read, so this returns the connection to the pool
+        		JOrphanUtils.closeQuietly(instream);
+        	}
+        	else if (httpPost != null) {
+        		httpPost.abort();
+        	}
+        }
+    }
+    
+    /**
+     * Add the headers, cookies, authorization and timeouts of this sampler to the request,
+     * the proxy is set up by {@link #setupProxy(URL, HttpPost, HttpContext)}
+     */
+    void setupRequest(URL url, HttpPost httpPost, HTTPSampleResult res) {
+    	httpPost.setHeader("Cache-Control", "no-cache");
+    	httpPost.setHeader("Accept", "*/*");
+    	httpPost.setHeader("Accept-Encoding", "gzip, deflate");
+    	
+    	if (!getUseKeepAlive()) {
+    		httpPost.setHeader(HEADER_CONNECTION, CONNECTION_CLOSE);
+    	}
+    	
+    	HeaderManager headerManager = getHeaderManager();
+    	if (headerManager != null) {
+    		PropertyIterator iter = headerManager.getHeaders().iterator();
+    		while (iter.hasNext()) {
+    			org.apache.jmeter.protocol.http.control.Header header =
+    				(org.apache.jmeter.protocol.http.control.Header) iter.next().getObjectValue();
+    			String name = header.getName();
+    			// The entity sets the length
+    			if (!HEADER_CONTENT_LENGTH.equalsIgnoreCase(name) && !TRANSFER_ENCODING.equalsIgnoreCase(name)) {
+    				httpPost.setHeader(name, header.getValue());
+    			}
+    		}
+    	}
+    	
+    	CookieManager cookieManager = getCookieManager();
+    	if (cookieManager != null) {
+    		String cookieHeader = cookieManager.getCookieHeaderForURL(url);
+    		if (cookieHeader != null) {
+    			httpPost.setHeader(HEADER_COOKIE, cookieHeader);
+    			res.setCookies(cookieHeader);
+    		}
+    	}
+    	
+    	AuthManager authManager = getAuthManager();
+    	if (authManager != null) {
+    		String authHeader = authManager.getAuthHeaderForURL(url);
+    		if (authHeader != null) {
+    			httpPost.setHeader(HEADER_AUTHORIZATION, authHeader);
+    		}
+    	}
+    	
+    	CacheManager cacheManager = getCacheManager();
+    	if (cacheManager != null) {
+    		cacheManager.setHeaders(url, httpPost);
+    	}
+    	
+    	HttpParams params = httpPost.getParams();
+    	int connectTimeout = getConnectTimeout();
+    	if (connectTimeout > 0) {
+    		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+    	}
+    	int responseTimeout = getResponseTimeout();
+    	if (responseTimeout > 0) {
+    		HttpConnectionParams.setSoTimeout(params, responseTimeout);
+    	}
+    }
+    
+    /**
+     * Route the request through this sampler's proxy or else JMeter's (-H, -P, -u, -a),
+     * with their credentials, the same way as the HttpClient 3.1 implementation
+     */
+    void setupProxy(URL url, HttpPost httpPost, HttpContext context) {
+    	String proxyHost = getProxyHost();
+    	int proxyPort = getProxyPortInt();
+    	if (proxyHost.trim().length() > 0 && proxyPort > 0) {
+    		AmfHttpClient4.setProxy(httpPost.getParams(), context, proxyHost, proxyPort, getProxyUser(), getProxyPass(), ""); // $NON-NLS-1$
+    	}
+    	else if (AmfHttpClient4.isStaticProxy(url.getHost())) {
+    		AmfHttpClient4.setStaticProxy(httpPost.getParams(), context);
+    	}
+    }
+    
+    static String getRequestHeaders(HttpMessage message) {
+    	StringBuilder headers = new StringBuilder();
+    	org.apache.http.Header[] all = message.getAllHeaders();
+    	for (int i = 0; i < all.length; i++) {
+    		headers.append(all[i].getName()).append(": ").append(all[i].getValue()).append("\n"); // $NON-NLS-1$ // $NON-NLS-2$
+    	}
+    	return headers.toString();
+    }
+    
+    static String getResponseHeaders(HttpResponse response) {
+    	StringBuilder headers = new StringBuilder();
+    	headers.append(response.getStatusLine().toString()).append("\n"); // $NON-NLS-1$
+    	org.apache.http.Header[] all = response.getAllHeaders();
+    	for (int i = 0; i < all.length; i++) {
+    		headers.append(all[i].getName()).append(": ").append(all[i].getValue()).append("\n"); // $NON-NLS-1$ // $NON-NLS-2$
+    	}
+    	return headers.toString();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean interrupt() {
+    	HttpPost httpPost = currentPost;
+    	if (httpPost != null) {
+    		httpPost.abort();
+    		return true;
+    	}
+    	return super.interrupt();
+    }
+    
+    /**
+     * Store the response in the response variable, if there is one
+     * 
+     * @param amf
+     */
+    void saveResponseVar(byte[] amf) {
+        String resVar = getResponseVar();
+        if (resVar != null && !resVar.isEmpty()) {
+        	JMeterVariables variables = JMeterContextService.getContext().getVariables();
+        	
+        	long begin = System.nanoTime();
+        	
+        	if (getLazyResponseVar()) {
+        		log.debug("Saving response in ${"+resVar+"} for decoding on demand");
+        		
+        		variables.putObject(resVar, new LazyAmfResponse(amf));
+        	}
+        	else {
             	log.debug("Decoding response and saving in ${"+resVar+"}");
             	
             	// Decode response
-            	String amfResXml = AmfXmlConverter.convertAmfMessageToXml(res.getResponseData());
+            	String amfResXml = AmfXmlConverter.convertAmfMessageToXml(amf);
             	
-            	JMeterVariables variables = JMeterContextService.getContext().getVariables();
             	variables.put(resVar, amfResXml);
-            }
+        	}
+        	AmfSampleTimings.get().decoded(begin);
         }
     }
 
@@ -274,31 +646,286 @@ public class AmfRequest extends HTTPSampler2 implements Interruptible {
     	httpMethod.setRequestHeader("Accept-Encoding", "gzip, deflate");
     }
     
+    /**
+     * Builds and warms up the AMF XML converter before the first sample
+     */
+    @Override
+    public void testStarted() {
+    	super.testStarted();
+    	AmfConverterRegistry.prewarm();
+    }
+    
+    @Override
+    public void threadStarted() {
+    	super.threadStarted();
+    	if (AmfConverterRegistry.isPerThread()) {
+    		AmfConverterRegistry.prewarm();
+    	}
+    }
+    
+    /**
+     * Lets go of the thread's codecs, buffers and timings
+     */
+    @Override
+    public void threadFinished() {
+    	super.threadFinished();
+    	AmfCodecSession.release();
+    	AmfSampleTimings.release();
+    }
+    
     public void testEnded() {
     	super.testEnded();
+    	template = null;
+    	templateRawXml = null;
+    	templateOverrides = null;
+    	overrideReplacer = null;
+    	rawMessage = null;
+    	rawMessageSource = null;
+    	AmfHttpClient4.shutdown();
     }
     
     /**
-     * Replace properties (tags) in the xml with the provided overrides using simple regex
+     * Builds the AMF request body for this sample using the configured request mode
      * 
-     * @param xml
-     * @return
+     * @return the serialized AMF message
      */
-    private String overrideProperties(String xml) {
-    	String newXml = new String(xml);
+    protected byte[] createAmfMessage() {
+    	String mode = getRequestMode();
     	
-    	Map<String, String> args = getPropertyOverrides().getArgumentsAsMap();
+    	if (REQUEST_MODE_TEMPLATE.equals(mode)) {
+    		AmfMessageTemplate compiled = getTemplate();
+    		if (compiled != null) {
+    			return compiled.render();
+    		}
+    	}
+    	else if (REQUEST_MODE_PREENCODED.equals(mode)) {
+    		AmfMessageTemplate compiled = getTemplate();
+    		if (compiled != null) {
+    			return compiled.renderPreEncoded();
+    		}
+    	}
+    	else if (REQUEST_MODE_RAW.equals(mode)) {
+    		byte[] amf = renderRawAmf();
+    		if (amf != null) {
+    			return amf;
+    		}
+    	}
     	
-    	for(Map.Entry<String, String> arg : args.entrySet()) {
-    		String findStr = arg.getKey();
-    		String replaceStr = arg.getValue();
+        String amfXml = getAmfXml();
+        
+        // Replace properties with override values, if they exist
+        amfXml = overrideProperties(amfXml);
+        
+        if (log.isDebugEnabled())
+        	log.debug("AMF Sample XML: \n"+amfXml);
+        
+        return AmfXmlConverter.convertXmlToAmfMessage(amfXml);
+    }
+    
+    /**
+     * Apply the property overrides to the recorded request
+     * 
+     * @return the request or null if there's no recording or an override can't be applied in place
+     */
+    private byte[] renderRawAmf() {
+    	String raw = getPropertyAsString(RAWAMF);
+    	if (!raw.equals(rawMessageSource)) {
+    		rawMessageSource = raw;
+    		rawMessage = null;
     		
-    		//log.debug("Replacing \""+findStr+"\" with \""+replaceStr+"\"");
+    		if (raw.length() == 0) {
+    			log.warn("No recorded AMF for " + whoAmI() + ", falling back to XML mode");
+    		}
+    		else {
+    			try {
+    				rawMessage = new AmfRawMessage(AmfRawMessage.decodeBase64(raw));
+    			} catch (IOException ex) {
+    				log.warn("Unable to read recorded AMF for " + whoAmI() + ", falling back to XML mode", ex);
+    			}
+    		}
+    	}
+    	if (rawMessage == null) {
+    		return null;
+    	}
+    	
+    	String[][] overrides = getOverrides(false);
+    	if (overrides[0].length == 0) {
+    		return rawMessage.getBytes();
+    	}
+    	if (overrideReplacer == null || !overrideReplacer.hasKeys(overrides[0])) {
+    		overrideReplacer = new OverrideReplacer(overrides[0]);
+    	}
+    	
+    	byte[] amf = rawMessage.render(overrideReplacer, overrides[1]);
+    	if (amf == null) {
+    		log.debug("Override can't be applied to the recorded AMF for " + whoAmI() + ", using XML mode for this sample");
+    	}
+    	return amf;
+    }
+    
+    /**
+     * Get the compiled template for the current XML and overrides, compiling it if
+     * this is the first use or either of them has changed since it was compiled.
+     * 
+     * Overrides are applied to the raw XML before parsing, so variables in the XML
+     * or in override values are left for the template to evaluate on each sample.
+     * 
+     * @return the template or null if the XML can't be compiled (e.g. a variable in a non-String field)
+     */
+    private AmfMessageTemplate getTemplate() {
+    	String rawXml = getRawPropertyAsString(getProperty(AMFXML));
+    	
+    	// Overrides are merged in from AMF Request Defaults on every sample, so compare
+    	//   them rather than relying on the properties being set
+    	String[][] rawOverrides = getOverrides(true);
+    	
+    	if (rawXml.equals(templateRawXml) && Arrays.deepEquals(rawOverrides, templateOverrides)) {
+    		return template;
+    	}
+    	
+    	templateRawXml = rawXml;
+    	templateOverrides = rawOverrides;
+    	template = null;
+    	
+    	try {
+    		template = new AmfMessageTemplate(overrideProperties(rawXml, rawOverrides));
+    		log.debug("Compiled AMF template for " + whoAmI());
+    	} catch (RuntimeException ex) {
+    		log.warn("Unable to compile AMF template for " + whoAmI() + ", falling back to XML mode", ex);
+    	}
+    	
+    	return template;
+    }
+    
+    /**
+     * Labels a result of this request with the operation it calls, if samples are
+     * labelled that way and the operation can be told from the request
+     * 
+     * @param res
+     */
+    void applyLabel(SampleResult res) {
+    	if (OPERATION_LABELS && res != null) {
+    		String label = getOperationLabel();
+    		if (label != null) {
+    			res.setSampleLabel(label);
+    		}
+    	}
+    }
+    
+    /**
+     * Get the operation label of the request, deriving it from the XML, or the
+     * recording when there's no XML, if this is the first use or it has changed.
+     * 
+     * The XML is read as it is, without overrides or variables, so the label is the
+     * same for every sample and costs a comparison of the source after the first.
+     * 
+     * @return the label or null if the request doesn't name an operation
+     */
+    private String getOperationLabel() {
+    	String source = getRawPropertyAsString(getProperty(AMFXML));
+    	boolean xml = source.length() > 0;
+    	if (!xml) {
+    		source = getPropertyAsString(RAWAMF);
+    	}
+    	
+    	if (source.equals(operationLabelSource)) {
+    		return operationLabel;
+    	}
+    	
+    	operationLabelSource = source;
+    	operationLabel = null;
+    	
+    	if (source.length() > 0) {
+    		try {
+    			ActionMessage message = xml ? AmfXmlConverter.convertXmlToActionMessage(source)
+    				: AmfXmlConverter.convertAmfMessageToActionMessage(AmfRawMessage.decodeBase64(source), false);
+    			operationLabel = AmfOperationLabel.of(message);
+    		} catch (Exception ex) {
+    			log.debug("Unable to tell the operation of " + whoAmI() + ", labelling it with its name", ex);
+    		}
+    	}
+    	
+    	return operationLabel;
+    }
+    
+    /**
+     * Get the value of a property without evaluating functions or variables
+     * 
+     * @param prop
+     * @return the raw property value, e.g. "${sessionId}"
+     */
+    private static String getRawPropertyAsString(JMeterProperty prop) {
+    	if (prop instanceof FunctionProperty) {
+    		return ((CompoundVariable) prop.getObjectValue()).getRawParameters();
+    	}
+    	return prop.getStringValue();
+    }
+    
+    /**
+     * Get the property overrides, keeping the first value for duplicate names
+     * like Arguments.getArgumentsAsMap()
+     * 
+     * @param raw true to leave variables in the values unevaluated
+     * @return search strings and replace strings, in order
+     */
+    private String[][] getOverrides(boolean raw) {
+    	List<String> names = new ArrayList<String>();
+    	List<String> values = new ArrayList<String>();
+    	Set<String> seen = new HashSet<String>();
+    	
+    	addOverrides(getPropertyOverrides(), raw, names, values, seen);
+    	if (parentOverrides != null) {
+    		addOverrides(parentOverrides, raw, names, values, seen);
+    	}
+    	
+    	return new String[][] { names.toArray(new String[names.size()]), values.toArray(new String[values.size()]) };
+    }
+    
+    private static void addOverrides(Arguments overrides, boolean raw, List<String> names, List<String> values, Set<String> seen) {
+    	PropertyIterator iter = overrides.getArguments().iterator();
+    	while (iter.hasNext()) {
+    		Argument arg = (Argument) iter.next().getObjectValue();
+    		String name = arg.getName();
     		
-    		newXml = newXml.replace(findStr, replaceStr);
+    		if (seen.add(name)) {
+    			names.add(name);
+    			values.add(raw ? getRawPropertyAsString(arg.getProperty(Argument.VALUE)) : arg.getValue());
+    		}
+    	}
+    }
+    
+    /**
+     * Overrides to apply after this request's own, e.g. from the AMF Request Defaults
+     * of a batch this request is sent in
+     * 
+     * @param overrides
+     */
+    void setParentOverrides(Arguments overrides) {
+    	parentOverrides = overrides;
+    }
+    
+    /**
+     * Replace properties (tags) in the xml with the provided overrides
+     * 
+     * @param xml
+     * @return
+     */
+    private String overrideProperties(String xml) {
+    	return overrideProperties(xml, getOverrides(false));
+    }
+    
+    private String overrideProperties(String xml, String[][] overrides) {
+    	String[] names = overrides[0];
+    	if (names.length == 0) {
+    		return xml;
+    	}
+    	
+    	// Overrides rarely change during a test, so the search strings are compiled once
+    	if (overrideReplacer == null || !overrideReplacer.hasKeys(names)) {
+    		overrideReplacer = new OverrideReplacer(names);
     	}
     	
-    	return newXml;
+    	return overrideReplacer.replace(xml, overrides[1]);
     }
 
     /**
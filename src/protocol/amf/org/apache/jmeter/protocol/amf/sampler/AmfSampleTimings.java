@@ -0,0 +1,192 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.sampler;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.protocol.HttpContext;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterVariables;
+import org.apache.jmeter.util.JMeterUtils;
+
+/**
+ * Where the time of an AMF sample went, saved in JMeter variables after each sample
+ * so they can be written to the results with the sample_variables property:
+ *
+ * <pre>
+ * sample_variables=AMF_ENCODE_US,AMF_CONNECT_US,AMF_TTFB_US,AMF_DOWNLOAD_US,AMF_DECODE_US,AMF_REQUEST_BYTES,AMF_RESPONSE_BYTES
+ * </pre>
+ *
+ * Times are in microseconds. Encoding the request and decoding the response are done
+ * by JMeter outside the sample's elapsed time, the other three split that time:
+ * connect is until the request is about to be sent, including waiting for a pooled
+ * connection, time to first byte until the response headers are received, and
+ * download until the body is read. The HttpClient 3.1 implementation can't tell
+ * connecting from sending, so its connect time is 0 and counted in time to first
+ * byte. Decode time is 0 unless the response is decoded into a variable. The AMF
+ * Async Request only has the millisecond times its I/O thread stamps on each request.
+ *
+ * Each thread keeps one, reset at the start of every sample. Saving the variables
+ * is turned off with amf.sample_timings=false.
+ */
+final class AmfSampleTimings {
+
+	static final String ENCODE = "AMF_ENCODE_US"; // $NON-NLS-1$
+	static final String CONNECT = "AMF_CONNECT_US"; // $NON-NLS-1$
+	static final String TTFB = "AMF_TTFB_US"; // $NON-NLS-1$
+	static final String DOWNLOAD = "AMF_DOWNLOAD_US"; // $NON-NLS-1$
+	static final String DECODE = "AMF_DECODE_US"; // $NON-NLS-1$
+	static final String REQUEST_BYTES = "AMF_REQUEST_BYTES"; // $NON-NLS-1$
+	static final String RESPONSE_BYTES = "AMF_RESPONSE_BYTES"; // $NON-NLS-1$
+
+	private static final boolean ENABLED =
+		JMeterUtils.getPropDefault("amf.sample_timings", true); // $NON-NLS-1$
+
+	private static final ThreadLocal<AmfSampleTimings> TIMINGS = new ThreadLocal<AmfSampleTimings>() {
+		@Override
+		protected AmfSampleTimings initialValue() {
+			return new AmfSampleTimings();
+		}
+	};
+
+	/**
+	 * Marks the connection as ready when HttpClient 4 is about to send the request,
+	 * the interceptors run on the sampling thread once the connection is open
+	 */
+	static final HttpRequestInterceptor CONNECTED = new HttpRequestInterceptor() {
+		public void process(HttpRequest request, HttpContext context) {
+			get().connected();
+		}
+	};
+
+	// System.nanoTime of each step, 0 until it's reached
+	private long requestStarted;
+	private long connected;
+	private long responseStarted;
+	private long responseRead;
+
+	// Spent so far, a batch encodes and decodes each of its requests
+	private long encodeTime;
+	private long decodeTime;
+
+	private int requestBytes;
+
+	private AmfSampleTimings() {
+	}
+
+	/**
+	 * @return the calling thread's timings
+	 */
+	static AmfSampleTimings get() {
+		return TIMINGS.get();
+	}
+
+	static void release() {
+		TIMINGS.remove();
+	}
+
+	/**
+	 * Starts over for a new sample
+	 */
+	void reset() {
+		requestStarted = 0;
+		connected = 0;
+		responseStarted = 0;
+		responseRead = 0;
+		encodeTime = 0;
+		decodeTime = 0;
+		requestBytes = 0;
+	}
+
+	/**
+	 * @param begin System.nanoTime before encoding
+	 * @param amf the encoded request, null if there is none
+	 */
+	void encoded(long begin, byte[] amf) {
+		encodeTime += System.nanoTime() - begin;
+		requestBytes = amf != null ? amf.length : 0;
+	}
+
+	/**
+	 * @param begin System.nanoTime before decoding
+	 */
+	void decoded(long begin) {
+		decodeTime += System.nanoTime() - begin;
+	}
+
+	/**
+	 * Takes the steps of a request sent by the AMF Async Request, in place of those
+	 * of the sampling thread
+	 *
+	 * @param encodeTime nanoseconds spent encoding the request
+	 * @param amfBytes length of the encoded request
+	 * @param start System.currentTimeMillis when the request was sent, the other
+	 *            steps 0 until they're reached
+	 * @param connected
+	 * @param firstByte
+	 * @param end
+	 */
+	void exchanged(long encodeTime, int amfBytes, long start, long connected, long firstByte, long end) {
+		this.encodeTime = encodeTime;
+		requestBytes = amfBytes;
+		requestStarted = start * 1000000;
+		this.connected = connected * 1000000;
+		responseStarted = firstByte * 1000000;
+		responseRead = end * 1000000;
+	}
+
+	void requestStarted() {
+		requestStarted = System.nanoTime();
+	}
+
+	void connected() {
+		connected = System.nanoTime();
+	}
+
+	void responseStarted() {
+		responseStarted = System.nanoTime();
+	}
+
+	void responseRead() {
+		responseRead = System.nanoTime();
+	}
+
+	/**
+	 * Puts the timings of the sample that just ended in the thread's variables
+	 *
+	 * @param res result of the sample
+	 * @param vars
+	 */
+	void save(SampleResult res, JMeterVariables vars) {
+		if (!ENABLED || vars == null) {
+			return;
+		}
+
+		long sent = connected != 0 ? connected : requestStarted;
+		vars.put(ENCODE, micros(encodeTime));
+		vars.put(CONNECT, micros(connected != 0 && requestStarted != 0 ? connected - requestStarted : 0));
+		vars.put(TTFB, micros(responseStarted != 0 && sent != 0 ? responseStarted - sent : 0));
+		vars.put(DOWNLOAD, micros(responseRead != 0 && responseStarted != 0 ? responseRead - responseStarted : 0));
+		vars.put(DECODE, micros(decodeTime));
+		vars.put(REQUEST_BYTES, Integer.toString(requestBytes));
+		vars.put(RESPONSE_BYTES, Integer.toString(res != null ? res.getBytes() : 0));
+	}
+
+	private static String micros(long nanos) {
+		return Long.toString(Math.max(0, nanos / 1000));
+	}
+}
@@ -19,6 +19,8 @@ package org.apache.jmeter.protocol.amf.util;
 import java.util.Iterator;
 import java.util.Map;
 
+import org.apache.jmeter.protocol.amf.codec.AmfTable;
+
 import com.thoughtworks.xstream.converters.Converter;
 import com.thoughtworks.xstream.converters.MarshallingContext;
 import com.thoughtworks.xstream.converters.UnmarshallingContext;
@@ -45,19 +47,21 @@ public class ASObjectConverter extends AbstractCollectionConverter {
 	@SuppressWarnings("rawtypes")
 	@Override
 	public boolean canConvert(Class clazz) {
-		return clazz.equals(ASObject.class);
+		return clazz.equals(ASObject.class) || clazz.equals(AmfTable.Row.class);
 	}
 
 	@SuppressWarnings({ "rawtypes" })
 	@Override
 	public void marshal(Object obj, HierarchicalStreamWriter writer,
 			MarshallingContext context) {
-		ASObject asObj = (ASObject) obj;
+		// Rows of a table are written as the ASObjects they stand for
+		Map asObj = (Map) obj;
+		String type = obj instanceof ASObject ? ((ASObject) obj).getType() : ((AmfTable.Row) obj).getType();
 		
 		writer.addAttribute("serialVer", currSerialVer);
 		
-		if (asObj.getType() != null)
-			writer.addAttribute("objClass", asObj.getType());
+		if (type != null)
+			writer.addAttribute("objClass", type);
 		
 		for (Iterator iterator = asObj.entrySet().iterator(); iterator.hasNext();) {
             Map.Entry entry = (Map.Entry) iterator.next();
@@ -0,0 +1,160 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.jmeter.protocol.amf.codec.AmfClassAliases;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.jorphan.util.JOrphanUtils;
+import org.apache.log.Logger;
+
+import flex.messaging.io.ClassAliasRegistry;
+
+/**
+ * The class aliases AMF messages are decoded with, one set for each use: rendering
+ * responses for display, sampling and capturing requests in the proxy.
+ *
+ * They are loaded once, when the class loads, and never change. By default only
+ * rendering has aliases, DSC and DSK for the small message classes, since they make
+ * XStream fail on captured requests. The JMeter property amf.aliases.file names a
+ * properties file, relative to the bin directory, whose entries prefixed with a
+ * profile name add to that profile's aliases or, when empty, remove one, e.g.
+ *
+ * <pre>
+ * sampling.DSK=flex.messaging.messages.AcknowledgeMessageExt
+ * render.DSC=
+ * </pre>
+ */
+public final class AmfAliasProfiles {
+
+	private static final Logger log = LoggingManager.getLoggerForClass();
+
+	private static final String RENDER_NAME = "render"; // $NON-NLS-1$
+	private static final String SAMPLING_NAME = "sampling"; // $NON-NLS-1$
+	private static final String PROXY_NAME = "proxy"; // $NON-NLS-1$
+
+	private static final Properties FILE = load(JMeterUtils.getPropDefault("amf.aliases.file", "")); // $NON-NLS-1$ // $NON-NLS-2$
+
+	/**
+	 * Aliases for rendering responses, e.g. in the View Results Tree
+	 */
+	public static final AmfClassAliases RENDER = create(RENDER_NAME, new String[] {
+		"DSC", "flex.messaging.messages.CommandMessageExt", // $NON-NLS-1$ // $NON-NLS-2$
+		"DSK", "flex.messaging.messages.AcknowledgeMessageExt" // $NON-NLS-1$ // $NON-NLS-2$
+	});
+
+	/**
+	 * Aliases for the responses of samplers, e.g. for extraction and assertions
+	 */
+	public static final AmfClassAliases SAMPLING = create(SAMPLING_NAME, new String[0]);
+
+	/**
+	 * Aliases for the requests recorded by the proxy
+	 */
+	public static final AmfClassAliases PROXY = create(PROXY_NAME, new String[0]);
+
+	// Whether the render aliases were put in BlazeDS's registry
+	private static volatile boolean renderRegistered;
+
+	private AmfAliasProfiles() {
+		// Not intended to be instantiated
+	}
+
+	/**
+	 * Puts the render aliases in BlazeDS's global ClassAliasRegistry, the only aliases
+	 * BlazeDS knows, unless the alias is registered already. Called the first time
+	 * BlazeDS renders a message, which is when they were always registered; from
+	 * then on they also apply to any other message BlazeDS decodes, as with
+	 * BlazeDS 4, which registers DSC and DSK itself.
+	 */
+	static void registerRenderAliases() {
+		if (renderRegistered) {
+			return;
+		}
+		ClassAliasRegistry registry = ClassAliasRegistry.getRegistry();
+		for (Iterator<Map.Entry<String, String>> i = RENDER.getClassNames().entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, String> alias = i.next();
+			if (registry.getClassName(alias.getKey()) == null) {
+				registry.registerAlias(alias.getKey(), alias.getValue());
+			}
+		}
+		renderRegistered = true;
+	}
+
+	/*
+	 * The default aliases of a profile, given as pairs of alias and class name, with
+	 * the changes from the file
+	 */
+	private static AmfClassAliases create(String profile, String[] defaults) {
+		Map<String, String> classNames = new HashMap<String, String>();
+		for (int i = 0; i < defaults.length; i += 2) {
+			classNames.put(defaults[i], defaults[i + 1]);
+		}
+
+		String prefix = profile + "."; // $NON-NLS-1$
+		for (Iterator<?> i = FILE.keySet().iterator(); i.hasNext();) {
+			String key = (String) i.next();
+			if (key.startsWith(prefix) && key.length() > prefix.length()) {
+				String alias = key.substring(prefix.length());
+				String className = FILE.getProperty(key).trim();
+				if (className.length() > 0) {
+					classNames.put(alias, className);
+				}
+				else {
+					classNames.remove(alias);
+				}
+			}
+		}
+
+		AmfClassAliases aliases = new AmfClassAliases(classNames);
+		if (log.isDebugEnabled()) {
+			log.debug("AMF class aliases for " + profile + ": " + aliases);
+		}
+		return aliases;
+	}
+
+	private static Properties load(String name) {
+		Properties properties = new Properties();
+		if (name.length() == 0) {
+			return properties;
+		}
+
+		File file = new File(name);
+		if (!file.isAbsolute()) {
+			file = new File(JMeterUtils.getJMeterBinDir(), name);
+		}
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			properties.load(in);
+		} catch (IOException e) {
+			log.warn("Unable to load AMF class aliases from " + file, e);
+		} finally {
+			JOrphanUtils.closeQuietly(in);
+		}
+		return properties;
+	}
+}
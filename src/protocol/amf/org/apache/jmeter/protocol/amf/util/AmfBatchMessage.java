@@ -0,0 +1,312 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jmeter.protocol.amf.codec.AmfFormatException;
+import org.apache.jmeter.protocol.amf.codec.AmfInput;
+
+/**
+ * Several AMF requests sent as one message, the way a Flex client batches remoting
+ * calls made in the same frame.
+ *
+ * Bodies are copied byte for byte, only the response URI is renumbered so each
+ * body of the response can be traced back to the request it answers. Headers are
+ * taken from the requests in order, the first header of each name wins.
+ */
+public class AmfBatchMessage {
+
+	private static final String RESULT_SUFFIX = "/onResult"; // $NON-NLS-1$
+
+	private static final String STATUS_SUFFIX = "/onStatus"; // $NON-NLS-1$
+
+	private static final int MAX_AMF0_STRING = 0xFFFF;
+
+	private final byte[] amf;
+
+	private final int requestCount;
+
+	// Request and original response URI of each body, by its position in the batch
+	private final int[] bodyRequests;
+	private final String[] bodyResponseUris;
+
+	/**
+	 * Combines complete AMF messages into one
+	 *
+	 * @param requests serialized AMF messages, in the order they are sent
+	 * @throws IOException if one of the messages can't be read
+	 */
+	public AmfBatchMessage(byte[][] requests) throws IOException {
+		requestCount = requests.length;
+
+		Envelope[] envelopes = new Envelope[requests.length];
+		int bodyCount = 0;
+		for (int i = 0; i < requests.length; i++) {
+			envelopes[i] = new Envelope(requests[i]);
+			bodyCount += envelopes[i].bodies.size();
+		}
+
+		bodyRequests = new int[bodyCount];
+		bodyResponseUris = new String[bodyCount];
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeShort(out, requests.length > 0 ? envelopes[0].version : 3);
+
+		// Headers
+		Set<String> names = new HashSet<String>();
+		List<byte[]> headers = new ArrayList<byte[]>();
+		for (int i = 0; i < envelopes.length; i++) {
+			Envelope envelope = envelopes[i];
+			for (int h = 0; h < envelope.headerNames.size(); h++) {
+				if (names.add(envelope.headerNames.get(h))) {
+					int[] range = envelope.headers.get(h);
+					headers.add(copy(requests[i], range[0], range[1]));
+				}
+			}
+		}
+		writeShort(out, headers.size());
+		for (int h = 0; h < headers.size(); h++) {
+			out.write(headers.get(h), 0, headers.get(h).length);
+		}
+
+		// Bodies, numbered from 1 as a client would
+		writeShort(out, bodyCount);
+		int body = 0;
+		for (int i = 0; i < envelopes.length; i++) {
+			List<Body> bodies = envelopes[i].bodies;
+			for (int b = 0; b < bodies.size(); b++) {
+				Body request = bodies.get(b);
+				bodyRequests[body] = i;
+				bodyResponseUris[body] = request.responseUri;
+				body++;
+
+				writeUTF(out, request.targetUri);
+				writeUTF(out, "/" + body); // $NON-NLS-1$
+				out.write(requests[i], request.start, request.end - request.start);
+			}
+		}
+
+		amf = out.toByteArray();
+	}
+
+	/**
+	 * @return the combined message
+	 */
+	public byte[] getBytes() {
+		return amf;
+	}
+
+	/**
+	 * @return number of messages combined
+	 */
+	public int getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * Splits a response to the batch into a response for each of the requests.
+	 *
+	 * Each is a complete AMF message holding the response headers and the bodies that
+	 * answer that request, with the request's original response URI restored.
+	 *
+	 * @param response AMF response to the combined message
+	 * @return a response for each request, in order, null where the server didn't answer
+	 * @throws IOException if the response can't be read
+	 */
+	public Response[] split(byte[] response) throws IOException {
+		Envelope envelope = new Envelope(response);
+
+		List<List<Body>> answers = new ArrayList<List<Body>>(requestCount);
+		for (int i = 0; i < requestCount; i++) {
+			answers.add(null);
+		}
+
+		for (int b = 0; b < envelope.bodies.size(); b++) {
+			Body body = envelope.bodies.get(b);
+			int index = getBodyIndex(body.targetUri);
+			if (index < 0) {
+				continue;
+			}
+			int request = bodyRequests[index];
+			if (answers.get(request) == null) {
+				answers.set(request, new ArrayList<Body>());
+			}
+			answers.get(request).add(body);
+		}
+
+		Response[] responses = new Response[requestCount];
+		for (int i = 0; i < requestCount; i++) {
+			List<Body> bodies = answers.get(i);
+			if (bodies == null) {
+				continue;
+			}
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writeShort(out, envelope.version);
+			writeShort(out, envelope.headers.size());
+			for (int h = 0; h < envelope.headers.size(); h++) {
+				int[] range = envelope.headers.get(h);
+				out.write(response, range[0], range[1] - range[0]);
+			}
+
+			boolean fault = false;
+			writeShort(out, bodies.size());
+			for (int b = 0; b < bodies.size(); b++) {
+				Body body = bodies.get(b);
+				String suffix = body.targetUri.substring(body.targetUri.lastIndexOf('/'));
+				fault |= STATUS_SUFFIX.equals(suffix);
+
+				writeUTF(out, bodyResponseUris[getBodyIndex(body.targetUri)] + suffix);
+				writeUTF(out, body.responseUri);
+				out.write(response, body.start, body.end - body.start);
+			}
+
+			responses[i] = new Response(out.toByteArray(), fault);
+		}
+		return responses;
+	}
+
+	/*
+	 * Position in the batch of the request body a response body answers, e.g. /3/onResult is the third
+	 */
+	private int getBodyIndex(String targetUri) {
+		if (!targetUri.endsWith(RESULT_SUFFIX) && !targetUri.endsWith(STATUS_SUFFIX)) {
+			return -1;
+		}
+		int slash = targetUri.lastIndexOf('/');
+		if (slash < 2) {
+			return -1;
+		}
+		try {
+			int index = Integer.parseInt(targetUri.substring(1, slash)) - 1;
+			return index >= 0 && index < bodyRequests.length ? index : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static byte[] copy(byte[] data, int start, int end) {
+		byte[] copy = new byte[end - start];
+		System.arraycopy(data, start, copy, 0, copy.length);
+		return copy;
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int value) {
+		out.write((value >>> 8) & 0xFF);
+		out.write(value & 0xFF);
+	}
+
+	private static void writeUTF(ByteArrayOutputStream out, String str) throws IOException {
+		byte[] bytes = AmfPreEncodedMessage.encodeUtf(str, true);
+		if (bytes.length > MAX_AMF0_STRING) {
+			throw new AmfFormatException("String too long for an AMF envelope: " + bytes.length + " bytes");
+		}
+		writeShort(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * The response to one request of the batch
+	 */
+	public static class Response {
+		private final byte[] amf;
+
+		private final boolean fault;
+
+		Response(byte[] amf, boolean fault) {
+			this.amf = amf;
+			this.fault = fault;
+		}
+
+		/**
+		 * @return complete AMF message
+		 */
+		public byte[] getAmf() {
+			return amf;
+		}
+
+		/**
+		 * @return true if any of the bodies is an onStatus (fault) response
+		 */
+		public boolean isFault() {
+			return fault;
+		}
+	}
+
+	/*
+	 * Location of the headers and bodies of a message
+	 */
+	private static class Envelope {
+		final int version;
+
+		// Start and end of each header, including its name
+		final List<int[]> headers = new ArrayList<int[]>();
+		final List<String> headerNames = new ArrayList<String>();
+
+		final List<Body> bodies = new ArrayList<Body>();
+
+		Envelope(byte[] amf) throws IOException {
+			AmfInput in = new AmfInput(amf);
+			version = in.readUnsignedShort();
+
+			int headerCount = in.readUnsignedShort();
+			for (int i = 0; i < headerCount; i++) {
+				int start = in.getPosition();
+				headerNames.add(in.readUTF());
+				in.readUnsignedByte();
+				in.readInt();
+				in.resetReferences();
+				in.skipAmf0Value();
+				headers.add(new int[] { start, in.getPosition() });
+			}
+
+			int bodyCount = in.readUnsignedShort();
+			for (int i = 0; i < bodyCount; i++) {
+				String targetUri = in.readUTF();
+				String responseUri = in.readUTF();
+				int start = in.getPosition();
+				in.readInt();
+				in.resetReferences();
+				in.skipAmf0Value();
+				bodies.add(new Body(targetUri, responseUri, start, in.getPosition()));
+			}
+		}
+	}
+
+	/*
+	 * A body's URIs and the location of its length and value
+	 */
+	private static class Body {
+		final String targetUri;
+		final String responseUri;
+		final int start;
+		final int end;
+
+		Body(String targetUri, String responseUri, int start, int end) {
+			this.targetUri = targetUri;
+			this.responseUri = responseUri;
+			this.start = start;
+			this.end = end;
+		}
+	}
+}
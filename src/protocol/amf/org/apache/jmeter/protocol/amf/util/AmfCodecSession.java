@@ -0,0 +1,233 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.apache.jmeter.protocol.amf.codec.AmfMessageReader;
+import org.apache.jmeter.protocol.amf.codec.AmfMessageWriter;
+import org.apache.jmeter.util.JMeterUtils;
+
+import flex.messaging.io.SerializationContext;
+import flex.messaging.io.amf.AmfMessageDeserializer;
+import flex.messaging.io.amf.AmfMessageSerializer;
+
+/**
+ * What a thread keeps between samples to encode and decode AMF: the plugin's reader
+ * and writer, the XML writer and, for the messages left to BlazeDS, its serializer
+ * and deserializer with their streams and contexts.
+ *
+ * Everything is created on first use and reused for every message after, so a
+ * sample only allocates the objects it decodes and the bytes it sends. Buffers keep
+ * the size of the largest message handled, unless it was larger than the JMeter
+ * property amf.codec.retained_buffer (1 MB by default), in which case the buffer is
+ * given up once the message is done with rather than held for the rest of the test.
+ *
+ * Samplers release their thread's session in threadFinished. A thread that uses one
+ * again afterwards gets a new one.
+ */
+public final class AmfCodecSession {
+
+	private static final int RETAINED_BUFFER =
+		JMeterUtils.getPropDefault("amf.codec.retained_buffer", 1024 * 1024); // $NON-NLS-1$
+
+	private static final int INITIAL_BUFFER = 8192;
+
+	private static final ThreadLocal<AmfCodecSession> SESSION = new ThreadLocal<AmfCodecSession>() {
+		@Override
+		protected AmfCodecSession initialValue() {
+			return new AmfCodecSession();
+		}
+	};
+
+	private final SerializationContext deserializationContext = AmfXmlConverter.createDeserializationContext();
+
+	private AmfMessageReader reader;
+
+	private AmfMessageWriter writer;
+
+	private PooledXmlWriter xmlWriter;
+
+	private AmfMessageSerializer serializer;
+	private Output serializerOutput;
+
+	private AmfMessageDeserializer deserializer;
+	private Input deserializerInput;
+
+	// Set once a message had to be left to BlazeDS
+	private boolean fellBack;
+
+	private AmfCodecSession() {
+	}
+
+	/**
+	 * @return the calling thread's session
+	 */
+	public static AmfCodecSession get() {
+		return SESSION.get();
+	}
+
+	/**
+	 * Lets go of the calling thread's session and everything it holds
+	 */
+	public static void release() {
+		SESSION.remove();
+	}
+
+	/**
+	 * @return the reader, with the tables set as configured
+	 */
+	public AmfMessageReader getReader() {
+		if (reader == null) {
+			reader = new AmfMessageReader(deserializationContext);
+			reader.setTables(AmfXmlConverter.TABLES);
+		}
+		return reader;
+	}
+
+	/**
+	 * @return the writer
+	 */
+	public AmfMessageWriter getWriter() {
+		if (writer == null) {
+			writer = new AmfMessageWriter(new SerializationContext());
+		}
+		return writer;
+	}
+
+	/**
+	 * Copies the message last written by the writer, then trims its buffer
+	 *
+	 * @return the message
+	 */
+	public byte[] takeWritten() {
+		byte[] bytes = writer.toByteArray();
+		writer.trimBuffer(RETAINED_BUFFER);
+		return bytes;
+	}
+
+	PooledXmlWriter getXmlWriter() {
+		if (xmlWriter == null) {
+			xmlWriter = new PooledXmlWriter();
+		}
+		return xmlWriter;
+	}
+
+	/**
+	 * @return BlazeDS's serializer, writing to an emptied buffer read back by
+	 * {@link #takeSerialized()}
+	 */
+	AmfMessageSerializer getSerializer() {
+		if (serializer == null) {
+			serializerOutput = new Output();
+			serializer = new AmfMessageSerializer();
+			serializer.initialize(new SerializationContext(), serializerOutput, null);
+		}
+		serializerOutput.reset();
+		return serializer;
+	}
+
+	/**
+	 * @return what was written by the serializer since {@link #getSerializer()}
+	 */
+	byte[] takeSerialized() {
+		byte[] bytes = serializerOutput.toByteArray();
+		serializerOutput.trim();
+		return bytes;
+	}
+
+	/**
+	 * @param amf the message to read next
+	 * @return BlazeDS's deserializer, reading the given message
+	 */
+	AmfMessageDeserializer getDeserializer(byte[] amf) {
+		if (deserializer == null) {
+			deserializerInput = new Input();
+			deserializer = new AmfMessageDeserializer();
+			deserializer.initialize(deserializationContext, deserializerInput, null);
+		}
+		deserializerInput.set(amf);
+		return deserializer;
+	}
+
+	/**
+	 * Lets go of the message last read by the deserializer
+	 *
+	 * @param failed true if reading it failed, in which case the deserializer is
+	 * replaced rather than trusted with the next message
+	 */
+	void deserialized(boolean failed) {
+		deserializerInput.set(EMPTY);
+		if (failed) {
+			deserializer = null;
+		}
+	}
+
+	/**
+	 * @return true the first time a message of this thread is left to BlazeDS
+	 */
+	boolean isFirstFallback() {
+		if (fellBack) {
+			return false;
+		}
+		fellBack = true;
+		return true;
+	}
+
+	/**
+	 * Replaces the serializer after it failed
+	 */
+	void serializerFailed() {
+		serializer = null;
+	}
+
+	private static final byte[] EMPTY = new byte[0];
+
+	/*
+	 * A byte array stream that doesn't start small for each message and doesn't keep
+	 * an oversized buffer
+	 */
+	private static final class Output extends ByteArrayOutputStream {
+		Output() {
+			super(INITIAL_BUFFER);
+		}
+
+		void trim() {
+			count = 0;
+			if (buf.length > RETAINED_BUFFER && buf.length > INITIAL_BUFFER) {
+				buf = new byte[Math.max(RETAINED_BUFFER, INITIAL_BUFFER)];
+			}
+		}
+	}
+
+	/*
+	 * A byte array stream that can be pointed at another array
+	 */
+	private static final class Input extends ByteArrayInputStream {
+		Input() {
+			super(EMPTY);
+		}
+
+		void set(byte[] data) {
+			buf = data;
+			pos = 0;
+			count = data.length;
+			mark = 0;
+		}
+	}
+}
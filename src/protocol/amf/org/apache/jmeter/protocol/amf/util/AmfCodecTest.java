@@ -0,0 +1,337 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.jmeter.protocol.amf.codec.AmfMessageReader;
+import org.apache.jmeter.protocol.amf.codec.AmfSelection;
+import org.apache.jmeter.util.JMeterUtils;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+import flex.messaging.io.ArrayCollection;
+import flex.messaging.io.SerializationContext;
+import flex.messaging.io.amf.ASObject;
+import flex.messaging.io.amf.ActionContext;
+import flex.messaging.io.amf.ActionMessage;
+import flex.messaging.io.amf.AmfMessageDeserializer;
+import flex.messaging.io.amf.AmfMessageSerializer;
+import flex.messaging.io.amf.MessageBody;
+import flex.messaging.io.amf.MessageHeader;
+import flex.messaging.messages.AcknowledgeMessage;
+import flex.messaging.messages.AcknowledgeMessageExt;
+import flex.messaging.messages.CommandMessage;
+import flex.messaging.messages.RemotingMessage;
+
+/**
+ * Checks the plugin's codec against BlazeDS on random messages: both must encode
+ * them to the same bytes, the plugin's reader must decode those without falling back
+ * to BlazeDS and to the same values, and its XML must convert back to the same values.
+ * Throws an IllegalStateException naming the first message that doesn't.
+ * 
+ * Also renders an acknowledgement sent as DSK, which only the render aliases read.
+ * With blazeds, BlazeDS decodes it as with amf.codec=blazeds.
+ * 
+ * Usage: AmfCodecTest [messages] [seed] [blazeds]
+ */
+public class AmfCodecTest {
+	
+	private static final String[] STRINGS = {
+		"", "a", "b", "name", "type", "length", "0", "héllo", "日本", "\u0000x", "k1", "k2"
+	};
+	
+	private final Random random;
+	
+	/*
+	 * Values that can be sent again by reference, only once complete: XStream can't
+	 * read back a cycle through an array
+	 */
+	private final List<Object> made = new ArrayList<Object>();
+	
+	private AmfCodecTest(long seed) {
+		random = new Random(seed);
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+		if (args.length > 2 && "blazeds".equals(args[2])) { // $NON-NLS-1$
+			// Before AmfXmlConverter reads it
+			File properties = File.createTempFile("amfcodec", ".properties"); // $NON-NLS-1$ // $NON-NLS-2$
+			properties.deleteOnExit();
+			JMeterUtils.loadJMeterProperties(properties.getPath());
+			JMeterUtils.setProperty("amf.codec", "blazeds"); // $NON-NLS-1$ // $NON-NLS-2$
+		}
+		
+		checkRender();
+		
+		XStream xs = AmfXmlConverter.getXStream();
+		XStream values = createValueXStream();
+		AmfCodecSession session = AmfCodecSession.get();
+		AmfMessageReader reader = session.getReader();
+		reader.setAliases(AmfAliasProfiles.SAMPLING);
+		
+		long bytes = 0;
+		for (int i = 0; i < messages; i++) {
+			ActionMessage message = new AmfCodecTest(seed + i).createMessage();
+			
+			byte[] expected = encodeWithBlazeDS(message);
+			// Encoded and decoded directly, AmfXmlConverter would hide a fallback
+			byte[] amf;
+			try {
+				session.getWriter().writeMessage(message);
+				amf = session.takeWritten();
+			}
+			catch (Exception ex) {
+				throw new IllegalStateException("Message " + (seed + i) + " left to BlazeDS: " + ex, ex);
+			}
+			check(Arrays.equals(expected, amf), seed + i, "encoded differently from BlazeDS");
+			
+			ActionMessage decoded = new ActionMessage();
+			try {
+				reader.readMessage(amf, 0, amf.length, decoded, AmfSelection.ALL);
+			}
+			catch (Exception ex) {
+				throw new IllegalStateException("Message " + (seed + i) + " left to BlazeDS: " + ex, ex);
+			}
+			String expectedValues = values.toXML(decodeWithBlazeDS(expected));
+			check(values.toXML(decoded).equals(expectedValues), seed + i, "decoded differently from BlazeDS");
+			
+			byte[] converted = AmfXmlConverter.convertXmlToAmfMessage(xs.toXML(decoded));
+			check(values.toXML(decodeWithBlazeDS(converted)).equals(expectedValues), seed + i,
+				"changed by the XML round trip");
+			bytes += amf.length;
+		}
+		
+		System.out.println(messages + " messages, " + bytes + " bytes, same as BlazeDS");
+	}
+	
+	private static void checkRender() throws Exception {
+		AcknowledgeMessage ack = new AcknowledgeMessage();
+		ack.setMessageId("M"); // $NON-NLS-1$
+		ack.setCorrelationId("C"); // $NON-NLS-1$
+		ack.setBody("rendered"); // $NON-NLS-1$
+		ActionMessage message = new ActionMessage(3);
+		message.addBody(new MessageBody("/1/onResult", "null", new AcknowledgeMessageExt(ack))); // $NON-NLS-1$ // $NON-NLS-2$
+		
+		String xml = AmfXmlConverter.convertAmfMessageToXml(encodeWithBlazeDS(message), true);
+		if (xml.indexOf("<string>rendered</string>") < 0) { // $NON-NLS-1$
+			throw new IllegalStateException("DSK message not rendered: " + xml);
+		}
+		System.out.println("DSK message rendered");
+	}
+	
+	private static void check(boolean same, long message, String what) {
+		if (!same) {
+			throw new IllegalStateException("Message " + message + " " + what);
+		}
+	}
+	
+	/*
+	 * XML of the values alone: a numeric array read before it's boxed can't be the
+	 * Object[] it is later, so references aren't compared, and numeric arrays are
+	 * written like the Object[] BlazeDS reads
+	 */
+	private static XStream createValueXStream() {
+		XStream xs = AmfConverterRegistry.createXStream();
+		xs.setMode(XStream.NO_REFERENCES);
+		xs.alias("object-array", int[].class); // $NON-NLS-1$
+		xs.alias("object-array", double[].class); // $NON-NLS-1$
+		xs.registerConverter(new Converter() {
+			@SuppressWarnings("rawtypes")
+			public boolean canConvert(Class type) {
+				return type == int[].class || type == double[].class;
+			}
+			
+			public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+				int length = Array.getLength(source);
+				for (int i = 0; i < length; i++) {
+					Object value = Array.get(source, i);
+					writer.startNode(value instanceof Integer ? "int" : "double"); // $NON-NLS-1$ // $NON-NLS-2$
+					writer.setValue(value.toString());
+					writer.endNode();
+				}
+			}
+			
+			public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+				throw new UnsupportedOperationException();
+			}
+		}, XStream.PRIORITY_VERY_HIGH);
+		return xs;
+	}
+	
+	private static byte[] encodeWithBlazeDS(ActionMessage message) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		AmfMessageSerializer serializer = new AmfMessageSerializer();
+		serializer.initialize(new SerializationContext(), out, null);
+		serializer.writeMessage(message);
+		return out.toByteArray();
+	}
+	
+	private static ActionMessage decodeWithBlazeDS(byte[] amf) throws Exception {
+		ActionMessage message = new ActionMessage();
+		AmfMessageDeserializer deserializer = new AmfMessageDeserializer();
+		deserializer.initialize(AmfXmlConverter.createDeserializationContext(), new ByteArrayInputStream(amf), null);
+		deserializer.readMessage(message, new ActionContext());
+		return message;
+	}
+	
+	private ActionMessage createMessage() {
+		ActionMessage message = new ActionMessage(3);
+		int headers = random.nextInt(3);
+		for (int i = 0; i < headers; i++) {
+			message.addHeader(new MessageHeader(createString(), random.nextBoolean(), createValue(0)));
+		}
+		int bodies = 1 + random.nextInt(3);
+		for (int i = 0; i < bodies; i++) {
+			message.addBody(new MessageBody(random.nextBoolean() ? null : "/" + i, "/" + i, createValue(0)));
+		}
+		return message;
+	}
+	
+	private String createString() {
+		if (random.nextInt(5) > 0) {
+			return STRINGS[random.nextInt(STRINGS.length)];
+		}
+		StringBuilder sb = new StringBuilder();
+		int length = random.nextInt(8);
+		for (int i = 0; i < length; i++) {
+			sb.append((char) (random.nextInt(3) == 0 ? random.nextInt(0xD000) : 'a' + random.nextInt(26)));
+		}
+		return sb.toString();
+	}
+	
+	private Object createValue(int depth) {
+		if (depth > 0 && !made.isEmpty() && random.nextInt(12) == 0) {
+			return made.get(random.nextInt(made.size()));
+		}
+		
+		switch (random.nextInt(depth > 3 ? 6 : 16)) {
+		case 0:
+			return null;
+		case 1:
+			return createString();
+		case 2:
+			return Integer.valueOf(random.nextInt(3) == 0 ? random.nextInt() : random.nextInt(1000) - 500);
+		case 3:
+			return Double.valueOf(random.nextDouble() * 1000);
+		case 4:
+			return Boolean.valueOf(random.nextBoolean());
+		case 5:
+			return made(new Date(random.nextInt(1 << 30) * 1000L));
+		case 6:
+			byte[] bytes = new byte[random.nextInt(5)];
+			random.nextBytes(bytes);
+			return made(bytes);
+		case 7:
+		case 8:
+			// Types start with '>' as both codecs read them into ASObjects, a class that
+			// can't be found fails both unless the thread's SerializationContext allows it
+			return createObject(random.nextBoolean() ? ">Vo" : null, depth); // $NON-NLS-1$
+		case 9:
+			// Objects of one type, read into a table
+			Object[] rows = new Object[2 + random.nextInt(4)];
+			for (int i = 0; i < rows.length; i++) {
+				rows[i] = createObject(">Row", depth); // $NON-NLS-1$
+			}
+			return made(rows);
+		case 10:
+			Object[] array = new Object[random.nextInt(4)];
+			int kind = random.nextInt(3);
+			for (int i = 0; i < array.length; i++) {
+				array[i] = kind == 0 ? Integer.valueOf(random.nextInt(2000) - 1000)
+					: kind == 1 ? Double.valueOf(random.nextDouble()) : createValue(depth + 1);
+			}
+			return made(array);
+		case 11:
+			ArrayList<Object> list = new ArrayList<Object>();
+			int size = random.nextInt(4);
+			for (int i = 0; i < size; i++) {
+				list.add(createValue(depth + 1));
+			}
+			return made(list);
+		case 12:
+			HashMap<String, Object> map = new HashMap<String, Object>();
+			int entries = random.nextInt(3);
+			for (int i = 0; i < entries; i++) {
+				map.put(createString(), createValue(depth + 1));
+			}
+			return made(map);
+		case 13:
+			ArrayCollection collection = new ArrayCollection();
+			int items = random.nextInt(3);
+			for (int i = 0; i < items; i++) {
+				collection.add(createValue(depth + 1));
+			}
+			return made(collection);
+		case 14:
+			RemotingMessage remoting = new RemotingMessage();
+			remoting.setDestination(createString());
+			remoting.setOperation(createString());
+			remoting.setMessageId("ID-" + random.nextInt(100)); // $NON-NLS-1$
+			remoting.setBody(new Object[] { createValue(depth + 1), createValue(depth + 1) });
+			remoting.setHeader("DSId", createString()); // $NON-NLS-1$
+			return made(remoting);
+		default:
+			if (random.nextBoolean()) {
+				AcknowledgeMessage ack = new AcknowledgeMessage();
+				ack.setBody(createValue(depth + 1));
+				ack.setMessageId("M" + random.nextInt(10)); // $NON-NLS-1$
+				ack.setCorrelationId("C"); // $NON-NLS-1$
+				ack.setClientId("cl"); // $NON-NLS-1$
+				ack.setTimestamp(random.nextInt(100000));
+				return ack;
+			}
+			CommandMessage command = new CommandMessage();
+			command.setOperation(random.nextInt(12));
+			command.setBody(createValue(depth + 1));
+			command.setMessageId("X"); // $NON-NLS-1$
+			command.setTimestamp(random.nextInt(100000));
+			return command;
+		}
+	}
+	
+	private ASObject createObject(String type, int depth) {
+		ASObject object = new ASObject(type);
+		String[] names = type == null ? STRINGS : new String[] { "id", "name", "value" }; // $NON-NLS-1$ // $NON-NLS-2$ // $NON-NLS-3$
+		int fields = type == null ? random.nextInt(4) : names.length;
+		for (int i = 0; i < fields; i++) {
+			object.put(type == null ? createString() : names[i], createValue(depth + 1));
+		}
+		return (ASObject) made(object);
+	}
+	
+	private Object made(Object value) {
+		made.add(value);
+		return value;
+	}
+}
@@ -0,0 +1,162 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import org.apache.jmeter.protocol.amf.codec.AmfTable;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.mapper.Mapper;
+
+import flex.messaging.io.amf.ASObject;
+import flex.messaging.io.amf.ActionMessage;
+import flex.messaging.io.amf.MessageBody;
+import flex.messaging.io.amf.MessageHeader;
+import flex.messaging.messages.AcknowledgeMessage;
+import flex.messaging.messages.AcknowledgeMessageExt;
+import flex.messaging.messages.AsyncMessage;
+import flex.messaging.messages.CommandMessage;
+import flex.messaging.messages.CommandMessageExt;
+import flex.messaging.messages.ErrorMessage;
+import flex.messaging.messages.RemotingMessage;
+
+/**
+ * The XStream instances that translate between AMF objects and XML.
+ *
+ * The shared instance is built when the class loads, so every thread sees the same
+ * fully configured instance without locking. It is warmed up at the start of a test
+ * so the reflection and converter caches XStream fills on first use aren't paid for
+ * by the first samples.
+ *
+ * Setting the JMeter property amf.xstream.per_thread=true gives each thread its own
+ * instance instead, built when the thread starts. That takes more memory per thread
+ * but removes any contention on XStream's internal caches, for comparing the two on
+ * machines with many cores.
+ */
+public final class AmfConverterRegistry {
+
+	private static final Logger log = LoggingManager.getLoggerForClass();
+
+	private static final boolean PER_THREAD =
+		JMeterUtils.getPropDefault("amf.xstream.per_thread", false); // $NON-NLS-1$
+
+	// Classes in every message, converted without the reflection converter
+	private static final Class<?>[] MESSAGE_CLASSES = {
+		ActionMessage.class,
+		MessageHeader.class,
+		MessageBody.class,
+		RemotingMessage.class,
+		CommandMessage.class,
+		AsyncMessage.class,
+		AcknowledgeMessage.class,
+		ErrorMessage.class
+	};
+
+	private static final XStream SHARED = createXStream();
+
+	private static final ThreadLocal<XStream> THREAD_XSTREAM = new ThreadLocal<XStream>() {
+		@Override
+		protected XStream initialValue() {
+			return createXStream();
+		}
+	};
+
+	private AmfConverterRegistry() {
+		// Not intended to be instantiated
+	}
+
+	/**
+	 * @return the instance for the calling thread
+	 */
+	public static XStream getXStream() {
+		return PER_THREAD ? THREAD_XSTREAM.get() : SHARED;
+	}
+
+	/**
+	 * @return true if each thread has its own instance
+	 */
+	public static boolean isPerThread() {
+		return PER_THREAD;
+	}
+
+	/**
+	 * Runs a message through the calling thread's instance so its caches are filled
+	 * before the first sample
+	 */
+	public static void prewarm() {
+		XStream xstream = getXStream();
+		try {
+			RemotingMessage remoting = new RemotingMessage();
+			remoting.setOperation("prewarm"); // $NON-NLS-1$
+			remoting.setBody(new Object[] { new ASObject() });
+
+			ActionMessage message = new ActionMessage(3);
+			message.addHeader(new MessageHeader("prewarm", false, "")); // $NON-NLS-1$
+			message.addBody(new MessageBody("null", "/1", new Object[] { remoting })); // $NON-NLS-1$ // $NON-NLS-2$
+
+			xstream.fromXML(xstream.toXML(message));
+		} catch (RuntimeException e) {
+			// Only lost time, the same failure will show up in the samples
+			log.warn("Unable to warm up the AMF XML converter", e);
+		}
+	}
+
+	/**
+	 * @return a new, fully configured instance
+	 */
+	static XStream createXStream() {
+		XStream xstream = new XStream();
+
+		xstream.alias("ActionMessage", ActionMessage.class);
+		xstream.alias("MessageHeader", MessageHeader.class);
+		xstream.alias("MessageBody", MessageBody.class);
+		xstream.alias("RemotingMessage", RemotingMessage.class);
+		xstream.alias("CommandMessage", CommandMessage.class);
+		xstream.alias("AcknowledgeMessage", AcknowledgeMessage.class);
+		xstream.alias("ErrorMessage", ErrorMessage.class);
+		// Table rows are written as ASObjects, the later alias reads them back as ASObjects
+		xstream.alias("ASObject", AmfTable.Row.class);
+		xstream.alias("ASObject", ASObject.class);
+		xstream.alias("DSC", CommandMessageExt.class);
+		xstream.alias("DSK", AcknowledgeMessageExt.class);
+
+		// Better ASObject Converter
+		Mapper mapper = xstream.getMapper();
+		xstream.registerConverter(new ASObjectConverter(mapper));
+
+		// Numeric arrays and vectors as one line of values
+		xstream.registerConverter(new NumberArrayConverter());
+
+		// Same XML as the reflection converter, without its lookups for every object
+		for (int i = 0; i < MESSAGE_CLASSES.length; i++) {
+			FlexMessageConverter converter = FlexMessageConverter.create(MESSAGE_CLASSES[i], xstream.getReflectionProvider(), mapper);
+			if (converter != null) {
+				xstream.registerConverter(converter);
+			}
+			else {
+				log.warn("Using reflection to convert " + MESSAGE_CLASSES[i].getName());
+			}
+		}
+
+		// The same for the application's value objects, ahead of the reflection converter
+		xstream.registerConverter(new ValueObjectConverter(xstream.getReflectionProvider(), mapper), XStream.PRIORITY_LOW);
+
+		return xstream;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jmeter.util.JMeterUtils;
+
+import flex.messaging.io.amf.ActionMessage;
+import flex.messaging.io.amf.MessageBody;
+import flex.messaging.messages.RemotingMessage;
+
+/**
+ * Measures how AMF encoding and decoding through AmfXmlConverter scale with the
+ * number of threads, as each sample of an AMF Request does one of each.
+ *
+ * Threads are doubled at each step up to the maximum. With a think time each thread
+ * sleeps between samples like a polling Flex client, which shows how many mostly idle
+ * users the converter keeps up with before latency grows.
+ *
+ * To compare the shared converter with one per thread, pass a JMeter properties file
+ * setting amf.xstream.per_thread=true.
+ *
+ * Usage: AmfConverterScalingBenchmark [max threads] [seconds per step] [think time ms] [properties file]
+ */
+public class AmfConverterScalingBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		long thinkTime = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		if (args.length > 3) {
+			JMeterUtils.loadJMeterProperties(args[3]);
+		}
+
+		String xml = createXml();
+		byte[] amf = AmfXmlConverter.convertXmlToAmfMessage(xml);
+		if (AmfXmlConverter.convertAmfMessageToXml(amf).length() == 0) {
+			throw new IllegalStateException("Sample message doesn't decode");
+		}
+
+		System.out.println(Runtime.getRuntime().availableProcessors() + " cores, " + amf.length + " byte message, "
+				+ seconds + "s per step, " + thinkTime + "ms think time, "
+				+ (AmfConverterRegistry.isPerThread() ? "XStream per thread" : "shared XStream"));
+
+		// Warm up on one thread before timing
+		run(1, 2, 0, xml, amf);
+
+		double single = 0;
+		int threads = 1;
+		while (threads <= maxThreads) {
+			Step step = run(threads, seconds, thinkTime, xml, amf);
+			double throughput = step.ops * 1000.0 / step.elapsed;
+			if (threads == 1) {
+				single = throughput;
+			}
+			System.out.println(threads + " threads: " + (long) throughput + " samples/s, "
+					+ (step.ops > 0 ? step.latency / step.ops / 1000 : 0) + " us/sample, "
+					+ (int) (throughput / (single * threads) * 100) + "% of linear");
+			// Finish on the maximum even if it isn't a power of two
+			threads = threads < maxThreads ? Math.min(threads * 2, maxThreads) : threads + 1;
+		}
+	}
+
+	private static Step run(int threads, int seconds, final long thinkTime, final String xml, final byte[] amf)
+			throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicLong ops = new AtomicLong();
+		final AtomicLong latency = new AtomicLong();
+		final long end = System.currentTimeMillis() + seconds * 1000L;
+
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						long count = 0;
+						long time = 0;
+						while (System.currentTimeMillis() < end) {
+							long begin = System.nanoTime();
+							AmfXmlConverter.convertXmlToAmfMessage(xml);
+							AmfXmlConverter.convertAmfMessageToXml(amf);
+							time += System.nanoTime() - begin;
+							count++;
+							if (thinkTime > 0) {
+								Thread.sleep(thinkTime);
+							}
+						}
+						ops.addAndGet(count);
+						latency.addAndGet(time);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		long begin = System.currentTimeMillis();
+		start.countDown();
+		done.await();
+
+		Step step = new Step();
+		step.elapsed = Math.max(1, System.currentTimeMillis() - begin);
+		step.ops = ops.get();
+		step.latency = latency.get();
+		return step;
+	}
+
+	/*
+	 * A typical remoting call, similar in size to a recorded request
+	 */
+	private static String createXml() {
+		Object[] params = new Object[20];
+		for (int i = 0; i < params.length; i++) {
+			params[i] = "parameter value " + i;
+		}
+
+		RemotingMessage remoting = new RemotingMessage();
+		remoting.setDestination("benchmarkService");
+		remoting.setOperation("poll");
+		remoting.setMessageId("2F6A4B1C-0000-0000-0000-000000000000");
+		remoting.setBody(params);
+
+		ActionMessage message = new ActionMessage(3);
+		message.addBody(new MessageBody("null", "/1", new Object[] { remoting }));
+
+		return AmfXmlConverter.getXStream().toXML(message);
+	}
+
+	private static class Step {
+		long elapsed;
+		long ops;
+		long latency;
+	}
+}
@@ -0,0 +1,340 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jmeter.engine.util.CompoundVariable;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import flex.messaging.io.amf.ActionMessage;
+
+/**
+ * An AMF request compiled from its XML once, so that samples only have to
+ * evaluate variables and serialize.
+ *
+ * The XML is parsed into an ActionMessage a single time. Every String in the
+ * resulting object graph that references a variable or function (${...}) is
+ * recorded as a slot, and rendering the template evaluates those slots for the
+ * current thread before handing the message to the AMF serializer.
+ *
+ * The compiled structure never changes after construction, but rendering writes
+ * the slot values into the message graph, so a template must stay confined to
+ * the sampler (and therefore thread) that created it.
+ */
+public class AmfMessageTemplate {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+
+	private static final String VARIABLE_START = "${"; // $NON-NLS-1$
+
+	private final String sourceXml;
+
+	private final ActionMessage message;
+
+	private final List<Slot> slots;
+
+	// Built on first use of renderPreEncoded()
+	private AmfPreEncodedMessage preEncoded;
+
+	private boolean preEncodeFailed;
+
+	/**
+	 * Parses the XML into a template
+	 *
+	 * @param xml AMF XML with any property overrides already applied, variables unevaluated
+	 * @throws RuntimeException if the XML cannot be converted to an ActionMessage
+	 */
+	public AmfMessageTemplate(String xml) {
+		this.sourceXml = xml;
+		this.message = AmfXmlConverter.convertXmlToActionMessage(xml);
+
+		List<Slot> found = new ArrayList<Slot>();
+		findSlots(message, found, new IdentityHashMap<Object, Object>());
+		this.slots = Collections.unmodifiableList(found);
+
+		if (log.isDebugEnabled())
+			log.debug("Compiled AMF template with "+slots.size()+" variable slot(s)");
+	}
+
+	/**
+	 * @return the XML this template was compiled from
+	 */
+	public String getSourceXml() {
+		return sourceXml;
+	}
+
+	/**
+	 * @return number of Strings in the message that are evaluated per sample
+	 */
+	public int getSlotCount() {
+		return slots.size();
+	}
+
+	/**
+	 * Evaluates all variable slots against the current thread's variables
+	 *
+	 * @return the message, ready for serialization
+	 */
+	public ActionMessage evaluate() {
+		return evaluate(evaluateSlots());
+	}
+
+	/**
+	 * Sets the variable slots to values that were already evaluated
+	 *
+	 * @param values one for each slot, from {@link #evaluateSlots()}
+	 * @return the message, ready for serialization
+	 */
+	ActionMessage evaluate(String[] values) {
+		for (int i = 0; i < slots.size(); i++) {
+			slots.get(i).set(values[i]);
+		}
+		return message;
+	}
+
+	/*
+	 * Evaluates each slot once, functions such as __counter must not run again
+	 * for the same sample
+	 */
+	private String[] evaluateSlots() {
+		String[] values = new String[slots.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = slots.get(i).getVariable().execute();
+		}
+		return values;
+	}
+
+	/**
+	 * Evaluates all variable slots and serializes the message
+	 *
+	 * @return complete AMF message
+	 */
+	public byte[] render() {
+		return AmfXmlConverter.convertActionMessageToAmf(evaluate());
+	}
+
+	/**
+	 * Evaluates all variable slots and splices them into a copy of the message that
+	 * was serialized once, skipping the AMF serializer. Falls back to serializing the
+	 * message if it can't be pre-encoded or a value can't be spliced, with the values
+	 * already evaluated.
+	 *
+	 * @return complete AMF message
+	 */
+	public byte[] renderPreEncoded() {
+		if (preEncoded == null && !preEncodeFailed) {
+			try {
+				preEncoded = new AmfPreEncodedMessage(this);
+			} catch (IllegalStateException ex) {
+				log.warn("Unable to pre-encode AMF message, serializing each sample instead", ex);
+				preEncodeFailed = true;
+			}
+		}
+
+		String[] values = evaluateSlots();
+		if (preEncoded != null) {
+			byte[] amf = preEncoded.render(values);
+			if (amf != null) {
+				return amf;
+			}
+		}
+
+		return AmfXmlConverter.convertActionMessageToAmf(evaluate(values));
+	}
+
+	ActionMessage getMessage() {
+		return message;
+	}
+
+	List<Slot> getSlots() {
+		return slots;
+	}
+
+	/*
+	 * Walk the object graph recording every String value that contains a variable reference
+	 */
+	@SuppressWarnings("rawtypes")
+	private static void findSlots(Object obj, List<Slot> found, Map<Object, Object> visited) {
+		if (obj == null || isLeaf(obj.getClass()) || visited.containsKey(obj)) {
+			return;
+		}
+		visited.put(obj, obj);
+
+		if (obj instanceof Object[]) {
+			Object[] arr = (Object[]) obj;
+			for (int i = 0; i < arr.length; i++) {
+				if (isVariable(arr[i]))
+					found.add(new ArraySlot(arr, i, (String) arr[i]));
+				else
+					findSlots(arr[i], found, visited);
+			}
+		}
+		else if (obj.getClass().isArray()) {
+			// Primitive array, nothing to replace
+		}
+		else if (obj instanceof List) {
+			List list = (List) obj;
+			for (int i = 0; i < list.size(); i++) {
+				Object item = list.get(i);
+				if (isVariable(item))
+					found.add(new ListSlot(list, i, (String) item));
+				else
+					findSlots(item, found, visited);
+			}
+		}
+		else if (obj instanceof Map) {
+			for (Iterator iter = ((Map) obj).entrySet().iterator(); iter.hasNext();) {
+				Map.Entry entry = (Map.Entry) iter.next();
+				if (isVariable(entry.getValue()))
+					found.add(new MapSlot((Map) obj, entry.getKey(), (String) entry.getValue()));
+				else
+					findSlots(entry.getValue(), found, visited);
+			}
+		}
+		else if (obj.getClass().getName().startsWith("java.")) { // $NON-NLS-1$
+			// Other JDK types (Date, BigDecimal, Collections) are left as-is
+		}
+		else {
+			for (Class<?> c = obj.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+				Field[] fields = c.getDeclaredFields();
+				for (int i = 0; i < fields.length; i++) {
+					Field field = fields[i];
+					int mod = field.getModifiers();
+					if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || field.getType().isPrimitive()) {
+						continue;
+					}
+					field.setAccessible(true);
+					Object value;
+					try {
+						value = field.get(obj);
+					} catch (IllegalAccessException e) {
+						log.warn("Unable to read field "+field, e);
+						continue;
+					}
+					if (isVariable(value) && field.getType().isAssignableFrom(String.class))
+						found.add(new FieldSlot(obj, field, (String) value));
+					else
+						findSlots(value, found, visited);
+				}
+			}
+		}
+	}
+
+	private static boolean isVariable(Object value) {
+		return value instanceof String && ((String) value).indexOf(VARIABLE_START) >= 0;
+	}
+
+	private static boolean isLeaf(Class<?> c) {
+		return c == String.class || c.isPrimitive() || Number.class.isAssignableFrom(c)
+			|| c == Boolean.class || c == Character.class || c.isEnum();
+	}
+
+	/**
+	 * A location in the message graph holding a String with variable references
+	 */
+	abstract static class Slot {
+		private final CompoundVariable variable;
+
+		Slot(String raw) {
+			this.variable = new CompoundVariable(raw);
+		}
+
+		CompoundVariable getVariable() {
+			return variable;
+		}
+
+		abstract void set(String value);
+	}
+
+	private static class ArraySlot extends Slot {
+		private final Object[] array;
+		private final int index;
+
+		ArraySlot(Object[] array, int index, String raw) {
+			super(raw);
+			this.array = array;
+			this.index = index;
+		}
+
+		void set(String value) {
+			array[index] = value;
+		}
+	}
+
+	private static class ListSlot extends Slot {
+		@SuppressWarnings("rawtypes")
+		private final List list;
+		private final int index;
+
+		@SuppressWarnings("rawtypes")
+		ListSlot(List list, int index, String raw) {
+			super(raw);
+			this.list = list;
+			this.index = index;
+		}
+
+		@SuppressWarnings("unchecked")
+		void set(String value) {
+			list.set(index, value);
+		}
+	}
+
+	private static class MapSlot extends Slot {
+		@SuppressWarnings("rawtypes")
+		private final Map map;
+		private final Object key;
+
+		@SuppressWarnings("rawtypes")
+		MapSlot(Map map, Object key, String raw) {
+			super(raw);
+			this.map = map;
+			this.key = key;
+		}
+
+		@SuppressWarnings("unchecked")
+		void set(String value) {
+			map.put(key, value);
+		}
+	}
+
+	private static class FieldSlot extends Slot {
+		private final Object owner;
+		private final Field field;
+
+		FieldSlot(Object owner, Field field, String raw) {
+			super(raw);
+			this.owner = owner;
+			this.field = field;
+		}
+
+		void set(String value) {
+			try {
+				field.set(owner, value);
+			} catch (IllegalAccessException e) {
+				log.warn("Unable to set field "+field, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import java.util.List;
+
+import flex.messaging.io.amf.ActionMessage;
+import flex.messaging.messages.CommandMessage;
+import flex.messaging.messages.Message;
+import flex.messaging.messages.RemotingMessage;
+
+/**
+ * Names what an AMF request calls, for sample labels that tell the operations apart
+ * when they are all posted to the same URL.
+ *
+ * A remoting call is named destination.operation, a command with its destination
+ * and the name of its operation code (command.client_ping when it has no
+ * destination), and any other Flex message by its destination. AMF0 remoting
+ * bodies that aren't Flex messages are named by their target, which is already
+ * Service.method. The bodies of a batched request are joined with commas.
+ *
+ * Labels are interned, so the listeners that aggregate by label hash and compare
+ * the same string for every sample of an operation.
+ */
+public final class AmfOperationLabel {
+
+	private static final String COMMAND = "command"; // $NON-NLS-1$
+
+	private AmfOperationLabel() {
+		// Not intended to be instantiated
+	}
+
+	/**
+	 * @param message request
+	 * @return the operations the request calls, or null if there's nothing to name
+	 */
+	public static String of(ActionMessage message) {
+		StringBuilder label = new StringBuilder();
+		for (int i = 0; i < message.getBodyCount(); i++) {
+			String name = nameOf(message.getBody(i).getTargetURI(), message.getBody(i).getData());
+			if (name != null) {
+				if (label.length() > 0) {
+					label.append(',');
+				}
+				label.append(name);
+			}
+		}
+		return label.length() > 0 ? label.toString().intern() : null;
+	}
+
+	private static String nameOf(String targetURI, Object data) {
+		// Flex messages are sent in an array of one
+		if (data instanceof Object[] && ((Object[]) data).length == 1) {
+			data = ((Object[]) data)[0];
+		}
+		else if (data instanceof List<?> && ((List<?>) data).size() == 1) {
+			data = ((List<?>) data).get(0);
+		}
+
+		if (data instanceof RemotingMessage) {
+			RemotingMessage remoting = (RemotingMessage) data;
+			return join(remoting.getDestination(), remoting.getOperation());
+		}
+		if (data instanceof CommandMessage) {
+			CommandMessage command = (CommandMessage) data;
+			String destination = command.getDestination();
+			return join(isEmpty(destination) ? COMMAND : destination, CommandMessage.operationToString(command.getOperation()));
+		}
+		if (data instanceof Message) {
+			String destination = ((Message) data).getDestination();
+			return isEmpty(destination) ? null : destination;
+		}
+
+		// Flex messages are sent to the target "null"
+		if (isEmpty(targetURI) || "null".equals(targetURI)) { // $NON-NLS-1$
+			return null;
+		}
+		return targetURI;
+	}
+
+	private static String join(String destination, String operation) {
+		if (isEmpty(operation)) {
+			return isEmpty(destination) ? null : destination;
+		}
+		if (isEmpty(destination)) {
+			return operation;
+		}
+		return destination + '.' + operation;
+	}
+
+	private static boolean isEmpty(String value) {
+		return value == null || value.length() == 0;
+	}
+}
@@ -0,0 +1,281 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * A template serialized to AMF a single time, with the location of every
+ * variable slot recorded so that samples can splice new values straight into
+ * the bytes without touching XStream or the BlazeDS serializer.
+ *
+ * Slots are located by serializing a unique marker String in their place and
+ * searching the result. Each marker is written inline (never as a string
+ * reference) so replacing its bytes and length prefix leaves the AMF3 string
+ * reference table indices intact.
+ *
+ * Two values can't be spliced: an empty String in AMF3 (it's never added to
+ * the reference table, which would shift later references) and an AMF0 String
+ * longer than 65535 bytes. {@link #render(String[])} returns null for those samples so
+ * the caller can serialize normally.
+ */
+public class AmfPreEncodedMessage {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+
+	// Fixed marker length keeps the AMF3 (U29) and AMF0 (u16) length prefixes distinguishable
+	private static final int MARKER_LENGTH = 40;
+
+	private static final int AMF3_MARKER_PREFIX = (MARKER_LENGTH << 1) | 1;
+
+	private static final int MAX_AMF0_STRING = 0xFFFF;
+
+	private final byte[] encoded;
+
+	private final Splice[] splices;
+
+	/**
+	 * Serializes the template with markers in place of its slots
+	 *
+	 * @param template
+	 * @throws IllegalStateException if a slot can't be located unambiguously in the serialized message
+	 */
+	AmfPreEncodedMessage(AmfMessageTemplate template) {
+		List<AmfMessageTemplate.Slot> slots = template.getSlots();
+		String[] markers = new String[slots.size()];
+
+		String token = Long.toHexString(new Random().nextLong() | Long.MIN_VALUE);
+		for (int i = 0; i < markers.length; i++) {
+			StringBuilder sb = new StringBuilder("amf-slot-").append(token).append('-').append(i).append('-');
+			while (sb.length() < MARKER_LENGTH) {
+				sb.append('x');
+			}
+			markers[i] = sb.toString();
+			slots.get(i).set(markers[i]);
+		}
+
+		encoded = AmfXmlConverter.convertActionMessageToAmf(template.getMessage());
+
+		int found = 0;
+		Splice[] located = new Splice[markers.length];
+		for (int i = 0; i < markers.length; i++) {
+			byte[] marker = encodeUtf(markers[i], false);
+			int pos = indexOf(encoded, marker, 0);
+			if (pos < 0) {
+				// Not serialized (e.g. a transient field), nothing to replace
+				continue;
+			}
+			if (indexOf(encoded, marker, pos + 1) >= 0) {
+				throw new IllegalStateException("Slot " + i + " was serialized more than once");
+			}
+
+			boolean amf3;
+			int start;
+			if (pos >= 1 && (encoded[pos - 1] & 0xFF) == AMF3_MARKER_PREFIX) {
+				amf3 = true;
+				start = pos - 1;
+			}
+			else if (pos >= 2 && encoded[pos - 2] == 0 && encoded[pos - 1] == MARKER_LENGTH) {
+				amf3 = false;
+				start = pos - 2;
+			}
+			else {
+				throw new IllegalStateException("Unrecognized length prefix for slot " + i);
+			}
+
+			located[found++] = new Splice(i, start, pos + marker.length, amf3);
+		}
+
+		splices = new Splice[found];
+		System.arraycopy(located, 0, splices, 0, found);
+		Arrays.sort(splices, new Comparator<Splice>() {
+			public int compare(Splice s1, Splice s2) {
+				return s1.start - s2.start;
+			}
+		});
+
+		if (log.isDebugEnabled())
+			log.debug("Pre-encoded AMF message of "+encoded.length+" bytes with "+splices.length+" splice(s)");
+	}
+
+	/**
+	 * Splices the values of the slots into the pre-encoded message
+	 *
+	 * @param slotValues value of each slot of the template, evaluated by the caller
+	 *            so they can be used again if this returns null
+	 * @return complete AMF message or null if a value can't be spliced
+	 */
+	public byte[] render(String[] slotValues) {
+		byte[][] values = new byte[splices.length][];
+		int length = encoded.length;
+
+		for (int i = 0; i < splices.length; i++) {
+			Splice splice = splices[i];
+			String value = slotValues[splice.slot];
+
+			if (splice.amf3 && value.length() == 0) {
+				return null;
+			}
+
+			byte[] bytes = encodeUtf(value, !splice.amf3);
+			if (!splice.amf3 && bytes.length > MAX_AMF0_STRING) {
+				return null;
+			}
+
+			values[i] = bytes;
+			length += prefixLength(splice.amf3, bytes.length) + bytes.length - (splice.end - splice.start);
+		}
+
+		byte[] out = new byte[length];
+		int src = 0;
+		int dest = 0;
+
+		for (int i = 0; i < splices.length; i++) {
+			Splice splice = splices[i];
+			int chunk = splice.start - src;
+			System.arraycopy(encoded, src, out, dest, chunk);
+			dest += chunk;
+
+			dest = writePrefix(out, dest, splice.amf3, values[i].length);
+			System.arraycopy(values[i], 0, out, dest, values[i].length);
+			dest += values[i].length;
+
+			src = splice.end;
+		}
+		System.arraycopy(encoded, src, out, dest, encoded.length - src);
+
+		return out;
+	}
+
+	/**
+	 * @return number of locations spliced per sample
+	 */
+	public int getSpliceCount() {
+		return splices.length;
+	}
+
+	static int prefixLength(boolean amf3, int length) {
+		if (!amf3) {
+			return 2;
+		}
+		int ref = (length << 1) | 1;
+		if (ref < 0x80) return 1;
+		if (ref < 0x4000) return 2;
+		if (ref < 0x200000) return 3;
+		return 4;
+	}
+
+	/*
+	 * Write a U29 string length (AMF3) or u16 length (AMF0)
+	 */
+	static int writePrefix(byte[] out, int pos, boolean amf3, int length) {
+		if (!amf3) {
+			out[pos++] = (byte) ((length >>> 8) & 0xFF);
+			out[pos++] = (byte) (length & 0xFF);
+			return pos;
+		}
+
+		int ref = (length << 1) | 1;
+		if (ref < 0x80) {
+			out[pos++] = (byte) ref;
+		}
+		else if (ref < 0x4000) {
+			out[pos++] = (byte) (((ref >> 7) & 0x7F) | 0x80);
+			out[pos++] = (byte) (ref & 0x7F);
+		}
+		else if (ref < 0x200000) {
+			out[pos++] = (byte) (((ref >> 14) & 0x7F) | 0x80);
+			out[pos++] = (byte) (((ref >> 7) & 0x7F) | 0x80);
+			out[pos++] = (byte) (ref & 0x7F);
+		}
+		else {
+			out[pos++] = (byte) (((ref >> 22) & 0x7F) | 0x80);
+			out[pos++] = (byte) (((ref >> 15) & 0x7F) | 0x80);
+			out[pos++] = (byte) (((ref >> 8) & 0x7F) | 0x80);
+			out[pos++] = (byte) (ref & 0xFF);
+		}
+		return pos;
+	}
+
+	/**
+	 * Encode a String the way BlazeDS does: each char separately as 1-3 bytes.
+	 * AMF0 uses DataOutput's modified UTF-8, which writes the null char as two bytes.
+	 */
+	static byte[] encodeUtf(String str, boolean modified) {
+		int strlen = str.length();
+		int utflen = 0;
+		for (int i = 0; i < strlen; i++) {
+			char c = str.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F || c == 0 && !modified) utflen++;
+			else if (c > 0x07FF) utflen += 3;
+			else utflen += 2;
+		}
+
+		byte[] bytes = new byte[utflen];
+		int pos = 0;
+		for (int i = 0; i < strlen; i++) {
+			char c = str.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F || c == 0 && !modified) {
+				bytes[pos++] = (byte) c;
+			}
+			else if (c > 0x07FF) {
+				bytes[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+				bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+			else {
+				bytes[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+				bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return bytes;
+	}
+
+	private static int indexOf(byte[] data, byte[] find, int from) {
+		outer:
+		for (int i = from; i <= data.length - find.length; i++) {
+			for (int j = 0; j < find.length; j++) {
+				if (data[i + j] != find[j])
+					continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * A range of the pre-encoded message (length prefix and String bytes) replaced per sample
+	 */
+	private static class Splice {
+		private final int slot;
+		private final int start;
+		private final int end;
+		private final boolean amf3;
+
+		Splice(int slot, int start, int end, boolean amf3) {
+			this.slot = slot;
+			this.start = start;
+			this.end = end;
+			this.amf3 = amf3;
+		}
+	}
+}
@@ -0,0 +1,319 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.jmeter.protocol.amf.codec.AmfInput;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * An AMF request exactly as it was recorded, for replaying without converting
+ * to and from XML.
+ *
+ * The message is scanned once for the location of every inline string. Property
+ * overrides are then applied to each string on its own, and only strings that
+ * contain a search string are re-encoded and spliced into a copy of the message
+ * with a new length prefix. String references stay valid as the number and order
+ * of inline strings doesn't change. The length recorded before each header and
+ * body is rewritten to match the spliced value, unless it was recorded as unknown.
+ *
+ * Unlike XML mode an override can't match across more than one string, e.g. a
+ * search string that includes XML tags.
+ */
+public class AmfRawMessage {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+
+	private static final String ASCII = "US-ASCII"; // $NON-NLS-1$
+
+	private static final int MAX_AMF0_STRING = 0xFFFF;
+
+	private static final int MAX_AMF3_STRING = 0x0FFFFFFF;
+
+	private final byte[] amf;
+
+	// Every inline string, in stream order
+	private final int[] prefixes;
+	private final int[] starts;
+	private final int[] lengths;
+	private final int[] kinds;
+	private final String[] texts;
+
+	// Position of the length of each header and body, whether it's known, and the end of its value
+	private final int[] lengthFields;
+	private final boolean[] knownLengths;
+	private final int[] valueEnds;
+
+	// Strings that contain at least one search string of candidateReplacer
+	private OverrideReplacer candidateReplacer;
+	private int[] candidates;
+
+	/**
+	 * Scans a recorded message
+	 *
+	 * @param amf complete AMF message
+	 * @throws IOException if the message can't be read
+	 */
+	public AmfRawMessage(byte[] amf) throws IOException {
+		this.amf = amf;
+
+		final List<int[]> found = new ArrayList<int[]>();
+		AmfInput in = new AmfInput(amf);
+		in.setStringListener(new AmfInput.StringListener() {
+			public void string(int prefix, int start, int length, int kind) {
+				found.add(new int[] { prefix, start, length, kind });
+			}
+		});
+
+		in.readUnsignedShort(); // Version
+		int headerCount = in.readUnsignedShort();
+		List<int[]> parts = new ArrayList<int[]>();
+		for (int i = 0; i < headerCount; i++) {
+			in.readUTF();
+			in.readUnsignedByte();
+			parts.add(readPart(in));
+		}
+		int bodyCount = in.readUnsignedShort();
+		for (int i = 0; i < bodyCount; i++) {
+			in.readUTF();
+			in.readUTF();
+			parts.add(readPart(in));
+		}
+		lengthFields = new int[parts.size()];
+		knownLengths = new boolean[parts.size()];
+		valueEnds = new int[parts.size()];
+		for (int i = 0; i < lengthFields.length; i++) {
+			int[] part = parts.get(i);
+			lengthFields[i] = part[0];
+			knownLengths[i] = part[1] != -1;
+			valueEnds[i] = part[2];
+		}
+
+		int count = found.size();
+		prefixes = new int[count];
+		starts = new int[count];
+		lengths = new int[count];
+		kinds = new int[count];
+		texts = new String[count];
+		for (int i = 0; i < count; i++) {
+			int[] string = found.get(i);
+			prefixes[i] = string[0];
+			starts[i] = string[1];
+			lengths[i] = string[2];
+			kinds[i] = string[3];
+			texts[i] = AmfInput.decodeUtf(amf, starts[i], lengths[i]);
+		}
+
+		if (log.isDebugEnabled())
+			log.debug("Raw AMF message of "+amf.length+" bytes with "+count+" string(s)");
+	}
+
+	/**
+	 * @return the recorded message, not a copy
+	 */
+	public byte[] getBytes() {
+		return amf;
+	}
+
+	/**
+	 * Applies the property overrides to the recorded message
+	 *
+	 * @param replacer compiled search strings
+	 * @param values replacement values for this sample
+	 * @return the message with the overrides applied, the recorded message itself if
+	 *         nothing matched, or null if a replaced string can't be encoded in place
+	 */
+	public byte[] render(OverrideReplacer replacer, String[] values) {
+		if (replacer != candidateReplacer) {
+			findCandidates(replacer);
+		}
+
+		byte[][] replaced = null;
+		int length = amf.length;
+
+		for (int c = 0; c < candidates.length; c++) {
+			int i = candidates[c];
+			String text = replacer.replace(texts[i], values);
+			if (text.equals(texts[i])) {
+				continue;
+			}
+
+			boolean amf3 = kinds[i] == AmfInput.STRING_AMF3;
+			byte[] bytes = AmfPreEncodedMessage.encodeUtf(text, !amf3);
+			if (amf3 ? bytes.length == 0 || bytes.length > MAX_AMF3_STRING
+					: kinds[i] == AmfInput.STRING_AMF0 && bytes.length > MAX_AMF0_STRING) {
+				return null;
+			}
+
+			if (replaced == null) {
+				replaced = new byte[texts.length][];
+			}
+			replaced[i] = bytes;
+			length += prefixLength(kinds[i], bytes.length) + bytes.length - (starts[i] + lengths[i] - prefixes[i]);
+		}
+
+		if (replaced == null) {
+			return amf;
+		}
+
+		byte[] out = new byte[length];
+		int src = 0;
+		int dest = 0;
+		for (int c = 0; c < candidates.length; c++) {
+			int i = candidates[c];
+			byte[] bytes = replaced[i];
+			if (bytes == null) {
+				continue;
+			}
+			int chunk = prefixes[i] - src;
+			System.arraycopy(amf, src, out, dest, chunk);
+			dest += chunk;
+
+			dest = writePrefix(out, dest, kinds[i], bytes.length);
+			System.arraycopy(bytes, 0, out, dest, bytes.length);
+			dest += bytes.length;
+
+			src = starts[i] + lengths[i];
+		}
+		System.arraycopy(amf, src, out, dest, amf.length - src);
+
+		writeLengths(out, replaced);
+		return out;
+	}
+
+	/*
+	 * Reads the length and skips the value of a header or body
+	 */
+	private static int[] readPart(AmfInput in) throws IOException {
+		int field = in.getPosition();
+		int recorded = in.readInt();
+		in.resetReferences();
+		in.skipAmf0Value();
+		return new int[] { field, recorded, in.getPosition() };
+	}
+
+	/*
+	 * Sets the length of each header and body of a rendered message to the size of
+	 * its value, which grows or shrinks by the strings replaced in it
+	 */
+	private void writeLengths(byte[] out, byte[][] replaced) {
+		int c = 0;
+		int shift = 0;
+		for (int p = 0; p < valueEnds.length; p++) {
+			// Strings up to the length, in the names
+			int field = lengthFields[p];
+			while (c < candidates.length && stringEnd(candidates[c]) <= field) {
+				shift += growth(candidates[c++], replaced);
+			}
+			int before = shift;
+			while (c < candidates.length && stringEnd(candidates[c]) <= valueEnds[p]) {
+				shift += growth(candidates[c++], replaced);
+			}
+
+			if (knownLengths[p] && shift != before) {
+				int length = valueEnds[p] - (field + 4) + shift - before;
+				int pos = field + before;
+				out[pos++] = (byte) ((length >>> 24) & 0xFF);
+				out[pos++] = (byte) ((length >>> 16) & 0xFF);
+				out[pos++] = (byte) ((length >>> 8) & 0xFF);
+				out[pos] = (byte) (length & 0xFF);
+			}
+		}
+	}
+
+	private int stringEnd(int i) {
+		return starts[i] + lengths[i];
+	}
+
+	/*
+	 * Bytes added to the message by replacing a string, 0 if it wasn't
+	 */
+	private int growth(int i, byte[][] replaced) {
+		byte[] bytes = replaced[i];
+		if (bytes == null) {
+			return 0;
+		}
+		return prefixLength(kinds[i], bytes.length) + bytes.length - (stringEnd(i) - prefixes[i]);
+	}
+
+	/*
+	 * A string can only change if it contains one of the search strings to begin with
+	 */
+	private void findCandidates(OverrideReplacer replacer) {
+		String[] keys = replacer.getKeys();
+		int[] found = new int[texts.length];
+		int count = 0;
+		for (int i = 0; i < texts.length; i++) {
+			for (int k = 0; k < keys.length; k++) {
+				if (texts[i].indexOf(keys[k]) >= 0) {
+					found[count++] = i;
+					break;
+				}
+			}
+		}
+		candidates = new int[count];
+		System.arraycopy(found, 0, candidates, 0, count);
+		candidateReplacer = replacer;
+	}
+
+	private static int prefixLength(int kind, int length) {
+		if (kind == AmfInput.STRING_AMF0_LONG) {
+			return 4;
+		}
+		return AmfPreEncodedMessage.prefixLength(kind == AmfInput.STRING_AMF3, length);
+	}
+
+	private static int writePrefix(byte[] out, int pos, int kind, int length) {
+		if (kind == AmfInput.STRING_AMF0_LONG) {
+			out[pos++] = (byte) ((length >>> 24) & 0xFF);
+			out[pos++] = (byte) ((length >>> 16) & 0xFF);
+			out[pos++] = (byte) ((length >>> 8) & 0xFF);
+			out[pos++] = (byte) (length & 0xFF);
+			return pos;
+		}
+		return AmfPreEncodedMessage.writePrefix(out, pos, kind == AmfInput.STRING_AMF3, length);
+	}
+
+	/**
+	 * @param amf
+	 * @return the bytes as Base64, for storing in a test plan property
+	 */
+	public static String encodeBase64(byte[] amf) {
+		try {
+			return new String(Base64.encodeBase64(amf), ASCII);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	/**
+	 * @param base64
+	 * @return bytes stored with {@link #encodeBase64(byte[])}
+	 */
+	public static byte[] decodeBase64(String base64) {
+		try {
+			return Base64.decodeBase64(base64.getBytes(ASCII));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+}
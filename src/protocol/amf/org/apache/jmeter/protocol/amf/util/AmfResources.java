@@ -26,15 +26,18 @@ import org.apache.log.Logger;
 public class AmfResources {
 	private static final Logger log = LoggingManager.getLoggerForClass();
 	
-	private static ResourceBundle resources = null;
+	// Racing threads may each load it, ResourceBundle caches the bundle so they get the same one
+	private static volatile ResourceBundle resources = null;
 	
 	public static String getResString(String key) {
-		if (resources == null) {
-			resources = ResourceBundle.getBundle("org.apache.jmeter.protocol.amf.resources.messages", JMeterUtils.getLocale());
+		ResourceBundle bundle = resources;
+		if (bundle == null) {
+			bundle = ResourceBundle.getBundle("org.apache.jmeter.protocol.amf.resources.messages", JMeterUtils.getLocale());
+			resources = bundle;
 		}
 		
         try {
-            return resources.getString(key);
+            return bundle.getString(key);
         } catch (MissingResourceException e) {
             log.warn("Missing resource string [res_key=" + key + "]", e);
             return "[res_key=" + key + "]";
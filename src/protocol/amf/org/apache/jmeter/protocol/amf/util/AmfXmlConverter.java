@@ -19,43 +19,52 @@ package org.apache.jmeter.protocol.amf.util;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 
+import org.apache.jmeter.protocol.amf.codec.AmfClassAliases;
+import org.apache.jmeter.protocol.amf.codec.AmfMessageReader;
+import org.apache.jmeter.protocol.amf.codec.AmfSelection;
+import org.apache.jmeter.util.JMeterUtils;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
 
 import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.mapper.Mapper;
 
-import flex.messaging.io.ClassAliasRegistry;
 import flex.messaging.io.MessageDeserializer;
 import flex.messaging.io.SerializationContext;
-import flex.messaging.io.amf.ASObject;
 import flex.messaging.io.amf.ActionContext;
 import flex.messaging.io.amf.ActionMessage;
 import flex.messaging.io.amf.Amf3Input;
 import flex.messaging.io.amf.Amf3Output;
-import flex.messaging.io.amf.AmfMessageDeserializer;
 import flex.messaging.io.amf.AmfMessageSerializer;
-import flex.messaging.io.amf.MessageBody;
 import flex.messaging.io.amf.MessageHeader;
-import flex.messaging.messages.AcknowledgeMessage;
-import flex.messaging.messages.AcknowledgeMessageExt;
-import flex.messaging.messages.CommandMessage;
-import flex.messaging.messages.CommandMessageExt;
-import flex.messaging.messages.ErrorMessage;
-import flex.messaging.messages.RemotingMessage;
 
 public class AmfXmlConverter {
 	private static final Logger log = LoggingManager.getLoggerForClass();
 	
-	private static XStream xstream;
+	/*
+	 * Messages are encoded and decoded by the plugin's own codec, falling back to BlazeDS
+	 * for anything it doesn't handle. Set amf.codec=blazeds to always use BlazeDS.
+	 */
+	private static final boolean NATIVE_CODEC =
+		!"blazeds".equalsIgnoreCase(JMeterUtils.getPropDefault("amf.codec", "native")); // $NON-NLS-1$ // $NON-NLS-2$ // $NON-NLS-3$
+	
+	/*
+	 * Arrays of value objects of one type are decoded into a table of columns rather
+	 * than a map for each object, they convert to the same XML
+	 */
+	static final boolean TABLES =
+		JMeterUtils.getPropDefault("amf.codec.tables", true); // $NON-NLS-1$
+	
+	// Codecs, buffers and reference tables are kept by each thread, see AmfCodecSession
 	
     /**
      * Converts XML to an object then serializes it
      */
     public static byte[] convertXmlToAmf(String xml) {
     	XStream xs = getXStream();
-    	Amf3Output amf3out = new Amf3Output(SerializationContext.getSerializationContext());
+    	Amf3Output amf3out = new Amf3Output(new SerializationContext());
     	
     	try {
     		Object msg = xs.fromXML(xml);
@@ -112,87 +121,230 @@ public class AmfXmlConverter {
      * Converts XML to a complete AMF message
      */
     public static byte[] convertXmlToAmfMessage(String xml) {
+    	return convertActionMessageToAmf(convertXmlToActionMessage(xml));
+    }
+    
+    /**
+     * Converts XML to an ActionMessage without serializing it
+     */
+    public static ActionMessage convertXmlToActionMessage(String xml) {
     	XStream xs = getXStream();
-    	ActionContext actionContext = new ActionContext();
-    	ByteArrayOutputStream baos = new ByteArrayOutputStream();
     	
-    	ActionMessage message = (ActionMessage) xs.fromXML(xml);
+    	return (ActionMessage) xs.fromXML(xml);
+    }
+    
+    /**
+     * Serializes an ActionMessage to a complete AMF message
+     */
+    public static byte[] convertActionMessageToAmf(ActionMessage message) {
+    	AmfCodecSession session = AmfCodecSession.get();
+    	if (NATIVE_CODEC) {
+    		try {
+    			session.getWriter().writeMessage(message);
+    			return session.takeWritten();
+    		}
+    		catch (Exception ex) {
+    			// Encoded again by BlazeDS, which reports any error as it always has
+    			logFallback(session, "Encoding", ex); // $NON-NLS-1$
+    		}
+    	}
     	
-    	actionContext.setRequestMessage(message);
-        
-        AmfMessageSerializer amfMessageSerializer = new AmfMessageSerializer();
-        amfMessageSerializer.initialize(SerializationContext.getSerializationContext(), baos, null);
+        AmfMessageSerializer amfMessageSerializer = session.getSerializer();
     	
         try {
 			amfMessageSerializer.writeMessage(message);
 		} catch (IOException ex) {
             log.error("An exception was encountered while serializing AMF. ", ex);
+            session.serializerFailed();
 		}
         
-    	return baos.toByteArray();
+    	return session.takeSerialized();
     }
     
     
     /**
-     * Converts complete AMF message to XML representation
+     * Converts complete AMF message to XML representation, with the sampling aliases
      */
     public static String convertAmfMessageToXml(byte[] amf) {
     	return AmfXmlConverter.convertAmfMessageToXml(amf, false);
     }
+    
+    /**
+     * @param useAliasRegistry true for the rendering aliases, false for the sampling ones
+     * @see AmfAliasProfiles
+     */
     public static String convertAmfMessageToXml(byte[] amf, boolean useAliasRegistry) {
-    	XStream xs = getXStream();
-    	ActionContext actionContext = new ActionContext();
-    	SerializationContext serializationContext = new SerializationContext();
-    	
-    	// Class aliases for deserialization, mimics registerClassAlias in Flex
-    	//   Generally only used in rendering as it can cause serious problems for proxy sampling
-    	if (useAliasRegistry) {
-    		ClassAliasRegistry aliases = ClassAliasRegistry.getRegistry();
-    		aliases.registerAlias("DSC", "flex.messaging.messages.CommandMessageExt"); // This causes errors in XStream during proxy sampling (cannot cast byte to string)
-    		aliases.registerAlias("DSK", "flex.messaging.messages.AcknowledgeMessageExt");
+    	return convertAmfMessageToXml(amf, getAliases(useAliasRegistry));
+    }
+    
+    /**
+     * Converts complete AMF message to XML representation, decoding it with the given aliases
+     */
+    public static String convertAmfMessageToXml(byte[] amf, AmfClassAliases aliases) {
+    	return getXStream().toXML(convertAmfMessageToActionMessage(amf, aliases, AmfSelection.ALL));
+    }
+    
+    /**
+     * Converts the selected headers and bodies of an AMF message to XML, skipping the
+     * rest of the message without decoding it
+     */
+    public static String convertAmfMessageToXml(byte[] amf, AmfSelection selection) {
+    	return getXStream().toXML(convertAmfMessageToActionMessage(amf, false, selection));
+    }
+    
+    /**
+     * Writes a complete AMF message as XML, the same XML as convertAmfMessageToXml
+     * without ever holding all of the XML in memory. The message itself is still
+     * decoded whole first: XStream writes it from the decoded objects, whose types
+     * and shared references the events of AmfEventReader don't carry.
+     * 
+     * @param amf complete AMF message
+     * @param out
+     * @param maxLength number of characters after which the XML is cut off, 0 for no limit
+     * @return true if all the XML was written, false if it was cut off
+     * @throws IOException if out fails
+     */
+    public static boolean writeAmfMessageAsXml(byte[] amf, Writer out, int maxLength) throws IOException {
+    	return writeAmfMessageAsXml(amf, AmfAliasProfiles.SAMPLING, out, maxLength);
+    }
+    
+    /**
+     * Same as {@link #writeAmfMessageAsXml(byte[], Writer, int)}, decoding the message
+     * with the given aliases
+     */
+    public static boolean writeAmfMessageAsXml(byte[] amf, AmfClassAliases aliases, Writer out, int maxLength) throws IOException {
+    	ActionMessage message = convertAmfMessageToActionMessage(amf, aliases, AmfSelection.ALL);
+    	return AmfCodecSession.get().getXmlWriter().open(out, maxLength).write(getXStream(), message);
+    }
+    
+    /**
+     * Same as {@link #writeAmfMessageAsXml(byte[], Writer, int)}, with the XML encoded as UTF-8
+     */
+    public static boolean writeAmfMessageAsXml(byte[] amf, OutputStream out, int maxLength) throws IOException {
+    	return writeAmfMessageAsXml(amf, AmfAliasProfiles.SAMPLING, out, maxLength);
+    }
+    
+    /**
+     * Same as {@link #writeAmfMessageAsXml(byte[], OutputStream, int)}, decoding the
+     * message with the given aliases
+     */
+    public static boolean writeAmfMessageAsXml(byte[] amf, AmfClassAliases aliases, OutputStream out, int maxLength) throws IOException {
+    	ActionMessage message = convertAmfMessageToActionMessage(amf, aliases, AmfSelection.ALL);
+    	return AmfCodecSession.get().getXmlWriter().open(out, maxLength).write(getXStream(), message);
+    }
+    
+    /**
+     * Deserializes a complete AMF message, any error is logged and leaves the
+     * message as far as it could be read
+     */
+    public static ActionMessage convertAmfMessageToActionMessage(byte[] amf, boolean useAliasRegistry) {
+    	return convertAmfMessageToActionMessage(amf, useAliasRegistry, AmfSelection.ALL);
+    }
+    
+    /**
+     * Deserializes the selected parts of an AMF message, see {@link AmfSelection}.
+     * When the message has to be decoded by BlazeDS it's decoded whole, then the
+     * headers and bodies that weren't selected are dropped; the depth isn't limited.
+     */
+    public static ActionMessage convertAmfMessageToActionMessage(byte[] amf, boolean useAliasRegistry, AmfSelection selection) {
+    	return convertAmfMessageToActionMessage(amf, getAliases(useAliasRegistry), selection);
+    }
+    
+    /**
+     * Deserializes the selected parts of an AMF message with the given class aliases.
+     * BlazeDS only knows the global ClassAliasRegistry, so a message it has to decode
+     * is decoded with whatever aliases are registered there, see
+     * {@link AmfAliasProfiles#registerRenderAliases()} for the render aliases.
+     */
+    public static ActionMessage convertAmfMessageToActionMessage(byte[] amf, AmfClassAliases aliases, AmfSelection selection) {
+    	AmfCodecSession session = AmfCodecSession.get();
+    	if (NATIVE_CODEC) {
+    		ActionMessage message = new ActionMessage();
+    		boolean read = false;
+    		try {
+    			AmfMessageReader reader = session.getReader();
+    			reader.setAliases(aliases);
+    			reader.readMessage(amf, 0, amf.length, message, selection);
+    			read = true;
+    		}
+    		catch (Exception ex) {
+    			// Decoded again by BlazeDS, which keeps what it read before any error
+    			logFallback(session, "Decoding", ex); // $NON-NLS-1$
+    		}
+    		if (read) {
+    			return message;
+    		}
     	}
     	
-    	// TODO: Maybe allow user configuration
-    	serializationContext.createASObjectForMissingType = true;
-    	//serializationContext.instantiateTypes = false;
-    	
-    	ByteArrayInputStream bin = new ByteArrayInputStream(amf);
+    	ActionContext actionContext = new ActionContext();
         
         ActionMessage message = new ActionMessage();
         actionContext.setRequestMessage(message); // Is this necessary, what does it do?
         
-        MessageDeserializer deserializer = new AmfMessageDeserializer();
-        deserializer.initialize(serializationContext, bin, null);
+        if (aliases == AmfAliasProfiles.RENDER) {
+        	AmfAliasProfiles.registerRenderAliases();
+        }
+        MessageDeserializer deserializer = session.getDeserializer(amf);
         
+        boolean failed = false;
         try {
         	deserializer.readMessage(message, actionContext);
         } catch (Exception ex) {
         	log.error("An exception was encountered while deserializing response. ", ex);
+        	failed = true;
+        }
+        session.deserialized(failed);
+        
+        if (!selection.isAll()) {
+        	for (int i = 0; i < message.getHeaderCount(); i++) {
+        		MessageHeader header = message.getHeader(i);
+        		if (!selection.isHeaderSelected(header.getName())) {
+        			header.setData(null);
+        		}
+        	}
+        	for (int i = 0; i < message.getBodyCount(); i++) {
+        		if (!selection.isBodySelected(i)) {
+        			message.getBody(i).setData(null);
+        		}
+        	}
         }
         
-        return xs.toXML(message);
+        return message;
     }
     
+	static SerializationContext createDeserializationContext() {
+		SerializationContext serializationContext = new SerializationContext();
+		
+		// TODO: Maybe allow user configuration
+		serializationContext.createASObjectForMissingType = true;
+		//serializationContext.instantiateTypes = false;
+		
+		return serializationContext;
+	}
+	
+	/**
+	 * @return the XStream for the calling thread
+	 * @see AmfConverterRegistry
+	 */
 	public static XStream getXStream() {
-		if (xstream == null) {
-			xstream = new XStream();
-			
-			xstream.alias("ActionMessage", ActionMessage.class);
-			xstream.alias("MessageHeader", MessageHeader.class);
-			xstream.alias("MessageBody", MessageBody.class);
-			xstream.alias("RemotingMessage", RemotingMessage.class);
-			xstream.alias("CommandMessage", CommandMessage.class);
-			xstream.alias("AcknowledgeMessage", AcknowledgeMessage.class);
-			xstream.alias("ErrorMessage", ErrorMessage.class);
-			xstream.alias("ASObject", ASObject.class);
-			xstream.alias("DSC", CommandMessageExt.class);
-			xstream.alias("DSK", AcknowledgeMessageExt.class);
-			
-			// Better ASObject Converter
-			Mapper mapper = xstream.getMapper();
-			xstream.registerConverter(new ASObjectConverter(mapper));
+		return AmfConverterRegistry.getXStream();
+	}
+	
+	/*
+	 * Each message BlazeDS has to handle costs a second encode or decode, so the first
+	 * of each thread is logged where it will be seen, see AmfCodecTest
+	 */
+	private static void logFallback(AmfCodecSession session, String what, Exception ex) {
+		if (session.isFirstFallback()) {
+			log.info(what + " AMF with BlazeDS, the plugin's codec can't handle the message"
+				+ " (further fallbacks of this thread are logged at debug level): " + ex);
 		}
-		
-		return xstream;
+		else if (log.isDebugEnabled()) {
+			log.debug(what + " AMF with BlazeDS: " + ex);
+		}
+	}
+	
+	private static AmfClassAliases getAliases(boolean render) {
+		return render ? AmfAliasProfiles.RENDER : AmfAliasProfiles.SAMPLING;
 	}
 }
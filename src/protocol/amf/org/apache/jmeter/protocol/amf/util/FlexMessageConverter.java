@@ -0,0 +1,259 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.converters.reflection.AbstractReflectionConverter;
+import com.thoughtworks.xstream.converters.reflection.ObjectAccessException;
+import com.thoughtworks.xstream.converters.reflection.ReflectionProvider;
+import com.thoughtworks.xstream.core.util.Primitives;
+import com.thoughtworks.xstream.io.ExtendedHierarchicalStreamWriterHelper;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.mapper.Mapper;
+
+/**
+ * Converter for one of the Flex message classes, e.g. RemotingMessage or MessageBody,
+ * or for a value object class through {@link ValueObjectConverter}, that writes the
+ * same XML as XStream's reflection converter.
+ *
+ * The reflection converter looks up every field, its name and its type through the
+ * mapper for each object it converts. This one does that once, when it is created, so
+ * converting a message only reads or writes the fields and converts their values.
+ */
+public class FlexMessageConverter implements Converter {
+
+	private final Class<?> type;
+
+	private final ReflectionProvider reflectionProvider;
+
+	private final Mapper mapper;
+
+	private final String classAttribute;
+
+	private final String resolvesToAttribute;
+
+	// In the order the reflection converter writes them
+	private final Member[] members;
+
+	private final Map<String, Member> membersByName;
+
+	private FlexMessageConverter(Class<?> type, ReflectionProvider reflectionProvider, Mapper mapper, List<Member> members) {
+		this.type = type;
+		this.reflectionProvider = reflectionProvider;
+		this.mapper = mapper;
+		this.classAttribute = mapper.aliasForSystemAttribute("class"); // $NON-NLS-1$
+		this.resolvesToAttribute = mapper.aliasForSystemAttribute("resolves-to"); // $NON-NLS-1$
+		this.members = members.toArray(new Member[members.size()]);
+		this.membersByName = new HashMap<String, Member>();
+		for (int i = 0; i < this.members.length; i++) {
+			membersByName.put(this.members[i].name, this.members[i]);
+		}
+	}
+
+	/**
+	 * Resolves the serialized fields of a class the way the reflection converter does
+	 *
+	 * @param type class to convert, subclasses are left to other converters
+	 * @param reflectionProvider of the XStream the converter is registered with
+	 * @param mapper of the XStream the converter is registered with
+	 * @return the converter, or null if the class needs the reflection converter
+	 */
+	public static FlexMessageConverter create(final Class<?> type, final ReflectionProvider reflectionProvider, final Mapper mapper) {
+		final List<Member> members = new ArrayList<Member>();
+		final Map<String, Member> names = new HashMap<String, Member>();
+		final boolean[] supported = { true };
+
+		reflectionProvider.visitSerializableFields(reflectionProvider.newInstance(type), new ReflectionProvider.Visitor() {
+			@SuppressWarnings("rawtypes")
+			public void visit(String fieldName, Class fieldType, Class definedIn, Object value) {
+				if (!mapper.shouldSerializeMember(definedIn, fieldName)) {
+					return;
+				}
+				String name = mapper.serializedMember(type, fieldName);
+				if (names.containsKey(name) || members.size() >= Long.SIZE) {
+					// Shadowed fields are written with a defined-in attribute, leave those to reflection
+					supported[0] = false;
+					return;
+				}
+				Member member = new Member(name, reflectionProvider.getField(definedIn, fieldName), mapper, members.size());
+				members.add(member);
+				names.put(name, member);
+			}
+		});
+
+		return supported[0] ? new FlexMessageConverter(type, reflectionProvider, mapper, members) : null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("rawtypes")
+	public boolean canConvert(Class clazz) {
+		return type.equals(clazz);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+		for (int i = 0; i < members.length; i++) {
+			Member member = members[i];
+			Object value = member.get(source);
+			if (value == null) {
+				continue;
+			}
+
+			ExtendedHierarchicalStreamWriterHelper.startNode(writer, member.name, member.fieldType);
+			String className = member.getClassAttribute(value.getClass());
+			if (className != null && classAttribute != null) {
+				writer.addAttribute(classAttribute, className);
+			}
+			context.convertAnother(value);
+			writer.endNode();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+		Object result = reflectionProvider.newInstance(type);
+
+		long seen = 0;
+		while (reader.hasMoreChildren()) {
+			reader.moveDown();
+
+			Member member = membersByName.get(reader.getNodeName());
+			if (member == null) {
+				throw new ConversionException("Element " + reader.getNodeName() + " of type " + type.getName()
+						+ " is not defined as field in type " + type.getName());
+			}
+			if ((seen & member.bit) != 0) {
+				throw new AbstractReflectionConverter.DuplicateFieldException(member.name + " [" + member.field.getDeclaringClass().getName() + "]");
+			}
+			seen |= member.bit;
+
+			Object value = context.convertAnother(result, getValueType(reader, member));
+			if (value != null && !member.valueType.isAssignableFrom(value.getClass())) {
+				throw new ConversionException("Cannot convert type " + value.getClass().getName() + " to type " + member.valueType.getName());
+			}
+			member.set(result, value);
+
+			reader.moveUp();
+		}
+
+		return result;
+	}
+
+	private Class<?> getValueType(HierarchicalStreamReader reader, Member member) {
+		String className = resolvesToAttribute != null ? reader.getAttribute(resolvesToAttribute) : null;
+		if (className == null && classAttribute != null) {
+			className = reader.getAttribute(classAttribute);
+		}
+		return className != null ? mapper.realClass(className) : member.defaultType;
+	}
+
+	/*
+	 * A serialized field, with everything the mapper would be asked about it resolved
+	 */
+	private static class Member {
+		final String name;
+		final Field field;
+		final Class<?> fieldType;
+		final long bit;
+
+		// Type a value is read as when the element has no class attribute
+		final Class<?> defaultType;
+		final String defaultTypeName;
+
+		// Type any value must have, boxed for primitives
+		final Class<?> valueType;
+
+		final Mapper mapper;
+
+		// Class attribute for the type of the last value written, values rarely change type
+		private volatile ClassAttribute lastClassAttribute;
+
+		Member(String name, Field field, Mapper mapper, int index) {
+			this.name = name;
+			this.field = field;
+			this.fieldType = field.getType();
+			this.bit = 1L << index;
+			this.defaultType = mapper.defaultImplementationOf(fieldType);
+			this.defaultTypeName = mapper.serializedClass(defaultType);
+			this.valueType = fieldType.isPrimitive() ? Primitives.box(fieldType) : fieldType;
+			this.mapper = mapper;
+		}
+
+		Object get(Object source) {
+			try {
+				return field.get(source);
+			} catch (IllegalAccessException e) {
+				throw new ObjectAccessException("Could not get field " + field.getDeclaringClass().getName() + "." + field.getName(), e);
+			}
+		}
+
+		void set(Object target, Object value) {
+			try {
+				field.set(target, value);
+			} catch (IllegalAccessException e) {
+				throw new ObjectAccessException("Could not set field " + field.getDeclaringClass().getName() + "." + field.getName(), e);
+			}
+		}
+
+		/*
+		 * Same rule as the reflection converter: a value of a different type than
+		 * the field's default gets a class attribute unless both serialize the same
+		 */
+		String getClassAttribute(Class<?> actualType) {
+			ClassAttribute last = lastClassAttribute;
+			if (last != null && last.type == actualType) {
+				return last.name;
+			}
+
+			String className = null;
+			if (!actualType.equals(defaultType)) {
+				String serialized = mapper.serializedClass(actualType);
+				if (!serialized.equals(defaultTypeName)) {
+					className = serialized;
+				}
+			}
+			lastClassAttribute = new ClassAttribute(actualType, className);
+			return className;
+		}
+	}
+
+	private static class ClassAttribute {
+		final Class<?> type;
+		final String name;
+
+		ClassAttribute(Class<?> type, String name) {
+			this.type = type;
+			this.name = name;
+		}
+	}
+}
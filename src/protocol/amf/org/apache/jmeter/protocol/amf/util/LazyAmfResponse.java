@@ -0,0 +1,79 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import org.apache.jmeter.protocol.amf.codec.AmfSelection;
+
+/**
+ * Raw AMF response stored in a variable, decoded to XML the first time it's read.
+ * 
+ * Each sample stores a new instance, so the decoded XML is cached until the
+ * sampler runs again. Variables are per thread, so no synchronization is needed.
+ */
+public class LazyAmfResponse {
+	
+	private final byte[] amf;
+	
+	private String xml;
+	
+	public LazyAmfResponse(byte[] amf) {
+		this.amf = amf;
+	}
+	
+	/**
+	 * @return the raw AMF response
+	 */
+	public byte[] getAmf() {
+		return amf;
+	}
+	
+	/**
+	 * @return the response as XML, decoding it on first use
+	 */
+	public String getXml() {
+		if (xml == null) {
+			xml = AmfXmlConverter.convertAmfMessageToXml(amf);
+		}
+		return xml;
+	}
+	
+	/**
+	 * @param selection parts of the response to decode
+	 * @return the selected parts of the response as XML, only the whole response is cached
+	 */
+	public String getXml(AmfSelection selection) {
+		if (xml != null || selection.isAll()) {
+			return getXml();
+		}
+		return AmfXmlConverter.convertAmfMessageToXml(amf, selection);
+	}
+	
+	/**
+	 * @return true if the XML has already been decoded
+	 */
+	public boolean isDecoded() {
+		return xml != null;
+	}
+	
+	/**
+	 * Allows scripts to treat the variable as the XML, e.g. vars.getObject("res").toString()
+	 */
+	@Override
+	public String toString() {
+		return getXml();
+	}
+}
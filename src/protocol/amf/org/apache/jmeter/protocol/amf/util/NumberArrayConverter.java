@@ -0,0 +1,155 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+/**
+ * Converter for the int[], long[] and double[] the AMF reader makes of numeric
+ * arrays and vectors, writing the values as one line of text, e.g.
+ * &lt;int-array&gt;1 2 3&lt;/int-array&gt;, rather than an element for each.
+ *
+ * Arrays in XStream's usual form, with an element for each value, are still read.
+ */
+public class NumberArrayConverter implements Converter {
+
+	@SuppressWarnings("rawtypes")
+	public boolean canConvert(Class type) {
+		return type == int[].class || type == long[].class || type == double[].class;
+	}
+
+	public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+		StringBuilder text = new StringBuilder();
+		if (source instanceof int[]) {
+			int[] values = (int[]) source;
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					text.append(' ');
+				}
+				text.append(values[i]);
+			}
+		}
+		else if (source instanceof long[]) {
+			long[] values = (long[]) source;
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					text.append(' ');
+				}
+				text.append(values[i]);
+			}
+		}
+		else {
+			double[] values = (double[]) source;
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					text.append(' ');
+				}
+				text.append(values[i]);
+			}
+		}
+		writer.setValue(text.toString());
+	}
+
+	public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+		Class<?> type = context.getRequiredType();
+		String[] values;
+		if (reader.hasMoreChildren()) {
+			values = readElements(reader);
+		}
+		else {
+			values = split(reader.getValue());
+		}
+
+		try {
+			if (type == int[].class) {
+				int[] array = new int[values.length];
+				for (int i = 0; i < values.length; i++) {
+					array[i] = Integer.parseInt(values[i]);
+				}
+				return array;
+			}
+			if (type == long[].class) {
+				long[] array = new long[values.length];
+				for (int i = 0; i < values.length; i++) {
+					array[i] = Long.parseLong(values[i]);
+				}
+				return array;
+			}
+			double[] array = new double[values.length];
+			for (int i = 0; i < values.length; i++) {
+				array[i] = Double.parseDouble(values[i]);
+			}
+			return array;
+		} catch (NumberFormatException e) {
+			throw new ConversionException("Invalid value in " + type.getSimpleName(), e);
+		}
+	}
+
+	/*
+	 * The text of each element, as XStream writes primitive arrays by default
+	 */
+	private static String[] readElements(HierarchicalStreamReader reader) {
+		String[] values = new String[16];
+		int count = 0;
+		while (reader.hasMoreChildren()) {
+			reader.moveDown();
+			if (count == values.length) {
+				String[] grown = new String[count * 2];
+				System.arraycopy(values, 0, grown, 0, count);
+				values = grown;
+			}
+			values[count++] = reader.getValue().trim();
+			reader.moveUp();
+		}
+		String[] read = new String[count];
+		System.arraycopy(values, 0, read, 0, count);
+		return read;
+	}
+
+	/*
+	 * The values of the text, separated by any whitespace
+	 */
+	private static String[] split(String text) {
+		int length = text.length();
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			if (!Character.isWhitespace(text.charAt(i)) && (i == 0 || Character.isWhitespace(text.charAt(i - 1)))) {
+				count++;
+			}
+		}
+
+		String[] values = new String[count];
+		int index = 0;
+		int start = -1;
+		for (int i = 0; i <= length; i++) {
+			boolean space = i == length || Character.isWhitespace(text.charAt(i));
+			if (space && start >= 0) {
+				values[index++] = text.substring(start, i);
+				start = -1;
+			}
+			else if (!space && start < 0) {
+				start = i;
+			}
+		}
+		return values;
+	}
+}
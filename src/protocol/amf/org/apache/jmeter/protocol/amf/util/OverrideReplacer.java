@@ -0,0 +1,311 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Replaces a fixed set of search strings (AMF property overrides) in a single pass.
+ *
+ * The search strings are compiled once into an Aho-Corasick automaton, so a
+ * replacement costs one scan of the input regardless of how many overrides
+ * there are, and only one output buffer is built.
+ *
+ * The result is always identical to calling String.replace for each search string
+ * in order. Sequential replacement can differ from a single pass when matches of two
+ * search strings overlap in the text, or when a replacement value could form (part of)
+ * a later search string. Both are detected, the first while scanning and the second
+ * when the values change, and the text is then replaced sequentially instead.
+ */
+public class OverrideReplacer {
+
+	private final String[] keys;
+
+	// Automaton, node 0 is the root
+	private char[][] edgeChars;
+	private int[][] edgeTargets;
+	private int[] failure;
+	private int[] output; // Index of the key ending at each node, or -1
+	private int[] dictionary; // Nearest node on the failure chain with an output, or 0
+	private int[] rootAscii; // Root transitions for ASCII, the common case while scanning
+
+	private final boolean hasEmptyKey;
+
+	// Values from the last safety check, almost always unchanged between samples
+	private String[] checkedValues;
+	private boolean checkedSafe;
+
+	/**
+	 * Compiles the search strings
+	 *
+	 * @param keys search strings in replacement order, without duplicates
+	 */
+	public OverrideReplacer(String[] keys) {
+		this.keys = keys.clone();
+		build();
+
+		boolean empty = false;
+		for (int i = 0; i < keys.length; i++) {
+			empty |= keys[i].length() == 0;
+		}
+		this.hasEmptyKey = empty;
+	}
+
+	/**
+	 * @param other search strings
+	 * @return true if this replacer was compiled for the same search strings in the same order
+	 */
+	public boolean hasKeys(String[] other) {
+		return Arrays.equals(keys, other);
+	}
+
+	/**
+	 * @return the search strings, in replacement order
+	 */
+	public String[] getKeys() {
+		return keys.clone();
+	}
+
+	/**
+	 * Replaces every search string with its value
+	 *
+	 * @param text
+	 * @param values replacements, same order as the search strings
+	 * @return text with replacements made, identical to sequential String.replace calls
+	 */
+	public String replace(String text, String[] values) {
+		if (keys.length == 0) {
+			return text;
+		}
+		if (isSinglePassSafe(values)) {
+			String result = replaceSinglePass(text, values);
+			if (result != null) {
+				return result;
+			}
+		}
+
+		String result = text;
+		for (int i = 0; i < keys.length; i++) {
+			result = result.replace(keys[i], values[i]);
+		}
+		return result;
+	}
+
+	/*
+	 * Returns null if matches of different keys overlap
+	 */
+	private String replaceSinglePass(String text, String[] values) {
+		StringBuilder out = null;
+		int copied = 0;
+		int state = 0;
+		int len = text.length();
+
+		// Furthest match end so far, its key and the furthest end of any other key
+		int maxEnd = -1;
+		int maxEndKey = -1;
+		int maxEndOther = -1;
+
+		for (int i = 0; i < len; i++) {
+			char c = text.charAt(i);
+			if (state == 0 && c < 128) {
+				state = rootAscii[c];
+				if (state == 0) {
+					continue;
+				}
+			}
+			else {
+				state = next(state, c);
+			}
+
+			int match = output[state] >= 0 ? state : dictionary[state];
+			while (match != 0) {
+				int k = output[match];
+				int start = i + 1 - keys[k].length();
+
+				if (start < (k == maxEndKey ? maxEndOther : maxEnd)) {
+					return null;
+				}
+				if (k != maxEndKey) {
+					maxEndOther = maxEnd;
+					maxEndKey = k;
+				}
+				maxEnd = i + 1;
+
+				// Same as String.replace, a key can't match inside its previous match
+				if (start >= copied) {
+					if (out == null) {
+						out = new StringBuilder(len + 16 * keys.length);
+					}
+					out.append(text, copied, start).append(values[k]);
+					copied = i + 1;
+				}
+
+				match = dictionary[match];
+			}
+		}
+
+		if (out == null) {
+			return text;
+		}
+		out.append(text, copied, len);
+		return out.toString();
+	}
+
+	private int next(int state, char c) {
+		while (true) {
+			char[] chars = edgeChars[state];
+			int idx = Arrays.binarySearch(chars, c);
+			if (idx >= 0) {
+				return edgeTargets[state][idx];
+			}
+			if (state == 0) {
+				return 0;
+			}
+			state = failure[state];
+		}
+	}
+
+	private void build() {
+		List<char[]> chars = new ArrayList<char[]>();
+		List<int[]> targets = new ArrayList<int[]>();
+		List<Integer> outputs = new ArrayList<Integer>();
+
+		chars.add(new char[0]);
+		targets.add(new int[0]);
+		outputs.add(Integer.valueOf(-1));
+
+		// Trie
+		for (int k = 0; k < keys.length; k++) {
+			String key = keys[k];
+			int state = 0;
+			for (int i = 0; i < key.length(); i++) {
+				char c = key.charAt(i);
+				char[] nodeChars = chars.get(state);
+				int idx = Arrays.binarySearch(nodeChars, c);
+				if (idx >= 0) {
+					state = targets.get(state)[idx];
+					continue;
+				}
+
+				int ins = -idx - 1;
+				int created = chars.size();
+				chars.add(new char[0]);
+				targets.add(new int[0]);
+				outputs.add(Integer.valueOf(-1));
+
+				int[] nodeTargets = targets.get(state);
+				char[] newChars = new char[nodeChars.length + 1];
+				int[] newTargets = new int[nodeTargets.length + 1];
+				System.arraycopy(nodeChars, 0, newChars, 0, ins);
+				System.arraycopy(nodeTargets, 0, newTargets, 0, ins);
+				newChars[ins] = c;
+				newTargets[ins] = created;
+				System.arraycopy(nodeChars, ins, newChars, ins + 1, nodeChars.length - ins);
+				System.arraycopy(nodeTargets, ins, newTargets, ins + 1, nodeTargets.length - ins);
+				chars.set(state, newChars);
+				targets.set(state, newTargets);
+
+				state = created;
+			}
+			if (key.length() > 0 && outputs.get(state).intValue() < 0) {
+				outputs.set(state, Integer.valueOf(k));
+			}
+		}
+
+		int size = chars.size();
+		edgeChars = chars.toArray(new char[size][]);
+		edgeTargets = targets.toArray(new int[size][]);
+		failure = new int[size];
+		output = new int[size];
+		for (int i = 0; i < size; i++) {
+			output[i] = outputs.get(i).intValue();
+		}
+
+		// Failure and dictionary links, breadth first
+		dictionary = new int[size];
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		for (int i = 0; i < edgeTargets[0].length; i++) {
+			queue.add(Integer.valueOf(edgeTargets[0][i]));
+		}
+		while (!queue.isEmpty()) {
+			int state = queue.removeFirst().intValue();
+			for (int i = 0; i < edgeChars[state].length; i++) {
+				int child = edgeTargets[state][i];
+				int fail = state == 0 ? 0 : next(failure[state], edgeChars[state][i]);
+				failure[child] = fail;
+				dictionary[child] = output[fail] >= 0 ? fail : dictionary[fail];
+				queue.add(Integer.valueOf(child));
+			}
+		}
+
+		rootAscii = new int[128];
+		for (int i = 0; i < edgeChars[0].length; i++) {
+			if (edgeChars[0][i] < 128) {
+				rootAscii[edgeChars[0][i]] = edgeTargets[0][i];
+			}
+		}
+	}
+
+	/*
+	 * A value can only be substituted in the same pass if it can't create a match
+	 * for a later key, alone or combined with the text around it
+	 */
+	private boolean isSinglePassSafe(String[] values) {
+		if (hasEmptyKey) {
+			return false;
+		}
+		if (checkedValues != null && Arrays.equals(checkedValues, values)) {
+			return checkedSafe;
+		}
+
+		boolean safe = true;
+		for (int i = 0; i < values.length && safe; i++) {
+			String value = values[i];
+			for (int j = i + 1; j < keys.length && safe; j++) {
+				String key = keys[j];
+				if (value.length() == 0) {
+					// Removing the key joins the text either side of it
+					safe = key.length() < 2;
+				}
+				else {
+					safe = value.indexOf(key) < 0 && key.indexOf(value) < 0
+						&& !suffixMatchesPrefix(value, key) && !suffixMatchesPrefix(key, value);
+				}
+			}
+		}
+
+		checkedValues = values.clone();
+		checkedSafe = safe;
+		return safe;
+	}
+
+	/*
+	 * True if a proper suffix of first is a proper prefix of second
+	 */
+	private static boolean suffixMatchesPrefix(String first, String second) {
+		int max = Math.min(first.length(), second.length()) - 1;
+		for (int n = 1; n <= max; n++) {
+			if (first.regionMatches(first.length() - n, second, 0, n)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
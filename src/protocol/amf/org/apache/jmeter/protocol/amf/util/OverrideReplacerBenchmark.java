@@ -0,0 +1,102 @@
+package org.apache.jmeter.protocol.amf.util;
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+/**
+ * Compares OverrideReplacer against the String.replace loop it replaced in
+ * AmfRequest.overrideProperties, for a payload and override count similar to
+ * a large AMF Request Defaults setup.
+ *
+ * Usage: OverrideReplacerBenchmark [overrides] [payload KB] [iterations]
+ */
+public class OverrideReplacerBenchmark {
+
+	public static void main(String[] args) {
+		int overrides = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+		int payloadKb = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+		String[] keys = new String[overrides];
+		String[] values = new String[overrides];
+		for (int i = 0; i < overrides; i++) {
+			keys[i] = "@@OVERRIDE_" + i + "@@";
+			values[i] = "replacement-value-" + i;
+		}
+
+		String xml = createXml(keys, payloadKb * 1024);
+
+		OverrideReplacer replacer = new OverrideReplacer(keys);
+
+		String expected = replaceSequential(xml, keys, values);
+		String actual = replacer.replace(xml, values);
+		if (!expected.equals(actual)) {
+			throw new IllegalStateException("OverrideReplacer result differs from sequential String.replace");
+		}
+
+		// Warm up both before timing
+		for (int i = 0; i < iterations; i++) {
+			replaceSequential(xml, keys, values);
+			replacer.replace(xml, values);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			replaceSequential(xml, keys, values);
+		}
+		long sequential = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			replacer.replace(xml, values);
+		}
+		long singlePass = System.nanoTime() - start;
+
+		System.out.println(overrides + " overrides, " + xml.length() + " chars, " + iterations + " iterations");
+		System.out.println("String.replace loop: " + (sequential / iterations / 1000) + " us/op");
+		System.out.println("OverrideReplacer:    " + (singlePass / iterations / 1000) + " us/op");
+		System.out.println("Speedup:             " + ((double) sequential / singlePass) + "x");
+	}
+
+	private static String replaceSequential(String xml, String[] keys, String[] values) {
+		String result = new String(xml);
+		for (int i = 0; i < keys.length; i++) {
+			result = result.replace(keys[i], values[i]);
+		}
+		return result;
+	}
+
+	/*
+	 * XStream-like XML with each override key appearing a few times
+	 */
+	private static String createXml(String[] keys, int size) {
+		StringBuilder sb = new StringBuilder(size + 1024);
+		sb.append("<ActionMessage>\n  <version>3</version>\n  <bodies>\n");
+		int n = 0;
+		while (sb.length() < size) {
+			sb.append("    <entry>\n      <string>field").append(n).append("</string>\n");
+			if (n % 5 == 0) {
+				sb.append("      <string>").append(keys[(n / 5) % keys.length]).append("</string>\n");
+			}
+			else {
+				sb.append("      <string>some recorded value ").append(n).append("</string>\n");
+			}
+			sb.append("    </entry>\n");
+			n++;
+		}
+		sb.append("  </bodies>\n</ActionMessage>\n");
+		return sb.toString();
+	}
+}
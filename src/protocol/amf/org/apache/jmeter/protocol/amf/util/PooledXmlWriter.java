@@ -0,0 +1,270 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Buffer that XStream writes XML through on its way to a Writer or an OutputStream,
+ * so the XML is never held as a whole.
+ *
+ * Each thread keeps one, with its character buffer and UTF-8 encoder, and points
+ * it at a new target for each message. Writing can stop after a number of
+ * characters, in which case XStream is interrupted rather than left to convert
+ * the rest of the message for nothing.
+ */
+final class PooledXmlWriter extends Writer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8"); // $NON-NLS-1$
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final char[] chars = new char[BUFFER_SIZE];
+	private int count;
+
+	private final CharsetEncoder encoder = UTF8.newEncoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+	// One of these is set while writing
+	private Writer writer;
+	private OutputStream stream;
+
+	// Characters that can still be written, negative for no limit
+	private long remaining;
+
+	private boolean truncated;
+
+	/**
+	 * @param target
+	 * @param maxLength characters to write at most, 0 for no limit
+	 * @return this
+	 */
+	PooledXmlWriter open(Writer target, int maxLength) {
+		reset(maxLength);
+		this.writer = target;
+		return this;
+	}
+
+	/**
+	 * @param target receives the XML encoded as UTF-8
+	 * @param maxLength characters to write at most, 0 for no limit
+	 * @return this
+	 */
+	PooledXmlWriter open(OutputStream target, int maxLength) {
+		reset(maxLength);
+		this.stream = target;
+		encoder.reset();
+		return this;
+	}
+
+	/**
+	 * Writes a value as XML to the current target, then lets go of the target
+	 *
+	 * @param xstream
+	 * @param value
+	 * @return true if all the XML was written, false if it was cut off at the limit
+	 * @throws IOException if the target fails
+	 */
+	boolean write(XStream xstream, Object value) throws IOException {
+		try {
+			try {
+				xstream.toXML(value, this);
+			} catch (RuntimeException e) {
+				// XStream wraps the exceptions of the writer
+				IOException cause = getIOException(e);
+				if (cause == null) {
+					throw e;
+				}
+				if (!(cause instanceof LimitReachedException)) {
+					throw cause;
+				}
+			}
+			drain(true);
+			if (writer != null) {
+				writer.flush();
+			}
+			else {
+				stream.flush();
+			}
+			return !truncated;
+		} finally {
+			writer = null;
+			stream = null;
+			count = 0;
+		}
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		if (remaining == 0) {
+			limitReached();
+		}
+		if (count == chars.length) {
+			drain(false);
+		}
+		chars[count++] = (char) c;
+		if (remaining > 0) {
+			remaining--;
+		}
+	}
+
+	@Override
+	public void write(char[] buffer, int offset, int length) throws IOException {
+		int allowed = allowed(length);
+		while (allowed > 0) {
+			if (count == chars.length) {
+				drain(false);
+			}
+			int n = Math.min(allowed, chars.length - count);
+			System.arraycopy(buffer, offset, chars, count, n);
+			count += n;
+			offset += n;
+			allowed -= n;
+		}
+		if (truncated) {
+			limitReached();
+		}
+	}
+
+	@Override
+	public void write(String text, int offset, int length) throws IOException {
+		int allowed = allowed(length);
+		while (allowed > 0) {
+			if (count == chars.length) {
+				drain(false);
+			}
+			int n = Math.min(allowed, chars.length - count);
+			text.getChars(offset, offset + n, chars, count);
+			count += n;
+			offset += n;
+			allowed -= n;
+		}
+		if (truncated) {
+			limitReached();
+		}
+	}
+
+	/**
+	 * Passes the buffered characters on, the target is flushed at the end of {@link #write(XStream, Object)}
+	 */
+	@Override
+	public void flush() throws IOException {
+		drain(false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	private void reset(int maxLength) {
+		count = 0;
+		bytes.clear();
+		remaining = maxLength > 0 ? maxLength : -1;
+		truncated = false;
+	}
+
+	/*
+	 * Characters of the next write that fit within the limit, marking the output truncated if they don't all fit
+	 */
+	private int allowed(int length) {
+		if (remaining < 0) {
+			return length;
+		}
+		if (length > remaining) {
+			int allowed = (int) remaining;
+			remaining = 0;
+			truncated = true;
+			return allowed;
+		}
+		remaining -= length;
+		return length;
+	}
+
+	private void limitReached() throws LimitReachedException {
+		truncated = true;
+		throw new LimitReachedException();
+	}
+
+	/*
+	 * Sends the buffer to the target. A high surrogate at the end of the buffer is
+	 * kept back for the character that completes it unless this is the end.
+	 */
+	private void drain(boolean end) throws IOException {
+		if (writer != null) {
+			writer.write(chars, 0, count);
+			count = 0;
+			return;
+		}
+
+		CharBuffer in = CharBuffer.wrap(chars, 0, count);
+		while (encoder.encode(in, bytes, end).isOverflow()) {
+			writeBytes();
+		}
+		if (end) {
+			while (encoder.flush(bytes).isOverflow()) {
+				writeBytes();
+			}
+		}
+		writeBytes();
+
+		int left = in.remaining();
+		if (left > 0) {
+			System.arraycopy(chars, in.position(), chars, 0, left);
+		}
+		count = left;
+	}
+
+	private void writeBytes() throws IOException {
+		if (bytes.position() > 0) {
+			stream.write(bytes.array(), 0, bytes.position());
+			bytes.clear();
+		}
+	}
+
+	private static IOException getIOException(Throwable e) {
+		for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException) {
+				return (IOException) cause;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Thrown to interrupt XStream once the limit is reached
+	 */
+	private static class LimitReachedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		LimitReachedException() {
+			super("XML length limit reached"); // $NON-NLS-1$
+		}
+	}
+}
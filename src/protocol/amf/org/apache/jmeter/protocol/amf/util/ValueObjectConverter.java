@@ -0,0 +1,125 @@
+/*
+* Copyright 2011 the original author or authors.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.jmeter.protocol.amf.util;
+
+import java.io.Externalizable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jmeter.protocol.amf.codec.AmfTypeDescriptor;
+
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.converters.reflection.ReflectionProvider;
+import com.thoughtworks.xstream.converters.reflection.SerializationMethodInvoker;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.mapper.Mapper;
+
+/**
+ * Converter for the value object classes of the application under test, the classes
+ * with an {@link AmfTypeDescriptor}, that writes the same XML as XStream's reflection
+ * converter.
+ *
+ * With a JAR of the remoting classes on the classpath the typed objects of a message
+ * are instances of those classes, each of which the reflection converter would look
+ * up field by field for every object. Each class instead gets a
+ * {@link FlexMessageConverter} the first time XStream asks for it, which resolves its
+ * fields once. Classes the reflection converter treats specially, through custom
+ * serialization, writeReplace or readResolve, are left to XStream.
+ */
+public class ValueObjectConverter implements Converter {
+
+	private final ReflectionProvider reflectionProvider;
+
+	private final Mapper mapper;
+
+	private final SerializationMethodInvoker serializationMethods = new SerializationMethodInvoker();
+
+	private final ConcurrentHashMap<Class<?>, FlexMessageConverter> converters =
+		new ConcurrentHashMap<Class<?>, FlexMessageConverter>();
+
+	/**
+	 * @param reflectionProvider of the XStream the converter is registered with
+	 * @param mapper of the XStream the converter is registered with
+	 */
+	public ValueObjectConverter(ReflectionProvider reflectionProvider, Mapper mapper) {
+		this.reflectionProvider = reflectionProvider;
+		this.mapper = mapper;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("rawtypes")
+	public boolean canConvert(Class type) {
+		if (type == null || !AmfTypeDescriptor.isRemotingClass(type)
+				|| Externalizable.class.isAssignableFrom(type)
+				|| serializationMethods.supportsReadObject(type, true)
+				|| serializationMethods.supportsWriteObject(type, true)
+				|| hasMethod(type, "writeReplace") // $NON-NLS-1$
+				|| hasMethod(type, "readResolve")) { // $NON-NLS-1$
+			return false;
+		}
+		return getConverter(type) != null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+		getConverter(source.getClass()).marshal(source, writer, context);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+		return getConverter(context.getRequiredType()).unmarshal(reader, context);
+	}
+
+	/*
+	 * XStream remembers the converter of each class, so this is only asked once per class
+	 */
+	private FlexMessageConverter getConverter(Class<?> type) {
+		FlexMessageConverter converter = converters.get(type);
+		if (converter == null) {
+			try {
+				converter = FlexMessageConverter.create(type, reflectionProvider, mapper);
+			} catch (RuntimeException e) {
+				// Can't be instantiated without a constructor, leave it to reflection
+				converter = null;
+			}
+			if (converter != null) {
+				converters.putIfAbsent(type, converter);
+			}
+		}
+		return converter;
+	}
+
+	private static boolean hasMethod(Class<?> type, String name) {
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			try {
+				c.getDeclaredMethod(name, (Class[]) null);
+				return true;
+			} catch (NoSuchMethodException e) {
+				// Try the superclass
+			}
+		}
+		return false;
+	}
+}
@@ -16,6 +16,10 @@
 
 package org.apache.jmeter.protocol.amf.visualizers;
 
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.apache.jmeter.protocol.amf.util.AmfAliasProfiles;
 import org.apache.jmeter.protocol.amf.util.AmfResources;
 import org.apache.jmeter.protocol.amf.util.AmfXmlConverter;
 import org.apache.jmeter.samplers.SampleResult;
@@ -24,7 +28,9 @@ import org.apache.jmeter.visualizers.SamplerResultTab;
 
 public class RenderAsAMF extends SamplerResultTab implements ResultRenderer {
 	
-	private static final int MAX_RESPONSE_SIZE = 500; /* Max size (in KB) of response for rendering */ 
+	private static final int MAX_RESPONSE_SIZE = 5120; /* Max size (in KB) of response for rendering */ 
+	
+	private static final int MAX_XML_SIZE = 2048; /* Max size (in KB) of XML shown, the rest is cut off */
 
     /** {@inheritDoc} */
     public void renderResult(SampleResult sampleResult) {
@@ -40,8 +46,16 @@ public class RenderAsAMF extends SamplerResultTab implements ResultRenderer {
     		results.setText(AmfResources.getResString("response_too_large")+MAX_RESPONSE_SIZE+"k");
     	}
     	else {
-    		String xml = AmfXmlConverter.convertAmfMessageToXml(sampleResult.getResponseData());
-    		results.setText(xml);
+    		// Only the part that's shown is ever built
+    		StringWriter xml = new StringWriter();
+    		try {
+    			if (!AmfXmlConverter.writeAmfMessageAsXml(sampleResult.getResponseData(), AmfAliasProfiles.RENDER, xml, MAX_XML_SIZE * 1024)) {
+    				xml.write("\n" + AmfResources.getResString("response_truncated") + MAX_XML_SIZE + "k"); // $NON-NLS-1$
+    			}
+    		} catch (IOException e) {
+    			// Not thrown by a StringWriter
+    		}
+    		results.setText(xml.toString());
     	}
     	
     	results.setCaretPosition(0);